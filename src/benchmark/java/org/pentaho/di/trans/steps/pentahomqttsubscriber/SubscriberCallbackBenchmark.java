@@ -0,0 +1,130 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pentahomqttsubscriber;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.mqtt.BatchFraming;
+import org.pentaho.mqtt.MPSCRingBuffer;
+import org.pentaho.mqtt.codec.PayloadEncoder;
+import org.pentaho.mqtt.codec.PayloadEncoderBenchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The subscriber's per-message path: decoding the payload, allocating the output row and handing it over to the step
+ * thread through the receive queue. Payloads are produced by the publisher's encoder, so both ends agree on the format.
+ */
+@State( Scope.Thread ) @BenchmarkMode( Mode.Throughput ) @OutputTimeUnit( TimeUnit.SECONDS ) @Fork( 1 )
+@Warmup( iterations = 5, time = 1 ) @Measurement( iterations = 5, time = 1 )
+public class SubscriberCallbackBenchmark {
+
+  protected static final String STEP_NAME = "MQTT Subscriber";
+  protected static final String TOPIC = "sensors/temperature";
+
+  @Param( { "String", "Integer", "Number", "Date", "Timestamp", "Binary", "Boolean", "Serializable" } )
+  public String m_type;
+
+  /**
+   * Framing of the incoming messages - batches hold {@link #m_batchSize} payloads
+   */
+  @Param( { BatchFraming.NONE, BatchFraming.LENGTH_PREFIXED } )
+  public String m_framing;
+
+  @Param( { "16" } )
+  public int m_batchSize;
+
+  protected MQTTSubscriberData m_data;
+  protected MQTTSubscriber.SubscriberCallback m_callback;
+  protected MqttMessage m_message;
+
+  @Setup public void setup() throws Exception {
+    KettleClientEnvironment.init();
+
+    MQTTSubscriberMeta meta = new MQTTSubscriberMeta();
+    meta.setDefault();
+    meta.setMessageType( m_type );
+    meta.setAllowReadMessageOfTypeObject( true );
+
+    TransMeta transMeta = new TransMeta();
+    StepMeta stepMeta = new StepMeta( STEP_NAME, meta );
+    transMeta.addStep( stepMeta );
+    Trans trans = new Trans( transMeta );
+
+    m_data = new MQTTSubscriberData();
+    MQTTSubscriber step = new MQTTSubscriber( stepMeta, m_data, 0, transMeta, trans );
+    m_data.m_outputRowMeta = new RowMeta();
+    meta.getFields( m_data.m_outputRowMeta, STEP_NAME, null, null, transMeta, null, null );
+    m_data.m_queue = new MPSCRingBuffer<>( 1024 );
+    m_data.m_batchFraming = BatchFraming.isBatching( m_framing ) ? m_framing : null;
+    step.configureCodec( meta, m_data );
+    m_callback = step.new SubscriberCallback( m_data, meta );
+
+    ValueMetaInterface valueMeta =
+        ValueMetaFactory.createValueMeta( "message", ValueMetaFactory.getIdForValueMeta( m_type ) );
+    byte[] payload =
+        PayloadEncoder.forValueMeta( valueMeta ).encode( PayloadEncoderBenchmark.sampleValue( valueMeta.getType() ) );
+    if ( m_data.m_batchFraming == null ) {
+      m_message = new MqttMessage( payload );
+    } else {
+      List<byte[]> payloads = new ArrayList<>();
+      int size = BatchFraming.batchOverhead( m_framing );
+      for ( int i = 0; i < m_batchSize; i++ ) {
+        payloads.add( payload );
+        size += BatchFraming.framedSize( m_framing, payload.length, i == 0 );
+      }
+      m_message = new MqttMessage( BatchFraming.encode( m_framing, payloads, size ) );
+    }
+  }
+
+  /**
+   * One MQTT message in, all of its rows taken off the queue - as the step thread would
+   */
+  @Benchmark public void messageArrived( Blackhole blackhole ) throws Exception {
+    m_callback.messageArrived( TOPIC, m_message );
+    Object[] row;
+    while ( ( row = m_data.m_queue.poll() ) != null ) {
+      blackhole.consume( row );
+    }
+  }
+}
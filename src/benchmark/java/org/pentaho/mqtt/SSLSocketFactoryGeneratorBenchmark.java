@@ -0,0 +1,75 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TLS setup for ssl:// and wss:// brokers - reading the PEM files and building the SSL context. The certificates are
+ * self-signed fixtures that exist only for this benchmark.
+ */
+@State( Scope.Thread ) @BenchmarkMode( Mode.Throughput ) @OutputTimeUnit( TimeUnit.SECONDS ) @Fork( 1 )
+@Warmup( iterations = 5, time = 1 ) @Measurement( iterations = 5, time = 1 )
+public class SSLSocketFactoryGeneratorBenchmark {
+
+  protected String m_caFile;
+  protected String m_certFile;
+  protected String m_keyFile;
+
+  @Setup public void setup() throws Exception {
+    m_caFile = resource( "ca.crt" );
+    m_certFile = resource( "client.crt" );
+    m_keyFile = resource( "client.key" );
+  }
+
+  /**
+   * What a connect costs once the factory is cached
+   */
+  @Benchmark public SSLSocketFactory getSocketFactory() throws Exception {
+    return SSLSocketFactoryGenerator.getSocketFactory( m_caFile, m_certFile, m_keyFile, null );
+  }
+
+  /**
+   * What the first connect with a set of files costs
+   */
+  @Benchmark public SSLSocketFactory createSocketFactory() throws Exception {
+    return SSLSocketFactoryGenerator.createSocketFactory( m_caFile, m_certFile, m_keyFile, null );
+  }
+
+  protected String resource( String name ) throws Exception {
+    return new File( getClass().getResource( name ).toURI() ).getPath();
+  }
+}
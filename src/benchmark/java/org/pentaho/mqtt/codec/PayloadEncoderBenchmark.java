@@ -0,0 +1,105 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt.codec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding the message field of a row into an MQTT payload, for every field type the publisher supports
+ */
+@State( Scope.Thread ) @BenchmarkMode( Mode.Throughput ) @OutputTimeUnit( TimeUnit.SECONDS ) @Fork( 1 )
+@Warmup( iterations = 5, time = 1 ) @Measurement( iterations = 5, time = 1 ) public class PayloadEncoderBenchmark {
+
+  @Param( { "String", "Integer", "Number", "Date", "Timestamp", "Binary", "Boolean", "Serializable" } )
+  public String m_type;
+
+  protected PayloadEncoder m_encoder;
+  protected Object m_value;
+
+  @Setup public void setup() throws KettleException {
+    KettleClientEnvironment.init();
+
+    ValueMetaInterface valueMeta =
+        ValueMetaFactory.createValueMeta( "message", ValueMetaFactory.getIdForValueMeta( m_type ) );
+    m_encoder = PayloadEncoder.forValueMeta( valueMeta );
+    m_value = sampleValue( valueMeta.getType() );
+  }
+
+  @Benchmark public byte[] encode() throws KettleException {
+    return m_encoder.encode( m_value );
+  }
+
+  /**
+   * @return a typical message value of the given type
+   */
+  public static Object sampleValue( int type ) {
+    switch ( type ) {
+      case ValueMetaInterface.TYPE_STRING:
+        return "{\"sensor\":\"temperature-42\",\"value\":21.5,\"unit\":\"\u00b0C\"}";
+      case ValueMetaInterface.TYPE_INTEGER:
+        return 1234567890123L;
+      case ValueMetaInterface.TYPE_NUMBER:
+        return 21.5;
+      case ValueMetaInterface.TYPE_DATE:
+        return new Date( 1465833600000L );
+      case ValueMetaInterface.TYPE_TIMESTAMP:
+        Timestamp ts = new Timestamp( 1465833600000L );
+        ts.setNanos( 123456789 );
+        return ts;
+      case ValueMetaInterface.TYPE_BINARY:
+        byte[] bytes = new byte[64];
+        for ( int i = 0; i < bytes.length; i++ ) {
+          bytes[i] = (byte) i;
+        }
+        return bytes;
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return Boolean.TRUE;
+      case ValueMetaInterface.TYPE_SERIALIZABLE:
+        HashMap<String, Object> map = new HashMap<>();
+        map.put( "sensor", "temperature-42" );
+        map.put( "value", 21.5 );
+        return map;
+      default:
+        throw new IllegalArgumentException( "Unsupported type: " + type );
+    }
+  }
+}
@@ -22,13 +22,19 @@
 
 package org.pentaho.di.trans.steps.pentahomqttpublisher;
 
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
-import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.i18n.BaseMessages;
@@ -39,13 +45,22 @@ import org.pentaho.di.trans.step.StepDataInterface;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.mqtt.BatchFraming;
+import org.pentaho.mqtt.ClientIdStrategy;
+import org.pentaho.mqtt.ClientPersistence;
+import org.pentaho.mqtt.MessageBatcher;
+import org.pentaho.mqtt.MqttConnectionRegistry;
+import org.pentaho.mqtt.MqttVersion;
 import org.pentaho.mqtt.SSLSocketFactoryGenerator;
+import org.pentaho.mqtt.codec.PayloadCodec;
+import org.pentaho.mqtt.codec.PayloadCodecs;
 
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-import java.nio.ByteBuffer;
-import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * MQTT m_client step publisher
@@ -55,11 +70,52 @@ import java.sql.Timestamp;
  */
 public class MQTTPublisher extends BaseStep implements StepInterface {
 
+  /**
+   * Delivery status of passed on rows: acknowledged by the broker (QoS 1 and 2)
+   */
+  public static final String STATUS_DELIVERED = "delivered";
+
+  /**
+   * Delivery status of passed on rows: written to the connection, which is all QoS 0 promises
+   */
+  public static final String STATUS_SENT = "sent";
+
+  /**
+   * Delivery status of passed on rows: publishing failed
+   */
+  public static final String STATUS_FAILED = "failed";
+
+  /**
+   * Delivery status of passed on rows: not published because the message or topic is empty
+   */
+  public static final String STATUS_SKIPPED = "skipped";
+
+  /**
+   * How long to wait for outstanding acknowledgements when the connection timeout is 0 (no timeout) - Paho's own
+   * default connection timeout
+   */
+  protected static final int DEFAULT_FLUSH_TIMEOUT_SECONDS = 30;
+
   public MQTTPublisher( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr, TransMeta transMeta,
       Trans trans ) {
     super( stepMeta, stepDataInterface, copyNr, transMeta, trans );
   }
 
+  public boolean init( StepMetaInterface smi, StepDataInterface sdi ) {
+    if ( super.init( smi, sdi ) ) {
+      // connect before rows flow: step copies are initialized in parallel, so they connect in parallel too, and a
+      // broker that cannot be reached fails the transformation before upstream steps have started
+      try {
+        configureConnection( (MQTTPublisherMeta) smi, (MQTTPublisherData) sdi );
+      } catch ( KettleException e ) {
+        logError( e.getMessage(), e );
+        return false;
+      }
+      return true;
+    }
+    return false;
+  }
+
   public void dispose( StepMetaInterface smi, StepDataInterface sdi ) {
     MQTTPublisherData data = (MQTTPublisherData) sdi;
 
@@ -68,7 +124,7 @@ public class MQTTPublisher extends BaseStep implements StepInterface {
   }
 
   protected void configureConnection( MQTTPublisherMeta meta, MQTTPublisherData data ) throws KettleException {
-    if ( data.m_client == null ) {
+    if ( data.m_client == null && data.m_client5 == null ) {
       String broker = environmentSubstitute( meta.getBroker() );
       if ( Const.isEmpty( broker ) ) {
         throw new KettleException(
@@ -78,10 +134,64 @@ public class MQTTPublisher extends BaseStep implements StepInterface {
       if ( Const.isEmpty( clientId ) ) {
         throw new KettleException( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.NoClientID" ) );
       }
+      String idStrategy = environmentSubstitute( meta.getClientIdStrategy() );
+      if ( !ClientIdStrategy.isKnown( idStrategy ) ) {
+        throw new KettleException( BaseMessages
+            .getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.InvalidClientIdStrategy", idStrategy ) );
+      }
+      clientId = ClientIdStrategy
+          .resolve( idStrategy, clientId, getVariable( Const.INTERNAL_VARIABLE_SLAVE_SERVER_NAME ), getCopy() );
 
-      try {
-        data.m_client = new MqttClient( broker, clientId );
+      data.m_inflight = null;
+      if ( meta.isAsyncPublish() ) {
+        String inflight = environmentSubstitute( meta.getMaxInflight() );
+        try {
+          data.m_maxInflight = Integer.parseInt( inflight );
+        } catch ( NumberFormatException e ) {
+          data.m_maxInflight = -1;
+        }
+        if ( data.m_maxInflight < 1 ) {
+          throw new KettleException(
+              BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongMaxInflightValue.Message", inflight ) );
+        }
+        data.m_inflight = new Semaphore( data.m_maxInflight );
+        data.m_publishCallback = new PublishCallback( data );
+      }
+
+      String persistence = environmentSubstitute( meta.getPersistence() );
+      if ( !ClientPersistence.isKnown( persistence ) ) {
+        throw new KettleException(
+            BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.UnknownPersistence.Message", persistence ) );
+      }
+
+      String persistenceDirectory = environmentSubstitute( meta.getPersistenceDirectory() );
+
+      String version = environmentSubstitute( meta.getMqttVersion() );
+      if ( !MqttVersion.isKnown( version ) ) {
+        throw new KettleException(
+            BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.InvalidMqttVersion", version ) );
+      }
+      boolean v5 = MqttVersion.isV5( version );
+      if ( v5 ) {
+        if ( meta.isSharedConnection() ) {
+          throw new KettleException(
+              BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.SharedConnectionNeedsV3" ) );
+        }
+        configureMessageProperties( meta, data );
+      }
 
+      long idleTimeoutMs = 0;
+      if ( meta.isSharedConnection() ) {
+        String idleTimeout = environmentSubstitute( meta.getConnectionIdleTimeout() );
+        try {
+          idleTimeoutMs = Long.parseLong( idleTimeout ) * 1000L;
+        } catch ( NumberFormatException e ) {
+          throw new KettleException( BaseMessages
+              .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongIdleTimeoutValue.Message", idleTimeout ), e );
+        }
+      }
+
+      try {
         MqttConnectOptions connectOptions = new MqttConnectOptions();
         if ( meta.isRequiresAuth() ) {
           connectOptions.setUserName( environmentSubstitute( meta.getUsername() ) );
@@ -95,17 +205,42 @@ public class MQTTPublisher extends BaseStep implements StepInterface {
         }
         connectOptions.setCleanSession( true );
 
+        if ( data.m_inflight != null ) {
+          connectOptions.setMaxInflight( data.m_maxInflight );
+        }
+
         String timeout = environmentSubstitute( meta.getTimeout() );
         try {
-          connectOptions.setConnectionTimeout( Integer.parseInt( timeout ) );
+          int connectionTimeout = Integer.parseInt( timeout );
+          connectOptions.setConnectionTimeout( connectionTimeout );
+          // a broker that never acknowledges must not hold up the end of the step forever
+          data.m_flushTimeout = connectionTimeout > 0 ? connectionTimeout : DEFAULT_FLUSH_TIMEOUT_SECONDS;
         } catch ( NumberFormatException e ) {
           throw new KettleException(
               BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongTimeoutValue.Message", timeout ), e );
         }
 
-        logBasic( BaseMessages
-            .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.CreateMQTTClient.Message", broker, clientId ) );
-        data.m_client.connect( connectOptions );
+        if ( v5 ) {
+          // topic aliases need no setting here: the client assigns them to outgoing topics by itself, up to the
+          // maximum the broker announces when the connection is made
+          data.m_client5 = new org.eclipse.paho.mqttv5.client.MqttAsyncClient( broker, clientId,
+              MqttVersion.persistence( persistence, persistenceDirectory, broker ) );
+          logBasic( BaseMessages
+              .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.CreateMQTTClient.Message", broker, clientId ) );
+          data.m_client5.connect( MqttVersion.toV5( connectOptions ) ).waitForCompletion();
+        } else if ( meta.isSharedConnection() ) {
+          data.m_connection = MqttConnectionRegistry.getInstance()
+              .acquire( broker, clientId, persistence, persistenceDirectory, connectOptions, idleTimeoutMs );
+          data.m_client = data.m_connection.getClient();
+          logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.SharedMQTTClient.Message", broker,
+              data.m_client.getClientId() ) );
+        } else {
+          data.m_client =
+              new MqttAsyncClient( broker, clientId, ClientPersistence.create( persistence, persistenceDirectory ) );
+          logBasic( BaseMessages
+              .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.CreateMQTTClient.Message", broker, clientId ) );
+          data.m_client.connect( connectOptions ).waitForCompletion();
+        }
 
       } catch ( Exception e ) {
         throw new KettleException(
@@ -116,25 +251,39 @@ public class MQTTPublisher extends BaseStep implements StepInterface {
   }
 
   public boolean processRow( StepMetaInterface smi, StepDataInterface sdi ) throws KettleException {
+    MQTTPublisherMeta meta = (MQTTPublisherMeta) smi;
+    MQTTPublisherData data = (MQTTPublisherData) sdi;
+
     Object[] r = getRow();
     if ( r == null ) {
+      // publish what is still batched, then make sure everything sent asynchronously has been acknowledged before we
+      // report being done
+      boolean flushed = flushBatches( data ) && flush( data );
+      emitDeliveries( data );
+      if ( !flushed || !checkAsyncError( data ) ) {
+        setErrors( 1 );
+        stopAll();
+      }
       setOutputDone();
       return false;
     }
 
-    MQTTPublisherMeta meta = (MQTTPublisherMeta) smi;
-    MQTTPublisherData data = (MQTTPublisherData) sdi;
+    emitDeliveries( data );
+    if ( !checkAsyncError( data ) ) {
+      setErrors( 1 );
+      stopAll();
+      setOutputDone();
+      return false;
+    }
 
     RowMetaInterface inputRowMeta = getInputRowMeta();
 
     if ( first ) {
       first = false;
 
-      // Initialize MQTT m_client:
-      configureConnection( meta, data );
-
       data.m_outputRowMeta = getInputRowMeta().clone();
-      meta.getFields( data.m_outputRowMeta, getStepname(), null, null, this );
+      meta.getFields( data.m_outputRowMeta, getStepname(), null, null, this, null, null );
+      configurePassThrough( meta, data, inputRowMeta.size() );
 
       String inputField = environmentSubstitute( meta.getField() );
 
@@ -156,6 +305,8 @@ public class MQTTPublisher extends BaseStep implements StepInterface {
         return false;
       }
       data.m_inputFieldMeta = inputRowMeta.getValueMeta( data.m_inputFieldNr );
+      data.m_encoder = createEncoder( meta, data, inputRowMeta );
+      publishSchema( meta, data );
       data.m_topic = environmentSubstitute( meta.getTopic() );
       if ( meta.getTopicIsFromField() ) {
         data.m_topicFromFieldIndex = inputRowMeta.indexOfValue( data.m_topic );
@@ -180,14 +331,17 @@ public class MQTTPublisher extends BaseStep implements StepInterface {
         throw new KettleException(
             BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongQOSValue.Message", qosValue ), e );
       }
+
+      configureBatching( meta, data );
     }
 
     try {
       if ( !isStopped() ) {
         Object rawMessage = r[data.m_inputFieldNr];
-        byte[] message = messageToBytes( rawMessage, data.m_inputFieldMeta );
+        byte[] message = data.m_encoder.encode( r );
         if ( message == null ) {
           logDetailed( "Incoming message value is null/empty - skipping" );
+          passSkipped( data, r );
           return true;
         }
 
@@ -197,24 +351,35 @@ public class MQTTPublisher extends BaseStep implements StepInterface {
           if ( r[data.m_topicFromFieldIndex] == null || Const.isEmpty( r[data.m_topicFromFieldIndex].toString() ) ) {
             // TODO add a default topic option, and then only skip if the default is null
             logDetailed( "Incoming topic value is null/empty - skipping message: " + rawMessage );
+            passSkipped( data, r );
             return true;
           }
           data.m_topic = r[data.m_topicFromFieldIndex].toString();
         }
 
-        MqttMessage mqttMessage = new MqttMessage( message );
-        mqttMessage.setQos( data.m_qos );
-
-        logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.SendingData", data.m_topic,
-            Integer.toString( data.m_qos ) ) );
         if ( isRowLevel() ) {
           logRowlevel( data.m_inputFieldMeta.getString( r[data.m_inputFieldNr] ) );
         }
-        try {
-          data.m_client.publish( data.m_topic, mqttMessage );
-        } catch ( MqttException e ) {
-          throw new KettleException(
-              BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorPublishing.Message" ), e );
+        if ( data.m_batcher != null ) {
+          try {
+            data.m_batcher.add( data.m_topic, message, data.m_deliveries != null ? r : null );
+          } catch ( IllegalArgumentException e ) {
+            // a payload the framing can't carry - this row alone is in error
+            throw new KettleException( e.getMessage(), e );
+          } catch ( Exception e ) {
+            // the batcher still holds the batch, so this is not an error of the current row: stop, and the rows are
+            // reported as not published when the step shuts down
+            if ( !isStopped() ) {
+              logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorPublishing.Message" ), e );
+              setErrors( 1 );
+              stopAll();
+            }
+            setOutputDone();
+            return false;
+          }
+        } else if ( !publish( data, data.m_topic, message,
+            data.m_deliveries != null ? Collections.singletonList( r ) : null ) ) {
+          return false;
         }
       }
     } catch ( KettleException e ) {
@@ -231,17 +396,461 @@ public class MQTTPublisher extends BaseStep implements StepInterface {
     return true;
   }
 
-  protected void shutdown( MQTTPublisherData data ) {
-    if ( data.m_client != null ) {
+  /**
+   * Publish a single MQTT message
+   *
+   * @param data    the step data
+   * @param topic   the topic to publish to
+   * @param payload the message payload
+   * @param rows    the input rows the message carries, to be passed on once it has been delivered (null when rows
+   *                are not passed on)
+   * @return false if the step was stopped before the message could be published
+   * @throws KettleException if the message could not be published
+   */
+  protected boolean publish( MQTTPublisherData data, String topic, byte[] payload, List<Object[]> rows )
+      throws KettleException {
+    if ( data.m_client5 != null ) {
+      return publish5( data, topic, payload, rows );
+    }
+    MqttMessage mqttMessage = new MqttMessage( payload );
+    mqttMessage.setQos( data.m_qos );
+
+    if ( isRowLevel() ) {
+      logRowlevel( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.SendingData", topic,
+          Integer.toString( data.m_qos ) ) );
+    }
+    try {
+      if ( data.m_inflight != null ) {
+        // only block when the in-flight window is full
+        if ( !acquireInflightPermit( data ) ) {
+          return false;
+        }
+        Delivery delivery = rows != null ? new Delivery( rows ) : null;
+        try {
+          data.m_client.publish( topic, mqttMessage, delivery, data.m_publishCallback );
+        } catch ( MqttException e ) {
+          data.m_inflight.release();
+          throw e;
+        }
+      } else {
+        Delivery delivery = rows != null ? new Delivery( rows ) : null;
+        IMqttDeliveryToken token = data.m_client.publish( topic, mqttMessage );
+        token.waitForCompletion();
+        if ( delivery != null ) {
+          delivery.complete( token.getMessageId(), data.m_qos == 0 ? STATUS_SENT : STATUS_DELIVERED, null );
+          data.m_deliveries.add( delivery );
+        }
+      }
+    } catch ( MqttException e ) {
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorPublishing.Message" ), e );
+    }
+    return true;
+  }
+
+  /**
+   * Publish a single message over MQTT 5, with the message expiry and user properties of the step
+   *
+   * @see #publish(MQTTPublisherData, String, byte[], List)
+   */
+  protected boolean publish5( MQTTPublisherData data, String topic, byte[] payload, List<Object[]> rows )
+      throws KettleException {
+    org.eclipse.paho.mqttv5.common.MqttMessage mqttMessage = new org.eclipse.paho.mqttv5.common.MqttMessage( payload );
+    mqttMessage.setQos( data.m_qos );
+    if ( data.m_messageExpiry != null || data.m_userProperties != null ) {
+      // the client may set a topic alias on the properties, so every message gets its own
+      MqttProperties properties = new MqttProperties();
+      properties.setMessageExpiryInterval( data.m_messageExpiry );
+      if ( data.m_userProperties != null ) {
+        properties.setUserProperties( data.m_userProperties );
+      }
+      mqttMessage.setProperties( properties );
+    }
+
+    if ( isRowLevel() ) {
+      logRowlevel( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.SendingData", topic,
+          Integer.toString( data.m_qos ) ) );
+    }
+    try {
+      if ( data.m_inflight != null ) {
+        // only block when the in-flight window is full
+        if ( !acquireInflightPermit( data ) ) {
+          return false;
+        }
+        Delivery delivery = rows != null ? new Delivery( rows ) : null;
+        try {
+          data.m_client5.publish( topic, mqttMessage, delivery, data.m_publishCallback );
+        } catch ( org.eclipse.paho.mqttv5.common.MqttException e ) {
+          data.m_inflight.release();
+          throw e;
+        }
+      } else {
+        Delivery delivery = rows != null ? new Delivery( rows ) : null;
+        org.eclipse.paho.mqttv5.client.IMqttToken token = data.m_client5.publish( topic, mqttMessage );
+        token.waitForCompletion();
+        if ( delivery != null ) {
+          delivery.complete( token.getMessageId(), data.m_qos == 0 ? STATUS_SENT : STATUS_DELIVERED, null );
+          data.m_deliveries.add( delivery );
+        }
+      }
+    } catch ( org.eclipse.paho.mqttv5.common.MqttException e ) {
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorPublishing.Message" ), e );
+    }
+    return true;
+  }
+
+  /**
+   * Resolve the MQTT 5 properties sent with every message
+   *
+   * @param meta the step meta
+   * @param data the step data
+   * @throws KettleException if the message expiry or user properties are invalid
+   */
+  protected void configureMessageProperties( MQTTPublisherMeta meta, MQTTPublisherData data )
+      throws KettleException {
+    String expiry = environmentSubstitute( meta.getMessageExpiryInterval() );
+    data.m_messageExpiry = null;
+    if ( !Const.isEmpty( expiry ) ) {
+      try {
+        data.m_messageExpiry = Long.parseLong( expiry );
+      } catch ( NumberFormatException e ) {
+        data.m_messageExpiry = -1L;
+      }
+      if ( data.m_messageExpiry < 0 || data.m_messageExpiry > 0xFFFFFFFFL ) {
+        throw new KettleException( BaseMessages
+            .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongMessageExpiryValue.Message", expiry ) );
+      }
+      if ( data.m_messageExpiry == 0 ) {
+        data.m_messageExpiry = null;
+      }
+    }
+
+    String userProperties = environmentSubstitute( meta.getUserProperties() );
+    try {
+      data.m_userProperties = MqttVersion.parseUserProperties( userProperties );
+    } catch ( IllegalArgumentException e ) {
+      throw new KettleException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongUserProperties.Message", userProperties ), e );
+    }
+    if ( data.m_userProperties.isEmpty() ) {
+      data.m_userProperties = null;
+    }
+  }
+
+  /**
+   * Work out where the delivery fields go in the output row, if input rows are passed on
+   *
+   * @param meta         the step meta
+   * @param data         the step data
+   * @param inputRowSize the number of fields in the input rows
+   */
+  protected void configurePassThrough( MQTTPublisherMeta meta, MQTTPublisherData data, int inputRowSize ) {
+    if ( !meta.isPassThroughRows() ) {
+      data.m_deliveries = null;
+      return;
+    }
+    // same order as MQTTPublisherMeta.getFields()
+    int index = inputRowSize;
+    data.m_messageIdIndex = Const.isEmpty( meta.getMessageIdField() ) ? -1 : index++;
+    data.m_ackLatencyIndex = Const.isEmpty( meta.getAckLatencyField() ) ? -1 : index++;
+    data.m_deliveryStatusIndex = Const.isEmpty( meta.getDeliveryStatusField() ) ? -1 : index;
+    data.m_deliveries = new ConcurrentLinkedQueue<>();
+  }
+
+  /**
+   * Pass on the rows of all messages delivered since the last call. Must be called from the step thread - deliveries
+   * are completed on the MQTT client's threads (or the batch linger timer) and queued for the step thread to pass on.
+   *
+   * @param data the step data
+   * @throws KettleStepException if a row could not be passed on
+   */
+  protected void emitDeliveries( MQTTPublisherData data ) throws KettleStepException {
+    if ( data.m_deliveries == null ) {
+      return;
+    }
+    Delivery delivery;
+    while ( ( delivery = data.m_deliveries.poll() ) != null ) {
+      for ( Object[] row : delivery.m_rows ) {
+        if ( delivery.m_error != null && getStepMeta().isDoingErrorHandling() ) {
+          putError( getInputRowMeta(), row, 1, delivery.m_error.toString(), null, getStepname() );
+        } else {
+          putRow( data.m_outputRowMeta, deliveryRow( data, row, delivery.m_messageId > 0
+              ? Long.valueOf( delivery.m_messageId ) : null, delivery.m_latencyMicros, delivery.m_status ) );
+        }
+      }
+    }
+  }
+
+  /**
+   * Pass on a row that was not published because its message or topic is empty. The rows of messages already delivered
+   * go first, so that with synchronous publishing the rows leave in the order they came in - with asynchronous
+   * publishing the row may still overtake rows whose messages are in flight.
+   *
+   * @param data the step data
+   * @param row  the input row
+   * @throws KettleStepException if the row could not be passed on
+   */
+  protected void passSkipped( MQTTPublisherData data, Object[] row ) throws KettleStepException {
+    if ( data.m_deliveries != null ) {
+      emitDeliveries( data );
+      putRow( data.m_outputRowMeta, deliveryRow( data, row, null, null, STATUS_SKIPPED ) );
+    }
+  }
+
+  private Object[] deliveryRow( MQTTPublisherData data, Object[] row, Long messageId, Long latencyMicros,
+      String status ) {
+    Object[] out = RowDataUtil.resizeArray( row, data.m_outputRowMeta.size() );
+    if ( data.m_messageIdIndex >= 0 ) {
+      out[data.m_messageIdIndex] = messageId;
+    }
+    if ( data.m_ackLatencyIndex >= 0 ) {
+      out[data.m_ackLatencyIndex] = latencyMicros;
+    }
+    if ( data.m_deliveryStatusIndex >= 0 ) {
+      out[data.m_deliveryStatusIndex] = status;
+    }
+    return out;
+  }
+
+  /**
+   * Set up micro-batching if a batch framing has been chosen
+   *
+   * @param meta the step meta
+   * @param data the step data
+   * @throws KettleException if the batch settings are invalid
+   */
+  protected void configureBatching( MQTTPublisherMeta meta, MQTTPublisherData data ) throws KettleException {
+    String framing = environmentSubstitute( meta.getBatchFraming() );
+    if ( !BatchFraming.isBatching( framing ) ) {
+      return;
+    }
+    if ( !BatchFraming.isKnown( framing ) ) {
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.InvalidBatchFraming", framing ) );
+    }
+    if ( BatchFraming.JSON_ARRAY.equals( framing ) && PayloadCodecs.isValue( environmentSubstitute( meta.getCodec() ) )
+        && data.m_inputFieldMeta.getType() != ValueMetaInterface.TYPE_STRING ) {
+      throw new KettleException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.JsonBatchNeedsString",
+              data.m_inputFieldMeta.getName() ) );
+    }
+
+    int maxRows = parseBatchSetting( meta.getBatchMaxRows() );
+    int maxBytes = parseBatchSetting( meta.getBatchMaxBytes() );
+    int linger = parseBatchSetting( meta.getBatchLinger() );
+    data.m_batcher = new MessageBatcher( framing, maxRows, maxBytes, linger, new BatchPublisher( data ) );
+  }
+
+  /**
+   * Set up the payload codec for the fields to publish
+   *
+   * @param meta         the step meta
+   * @param data         the step data
+   * @param inputRowMeta the layout of the input rows
+   * @return the encoder
+   * @throws KettleException if the codec is unknown or can't encode the fields
+   */
+  protected PayloadCodec.Encoder createEncoder( MQTTPublisherMeta meta, MQTTPublisherData data,
+      RowMetaInterface inputRowMeta ) throws KettleException {
+    String codec = environmentSubstitute( meta.getCodec() );
+    if ( !PayloadCodecs.isKnown( codec ) ) {
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.UnknownCodec", codec ) );
+    }
+    List<String> names = PayloadCodecs.split( environmentSubstitute( meta.getCodecFields() ) );
+    int[] fields;
+    if ( names.isEmpty() ) {
+      fields = new int[] { data.m_inputFieldNr };
+    } else {
+      fields = new int[names.size()];
+      for ( int i = 0; i < fields.length; i++ ) {
+        fields[i] = inputRowMeta.indexOfValue( names.get( i ) );
+        if ( fields[i] < 0 ) {
+          throw new KettleException(
+              BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.CouldntFindField", names.get( i ) ) );
+        }
+      }
+    }
+    return PayloadCodecs.getCodec( codec ).createEncoder( inputRowMeta, fields,
+        PayloadCodecs.parseOptions( environmentSubstitute( meta.getCodecOptions() ) ) );
+  }
+
+  /**
+   * Publish the codec's description of the payloads, retained, so that subscribers can find out the row layout - even
+   * when they connect after this step has finished
+   *
+   * @param meta the step meta
+   * @param data the step data (with the encoder already created)
+   * @throws KettleException if the schema can't be published
+   */
+  protected void publishSchema( MQTTPublisherMeta meta, MQTTPublisherData data ) throws KettleException {
+    String schemaTopic = environmentSubstitute( meta.getSchemaTopic() );
+    if ( Const.isEmpty( schemaTopic ) ) {
+      return;
+    }
+    byte[] schema = data.m_encoder.getSchema();
+    if ( schema == null ) {
+      logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.CodecHasNoSchema",
+          environmentSubstitute( meta.getCodec() ) ) );
+      return;
+    }
+    try {
+      if ( data.m_client5 != null ) {
+        org.eclipse.paho.mqttv5.common.MqttMessage message = new org.eclipse.paho.mqttv5.common.MqttMessage( schema );
+        message.setQos( 1 );
+        message.setRetained( true );
+        data.m_client5.publish( schemaTopic, message ).waitForCompletion();
+      } else {
+        MqttMessage message = new MqttMessage( schema );
+        message.setQos( 1 );
+        message.setRetained( true );
+        data.m_client.publish( schemaTopic, message ).waitForCompletion();
+      }
+    } catch ( MqttException | org.eclipse.paho.mqttv5.common.MqttException e ) {
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorPublishing.Message" ), e );
+    }
+    logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.PublishedSchema", schemaTopic ) );
+  }
+
+  private int parseBatchSetting( String setting ) throws KettleException {
+    String value = environmentSubstitute( setting );
+    int result;
+    try {
+      result = Const.isEmpty( value ) ? 0 : Integer.parseInt( value );
+    } catch ( NumberFormatException e ) {
+      result = -1;
+    }
+    if ( result < 0 ) {
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongBatchValue.Message", value ) );
+    }
+    return result;
+  }
+
+  /**
+   * Publish rows that are still waiting in open batches
+   *
+   * @param data the step data
+   * @return true if nothing failed
+   */
+  protected boolean flushBatches( MQTTPublisherData data ) {
+    if ( data.m_batcher == null ) {
+      return true;
+    }
+    try {
+      data.m_batcher.flush();
+    } catch ( Exception e ) {
+      logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorPublishing.Message" ), e );
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Wait for a free slot in the in-flight window
+   *
+   * @param data the step data
+   * @return false if the step was stopped while waiting
+   */
+  protected boolean acquireInflightPermit( MQTTPublisherData data ) {
+    try {
+      while ( !data.m_inflight.tryAcquire( 100, TimeUnit.MILLISECONDS ) ) {
+        if ( isStopped() ) {
+          return false;
+        }
+      }
+      return true;
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Wait until all asynchronously published messages have been acknowledged by the broker (or the connection timeout
+   * has elapsed - {@link #DEFAULT_FLUSH_TIMEOUT_SECONDS} if it is 0)
+   *
+   * @param data the step data
+   * @return true if nothing is outstanding
+   */
+  protected boolean flush( MQTTPublisherData data ) {
+    Semaphore inflight = data.m_inflight;
+    if ( inflight == null || ( data.m_client == null && data.m_client5 == null ) ) {
+      return true;
+    }
+
+    try {
+      if ( inflight.tryAcquire( data.m_maxInflight, data.m_flushTimeout, TimeUnit.SECONDS ) ) {
+        inflight.release( data.m_maxInflight );
+        return true;
+      }
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+    }
+    logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.FlushIncomplete",
+        Integer.toString( data.m_maxInflight - inflight.availablePermits() ) ) );
+    return false;
+  }
+
+  /**
+   * Log the first failed asynchronous publish, if any
+   *
+   * @param data the step data
+   * @return true if no asynchronous publish has failed
+   */
+  protected boolean checkAsyncError( MQTTPublisherData data ) {
+    Throwable error = data.m_asyncError.get();
+    if ( error == null && data.m_batcher != null ) {
+      error = data.m_batcher.getLingerError();
+    }
+    if ( error != null ) {
+      logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorPublishing.Message" ), error );
+      return false;
+    }
+    return true;
+  }
+
+  protected synchronized void shutdown( MQTTPublisherData data ) {
+    if ( data.m_batcher != null ) {
+      // waits for the linger timer to finish a send in progress - it publishes through the client closed below
+      data.m_batcher.close();
+      int pending = data.m_batcher.getPending();
+      if ( pending > 0 ) {
+        logError( BaseMessages
+            .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.BatchedRowsDiscarded", Integer.toString( pending ) ) );
+      }
+      data.m_batcher = null;
+    }
+    if ( data.m_connection != null ) {
+      flush( data );
+      // other steps may still be using the connection - the registry closes it once they are all done
+      data.m_connection.release();
+      data.m_connection = null;
+      data.m_client = null;
+    } else if ( data.m_client != null ) {
+      flush( data );
       try {
         if ( data.m_client.isConnected() ) {
-          data.m_client.disconnect();
+          data.m_client.disconnect().waitForCompletion();
         }
         data.m_client.close();
         data.m_client = null;
       } catch ( MqttException e ) {
         logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorClosingMQTTClient.Message" ), e );
       }
+    } else if ( data.m_client5 != null ) {
+      flush( data );
+      try {
+        if ( data.m_client5.isConnected() ) {
+          data.m_client5.disconnect().waitForCompletion();
+        }
+        data.m_client5.close();
+        data.m_client5 = null;
+      } catch ( org.eclipse.paho.mqttv5.common.MqttException e ) {
+        logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorClosingMQTTClient.Message" ), e );
+      }
     }
   }
 
@@ -252,60 +861,105 @@ public class MQTTPublisher extends BaseStep implements StepInterface {
     super.stopRunning( smi, sdi );
   }
 
-  protected byte[] messageToBytes( Object message, ValueMetaInterface messageValueMeta ) throws KettleValueException {
-    if ( message == null || Const.isEmpty( message.toString() ) ) {
-      return null;
+  /**
+   * Releases a slot in the in-flight window once the broker has acknowledged (or failed) an asynchronous publish -
+   * over either protocol version
+   */
+  protected class PublishCallback implements IMqttActionListener, MqttActionListener {
+
+    protected MQTTPublisherData m_data;
+
+    public PublishCallback( MQTTPublisherData data ) {
+      m_data = data;
     }
 
-    byte[] result = null;
-    try {
-      ByteBuffer buff = null;
-      switch ( messageValueMeta.getType() ) {
-        case ValueMetaInterface.TYPE_STRING:
-          result = message.toString().getBytes( "UTF-8" );
-          break;
-        case ValueMetaInterface.TYPE_INTEGER:
-        case ValueMetaInterface.TYPE_DATE: // send the date as a long (milliseconds) value
-          buff = ByteBuffer.allocate( 8 );
-          buff.putLong( messageValueMeta.getInteger( message ) );
-          result = buff.array();
-          break;
-        case ValueMetaInterface.TYPE_NUMBER:
-          buff = ByteBuffer.allocate( 8 );
-          buff.putDouble( messageValueMeta.getNumber( message ) );
-          result = buff.array();
-          break;
-        case ValueMetaInterface.TYPE_TIMESTAMP:
-          buff = ByteBuffer.allocate( 12 );
-          Timestamp ts = (Timestamp) message;
-          buff.putLong( ts.getTime() );
-          buff.putInt( ts.getNanos() );
-          result = buff.array();
-          break;
-        case ValueMetaInterface.TYPE_BINARY:
-          result = messageValueMeta.getBinary( message );
-          break;
-        case ValueMetaInterface.TYPE_BOOLEAN:
-          result = new byte[1];
-          if ( messageValueMeta.getBoolean( message ) ) {
-            result[0] = 1;
-          }
-          break;
-        case ValueMetaInterface.TYPE_SERIALIZABLE:
-          if ( !( message instanceof Serializable ) ) {
-            throw new KettleValueException( "Message value is not serializable!" );
-          }
-          ByteArrayOutputStream bos = new ByteArrayOutputStream();
-          ObjectOutputStream oos = new ObjectOutputStream( bos );
-          oos.writeObject( message );
-          oos.flush();
-          result = bos.toByteArray();
-          break;
+    @Override public void onSuccess( IMqttToken token ) {
+      succeeded( (Delivery) token.getUserContext(), token.getMessageId() );
+    }
+
+    @Override public void onFailure( IMqttToken token, Throwable throwable ) {
+      failed( (Delivery) token.getUserContext(), token.getMessageId(), throwable );
+    }
+
+    @Override public void onSuccess( org.eclipse.paho.mqttv5.client.IMqttToken token ) {
+      succeeded( (Delivery) token.getUserContext(), token.getMessageId() );
+    }
+
+    @Override public void onFailure( org.eclipse.paho.mqttv5.client.IMqttToken token, Throwable throwable ) {
+      failed( (Delivery) token.getUserContext(), token.getMessageId(), throwable );
+    }
+
+    protected void succeeded( Delivery delivery, int messageId ) {
+      if ( delivery != null ) {
+        delivery.complete( messageId, m_data.m_qos == 0 ? STATUS_SENT : STATUS_DELIVERED, null );
+        m_data.m_deliveries.add( delivery );
       }
-    } catch ( Exception ex ) {
-      throw new KettleValueException( ex );
+      m_data.m_inflight.release();
     }
 
-    return result;
+    protected void failed( Delivery delivery, int messageId, Throwable throwable ) {
+      if ( delivery != null ) {
+        delivery.complete( messageId, STATUS_FAILED, throwable );
+        m_data.m_deliveries.add( delivery );
+      }
+      if ( delivery == null || !getStepMeta().isDoingErrorHandling() ) {
+        m_data.m_asyncError.compareAndSet( null, throwable );
+      }
+      m_data.m_inflight.release();
+    }
+  }
+
+  /**
+   * Publishes the batches assembled by the {@link MessageBatcher}
+   */
+  protected class BatchPublisher implements MessageBatcher.BatchSender {
+
+    protected MQTTPublisherData m_data;
+
+    public BatchPublisher( MQTTPublisherData data ) {
+      m_data = data;
+    }
+
+    @Override public void send( String topic, byte[] batch, List<Object> tags ) throws Exception {
+      List<Object[]> rows = null;
+      if ( m_data.m_deliveries != null ) {
+        rows = new ArrayList<>( tags.size() );
+        for ( Object tag : tags ) {
+          rows.add( (Object[]) tag );
+        }
+      }
+      if ( !publish( m_data, topic, batch, rows ) ) {
+        // the batcher keeps the batch unless sending it fails
+        throw new KettleException( BaseMessages.getString( MQTTPublisherMeta.PKG,
+            "MQTTClientStep.Error.BatchNotPublished", Integer.toString( tags.size() ), topic ) );
+      }
+      if ( isDetailed() ) {
+        logDetailed( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.PublishedBatch",
+            Integer.toString( tags.size() ), topic ) );
+      }
+    }
+  }
+
+  /**
+   * The input rows carried by a published message, waiting to be passed on once the message has been delivered
+   */
+  protected static class Delivery {
+    protected final List<Object[]> m_rows;
+    protected final long m_published = System.nanoTime();
+    protected int m_messageId;
+    protected Long m_latencyMicros;
+    protected String m_status;
+    protected Throwable m_error;
+
+    protected Delivery( List<Object[]> rows ) {
+      m_rows = rows;
+    }
+
+    protected void complete( int messageId, String status, Throwable error ) {
+      m_latencyMicros = TimeUnit.NANOSECONDS.toMicros( System.nanoTime() - m_published );
+      m_messageId = messageId;
+      m_status = status;
+      m_error = error;
+    }
   }
 }
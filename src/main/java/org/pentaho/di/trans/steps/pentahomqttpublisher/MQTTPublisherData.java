@@ -22,20 +22,80 @@
 
 package org.pentaho.di.trans.steps.pentahomqttpublisher;
 
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.mqtt.MessageBatcher;
+import org.pentaho.mqtt.MqttConnectionRegistry;
+import org.pentaho.mqtt.codec.PayloadCodec;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class MQTTPublisherData extends BaseStepData implements StepDataInterface {
 
-  protected MqttClient m_client;
+  protected MqttAsyncClient m_client;
+
+  /**
+   * The MQTT 5 client, used instead of {@link #m_client} when the step speaks MQTT 5
+   */
+  protected org.eclipse.paho.mqttv5.client.MqttAsyncClient m_client5;
+
+  /**
+   * MQTT 5 message expiry in seconds (null for none)
+   */
+  protected Long m_messageExpiry;
+
+  /**
+   * MQTT 5 user properties sent with every message (null for none)
+   */
+  protected List<UserProperty> m_userProperties;
+
+  /**
+   * The shared connection the client belongs to (null when the step has a connection of its own)
+   */
+  protected MqttConnectionRegistry.Connection m_connection;
   protected RowMetaInterface m_outputRowMeta;
   protected int m_inputFieldNr;
   protected ValueMetaInterface m_inputFieldMeta;
 
+  /**
+   * Encodes the fields to publish - set up once for the input row layout
+   */
+  protected PayloadCodec.Encoder m_encoder;
+
   protected String m_topic = "";
   protected int m_topicFromFieldIndex = -1;
   protected int m_qos = 0;
+
+  /**
+   * Async publishing - permits for the in-flight window (null when publishing synchronously)
+   */
+  protected Semaphore m_inflight;
+  protected int m_maxInflight;
+  protected long m_flushTimeout;
+  protected MQTTPublisher.PublishCallback m_publishCallback;
+
+  /**
+   * First error reported by the broker for an asynchronous publish
+   */
+  protected AtomicReference<Throwable> m_asyncError = new AtomicReference<>();
+
+  /**
+   * Packs rows into framed messages when batching is enabled (null otherwise)
+   */
+  protected MessageBatcher m_batcher;
+
+  /**
+   * Delivered messages whose input rows are waiting to be passed on (null when rows are not passed on)
+   */
+  protected Queue<MQTTPublisher.Delivery> m_deliveries;
+  protected int m_messageIdIndex = -1;
+  protected int m_ackLatencyIndex = -1;
+  protected int m_deliveryStatusIndex = -1;
 }
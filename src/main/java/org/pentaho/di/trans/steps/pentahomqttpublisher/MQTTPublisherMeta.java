@@ -29,8 +29,12 @@ import org.pentaho.di.core.annotations.Step;
 import org.pentaho.di.core.database.DatabaseMeta;
 import org.pentaho.di.core.encryption.Encr;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettlePluginException;
+import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.exception.KettleXMLException;
 import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
 import org.pentaho.di.core.variables.VariableSpace;
 import org.pentaho.di.core.xml.XMLHandler;
 import org.pentaho.di.i18n.BaseMessages;
@@ -44,6 +48,12 @@ import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
 import org.pentaho.metastore.api.IMetaStore;
+import org.pentaho.mqtt.BatchFraming;
+import org.pentaho.mqtt.ClientIdStrategy;
+import org.pentaho.mqtt.ClientPersistence;
+import org.pentaho.mqtt.MqttConnectionRegistry;
+import org.pentaho.mqtt.MqttVersion;
+import org.pentaho.mqtt.codec.PayloadCodecs;
 import org.w3c.dom.Node;
 
 import java.util.List;
@@ -65,8 +75,30 @@ import java.util.List;
   private String topic;
   private String field;
   private String clientId;
+  private String clientIdStrategy = ClientIdStrategy.AS_IS;
+  private String persistence = ClientPersistence.MEMORY;
+  private String persistenceDirectory;
+  private boolean sharedConnection;
+  private String connectionIdleTimeout = "300"; // seconds
+  private String mqttVersion = "3.1.1";
+  private String messageExpiryInterval;
+  private String userProperties;
   private String timeout = "30"; // seconds according to the docs
   private String qos = "0";
+  private boolean asyncPublish;
+  private String maxInflight = "10";
+  private String batchFraming = BatchFraming.NONE;
+  private String codec = PayloadCodecs.VALUE;
+  private String codecFields;
+  private String codecOptions;
+  private String schemaTopic;
+  private String batchMaxRows = "100";
+  private String batchMaxBytes = "65536";
+  private String batchLinger = "100"; // milliseconds
+  private boolean passThroughRows;
+  private String messageIdField = "mqtt_message_id";
+  private String ackLatencyField = "mqtt_ack_latency_us";
+  private String deliveryStatusField = "mqtt_delivery_status";
   private boolean requiresAuth;
   private String username;
   private String password;
@@ -149,6 +181,118 @@ import java.util.List;
     this.clientId = clientId;
   }
 
+  /**
+   * @return How each step copy derives its client ID from the configured one (see {@link ClientIdStrategy})
+   */
+  public String getClientIdStrategy() {
+    return clientIdStrategy;
+  }
+
+  /**
+   * @param clientIdStrategy How each step copy derives its client ID from the configured one
+   */
+  public void setClientIdStrategy( String clientIdStrategy ) {
+    this.clientIdStrategy = clientIdStrategy;
+  }
+
+  /**
+   * @return Where the client keeps in-flight messages (see {@link ClientPersistence})
+   */
+  public String getPersistence() {
+    return persistence;
+  }
+
+  /**
+   * @param persistence Where the client keeps in-flight messages
+   */
+  public void setPersistence( String persistence ) {
+    this.persistence = persistence;
+  }
+
+  /**
+   * @return Directory for file and journal persistence
+   */
+  public String getPersistenceDirectory() {
+    return persistenceDirectory;
+  }
+
+  /**
+   * @param persistenceDirectory Directory for file and journal persistence
+   */
+  public void setPersistenceDirectory( String persistenceDirectory ) {
+    this.persistenceDirectory = persistenceDirectory;
+  }
+
+  /**
+   * @return Whether to share the broker connection with other steps (see {@link MqttConnectionRegistry})
+   */
+  public boolean isSharedConnection() {
+    return sharedConnection;
+  }
+
+  /**
+   * @param sharedConnection Whether to share the broker connection with other steps
+   */
+  public void setSharedConnection( boolean sharedConnection ) {
+    this.sharedConnection = sharedConnection;
+  }
+
+  /**
+   * @return Seconds a shared connection stays open once no step uses it
+   */
+  public String getConnectionIdleTimeout() {
+    return connectionIdleTimeout;
+  }
+
+  /**
+   * @param connectionIdleTimeout Seconds a shared connection stays open once no step uses it
+   */
+  public void setConnectionIdleTimeout( String connectionIdleTimeout ) {
+    this.connectionIdleTimeout = connectionIdleTimeout;
+  }
+
+  /**
+   * @return MQTT protocol version (see {@link MqttVersion})
+   */
+  public String getMqttVersion() {
+    return mqttVersion;
+  }
+
+  /**
+   * @param mqttVersion MQTT protocol version
+   */
+  public void setMqttVersion( String mqttVersion ) {
+    this.mqttVersion = mqttVersion;
+  }
+
+  /**
+   * @return Seconds the broker keeps an undelivered message (MQTT 5, empty for no expiry)
+   */
+  public String getMessageExpiryInterval() {
+    return messageExpiryInterval;
+  }
+
+  /**
+   * @param messageExpiryInterval Seconds the broker keeps an undelivered message
+   */
+  public void setMessageExpiryInterval( String messageExpiryInterval ) {
+    this.messageExpiryInterval = messageExpiryInterval;
+  }
+
+  /**
+   * @return User properties sent with every message, as comma separated key=value pairs (MQTT 5)
+   */
+  public String getUserProperties() {
+    return userProperties;
+  }
+
+  /**
+   * @param userProperties User properties sent with every message
+   */
+  public void setUserProperties( String userProperties ) {
+    this.userProperties = userProperties;
+  }
+
   /**
    * @return Connection timeout
    */
@@ -177,6 +321,202 @@ import java.util.List;
     this.qos = qos;
   }
 
+  /**
+   * @return true if messages are published asynchronously (without waiting for each one to be acknowledged)
+   */
+  public boolean isAsyncPublish() {
+    return asyncPublish;
+  }
+
+  /**
+   * @param asyncPublish true if messages are to be published asynchronously
+   */
+  public void setAsyncPublish( boolean asyncPublish ) {
+    this.asyncPublish = asyncPublish;
+  }
+
+  /**
+   * @return Maximum number of unacknowledged messages when publishing asynchronously
+   */
+  public String getMaxInflight() {
+    return maxInflight;
+  }
+
+  /**
+   * @param maxInflight Maximum number of unacknowledged messages when publishing asynchronously
+   */
+  public void setMaxInflight( String maxInflight ) {
+    this.maxInflight = maxInflight;
+  }
+
+  /**
+   * @return How rows are packed into a single message (see {@link BatchFraming}). "none" publishes each row on its own
+   */
+  public String getBatchFraming() {
+    return batchFraming;
+  }
+
+  /**
+   * @param batchFraming How rows are packed into a single message (see {@link BatchFraming})
+   */
+  public void setBatchFraming( String batchFraming ) {
+    this.batchFraming = batchFraming;
+  }
+
+  /**
+   * @return Id of the codec that turns rows into payloads (see {@link PayloadCodecs})
+   */
+  public String getCodec() {
+    return codec;
+  }
+
+  /**
+   * @param codec Id of the codec that turns rows into payloads
+   */
+  public void setCodec( String codec ) {
+    this.codec = codec;
+  }
+
+  /**
+   * @return Comma separated fields the codec encodes (empty for just the message field)
+   */
+  public String getCodecFields() {
+    return codecFields;
+  }
+
+  /**
+   * @param codecFields Comma separated fields the codec encodes
+   */
+  public void setCodecFields( String codecFields ) {
+    this.codecFields = codecFields;
+  }
+
+  /**
+   * @return Codec specific options, as comma separated key=value pairs
+   */
+  public String getCodecOptions() {
+    return codecOptions;
+  }
+
+  /**
+   * @param codecOptions Codec specific options, as comma separated key=value pairs
+   */
+  public void setCodecOptions( String codecOptions ) {
+    this.codecOptions = codecOptions;
+  }
+
+  /**
+   * @return Topic the codec's schema is published to, retained, before the first row (empty for none)
+   */
+  public String getSchemaTopic() {
+    return schemaTopic;
+  }
+
+  /**
+   * @param schemaTopic Topic the codec's schema is published to
+   */
+  public void setSchemaTopic( String schemaTopic ) {
+    this.schemaTopic = schemaTopic;
+  }
+
+  /**
+   * @return Maximum number of rows in a batch (0 for no limit)
+   */
+  public String getBatchMaxRows() {
+    return batchMaxRows;
+  }
+
+  /**
+   * @param batchMaxRows Maximum number of rows in a batch (0 for no limit)
+   */
+  public void setBatchMaxRows( String batchMaxRows ) {
+    this.batchMaxRows = batchMaxRows;
+  }
+
+  /**
+   * @return Maximum size of a batch in bytes (0 for no limit)
+   */
+  public String getBatchMaxBytes() {
+    return batchMaxBytes;
+  }
+
+  /**
+   * @param batchMaxBytes Maximum size of a batch in bytes (0 for no limit)
+   */
+  public void setBatchMaxBytes( String batchMaxBytes ) {
+    this.batchMaxBytes = batchMaxBytes;
+  }
+
+  /**
+   * @return Longest time (ms) a batch is held open before it is published (0 to only publish full batches)
+   */
+  public String getBatchLinger() {
+    return batchLinger;
+  }
+
+  /**
+   * @param batchLinger Longest time (ms) a batch is held open before it is published
+   */
+  public void setBatchLinger( String batchLinger ) {
+    this.batchLinger = batchLinger;
+  }
+
+  /**
+   * @return Whether to pass each input row on once the message carrying it has been delivered
+   */
+  public boolean isPassThroughRows() {
+    return passThroughRows;
+  }
+
+  /**
+   * @param passThroughRows Whether to pass each input row on once the message carrying it has been delivered
+   */
+  public void setPassThroughRows( boolean passThroughRows ) {
+    this.passThroughRows = passThroughRows;
+  }
+
+  /**
+   * @return Name of the output field for the MQTT message id (empty for none)
+   */
+  public String getMessageIdField() {
+    return messageIdField;
+  }
+
+  /**
+   * @param messageIdField Name of the output field for the MQTT message id
+   */
+  public void setMessageIdField( String messageIdField ) {
+    this.messageIdField = messageIdField;
+  }
+
+  /**
+   * @return Name of the output field for the time (µs) from publishing to delivery (empty for none)
+   */
+  public String getAckLatencyField() {
+    return ackLatencyField;
+  }
+
+  /**
+   * @param ackLatencyField Name of the output field for the time (µs) from publishing to delivery
+   */
+  public void setAckLatencyField( String ackLatencyField ) {
+    this.ackLatencyField = ackLatencyField;
+  }
+
+  /**
+   * @return Name of the output field for the delivery status (empty for none)
+   */
+  public String getDeliveryStatusField() {
+    return deliveryStatusField;
+  }
+
+  /**
+   * @param deliveryStatusField Name of the output field for the delivery status
+   */
+  public void setDeliveryStatusField( String deliveryStatusField ) {
+    this.deliveryStatusField = deliveryStatusField;
+  }
+
   /**
    * @return Whether MQTT broker requires authentication
    */
@@ -304,6 +644,40 @@ import java.util.List;
       remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
           BaseMessages.getString( PKG, "MQTTClientMeta.Check.InvalidQOS" ), stepMeta ) );
     }
+    if ( asyncPublish && Const.isEmpty( maxInflight ) ) {
+      remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          BaseMessages.getString( PKG, "MQTTClientMeta.Check.InvalidMaxInflight" ), stepMeta ) );
+    }
+    if ( !ClientIdStrategy.isKnown( clientIdStrategy ) ) {
+      remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          BaseMessages.getString( PKG, "MQTTClientMeta.Check.InvalidClientIdStrategy", clientIdStrategy ), stepMeta ) );
+    }
+    if ( !MqttVersion.isKnown( mqttVersion ) ) {
+      remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          BaseMessages.getString( PKG, "MQTTClientMeta.Check.InvalidMqttVersion", mqttVersion ), stepMeta ) );
+    } else if ( MqttVersion.isV5( mqttVersion ) && sharedConnection ) {
+      remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          BaseMessages.getString( PKG, "MQTTClientMeta.Check.SharedConnectionNeedsV3" ), stepMeta ) );
+    }
+    if ( !ClientPersistence.isKnown( persistence ) ) {
+      remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          BaseMessages.getString( PKG, "MQTTClientMeta.Check.InvalidPersistence", persistence ), stepMeta ) );
+    }
+    if ( !BatchFraming.isKnown( batchFraming ) ) {
+      remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          BaseMessages.getString( PKG, "MQTTClientMeta.Check.InvalidBatchFraming", batchFraming ), stepMeta ) );
+    } else if ( BatchFraming.JSON_ARRAY.equals( batchFraming ) && PayloadCodecs.isValue( codec ) && prev != null
+        && field != null ) {
+      ValueMetaInterface fieldMeta = prev.searchValueMeta( field );
+      if ( fieldMeta != null && fieldMeta.getType() != ValueMetaInterface.TYPE_STRING ) {
+        remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_WARNING,
+            BaseMessages.getString( PKG, "MQTTClientMeta.Check.JsonBatchNeedsString", field ), stepMeta ) );
+      }
+    }
+    if ( !PayloadCodecs.isKnown( codec ) ) {
+      remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          BaseMessages.getString( PKG, "MQTTClientMeta.Check.UnknownCodec", codec ), stepMeta ) );
+    }
     if ( requiresAuth ) {
       if ( username == null ) {
         remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
@@ -337,8 +711,60 @@ import java.util.List;
       }
       field = XMLHandler.getTagValue( stepnode, "FIELD" );
       clientId = XMLHandler.getTagValue( stepnode, "CLIENT_ID" );
+      String idStrategy = XMLHandler.getTagValue( stepnode, "CLIENT_ID_STRATEGY" );
+      if ( !Const.isEmpty( idStrategy ) ) {
+        clientIdStrategy = idStrategy;
+      }
+      String persistenceType = XMLHandler.getTagValue( stepnode, "PERSISTENCE" );
+      if ( !Const.isEmpty( persistenceType ) ) {
+        persistence = persistenceType;
+      }
+      persistenceDirectory = XMLHandler.getTagValue( stepnode, "PERSISTENCE_DIRECTORY" );
+      sharedConnection = Boolean.parseBoolean( XMLHandler.getTagValue( stepnode, "SHARED_CONNECTION" ) );
+      String idleTimeout = XMLHandler.getTagValue( stepnode, "CONNECTION_IDLE_TIMEOUT" );
+      if ( !Const.isEmpty( idleTimeout ) ) {
+        connectionIdleTimeout = idleTimeout;
+      }
+      String mqttVersionValue = XMLHandler.getTagValue( stepnode, "MQTT_VERSION" );
+      if ( !Const.isEmpty( mqttVersionValue ) ) {
+        mqttVersion = mqttVersionValue;
+      }
+      messageExpiryInterval = XMLHandler.getTagValue( stepnode, "MESSAGE_EXPIRY_INTERVAL" );
+      userProperties = XMLHandler.getTagValue( stepnode, "USER_PROPERTIES" );
       timeout = XMLHandler.getTagValue( stepnode, "TIMEOUT" );
       qos = XMLHandler.getTagValue( stepnode, "QOS" );
+      asyncPublish = Boolean.parseBoolean( XMLHandler.getTagValue( stepnode, "ASYNC_PUBLISH" ) );
+      String inflight = XMLHandler.getTagValue( stepnode, "MAX_INFLIGHT" );
+      if ( !Const.isEmpty( inflight ) ) {
+        maxInflight = inflight;
+      }
+      String framing = XMLHandler.getTagValue( stepnode, "BATCH_FRAMING" );
+      if ( !Const.isEmpty( framing ) ) {
+        batchFraming = framing;
+      }
+      String codecValue = XMLHandler.getTagValue( stepnode, "CODEC" );
+      if ( !Const.isEmpty( codecValue ) ) {
+        codec = codecValue;
+      }
+      codecFields = XMLHandler.getTagValue( stepnode, "CODEC_FIELDS" );
+      codecOptions = XMLHandler.getTagValue( stepnode, "CODEC_OPTIONS" );
+      schemaTopic = XMLHandler.getTagValue( stepnode, "SCHEMA_TOPIC" );
+      String maxRows = XMLHandler.getTagValue( stepnode, "BATCH_MAX_ROWS" );
+      if ( !Const.isEmpty( maxRows ) ) {
+        batchMaxRows = maxRows;
+      }
+      String maxBytes = XMLHandler.getTagValue( stepnode, "BATCH_MAX_BYTES" );
+      if ( !Const.isEmpty( maxBytes ) ) {
+        batchMaxBytes = maxBytes;
+      }
+      String linger = XMLHandler.getTagValue( stepnode, "BATCH_LINGER" );
+      if ( !Const.isEmpty( linger ) ) {
+        batchLinger = linger;
+      }
+      passThroughRows = Boolean.parseBoolean( XMLHandler.getTagValue( stepnode, "PASS_THROUGH_ROWS" ) );
+      messageIdField = XMLHandler.getTagValue( stepnode, "MESSAGE_ID_FIELD" );
+      ackLatencyField = XMLHandler.getTagValue( stepnode, "ACK_LATENCY_FIELD" );
+      deliveryStatusField = XMLHandler.getTagValue( stepnode, "DELIVERY_STATUS_FIELD" );
       requiresAuth = Boolean.parseBoolean( XMLHandler.getTagValue( stepnode, "REQUIRES_AUTH" ) );
       username = XMLHandler.getTagValue( stepnode, "USERNAME" );
       password = XMLHandler.getTagValue( stepnode, "PASSWORD" );
@@ -376,12 +802,74 @@ import java.util.List;
     if ( clientId != null ) {
       retval.append( "    " ).append( XMLHandler.addTagValue( "CLIENT_ID", clientId ) );
     }
+    if ( clientIdStrategy != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "CLIENT_ID_STRATEGY", clientIdStrategy ) );
+    }
+    if ( persistence != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "PERSISTENCE", persistence ) );
+    }
+    if ( persistenceDirectory != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "PERSISTENCE_DIRECTORY", persistenceDirectory ) );
+    }
+    retval.append( "    " )
+        .append( XMLHandler.addTagValue( "SHARED_CONNECTION", Boolean.toString( sharedConnection ) ) );
+    if ( connectionIdleTimeout != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "CONNECTION_IDLE_TIMEOUT", connectionIdleTimeout ) );
+    }
+    if ( mqttVersion != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "MQTT_VERSION", mqttVersion ) );
+    }
+    if ( messageExpiryInterval != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "MESSAGE_EXPIRY_INTERVAL", messageExpiryInterval ) );
+    }
+    if ( userProperties != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "USER_PROPERTIES", userProperties ) );
+    }
     if ( timeout != null ) {
       retval.append( "    " ).append( XMLHandler.addTagValue( "TIMEOUT", timeout ) );
     }
     if ( qos != null ) {
       retval.append( "    " ).append( XMLHandler.addTagValue( "QOS", qos ) );
     }
+    retval.append( "    " ).append( XMLHandler.addTagValue( "ASYNC_PUBLISH", Boolean.toString( asyncPublish ) ) );
+    if ( maxInflight != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "MAX_INFLIGHT", maxInflight ) );
+    }
+    if ( batchFraming != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "BATCH_FRAMING", batchFraming ) );
+    }
+    if ( codec != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "CODEC", codec ) );
+    }
+    if ( codecFields != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "CODEC_FIELDS", codecFields ) );
+    }
+    if ( codecOptions != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "CODEC_OPTIONS", codecOptions ) );
+    }
+    if ( schemaTopic != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "SCHEMA_TOPIC", schemaTopic ) );
+    }
+    if ( batchMaxRows != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "BATCH_MAX_ROWS", batchMaxRows ) );
+    }
+    if ( batchMaxBytes != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "BATCH_MAX_BYTES", batchMaxBytes ) );
+    }
+    if ( batchLinger != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "BATCH_LINGER", batchLinger ) );
+    }
+    retval.append( "    " )
+        .append( XMLHandler.addTagValue( "PASS_THROUGH_ROWS", Boolean.toString( passThroughRows ) ) );
+    if ( messageIdField != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "MESSAGE_ID_FIELD", messageIdField ) );
+    }
+    if ( ackLatencyField != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "ACK_LATENCY_FIELD", ackLatencyField ) );
+    }
+    if ( deliveryStatusField != null ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "DELIVERY_STATUS_FIELD", deliveryStatusField ) );
+    }
 
     retval.append( "    " ).append( XMLHandler.addTagValue( "REQUIRES_AUTH", Boolean.toString( requiresAuth ) ) );
 
@@ -421,8 +909,60 @@ import java.util.List;
       m_topicIsFromField = rep.getStepAttributeBoolean( stepId, "TOPIC_IS_FROM_FIELD" );
       field = rep.getStepAttributeString( stepId, "FIELD" );
       clientId = rep.getStepAttributeString( stepId, "CLIENT_ID" );
+      String idStrategy = rep.getStepAttributeString( stepId, "CLIENT_ID_STRATEGY" );
+      if ( !Const.isEmpty( idStrategy ) ) {
+        clientIdStrategy = idStrategy;
+      }
+      String persistenceType = rep.getStepAttributeString( stepId, "PERSISTENCE" );
+      if ( !Const.isEmpty( persistenceType ) ) {
+        persistence = persistenceType;
+      }
+      persistenceDirectory = rep.getStepAttributeString( stepId, "PERSISTENCE_DIRECTORY" );
+      sharedConnection = Boolean.parseBoolean( rep.getStepAttributeString( stepId, "SHARED_CONNECTION" ) );
+      String idleTimeout = rep.getStepAttributeString( stepId, "CONNECTION_IDLE_TIMEOUT" );
+      if ( !Const.isEmpty( idleTimeout ) ) {
+        connectionIdleTimeout = idleTimeout;
+      }
+      String mqttVersionValue = rep.getStepAttributeString( stepId, "MQTT_VERSION" );
+      if ( !Const.isEmpty( mqttVersionValue ) ) {
+        mqttVersion = mqttVersionValue;
+      }
+      messageExpiryInterval = rep.getStepAttributeString( stepId, "MESSAGE_EXPIRY_INTERVAL" );
+      userProperties = rep.getStepAttributeString( stepId, "USER_PROPERTIES" );
       timeout = rep.getStepAttributeString( stepId, "TIMEOUT" );
       qos = rep.getStepAttributeString( stepId, "QOS" );
+      asyncPublish = Boolean.parseBoolean( rep.getStepAttributeString( stepId, "ASYNC_PUBLISH" ) );
+      String inflight = rep.getStepAttributeString( stepId, "MAX_INFLIGHT" );
+      if ( !Const.isEmpty( inflight ) ) {
+        maxInflight = inflight;
+      }
+      String framing = rep.getStepAttributeString( stepId, "BATCH_FRAMING" );
+      if ( !Const.isEmpty( framing ) ) {
+        batchFraming = framing;
+      }
+      String codecValue = rep.getStepAttributeString( stepId, "CODEC" );
+      if ( !Const.isEmpty( codecValue ) ) {
+        codec = codecValue;
+      }
+      codecFields = rep.getStepAttributeString( stepId, "CODEC_FIELDS" );
+      codecOptions = rep.getStepAttributeString( stepId, "CODEC_OPTIONS" );
+      schemaTopic = rep.getStepAttributeString( stepId, "SCHEMA_TOPIC" );
+      String maxRows = rep.getStepAttributeString( stepId, "BATCH_MAX_ROWS" );
+      if ( !Const.isEmpty( maxRows ) ) {
+        batchMaxRows = maxRows;
+      }
+      String maxBytes = rep.getStepAttributeString( stepId, "BATCH_MAX_BYTES" );
+      if ( !Const.isEmpty( maxBytes ) ) {
+        batchMaxBytes = maxBytes;
+      }
+      String linger = rep.getStepAttributeString( stepId, "BATCH_LINGER" );
+      if ( !Const.isEmpty( linger ) ) {
+        batchLinger = linger;
+      }
+      passThroughRows = Boolean.parseBoolean( rep.getStepAttributeString( stepId, "PASS_THROUGH_ROWS" ) );
+      messageIdField = rep.getStepAttributeString( stepId, "MESSAGE_ID_FIELD" );
+      ackLatencyField = rep.getStepAttributeString( stepId, "ACK_LATENCY_FIELD" );
+      deliveryStatusField = rep.getStepAttributeString( stepId, "DELIVERY_STATUS_FIELD" );
       requiresAuth = Boolean.parseBoolean( rep.getStepAttributeString( stepId, "REQUIRES_AUTH" ) );
       username = rep.getStepAttributeString( stepId, "USERNAME" );
       password = rep.getStepAttributeString( stepId, "PASSWORD" );
@@ -452,12 +992,72 @@ import java.util.List;
       if ( clientId != null ) {
         rep.saveStepAttribute( transformationId, stepId, "CLIENT_ID", clientId );
       }
+      if ( clientIdStrategy != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "CLIENT_ID_STRATEGY", clientIdStrategy );
+      }
+      if ( persistence != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "PERSISTENCE", persistence );
+      }
+      if ( persistenceDirectory != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "PERSISTENCE_DIRECTORY", persistenceDirectory );
+      }
+      rep.saveStepAttribute( transformationId, stepId, "SHARED_CONNECTION", Boolean.toString( sharedConnection ) );
+      if ( connectionIdleTimeout != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "CONNECTION_IDLE_TIMEOUT", connectionIdleTimeout );
+      }
+      if ( mqttVersion != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "MQTT_VERSION", mqttVersion );
+      }
+      if ( messageExpiryInterval != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "MESSAGE_EXPIRY_INTERVAL", messageExpiryInterval );
+      }
+      if ( userProperties != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "USER_PROPERTIES", userProperties );
+      }
       if ( timeout != null ) {
         rep.saveStepAttribute( transformationId, stepId, "TIMEOUT", timeout );
       }
       if ( qos != null ) {
         rep.saveStepAttribute( transformationId, stepId, "QOS", qos );
       }
+      rep.saveStepAttribute( transformationId, stepId, "ASYNC_PUBLISH", Boolean.toString( asyncPublish ) );
+      if ( maxInflight != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "MAX_INFLIGHT", maxInflight );
+      }
+      if ( batchFraming != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "BATCH_FRAMING", batchFraming );
+      }
+      if ( codec != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "CODEC", codec );
+      }
+      if ( codecFields != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "CODEC_FIELDS", codecFields );
+      }
+      if ( codecOptions != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "CODEC_OPTIONS", codecOptions );
+      }
+      if ( schemaTopic != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "SCHEMA_TOPIC", schemaTopic );
+      }
+      if ( batchMaxRows != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "BATCH_MAX_ROWS", batchMaxRows );
+      }
+      if ( batchMaxBytes != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "BATCH_MAX_BYTES", batchMaxBytes );
+      }
+      if ( batchLinger != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "BATCH_LINGER", batchLinger );
+      }
+      rep.saveStepAttribute( transformationId, stepId, "PASS_THROUGH_ROWS", Boolean.toString( passThroughRows ) );
+      if ( messageIdField != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "MESSAGE_ID_FIELD", messageIdField );
+      }
+      if ( ackLatencyField != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "ACK_LATENCY_FIELD", ackLatencyField );
+      }
+      if ( deliveryStatusField != null ) {
+        rep.saveStepAttribute( transformationId, stepId, "DELIVERY_STATUS_FIELD", deliveryStatusField );
+      }
       rep.saveStepAttribute( transformationId, stepId, "REQUIRES_AUTH", Boolean.toString( requiresAuth ) );
       if ( username != null ) {
         rep.saveStepAttribute( transformationId, stepId, "USERNAME", username );
@@ -485,4 +1085,30 @@ import java.util.List;
 
   public void setDefault() {
   }
+
+  @Override
+  public void getFields( RowMetaInterface rowMeta, String stepName, RowMetaInterface[] info, StepMeta nextStep,
+      VariableSpace space, Repository repo, IMetaStore metaStore ) throws KettleStepException {
+    if ( !passThroughRows ) {
+      return;
+    }
+    try {
+      addField( rowMeta, space, messageIdField, ValueMetaInterface.TYPE_INTEGER, stepName );
+      addField( rowMeta, space, ackLatencyField, ValueMetaInterface.TYPE_INTEGER, stepName );
+      addField( rowMeta, space, deliveryStatusField, ValueMetaInterface.TYPE_STRING, stepName );
+    } catch ( KettlePluginException e ) {
+      throw new KettleStepException( e );
+    }
+  }
+
+  private static void addField( RowMetaInterface rowMeta, VariableSpace space, String name, int type, String origin )
+      throws KettlePluginException {
+    if ( Const.isEmpty( name ) ) {
+      return;
+    }
+    ValueMetaInterface valueMeta =
+        ValueMetaFactory.createValueMeta( space != null ? space.environmentSubstitute( name ) : name, type );
+    valueMeta.setOrigin( origin );
+    rowMeta.addValueMeta( valueMeta );
+  }
 }
@@ -23,36 +23,59 @@
 package org.pentaho.di.trans.steps.pentahomqttsubscriber;
 
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettlePluginException;
+import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.row.value.ValueMetaFactory;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.BaseStep;
+import org.pentaho.di.trans.step.RowAdapter;
 import org.pentaho.di.trans.step.StepDataInterface;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
 import org.pentaho.di.trans.steps.pentahomqttpublisher.MQTTPublisherMeta;
+import org.pentaho.mqtt.BatchFraming;
+import org.pentaho.mqtt.ClientIdStrategy;
+import org.pentaho.mqtt.ClientPersistence;
+import org.pentaho.mqtt.ExponentialBackoff;
+import org.pentaho.mqtt.MPSCRingBuffer;
+import org.pentaho.mqtt.MqttConnectionRegistry;
+import org.pentaho.mqtt.MqttVersion;
+import org.pentaho.mqtt.OffHeapRingBuffer;
 import org.pentaho.mqtt.SSLSocketFactoryGenerator;
+import org.pentaho.mqtt.SpillJournal;
+import org.pentaho.mqtt.codec.PayloadCodec;
+import org.pentaho.mqtt.codec.PayloadCodecs;
 
-import java.io.ByteArrayInputStream;
-import java.io.ObjectInputStream;
-import java.nio.ByteBuffer;
-import java.sql.Timestamp;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * MQTT subscriber step
@@ -62,11 +85,44 @@ import java.util.List;
  */
 public class MQTTSubscriber extends BaseStep implements StepInterface {
 
-  protected boolean m_reconnectFailed;
+  /**
+   * How long the MQTT client thread parks between attempts to hand a message to a full queue
+   */
+  protected static final long QUEUE_FULL_PARK_NANOS = 100000L;
+
+  /**
+   * Number of consecutive empty polls for which the step thread just yields before it starts parking
+   */
+  protected static final int IDLE_YIELDS = 10;
+
+  /**
+   * Most rows taken out of the receive queue at once
+   */
+  protected static final int DRAIN_RUN = 256;
+
+  /**
+   * MQTT 5 session expiry interval that means the session never expires
+   */
+  protected static final long MAX_SESSION_EXPIRY = 0xFFFFFFFFL;
+
+  /**
+   * Topic filter prefix of a shared subscription: $share/&lt;group&gt;/&lt;topic filter&gt;
+   */
+  public static final String SHARED_SUBSCRIPTION_PREFIX = "$share/";
+
+  protected volatile boolean m_reconnectFailed;
+
+  /**
+   * Consecutive calls to processRow that found nothing to pass on
+   */
+  protected int m_idleCount;
+
+  protected MQTTSubscriberData m_data;
 
   public MQTTSubscriber( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr, TransMeta transMeta,
       Trans trans ) {
     super( stepMeta, stepDataInterface, copyNr, transMeta, trans );
+    m_data = (MQTTSubscriberData) stepDataInterface;
   }
 
   public boolean processRow( StepMetaInterface smi, StepDataInterface sdi ) throws KettleException {
@@ -79,11 +135,10 @@ public class MQTTSubscriber extends BaseStep implements StepInterface {
         if ( ( (MQTTSubscriberData) sdi ).m_executionDuration > 0 ) {
           ( (MQTTSubscriberData) sdi ).m_startTime = new Date();
         }
-
-        ( (MQTTSubscriberData) sdi ).m_outputRowMeta = new RowMeta();
-
-        smi.getFields( ( (MQTTSubscriberData) sdi ).m_outputRowMeta, getStepname(), null, null, getTransMeta(), null,
-            null );
+        if ( ( (MQTTSubscriberData) sdi ).m_pendingAcks != null ) {
+          // the other steps exist by now, so we can watch the checkpoint(s)
+          registerCheckpoints( (MQTTSubscriberMeta) smi, (MQTTSubscriberData) sdi );
+        }
       }
 
       if ( m_reconnectFailed ) {
@@ -91,13 +146,54 @@ public class MQTTSubscriber extends BaseStep implements StepInterface {
         setStopped( true );
         return false;
       }
+      if ( ( (MQTTSubscriberData) sdi ).m_schemaMismatch != null ) {
+        logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.SchemaMismatch",
+            ( (MQTTSubscriberData) sdi ).m_schemaMismatch,
+            PayloadCodecs.formatFields( ( (MQTTSubscriberData) sdi ).m_decodedFields ) ) );
+        setErrors( 1 );
+        setStopped( true );
+        return false;
+      }
 
+      // hand over what the MQTT client has received since the last call
+      int drained = drainQueue( (MQTTSubscriberData) sdi, queueCapacity( (MQTTSubscriberData) sdi ) );
+      drained += replaySpill( (MQTTSubscriberData) sdi, queueCapacity( (MQTTSubscriberData) sdi ) );
+      releaseAcks( (MQTTSubscriberData) sdi, false );
+
+      long maxWait = ( (MQTTSubscriberData) sdi ).m_maxIdleWaitNanos;
       if ( ( (MQTTSubscriberData) sdi ).m_executionDuration > 0 ) {
-        if ( System.currentTimeMillis() - ( (MQTTSubscriberData) sdi ).m_startTime.getTime()
-            > ( (MQTTSubscriberData) sdi ).m_executionDuration * 1000 ) {
+        long remaining = ( (MQTTSubscriberData) sdi ).m_executionDuration * 1000
+            - ( System.currentTimeMillis() - ( (MQTTSubscriberData) sdi ).m_startTime.getTime() );
+        if ( remaining < 0 ) {
+          if ( ( (MQTTSubscriberData) sdi ).m_pendingAcks != null ) {
+            // pass on what has been received, then stay connected until the checkpoint has seen it so that it can
+            // be acknowledged - anything arriving meanwhile is left for the broker to deliver again
+            ( (MQTTSubscriberData) sdi ).m_closing = true;
+            drainQueue( (MQTTSubscriberData) sdi, Integer.MAX_VALUE );
+            setOutputDone();
+            awaitCheckpoints( (MQTTSubscriberData) sdi );
+            shutdown( (MQTTSubscriberData) sdi );
+            return false;
+          }
+          // stop receiving, then pass on anything still buffered - it has already been acknowledged. The client's
+          // thread may be waiting for room in a full queue, which only this thread makes: it has to give up before
+          // the disconnect waits for it
+          ( (MQTTSubscriberData) sdi ).m_closing = true;
+          shutdown( (MQTTSubscriberData) sdi );
+          drainQueue( (MQTTSubscriberData) sdi, Integer.MAX_VALUE );
+          replaySpill( (MQTTSubscriberData) sdi, Integer.MAX_VALUE );
           setOutputDone();
           return false;
         }
+        maxWait = Math.min( maxWait, TimeUnit.MILLISECONDS.toNanos( remaining + 1 ) );
+      }
+
+      if ( drained > 0 ) {
+        m_idleCount = 0;
+      } else if ( ++m_idleCount <= IDLE_YIELDS ) {
+        Thread.yield();
+      } else {
+        waitForMessages( (MQTTSubscriberData) sdi, maxWait );
       }
 
       return true;
@@ -107,8 +203,536 @@ public class MQTTSubscriber extends BaseStep implements StepInterface {
     }
   }
 
+  /**
+   * Pass buffered messages downstream
+   *
+   * @param data the step data
+   * @param max  the maximum number of rows to pass on
+   * @return the number of rows passed on
+   * @throws KettleStepException if a problem occurs
+   */
+  protected int drainQueue( MQTTSubscriberData data, int max ) throws KettleStepException {
+    // take the rows out in runs, so that the MQTT client can refill the queue while putRow waits for the next step -
+    // this keeps up with the burst a persistent session delivers when the step connects
+    if ( data.m_offHeapQueue != null ) {
+      return drainOffHeapQueue( data, max );
+    }
+    int drained = 0;
+    List<Object[]> rows = data.m_drained;
+    while ( drained < max ) {
+      int n = data.m_queue.drainTo( rows, Math.min( max - drained, DRAIN_RUN ) );
+      if ( n == 0 ) {
+        break;
+      }
+      for ( int i = 0; i < n; i++ ) {
+        putRow( data.m_outputRowMeta, rows.get( i ) );
+      }
+      if ( data.m_ackSequenceIndex >= 0 ) {
+        data.m_lastPassedOn = (Long) rows.get( n - 1 )[data.m_ackSequenceIndex];
+      }
+      rows.clear();
+      drained += n;
+    }
+    return drained;
+  }
+
+  /**
+   * Decode the messages waiting in the off-heap queue and pass them downstream
+   *
+   * @param data the step data
+   * @param max  the maximum number of rows to pass on
+   * @return the number of rows passed on
+   * @throws KettleStepException if a problem occurs
+   */
+  protected int drainOffHeapQueue( MQTTSubscriberData data, int max ) throws KettleStepException {
+    int drained = 0;
+    OffHeapRingBuffer.Record record = data.m_record;
+    while ( drained < max && data.m_offHeapQueue.poll( record ) ) {
+      drained++;
+      Object[] row;
+      try {
+        row = toRow( data, data.m_decoder, record.getTopic(), record.getPayload(), record.getLength() );
+      } catch ( Exception e ) {
+        data.m_decodeFailures.incrementAndGet();
+        logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.DecodingMessage",
+            record.getTopic() ), e );
+        continue;
+      }
+      putRow( data.m_outputRowMeta, row );
+    }
+    return drained;
+  }
+
+  /**
+   * @param data the step data
+   * @return true if no received messages are waiting in memory
+   */
+  protected boolean isQueueEmpty( MQTTSubscriberData data ) {
+    return data.m_offHeapQueue != null ? data.m_offHeapQueue.isEmpty() : data.m_queue.isEmpty();
+  }
+
+  /**
+   * @param data the step data
+   * @return the number of received messages waiting in memory
+   */
+  protected int queueSize( MQTTSubscriberData data ) {
+    return data.m_offHeapQueue != null ? data.m_offHeapQueue.size() : data.m_queue.size();
+  }
+
+  /**
+   * @param data the step data
+   * @return the most received messages waiting in memory at once
+   */
+  protected int queueCapacity( MQTTSubscriberData data ) {
+    return data.m_offHeapQueue != null ? data.m_offHeapQueue.capacity() : data.m_queue.capacity();
+  }
+
+  /**
+   * Pass on messages that were spilled to disk. Nothing is replayed while the queue still holds rows, as those arrived
+   * before the spilled messages.
+   *
+   * @param data the step data
+   * @param max  the maximum number of messages to replay
+   * @return the number of messages replayed
+   * @throws KettleStepException if a problem occurs
+   */
+  protected int replaySpill( MQTTSubscriberData data, int max ) throws KettleStepException {
+    if ( data.m_spill == null || !isQueueEmpty( data ) ) {
+      return 0;
+    }
+    // the MQTT client only queues rows again once the spill has been read completely, so none can overtake the
+    // messages replayed here
+    int replayed = 0;
+    List<SpillJournal.Message> messages = data.m_replayed;
+    while ( replayed < max ) {
+      int n = data.m_spill.drainTo( messages, Math.min( max - replayed, DRAIN_RUN ) );
+      if ( n == 0 ) {
+        break;
+      }
+      for ( int i = 0; i < n; i++ ) {
+        SpillJournal.Message message = messages.get( i );
+        List<byte[]> payloads = unpackBatch( data, message.getTopic(), message.getPayload() );
+        if ( payloads == null ) {
+          continue;
+        }
+        for ( byte[] payload : payloads ) {
+          try {
+            putRow( data.m_outputRowMeta,
+                toRow( data, data.m_decoder, message.getTopic(), payload, payload.length ) );
+          } catch ( KettleStepException e ) {
+            throw e;
+          } catch ( Exception e ) {
+            data.m_decodeFailures.incrementAndGet();
+            logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.ReplayingMessage",
+                message.getTopic() ), e );
+          }
+        }
+      }
+      messages.clear();
+      replayed += n;
+    }
+    return replayed;
+  }
+
+  /**
+   * Set up spilling to disk, if enabled
+   *
+   * @param meta the step meta
+   * @param data the step data (with the queue already created)
+   * @throws KettleException if spilling can't be used with the step's settings
+   */
+  protected void configureSpill( MQTTSubscriberMeta meta, MQTTSubscriberData data ) throws KettleException {
+    data.m_spill = null;
+    if ( !meta.isSpillToDisk() ) {
+      return;
+    }
+    if ( meta.isManualAcks() ) {
+      // messages would be acknowledged before they have even been turned into rows
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.SpillNeedsAutomaticAcks" ) );
+    }
+
+    String threshold = environmentSubstitute( meta.getSpillThreshold() );
+    data.m_spillThreshold = queueCapacity( data );
+    if ( !Const.isEmpty( threshold ) ) {
+      try {
+        data.m_spillThreshold = Math.min( Integer.parseInt( threshold ), queueCapacity( data ) );
+      } catch ( NumberFormatException e ) {
+        data.m_spillThreshold = -1;
+      }
+      if ( data.m_spillThreshold < 1 ) {
+        throw new KettleException(
+            BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongSpillThresholdValue.Message",
+                threshold ) );
+      }
+    }
+
+    String segmentSize = environmentSubstitute( meta.getSpillSegmentSize() );
+    int segmentBytes;
+    try {
+      long megabytes = Long.parseLong( segmentSize );
+      if ( megabytes < 1 || megabytes > 1024 ) {
+        throw new NumberFormatException( segmentSize );
+      }
+      segmentBytes = (int) Math.min( megabytes * 1024 * 1024, Integer.MAX_VALUE );
+    } catch ( NumberFormatException e ) {
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongSpillSegmentSizeValue.Message",
+              segmentSize ) );
+    }
+
+    data.m_spill = new SpillJournal( environmentSubstitute( meta.getSpillDirectory() ),
+        "mqtt-" + getStepname() + "-" + getCopy(), segmentBytes );
+  }
+
+  /**
+   * Keep received messages off the heap, if enabled. Replaces the on-heap queue.
+   *
+   * @param meta the step meta
+   * @param data the step data (with the queue already created)
+   * @throws KettleException if the off-heap queue can't be used with the step's settings
+   */
+  protected void configureOffHeapQueue( MQTTSubscriberMeta meta, MQTTSubscriberData data ) throws KettleException {
+    data.m_offHeapQueue = null;
+    if ( !meta.isOffHeapQueue() ) {
+      return;
+    }
+    if ( meta.isManualAcks() ) {
+      // rows are only numbered once the step decodes them, too late for the acknowledgement to be held back
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.OffHeapQueueNeedsAutomaticAcks" ) );
+    }
+
+    String bufferSize = environmentSubstitute( meta.getOffHeapBufferSize() );
+    int bufferBytes;
+    try {
+      long megabytes = Long.parseLong( bufferSize );
+      if ( megabytes < 1 || megabytes > 1024 ) {
+        throw new NumberFormatException( bufferSize );
+      }
+      bufferBytes = (int) ( megabytes * 1024 * 1024 );
+    } catch ( NumberFormatException e ) {
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongOffHeapBufferSizeValue.Message",
+              bufferSize ) );
+    }
+
+    data.m_offHeapQueue = new OffHeapRingBuffer( bufferBytes, data.m_queue.capacity() );
+    data.m_queue = null;
+  }
+
+  /**
+   * Split a message payload into the payloads of the rows it carries
+   *
+   * @param data    the step data
+   * @param topic   the topic the message arrived on
+   * @param payload the message payload
+   * @return the row payloads, or null if a batch could not be unpacked (which is logged)
+   */
+  protected List<byte[]> unpackBatch( MQTTSubscriberData data, String topic, byte[] payload ) {
+    if ( data.m_batchFraming == null ) {
+      return Collections.singletonList( payload );
+    }
+    try {
+      return BatchFraming.decode( data.m_batchFraming, payload );
+    } catch ( IOException e ) {
+      logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.UnpackingBatch", topic ), e );
+      return null;
+    }
+  }
+
+  /**
+   * Convert a row payload to an output row
+   *
+   * @param data        the step data
+   * @param decoder the calling thread's decoder
+   * @param topic   the topic the message arrived on
+   * @param raw     the array holding the payload
+   * @param length  the length of the payload, which starts at the beginning of the array
+   * @return the row
+   * @throws Exception if the payload can't be decoded
+   */
+  protected Object[] toRow( MQTTSubscriberData data, PayloadCodec.Decoder decoder, String topic, byte[] raw,
+      int length ) throws Exception {
+    Object[] outRow = RowDataUtil.allocateRowData( data.m_outputRowMeta.size() );
+    outRow[0] = topic;
+    if ( data.m_ackSequenceIndex >= 0 ) {
+      outRow[data.m_ackSequenceIndex] = data.m_ackSequence.incrementAndGet();
+    }
+
+    decoder.decode( raw, length, outRow, 1 );
+    return outRow;
+  }
+
+  /**
+   * Look up the payload codec and work out the fields it decodes
+   *
+   * @param meta the step meta
+   * @param data the step data
+   * @throws KettleException if the codec is unknown or its settings are invalid
+   */
+  protected void configureCodec( MQTTSubscriberMeta meta, MQTTSubscriberData data ) throws KettleException {
+    String codec = environmentSubstitute( meta.getCodec() );
+    if ( !PayloadCodecs.isKnown( codec ) ) {
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.UnknownCodec", codec ) );
+    }
+    data.m_codec = PayloadCodecs.getCodec( codec );
+    if ( PayloadCodecs.isValue( codec ) ) {
+      data.m_decodedFields = new RowMeta();
+      try {
+        data.m_decodedFields.addValueMeta( ValueMetaFactory
+            .createValueMeta( "Message", ValueMetaFactory.getIdForValueMeta( meta.getMessageType() ) ) );
+      } catch ( KettlePluginException e ) {
+        throw new KettleException( e );
+      }
+    } else {
+      data.m_decodedFields = PayloadCodecs.parseFields( environmentSubstitute( meta.getDecodedFields() ) );
+    }
+    data.m_codecOptions = PayloadCodecs.parseOptions( environmentSubstitute( meta.getCodecOptions() ) );
+    String schemaTopic = environmentSubstitute( meta.getSchemaTopic() );
+    data.m_schemaTopic = Const.isEmpty( schemaTopic ) || PayloadCodecs.isValue( codec ) ? null : schemaTopic;
+    data.m_schemaMismatch = null;
+    // the step thread's decoder - each MQTT client callback creates one of its own
+    data.m_decoder = data.m_codec.createDecoder( data.m_decodedFields, data.m_codecOptions );
+  }
+
+  /**
+   * Set up manual acknowledgements, if enabled
+   *
+   * @param meta the step meta
+   * @param data the step data (with the output row meta already worked out)
+   * @throws KettleException if manual acknowledgements can't be used with the step's settings
+   */
+  protected void configureManualAcks( MQTTSubscriberMeta meta, MQTTSubscriberData data ) throws KettleException {
+    data.m_pendingAcks = null;
+    data.m_ackSequenceIndex = -1;
+    if ( !meta.isManualAcks() ) {
+      return;
+    }
+    if ( meta.isSharedConnection() ) {
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.ManualAcksNeedOwnConnection" ) );
+    }
+    if ( Const.isEmpty( environmentSubstitute( meta.getAckCheckpointStep() ) ) ) {
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.NoAckCheckpointStep" ) );
+    }
+    data.m_ackSequenceIndex = data.m_outputRowMeta.indexOfValue( meta.getAckSequenceField() );
+    if ( data.m_ackSequenceIndex < 0 ) {
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.NoAckSequenceField" ) );
+    }
+    data.m_pendingAcks = new ConcurrentLinkedQueue<>();
+  }
+
+  /**
+   * Watch the rows written by every copy of the checkpoint step. The checkpoint has to be named: rows that take
+   * another branch of the transformation never reach it, so guessing at the last steps would leave a branch that sees
+   * no rows holding back every acknowledgement.
+   *
+   * @param meta the step meta
+   * @param data the step data
+   * @throws KettleException if the checkpoint step does not exist
+   */
+  protected void registerCheckpoints( MQTTSubscriberMeta meta, MQTTSubscriberData data ) throws KettleException {
+    String name = environmentSubstitute( meta.getAckCheckpointStep() );
+    List<StepInterface> copies = getTrans().findStepInterfaces( name );
+    if ( copies == null || copies.isEmpty() ) {
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.NoCheckpointStep", name ) );
+    }
+
+    data.m_checkpoints = new ArrayList<>();
+    for ( StepInterface copy : copies ) {
+      CheckpointListener listener = new CheckpointListener( copy, meta.getAckSequenceField() );
+      copy.addRowListener( listener );
+      data.m_checkpoints.add( listener );
+    }
+    if ( isDetailed() ) {
+      logDetailed( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.AckCheckpoints", name ) );
+    }
+  }
+
+  /**
+   * Acknowledge the messages whose rows have all been written by the checkpoint step(s). Messages are acknowledged
+   * as the slowest checkpoint progresses, and released together - once per call rather than once per message.
+   *
+   * @param data the step data
+   * @param all  acknowledge every pending message whose rows have been passed on, wherever they are now
+   * @return the number of messages acknowledged
+   */
+  protected int releaseAcks( MQTTSubscriberData data, boolean all ) {
+    if ( data.m_pendingAcks == null || data.m_pendingAcks.isEmpty() || data.m_checkpoints == null ) {
+      return 0;
+    }
+    // a row the MQTT client queued after the last drain was never passed on, so its message is left to the broker
+    long watermark = data.m_lastPassedOn;
+    if ( !all ) {
+      for ( CheckpointListener checkpoint : data.m_checkpoints ) {
+        watermark = Math.min( watermark, checkpoint.m_seen );
+      }
+    }
+
+    int released = 0;
+    // don't race a reconnect replacing the client
+    synchronized ( this ) {
+      int generation = data.m_connectionGeneration.get();
+      PendingAck ack;
+      while ( ( ack = data.m_pendingAcks.peek() ) != null && ack.m_lastSequence <= watermark ) {
+        data.m_pendingAcks.poll();
+        if ( ack.m_generation != generation ) {
+          // received over a connection that has been replaced since - the broker delivers it again
+          continue;
+        }
+        try {
+          if ( data.m_client != null ) {
+            data.m_client.messageArrivedComplete( ack.m_messageId, ack.m_qos );
+          } else if ( data.m_client5 != null ) {
+            data.m_client5.messageArrivedComplete( ack.m_messageId, ack.m_qos );
+          }
+          released++;
+        } catch ( MqttException | org.eclipse.paho.mqttv5.common.MqttException e ) {
+          logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.Acknowledging" ), e );
+        }
+      }
+    }
+    data.m_acksReleased += released;
+    return released;
+  }
+
+  /**
+   * Wait for the checkpoint step(s) to see the rows passed on, acknowledging their messages as they do. Once the
+   * checkpoints have finished without errors in the transformation, whatever is left of the rows passed on (rows
+   * filtered out on the way) is acknowledged too.
+   *
+   * @param data the step data
+   */
+  protected void awaitCheckpoints( MQTTSubscriberData data ) {
+    while ( !data.m_pendingAcks.isEmpty() && !isStopped() && checkpointsRunning( data ) ) {
+      releaseAcks( data, false );
+      LockSupport.parkNanos( this, data.m_maxIdleWaitNanos );
+    }
+    releaseAcks( data, !isStopped() && !checkpointsRunning( data ) && getTrans().getErrors() == 0 );
+  }
+
+  private boolean checkpointsRunning( MQTTSubscriberData data ) {
+    if ( data.m_checkpoints != null ) {
+      for ( CheckpointListener checkpoint : data.m_checkpoints ) {
+        if ( checkpoint.m_step != this && checkpoint.m_step.isRunning() ) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Park the step thread until a message arrives, the step is stopped, reconnecting fails or the wait times out
+   *
+   * @param data         the step data
+   * @param maxWaitNanos the longest time to wait
+   */
+  protected void waitForMessages( MQTTSubscriberData data, long maxWaitNanos ) {
+    data.m_waitingThread = Thread.currentThread();
+    try {
+      // check again now that producers can see we are waiting, otherwise a wake up could be missed
+      if ( isQueueEmpty( data ) && ( data.m_spill == null || data.m_spill.isEmpty() ) && !isStopped()
+          && !m_reconnectFailed ) {
+        LockSupport.parkNanos( this, maxWaitNanos );
+      }
+    } finally {
+      data.m_waitingThread = null;
+    }
+  }
+
+  /**
+   * Wake the step thread if it is waiting for messages
+   *
+   * @param data the step data
+   */
+  protected void wakeUp( MQTTSubscriberData data ) {
+    Thread waiting = data.m_waitingThread;
+    if ( waiting != null ) {
+      LockSupport.unpark( waiting );
+    }
+  }
+
+  /**
+   * @return the number of received messages waiting to be passed downstream
+   */
+  public int getQueueDepth() {
+    if ( m_data.m_offHeapQueue != null ) {
+      return m_data.m_offHeapQueue.size();
+    }
+    return m_data.m_queue != null ? m_data.m_queue.size() : 0;
+  }
+
+  /**
+   * @return the number of received messages spilled to disk and waiting to be passed downstream
+   */
+  public long getSpillDepth() {
+    return m_data.m_spill != null ? m_data.m_spill.size() : 0;
+  }
+
+  /**
+   * @return the largest number of received messages that have been waiting at once
+   */
+  public long getQueueHighWaterMark() {
+    if ( m_data.m_offHeapQueue != null ) {
+      return m_data.m_offHeapQueue.getHighWaterMark();
+    }
+    return m_data.m_queue != null ? m_data.m_queue.getHighWaterMark() : 0;
+  }
+
+  /**
+   * @return the number of messages for which the MQTT client had to wait for space in the queue
+   */
+  public long getQueueFullWaits() {
+    return m_data.m_queueFullWaits.get();
+  }
+
+  /**
+   * Report the receive queue as this step's input buffer in the step metrics
+   */
+  @Override public int rowsetInputSize() {
+    return getQueueDepth();
+  }
+
+  /**
+   * @return the number of times the step has reconnected to the broker after losing its connection
+   */
+  public long getReconnectCount() {
+    return m_data.m_reconnects.get();
+  }
+
+  /**
+   * Disconnect for good - pending reconnect attempts are cancelled
+   *
+   * @param data the step data
+   */
   protected synchronized void shutdown( MQTTSubscriberData data ) {
-    if ( data.m_client != null ) {
+    data.m_shutdown = true;
+    if ( data.m_reconnectScheduler != null ) {
+      data.m_reconnectScheduler.shutdownNow();
+      data.m_reconnectScheduler = null;
+    }
+    closeClient( data );
+  }
+
+  /**
+   * Disconnect and release the current MQTT client
+   *
+   * @param data the step data
+   */
+  protected synchronized void closeClient( MQTTSubscriberData data ) {
+    if ( data.m_connection != null ) {
+      // other steps may still be using the connection - the registry closes it once they are all done
+      data.m_connection.unsubscribe( data.m_listener );
+      data.m_connection.release();
+      data.m_connection = null;
+      data.m_listener = null;
+    } else if ( data.m_client != null ) {
       try {
         if ( data.m_client.isConnected() ) {
           logBasic( "Disconnecting from MQTT broker" );
@@ -119,12 +743,66 @@ public class MQTTSubscriber extends BaseStep implements StepInterface {
       } catch ( MqttException e ) {
         logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorClosingMQTTClient.Message" ), e );
       }
+    } else if ( data.m_client5 != null ) {
+      try {
+        if ( data.m_client5.isConnected() ) {
+          logBasic( "Disconnecting from MQTT broker" );
+          data.m_client5.disconnect().waitForCompletion();
+        }
+        data.m_client5.close();
+        data.m_client5 = null;
+      } catch ( org.eclipse.paho.mqttv5.common.MqttException e ) {
+        logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorClosingMQTTClient.Message" ), e );
+      }
     }
   }
 
   public boolean init( StepMetaInterface smi, StepDataInterface sdi ) {
     if ( super.init( smi, sdi ) ) {
+      String capacity = environmentSubstitute( ( (MQTTSubscriberMeta) smi ).getQueueCapacity() );
       try {
+        ( (MQTTSubscriberData) sdi ).m_queue = new MPSCRingBuffer<>( Integer.parseInt( capacity ) );
+      } catch ( IllegalArgumentException e ) {
+        logError(
+            BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongQueueCapacityValue.Message", capacity ) );
+        return false;
+      }
+
+      String maxIdleWait = environmentSubstitute( ( (MQTTSubscriberMeta) smi ).getMaxIdleWait() );
+      try {
+        ( (MQTTSubscriberData) sdi ).m_maxIdleWaitNanos =
+            TimeUnit.MILLISECONDS.toNanos( Math.max( 1L, Long.parseLong( maxIdleWait ) ) );
+      } catch ( NumberFormatException e ) {
+        logError(
+            BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongMaxIdleWaitValue.Message", maxIdleWait ) );
+        return false;
+      }
+
+      try {
+        configureReconnect( (MQTTSubscriberMeta) smi, (MQTTSubscriberData) sdi );
+      } catch ( KettleException e ) {
+        logError( e.getMessage() );
+        return false;
+      }
+
+      String batchFraming = environmentSubstitute( ( (MQTTSubscriberMeta) smi ).getBatchFraming() );
+      if ( !BatchFraming.isKnown( batchFraming ) ) {
+        logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.InvalidBatchFraming",
+            batchFraming ) );
+        return false;
+      }
+      ( (MQTTSubscriberData) sdi ).m_batchFraming = BatchFraming.isBatching( batchFraming ) ? batchFraming : null;
+
+      try {
+        // rows are built on the MQTT client thread as soon as we are connected
+        ( (MQTTSubscriberData) sdi ).m_outputRowMeta = new RowMeta();
+        smi.getFields( ( (MQTTSubscriberData) sdi ).m_outputRowMeta, getStepname(), null, null, getTransMeta(), null,
+            null );
+        configureCodec( (MQTTSubscriberMeta) smi, (MQTTSubscriberData) sdi );
+        configureManualAcks( (MQTTSubscriberMeta) smi, (MQTTSubscriberData) sdi );
+        configureOffHeapQueue( (MQTTSubscriberMeta) smi, (MQTTSubscriberData) sdi );
+        configureSpill( (MQTTSubscriberMeta) smi, (MQTTSubscriberData) sdi );
+
         configureConnection( (MQTTSubscriberMeta) smi, (MQTTSubscriberData) sdi );
         String runFor = ( (MQTTSubscriberMeta) smi ).getExecuteForDuration();
         try {
@@ -163,6 +841,31 @@ public class MQTTSubscriber extends BaseStep implements StepInterface {
     MQTTSubscriberData data = (MQTTSubscriberData) sdi;
 
     shutdown( data );
+    if ( ( data.m_queue != null || data.m_offHeapQueue != null ) && isDetailed() ) {
+      long offered =
+          data.m_offHeapQueue != null ? data.m_offHeapQueue.getTotalOffered() : data.m_queue.getTotalOffered();
+      logDetailed( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.QueueStatistics",
+          Long.toString( offered ), Long.toString( getQueueHighWaterMark() ),
+          Long.toString( data.m_queueFullWaits.get() ) ) );
+      logDetailed( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.ReconnectStatistics",
+          Long.toString( data.m_reconnects.get() ) ) );
+      if ( data.m_pendingAcks != null ) {
+        logDetailed( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.AckStatistics",
+            Long.toString( data.m_acksReleased ), Integer.toString( data.m_pendingAcks.size() ) ) );
+      }
+      if ( data.m_spill != null ) {
+        logDetailed( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.SpillStatistics",
+            Long.toString( data.m_spill.getTotalSpilled() ), Long.toString( data.m_spill.getHighWaterMark() ),
+            Long.toString( data.m_spill.getSegmentsCreated() ), Long.toString( data.m_spill.size() ) ) );
+      }
+    }
+    if ( data.m_decodeFailures.get() > 0 ) {
+      logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.DecodeStatistics",
+          Long.toString( data.m_decodeFailures.get() ) ) );
+    }
+    if ( data.m_spill != null ) {
+      data.m_spill.close();
+    }
     super.dispose( smi, sdi );
   }
 
@@ -171,10 +874,77 @@ public class MQTTSubscriber extends BaseStep implements StepInterface {
     MQTTSubscriberData data = (MQTTSubscriberData) sdi;
     shutdown( data );
     super.stopRunning( smi, sdi );
+    wakeUp( data );
+  }
+
+  /**
+   * Read the reconnect policy
+   *
+   * @param meta the step meta
+   * @param data the step data
+   * @throws KettleException if a setting is not a non-negative number
+   */
+  protected void configureReconnect( MQTTSubscriberMeta meta, MQTTSubscriberData data ) throws KettleException {
+    long initialDelay = parseReconnectSetting( meta.getReconnectInitialDelay() );
+    long maxDelay = parseReconnectSetting( meta.getReconnectMaxDelay() );
+    data.m_reconnectBackoff = new ExponentialBackoff( initialDelay, maxDelay );
+    data.m_reconnectMaxAttempts = parseReconnectSetting( meta.getReconnectMaxAttempts() );
+    data.m_reconnectMaxDuration = TimeUnit.SECONDS.toMillis( parseReconnectSetting( meta.getReconnectMaxDuration() ) );
+  }
+
+  private long parseReconnectSetting( String setting ) throws KettleException {
+    String value = environmentSubstitute( setting );
+    long result;
+    try {
+      result = Const.isEmpty( value ) ? 0 : Long.parseLong( value );
+    } catch ( NumberFormatException e ) {
+      result = -1;
+    }
+    if ( result < 0 ) {
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongReconnectValue.Message", value ) );
+    }
+    return result;
+  }
+
+  /**
+   * Schedule an attempt to reconnect, unless the reconnect policy is exhausted
+   *
+   * @param task the reconnect in progress
+   */
+  protected synchronized void scheduleReconnect( ReconnectTask task ) {
+    MQTTSubscriberData data = task.m_data;
+    if ( data.m_shutdown ) {
+      return;
+    }
+
+    task.m_attempt++;
+    if ( ( data.m_reconnectMaxAttempts > 0 && task.m_attempt > data.m_reconnectMaxAttempts ) || (
+        data.m_reconnectMaxDuration > 0 && System.currentTimeMillis() - task.m_started > data.m_reconnectMaxDuration ) ) {
+      logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.ReconnectGaveUp",
+          Integer.toString( task.m_attempt - 1 ) ) );
+      m_reconnectFailed = true;
+      wakeUp( data );
+      return;
+    }
+
+    if ( data.m_reconnectScheduler == null ) {
+      data.m_reconnectScheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+        @Override public Thread newThread( Runnable r ) {
+          Thread t = new Thread( r, "MQTT reconnect - " + getStepname() + "." + getCopy() );
+          t.setDaemon( true );
+          return t;
+        }
+      } );
+    }
+    long delay = data.m_reconnectBackoff.delay( task.m_attempt );
+    logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.ReconnectScheduled",
+        Integer.toString( task.m_attempt ), Long.toString( delay ) ) );
+    data.m_reconnectScheduler.schedule( task, delay, TimeUnit.MILLISECONDS );
   }
 
   protected void configureConnection( MQTTSubscriberMeta meta, MQTTSubscriberData data ) throws KettleException {
-    if ( data.m_client == null ) {
+    if ( data.m_client == null && data.m_client5 == null && data.m_connection == null ) {
       String broker = environmentSubstitute( meta.getBroker() );
       if ( Const.isEmpty( broker ) ) {
         throw new KettleException(
@@ -188,9 +958,48 @@ public class MQTTSubscriber extends BaseStep implements StepInterface {
       if ( topics == null || topics.size() == 0 ) {
         throw new KettleException( "No topic(s) to subscribe to provided" );
       }
+      String shareGroup = null;
+      if ( meta.isSharedSubscription() ) {
+        shareGroup = environmentSubstitute( meta.getShareGroup() );
+        if ( Const.isEmpty( shareGroup ) ) {
+          shareGroup = getStepname();
+        }
+        // the group name is a single topic level
+        shareGroup = shareGroup.replaceAll( "[/+#]", "_" );
+        if ( meta.isSharedConnection() ) {
+          // the copies would all subscribe through the one connection, which hands every message to each of them
+          throw new KettleException( BaseMessages
+              .getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.SharedSubscriptionNeedsOwnConnection" ) );
+        }
+      }
+
+      String idStrategy = environmentSubstitute( meta.getClientIdStrategy() );
+      if ( shareGroup != null && ( Const.isEmpty( idStrategy ) || ClientIdStrategy.AS_IS.equals( idStrategy ) ) ) {
+        // every copy (on every slave server) needs a session of its own for the broker to balance between them
+        idStrategy = ClientIdStrategy.SLAVE_SERVER_AND_COPY;
+      }
+      if ( meta.isPersistentSession() && meta.isSharedConnection() ) {
+        // the shared connection keeps the client id of whichever step opened it, so the session can't be found again
+        throw new KettleException( BaseMessages
+            .getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.PersistentSessionNeedsOwnConnection" ) );
+      }
+      if ( meta.isPersistentSession() && ClientIdStrategy.RANDOM.equals( idStrategy ) ) {
+        // the broker finds the session by client id, so it has to be the same every run
+        throw new KettleException(
+            BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.PersistentSessionNeedsStableId" ) );
+      }
+      clientId = resolveClientId( idStrategy, clientId );
       List<String> resolvedTopics = new ArrayList<>();
       for ( String topic : topics ) {
-        resolvedTopics.add( environmentSubstitute( topic ) );
+        String resolved = environmentSubstitute( topic );
+        if ( shareGroup != null && !resolved.startsWith( SHARED_SUBSCRIPTION_PREFIX ) ) {
+          resolved = SHARED_SUBSCRIPTION_PREFIX + shareGroup + "/" + resolved;
+        }
+        resolvedTopics.add( resolved );
+      }
+      if ( data.m_schemaTopic != null ) {
+        // never shared - every copy checks the schema for itself
+        resolvedTopics.add( data.m_schemaTopic );
       }
 
       String qosS = environmentSubstitute( meta.getQoS() );
@@ -206,9 +1015,42 @@ public class MQTTSubscriber extends BaseStep implements StepInterface {
       for ( int i = 0; i < qoss.length; i++ ) {
         qoss[i] = qos;
       }
-      try {
-        data.m_client = new MqttClient( broker, clientId );
+      String persistence = environmentSubstitute( meta.getPersistence() );
+      if ( !ClientPersistence.isKnown( persistence ) ) {
+        throw new KettleException(
+            BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.UnknownPersistence.Message", persistence ) );
+      }
+      if ( meta.isPersistentSession() && !ClientPersistence.isDurable( persistence ) ) {
+        // the broker resumes the session, but the client's half of the unfinished handshakes would be gone
+        throw new KettleException( BaseMessages
+            .getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.PersistentSessionNeedsDurablePersistence" ) );
+      }
+
+      String persistenceDirectory = environmentSubstitute( meta.getPersistenceDirectory() );
+
+      String version = environmentSubstitute( meta.getMqttVersion() );
+      if ( !MqttVersion.isKnown( version ) ) {
+        throw new KettleException(
+            BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.InvalidMqttVersion", version ) );
+      }
+      boolean v5 = MqttVersion.isV5( version );
+      if ( v5 && meta.isSharedConnection() ) {
+        throw new KettleException(
+            BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.SharedConnectionNeedsV3" ) );
+      }
+
+      long idleTimeoutMs = 0;
+      if ( meta.isSharedConnection() ) {
+        String idleTimeout = environmentSubstitute( meta.getConnectionIdleTimeout() );
+        try {
+          idleTimeoutMs = Long.parseLong( idleTimeout ) * 1000L;
+        } catch ( NumberFormatException e ) {
+          throw new KettleException( BaseMessages
+              .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongIdleTimeoutValue.Message", idleTimeout ), e );
+        }
+      }
 
+      try {
         MqttConnectOptions connectOptions = new MqttConnectOptions();
         if ( meta.isRequiresAuth() ) {
           connectOptions.setUserName( environmentSubstitute( meta.getUsername() ) );
@@ -220,7 +1062,7 @@ public class MQTTSubscriber extends BaseStep implements StepInterface {
                   environmentSubstitute( meta.getSSLCertFile() ), environmentSubstitute( meta.getSSLKeyFile() ),
                   environmentSubstitute( meta.getSSLKeyFilePass() ) ) );
         }
-        connectOptions.setCleanSession( true );
+        connectOptions.setCleanSession( !meta.isPersistentSession() );
 
         String timeout = environmentSubstitute( meta.getTimeout() );
         String keepAlive = environmentSubstitute( meta.getKeepAliveInterval() );
@@ -239,13 +1081,58 @@ public class MQTTSubscriber extends BaseStep implements StepInterface {
               e );
         }
 
-        logBasic( BaseMessages
-            .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.CreateMQTTClient.Message", broker, clientId ) );
+        String[] filters = resolvedTopics.toArray( new String[resolvedTopics.size()] );
+        if ( v5 ) {
+          MqttConnectionOptions connectOptions5 = MqttVersion.toV5( connectOptions );
+          configureFlowControl( meta, connectOptions5 );
+          if ( meta.isPersistentSession() ) {
+            connectOptions5.setSessionExpiryInterval( parseSessionExpiry( meta ) );
+          }
+          data.m_client5 = new MqttAsyncClient( broker, clientId,
+              MqttVersion.persistence( persistence, persistenceDirectory, broker ) );
+          logBasic( BaseMessages
+              .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.CreateMQTTClient.Message", broker, clientId ) );
+
+          data.m_client5.setManualAcks( data.m_pendingAcks != null );
+          data.m_client5.setCallback( new SubscriberCallback5( new SubscriberCallback( data, meta ) ) );
+          org.eclipse.paho.mqttv5.client.IMqttToken token = data.m_client5.connect( connectOptions5 );
+          token.waitForCompletion();
+
+          if ( needsSubscribe( data, token.getSessionPresent() ) ) {
+            data.m_client5.subscribe( filters, qoss ).waitForCompletion();
+            data.m_subscribed = true;
+          }
+        } else if ( meta.isSharedConnection() ) {
+          // the shared client reconnects by itself and restores the subscriptions, so the step's own reconnect
+          // policy does not come into play
+          data.m_connection = MqttConnectionRegistry.getInstance()
+              .acquire( broker, clientId, persistence, persistenceDirectory, connectOptions, idleTimeoutMs );
+          logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.SharedMQTTClient.Message", broker,
+              data.m_connection.getClient().getClientId() ) );
+          data.m_listener = new SubscriberCallback( data, meta );
+          try {
+            data.m_connection.subscribe( filters, qoss, data.m_listener );
+          } catch ( MqttException e ) {
+            data.m_connection.release();
+            data.m_connection = null;
+            data.m_listener = null;
+            throw e;
+          }
+        } else {
+          data.m_client =
+              new MqttClient( broker, clientId, ClientPersistence.create( persistence, persistenceDirectory ) );
+          logBasic( BaseMessages
+              .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.CreateMQTTClient.Message", broker, clientId ) );
 
-        data.m_client.setCallback( new SubscriberCallback( data, meta ) );
-        data.m_client.connect( connectOptions );
+          data.m_client.setManualAcks( data.m_pendingAcks != null );
+          data.m_client.setCallback( new SubscriberCallback( data, meta ) );
+          IMqttToken token = data.m_client.connectWithResult( connectOptions );
 
-        data.m_client.subscribe( resolvedTopics.toArray( new String[resolvedTopics.size()] ), qoss );
+          if ( needsSubscribe( data, token.getSessionPresent() ) ) {
+            data.m_client.subscribe( filters, qoss );
+            data.m_subscribed = true;
+          }
+        }
       } catch ( Exception e ) {
         throw new KettleException(
             BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorCreateMQTTClient.Message", broker ),
@@ -254,84 +1141,447 @@ public class MQTTSubscriber extends BaseStep implements StepInterface {
     }
   }
 
-  protected class SubscriberCallback implements MqttCallback {
+  /**
+   * Apply the MQTT 5 flow control settings and user properties. The broker sends at most receive maximum QoS 1 and 2
+   * messages before waiting for acknowledgements - and a message is only acknowledged once it is in the queue, so a
+   * full queue holds the broker back instead of letting messages pile up in the client.
+   *
+   * @param meta    the step meta
+   * @param options the connection options to apply them to
+   * @throws KettleException if a setting is invalid
+   */
+  protected void configureFlowControl( MQTTSubscriberMeta meta, MqttConnectionOptions options )
+      throws KettleException {
+    String receiveMaximum = environmentSubstitute( meta.getReceiveMaximum() );
+    if ( !Const.isEmpty( receiveMaximum ) ) {
+      int value = parseV5Setting( receiveMaximum, 65535, "MQTTClientStep.WrongReceiveMaximumValue.Message" );
+      if ( value > 0 ) {
+        options.setReceiveMaximum( value );
+      }
+    }
+    String topicAliasMaximum = environmentSubstitute( meta.getTopicAliasMaximum() );
+    if ( !Const.isEmpty( topicAliasMaximum ) ) {
+      options.setTopicAliasMaximum(
+          parseV5Setting( topicAliasMaximum, 65535, "MQTTClientStep.WrongTopicAliasMaximumValue.Message" ) );
+    }
+    String userProperties = environmentSubstitute( meta.getUserProperties() );
+    try {
+      options.setUserProperties( MqttVersion.parseUserProperties( userProperties ) );
+    } catch ( IllegalArgumentException e ) {
+      throw new KettleException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongUserProperties.Message", userProperties ), e );
+    }
+  }
+
+  /**
+   * @param meta the step meta
+   * @return the session expiry interval in seconds - empty means the session never expires
+   * @throws KettleException if the interval is invalid
+   */
+  protected long parseSessionExpiry( MQTTSubscriberMeta meta ) throws KettleException {
+    String expiry = environmentSubstitute( meta.getSessionExpiryInterval() );
+    if ( Const.isEmpty( expiry ) ) {
+      return MAX_SESSION_EXPIRY;
+    }
+    long result;
+    try {
+      result = Long.parseLong( expiry );
+    } catch ( NumberFormatException e ) {
+      result = -1;
+    }
+    if ( result < 0 || result > MAX_SESSION_EXPIRY ) {
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongSessionExpiryValue.Message", expiry ) );
+    }
+    return result;
+  }
+
+  /**
+   * Decide whether to subscribe after connecting. A resumed session still has its subscriptions, so reconnects skip
+   * subscribing again - the first connect of a run always subscribes, in case the topics have changed since the
+   * session was created.
+   *
+   * @param data           the step data
+   * @param sessionPresent whether the broker resumed an existing session
+   * @return true if the topics need subscribing to
+   */
+  protected boolean needsSubscribe( MQTTSubscriberData data, boolean sessionPresent ) {
+    if ( sessionPresent ) {
+      logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.SessionResumed" ) );
+    }
+    return !sessionPresent || !data.m_subscribed;
+  }
+
+  private int parseV5Setting( String value, int max, String messageKey ) throws KettleException {
+    int result;
+    try {
+      result = Integer.parseInt( value );
+    } catch ( NumberFormatException e ) {
+      result = -1;
+    }
+    if ( result < 0 || result > max ) {
+      throw new KettleException( BaseMessages.getString( MQTTPublisherMeta.PKG, messageKey, value ) );
+    }
+    return result;
+  }
+
+  /**
+   * Derive the client ID this step copy connects with
+   *
+   * @param strategy the client ID strategy (see {@link ClientIdStrategy})
+   * @param clientId the configured client ID
+   * @return the client ID to use
+   * @throws KettleException if the strategy is unknown
+   */
+  protected String resolveClientId( String strategy, String clientId ) throws KettleException {
+    if ( !ClientIdStrategy.isKnown( strategy ) ) {
+      throw new KettleException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.InvalidClientIdStrategy", strategy ) );
+    }
+    return ClientIdStrategy
+        .resolve( strategy, clientId, getVariable( Const.INTERNAL_VARIABLE_SLAVE_SERVER_NAME ), getCopy() );
+  }
+
+  protected class SubscriberCallback implements MqttCallback, MqttConnectionRegistry.MessageListener {
 
     protected MQTTSubscriberData m_data;
     protected MQTTSubscriberMeta m_meta;
-    protected ValueMetaInterface m_messageValueMeta;
+    protected PayloadCodec.Decoder m_decoder;
+    protected final int m_generation;
+    protected String m_lastTopic;
+    protected byte[] m_lastTopicBytes;
 
-    public SubscriberCallback( MQTTSubscriberData data, MQTTSubscriberMeta meta ) throws KettlePluginException {
+    public SubscriberCallback( MQTTSubscriberData data, MQTTSubscriberMeta meta ) throws KettleException {
       m_data = data;
       m_meta = meta;
+      m_generation = data.m_connectionGeneration.incrementAndGet();
 
-      m_messageValueMeta =
-          ValueMetaFactory.createValueMeta( "Message", ValueMetaFactory.getIdForValueMeta( m_meta.getMessageType() ) );
+      // decoders are not thread safe, and this one runs on the MQTT client's thread
+      m_decoder = data.m_codec.createDecoder( data.m_decodedFields, data.m_codecOptions );
     }
 
     @Override public void connectionLost( Throwable throwable ) {
-      // connection retry logic here
-      shutdown( m_data );
       logBasic( BaseMessages
           .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.LostConnectionToBroker", throwable.getMessage() ) );
-      logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.AttemptingToReconnect" ) );
+      // reconnect in the background - this is the client's own thread, which must not block
+      scheduleReconnect( new ReconnectTask( m_meta, m_data ) );
+    }
+
+    @Override public void messageArrived( String topic, MqttMessage mqttMessage ) throws Exception {
+      // a message whose rows were turned away is not acknowledged, so the broker delivers it again
+      if ( !m_data.m_closing && payloadArrived( topic, mqttMessage.getPayload() ) ) {
+        holdAck( mqttMessage.getId(), mqttMessage.getQos() );
+      }
+    }
+
+    /**
+     * Keep back the acknowledgement of a message until the checkpoint has seen its rows (when acknowledging
+     * manually)
+     *
+     * @param messageId the message id
+     * @param qos       the message QoS - QoS 0 messages are never acknowledged
+     */
+    protected void holdAck( int messageId, int qos ) {
+      if ( m_data.m_pendingAcks != null && qos > 0 ) {
+        m_data.m_pendingAcks.add( new PendingAck( m_generation, messageId, qos, m_data.m_ackSequence.get() ) );
+      }
+    }
+
+    /**
+     * Queue the row(s) carried by a message payload, or spill the message to disk if the queue is too full
+     *
+     * @param topic   the topic the message arrived on
+     * @param payload the payload
+     * @return false if the step is closing and did not take all the rows
+     * @throws Exception if the message can't be spilled
+     */
+    protected boolean payloadArrived( String topic, byte[] payload ) throws Exception {
+      if ( topic.equals( m_data.m_schemaTopic ) ) {
+        schemaArrived( payload );
+        return true;
+      }
+      SpillJournal spill = m_data.m_spill;
+      if ( spill != null && ( !spill.isEmpty() || queueSize( m_data ) >= m_data.m_spillThreshold ) ) {
+        // once spilling, keep spilling until the step has caught up, so that messages are passed on in order
+        spill.append( topic, payload );
+        wakeUp( m_data );
+        return true;
+      }
+
+      List<byte[]> payloads = unpackBatch( m_data, topic, payload );
+      if ( payloads == null ) {
+        // throwing here would make the client drop the connection - skip the message instead
+        return true;
+      }
+      if ( m_data.m_offHeapQueue != null ) {
+        // the step decodes the rows when it takes the messages out
+        byte[] topicBytes = topicBytes( topic );
+        for ( byte[] raw : payloads ) {
+          if ( !enqueue( topic, topicBytes, raw ) ) {
+            return false;
+          }
+        }
+        return true;
+      }
+      for ( byte[] raw : payloads ) {
+        Object[] row;
+        try {
+          row = toRow( m_data, m_decoder, topic, raw, raw.length );
+        } catch ( Exception e ) {
+          // throwing here would make the client drop the connection, and a persistent session would deliver the same
+          // message again after every reconnect - skip it instead, and let it be acknowledged
+          m_data.m_decodeFailures.incrementAndGet();
+          logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.DecodingMessage", topic ),
+              e );
+          continue;
+        }
+        if ( !enqueue( row ) ) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @return true if the step no longer takes rows
+     */
+    protected boolean closing() {
+      return m_data.m_closing || m_data.m_shutdown || isStopped();
+    }
+
+    /**
+     * Check the publisher's schema against the fields we decode into - the step stops if they differ, rather than
+     * passing on rows that were decoded with the wrong layout. Codecs that resolve schemas just take note of it.
+     *
+     * @param schema the schema message
+     */
+    protected void schemaArrived( byte[] schema ) {
+      RowMetaInterface fields;
       try {
-        configureConnection( m_meta, m_data );
+        fields = m_data.m_codec.readSchema( schema );
       } catch ( KettleException e ) {
-        logError( e.getMessage(), e );
-        m_reconnectFailed = true;
+        logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.ReadingSchema",
+            m_data.m_schemaTopic ), e );
+        return;
+      }
+      if ( fields == null ) {
+        return;
+      }
+      if ( PayloadCodecs.sameFields( fields, m_data.m_decodedFields ) ) {
+        logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.SchemaMatches",
+            m_data.m_schemaTopic ) );
+      } else if ( m_data.m_codec.resolvesSchemas() ) {
+        logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.SchemaResolved",
+            m_data.m_schemaTopic, PayloadCodecs.formatFields( fields ) ) );
+      } else {
+        m_data.m_schemaMismatch = PayloadCodecs.formatFields( fields );
+        wakeUp( m_data );
       }
     }
 
-    @Override public void messageArrived( String topic, MqttMessage mqttMessage ) throws Exception {
-      Object[] outRow = RowDataUtil.allocateRowData( m_data.m_outputRowMeta.size() );
-      outRow[0] = topic;
-      Object converted = null;
-
-      byte[] raw = mqttMessage.getPayload();
-      ByteBuffer buff = null;
-      switch ( m_messageValueMeta.getType() ) {
-        case ValueMetaInterface.TYPE_INTEGER:
-          buff = ByteBuffer.wrap( raw );
-          outRow[1] = raw.length == 4 ? (long) buff.getInt() : buff.getLong();
-          break;
-        case ValueMetaInterface.TYPE_STRING:
-        case ValueMetaInterface.TYPE_NONE:
-          outRow[1] = new String( raw );
-          break;
-        case ValueMetaInterface.TYPE_NUMBER:
-          buff = ByteBuffer.wrap( raw );
-          outRow[1] = raw.length == 4 ? (double) buff.getFloat() : buff.getDouble();
-          break;
-        case ValueMetaInterface.TYPE_DATE:
-          buff = ByteBuffer.wrap( raw );
-          outRow[1] = new Date( buff.getLong() );
-          break;
-        case ValueMetaInterface.TYPE_BINARY:
-          outRow[1] = raw;
-          break;
-        case ValueMetaInterface.TYPE_BOOLEAN:
-          outRow[1] = raw[0] > 0;
-          break;
-        case ValueMetaInterface.TYPE_TIMESTAMP:
-          buff = ByteBuffer.wrap( raw );
-          long time = buff.getLong();
-          int nanos = buff.getInt();
-          Timestamp t = new Timestamp( time );
-          t.setNanos( nanos );
-          outRow[1] = t;
-          break;
-        case ValueMetaInterface.TYPE_SERIALIZABLE:
-          ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( raw ) );
-          outRow[1] = ois.readObject();
-          break;
-        default:
-          throw new KettleException( "Unhandled type" );
-      }
-      putRow( m_data.m_outputRowMeta, outRow );
+    /**
+     * @param topic a topic
+     * @return the topic's encoding - the last one is kept, as messages tend to come in runs on the same topic
+     */
+    protected byte[] topicBytes( String topic ) {
+      if ( !topic.equals( m_lastTopic ) ) {
+        m_lastTopic = topic;
+        m_lastTopicBytes = topic.getBytes( StandardCharsets.UTF_8 );
+      }
+      return m_lastTopicBytes;
+    }
+
+    /**
+     * Copy a message into the off-heap queue, waiting while it is full - unless the step is closing, when the message
+     * is dropped
+     *
+     * @param topic      the topic the message arrived on
+     * @param topicBytes the encoded topic
+     * @param payload    the payload
+     * @return false if the step is closing and the message was turned away
+     */
+    protected boolean enqueue( String topic, byte[] topicBytes, byte[] payload ) {
+      OffHeapRingBuffer queue = m_data.m_offHeapQueue;
+      if ( !queue.canHold( topicBytes.length, payload.length ) ) {
+        // throwing here would make the client drop the connection - skip the message instead
+        logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.MessageTooLarge", topic,
+            Integer.toString( payload.length ), Integer.toString( queue.slabSize() ) ) );
+        return true;
+      }
+      boolean waited = false;
+      // check before every attempt - the step may already have taken its last message out
+      while ( !closing() ) {
+        if ( queue.offer( topicBytes, payload, 0, payload.length ) ) {
+          wakeUp( m_data );
+          return true;
+        }
+        if ( !waited ) {
+          m_data.m_queueFullWaits.incrementAndGet();
+          waited = true;
+        }
+        LockSupport.parkNanos( QUEUE_FULL_PARK_NANOS );
+      }
+      return false;
+    }
+
+    /**
+     * Hand a row over to the step thread, waiting while the queue is full - unless the step is closing, when the row
+     * is dropped
+     *
+     * @param row the row to queue
+     * @return false if the step is closing and the row was turned away
+     */
+    protected boolean enqueue( Object[] row ) {
+      boolean waited = false;
+      // check before every attempt - the step may already have taken its last row out
+      while ( !closing() ) {
+        if ( m_data.m_queue.offer( row ) ) {
+          wakeUp( m_data );
+          return true;
+        }
+        if ( !waited ) {
+          m_data.m_queueFullWaits.incrementAndGet();
+          waited = true;
+        }
+        LockSupport.parkNanos( QUEUE_FULL_PARK_NANOS );
+      }
+      return false;
     }
 
     @Override public void deliveryComplete( IMqttDeliveryToken iMqttDeliveryToken ) {
 
     }
   }
+
+  /**
+   * Hands the messages of an MQTT 5 client to a {@link SubscriberCallback}
+   */
+  protected class SubscriberCallback5 implements org.eclipse.paho.mqttv5.client.MqttCallback {
+
+    protected SubscriberCallback m_callback;
+
+    public SubscriberCallback5( SubscriberCallback callback ) {
+      m_callback = callback;
+    }
+
+    @Override public void disconnected( MqttDisconnectResponse response ) {
+      m_callback.connectionLost( response.getException() != null ? response.getException()
+          : new Exception( response.getReasonString() ) );
+    }
+
+    @Override public void mqttErrorOccurred( org.eclipse.paho.mqttv5.common.MqttException e ) {
+      logError( e.getMessage(), e );
+    }
+
+    @Override public void messageArrived( String topic, org.eclipse.paho.mqttv5.common.MqttMessage mqttMessage )
+        throws Exception {
+      if ( !m_callback.m_data.m_closing && m_callback.payloadArrived( topic, mqttMessage.getPayload() ) ) {
+        m_callback.holdAck( mqttMessage.getId(), mqttMessage.getQos() );
+      }
+    }
+
+    @Override public void deliveryComplete( org.eclipse.paho.mqttv5.client.IMqttToken token ) {
+
+    }
+
+    @Override public void connectComplete( boolean reconnect, String serverURI ) {
+
+    }
+
+    @Override public void authPacketArrived( int reasonCode, MqttProperties properties ) {
+
+    }
+  }
+
+  /**
+   * A message whose acknowledgement is held back
+   */
+  protected static class PendingAck {
+    protected final int m_generation;
+    protected final int m_messageId;
+    protected final int m_qos;
+
+    /**
+     * Sequence number of the message's last row
+     */
+    protected final long m_lastSequence;
+
+    protected PendingAck( int generation, int messageId, int qos, long lastSequence ) {
+      m_generation = generation;
+      m_messageId = messageId;
+      m_qos = qos;
+      m_lastSequence = lastSequence;
+    }
+  }
+
+  /**
+   * Records the highest row sequence number written by a checkpoint step copy. A row is written once the step has
+   * processed it, which is not necessarily when its effect is durable - a Table Output writes its rows before the
+   * transaction holding them commits.
+   */
+  protected static class CheckpointListener extends RowAdapter {
+    protected final StepInterface m_step;
+    protected final String m_field;
+    protected volatile long m_seen;
+    protected RowMetaInterface m_rowMeta;
+    protected int m_index = -1;
+
+    protected CheckpointListener( StepInterface step, String field ) {
+      m_step = step;
+      m_field = field;
+    }
+
+    @Override public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) {
+      // only ever called from the checkpoint's own thread
+      if ( rowMeta != m_rowMeta ) {
+        m_rowMeta = rowMeta;
+        m_index = rowMeta.indexOfValue( m_field );
+      }
+      if ( m_index >= 0 && row[m_index] instanceof Long ) {
+        long sequence = (Long) row[m_index];
+        if ( sequence > m_seen ) {
+          m_seen = sequence;
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces a lost connection with a new one (and re-subscribes). Reschedules itself with a growing delay while
+   * connecting fails.
+   */
+  protected class ReconnectTask implements Runnable {
+
+    protected MQTTSubscriberMeta m_meta;
+    protected MQTTSubscriberData m_data;
+    protected final long m_started = System.currentTimeMillis();
+    protected int m_attempt;
+
+    public ReconnectTask( MQTTSubscriberMeta meta, MQTTSubscriberData data ) {
+      m_meta = meta;
+      m_data = data;
+    }
+
+    @Override public void run() {
+      synchronized ( MQTTSubscriber.this ) {
+        if ( m_data.m_shutdown || isStopped() ) {
+          return;
+        }
+        logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.AttemptingToReconnect" ) );
+        closeClient( m_data );
+        try {
+          configureConnection( m_meta, m_data );
+          m_data.m_reconnects.incrementAndGet();
+          logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.Reconnected",
+              Integer.toString( m_attempt ) ) );
+          return;
+        } catch ( KettleException e ) {
+          logError( e.getMessage(), e );
+          // don't leave a half configured client behind
+          closeClient( m_data );
+        }
+      }
+      scheduleReconnect( this );
+    }
+  }
 }
@@ -23,12 +23,26 @@
 package org.pentaho.di.trans.steps.pentahomqttsubscriber;
 
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.mqtt.ExponentialBackoff;
+import org.pentaho.mqtt.MPSCRingBuffer;
+import org.pentaho.mqtt.MqttConnectionRegistry;
+import org.pentaho.mqtt.OffHeapRingBuffer;
+import org.pentaho.mqtt.SpillJournal;
+import org.pentaho.mqtt.codec.PayloadCodec;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Data class for the MQTTSubscriber step
@@ -39,9 +53,138 @@ import java.util.Date;
 public class MQTTSubscriberData extends BaseStepData implements StepDataInterface {
 
   protected MqttClient m_client;
+
+  /**
+   * The MQTT 5 client, used instead of {@link #m_client} when the step speaks MQTT 5
+   */
+  protected MqttAsyncClient m_client5;
+
+  /**
+   * The shared connection subscribed through, and the listener it delivers to (null when the step has a connection
+   * of its own)
+   */
+  protected MqttConnectionRegistry.Connection m_connection;
+  protected MqttConnectionRegistry.MessageListener m_listener;
   protected RowMetaInterface m_outputRowMeta;
   protected ValueMetaInterface m_inputFieldMeta;
 
+  /**
+   * The payload codec, the fields it decodes and its options. Each thread that decodes has a decoder of its own -
+   * {@link #m_decoder} is the step thread's.
+   */
+  protected PayloadCodec m_codec;
+  protected RowMetaInterface m_decodedFields;
+  protected Map<String, String> m_codecOptions;
+  protected PayloadCodec.Decoder m_decoder;
+
+  /**
+   * Topic the publisher's schema is read from (null for none), and the schema if it does not match the decoded fields
+   */
+  protected String m_schemaTopic;
+  protected volatile String m_schemaMismatch;
+
   protected long m_executionDuration;
   protected Date m_startTime;
+
+  /**
+   * Rows decoded on the MQTT client thread, waiting to be passed on by the step thread
+   */
+  protected MPSCRingBuffer<Object[]> m_queue;
+  protected final AtomicLong m_queueFullWaits = new AtomicLong();
+
+  /**
+   * Messages (or rows of a batch) skipped because they could not be converted
+   */
+  protected final AtomicLong m_decodeFailures = new AtomicLong();
+
+  /**
+   * Raw messages waiting to be decoded by the step thread, used instead of {@link #m_queue} to keep them off the heap
+   */
+  protected OffHeapRingBuffer m_offHeapQueue;
+  protected final OffHeapRingBuffer.Record m_record = new OffHeapRingBuffer.Record();
+
+  /**
+   * Reused by the step thread for each run of rows taken out of the queue
+   */
+  protected final List<Object[]> m_drained = new ArrayList<>();
+
+  /**
+   * Messages received while the queue was above the spill threshold, waiting on disk (null when not spilling)
+   */
+  protected SpillJournal m_spill;
+  protected int m_spillThreshold;
+
+  /**
+   * Reused by the step thread for each run of messages read back from the spill
+   */
+  protected final List<SpillJournal.Message> m_replayed = new ArrayList<>();
+
+  /**
+   * The step thread, while it is parked waiting for messages (null otherwise)
+   */
+  protected volatile Thread m_waitingThread;
+  protected long m_maxIdleWaitNanos;
+
+  /**
+   * Framing of batched messages (null when each message is a single row)
+   */
+  protected String m_batchFraming;
+
+  /**
+   * Reconnect policy
+   */
+  protected ExponentialBackoff m_reconnectBackoff;
+  protected long m_reconnectMaxAttempts;
+  protected long m_reconnectMaxDuration;
+
+  /**
+   * Runs reconnect attempts (created when the connection is lost for the first time)
+   */
+  protected ScheduledExecutorService m_reconnectScheduler;
+  protected final AtomicLong m_reconnects = new AtomicLong();
+
+  /**
+   * Set once the step disconnects for good, so that no further reconnects are attempted
+   */
+  protected volatile boolean m_shutdown;
+
+  /**
+   * Set once the topics have been subscribed to in this run - a resumed persistent session keeps them from then on
+   */
+  protected boolean m_subscribed;
+
+  /**
+   * Manual acknowledgements - messages waiting for their rows to reach the checkpoint, in arrival order (null when the
+   * MQTT client acknowledges messages as soon as they have been queued)
+   */
+  protected Queue<MQTTSubscriber.PendingAck> m_pendingAcks;
+
+  /**
+   * Sequence number of the last row built - rows carry theirs in the ack sequence field
+   */
+  protected final AtomicLong m_ackSequence = new AtomicLong();
+  protected int m_ackSequenceIndex = -1;
+
+  /**
+   * Sequence number of the last row passed downstream - only messages up to it can be acknowledged without the
+   * checkpoint having seen them
+   */
+  protected volatile long m_lastPassedOn;
+
+  /**
+   * Watch the rows written by the checkpoint step(s)
+   */
+  protected List<MQTTSubscriber.CheckpointListener> m_checkpoints;
+
+  /**
+   * Incremented for every new client, so that messages received over a replaced connection are not acknowledged
+   */
+  protected final AtomicInteger m_connectionGeneration = new AtomicInteger();
+  protected long m_acksReleased;
+
+  /**
+   * Set when the step has stopped passing rows on - messages arriving from then on are dropped (and left
+   * unacknowledged when acknowledging manually)
+   */
+  protected volatile boolean m_closing;
 }
@@ -22,12 +22,13 @@
 
 package org.pentaho.di.trans.steps.pentahomqttsubscriber;
 
+import org.pentaho.di.core.CheckResult;
+import org.pentaho.di.core.CheckResultInterface;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.annotations.Step;
 import org.pentaho.di.core.database.DatabaseMeta;
 import org.pentaho.di.core.encryption.Encr;
 import org.pentaho.di.core.exception.KettleException;
-import org.pentaho.di.core.exception.KettlePluginException;
 import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.exception.KettleXMLException;
 import org.pentaho.di.core.row.RowMetaInterface;
@@ -35,6 +36,7 @@ import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.row.value.ValueMetaFactory;
 import org.pentaho.di.core.variables.VariableSpace;
 import org.pentaho.di.core.xml.XMLHandler;
+import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.repository.ObjectId;
 import org.pentaho.di.repository.Repository;
 import org.pentaho.di.trans.Trans;
@@ -44,7 +46,14 @@ import org.pentaho.di.trans.step.StepDataInterface;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.di.trans.steps.pentahomqttpublisher.MQTTPublisherMeta;
 import org.pentaho.metastore.api.IMetaStore;
+import org.pentaho.mqtt.BatchFraming;
+import org.pentaho.mqtt.ClientIdStrategy;
+import org.pentaho.mqtt.ClientPersistence;
+import org.pentaho.mqtt.MqttConnectionRegistry;
+import org.pentaho.mqtt.MqttVersion;
+import org.pentaho.mqtt.codec.PayloadCodecs;
 import org.w3c.dom.Node;
 
 import java.util.ArrayList;
@@ -66,7 +75,32 @@ import java.util.List;
 
   protected String m_messageType = ValueMetaFactory.getValueMetaName( ValueMetaInterface.TYPE_STRING );
 
+  private String m_codec = PayloadCodecs.VALUE;
+  private String m_codecOptions;
+  private String m_decodedFields;
+  private String m_schemaTopic;
+
   private String m_clientId;
+  private String m_clientIdStrategy = ClientIdStrategy.AS_IS;
+  private String m_persistence = ClientPersistence.MEMORY;
+  private String m_persistenceDirectory;
+  private boolean m_sharedConnection;
+  private String m_connectionIdleTimeout = "300"; // seconds
+  private String m_mqttVersion = "3.1.1";
+  private String m_receiveMaximum;
+  private String m_topicAliasMaximum;
+  private String m_userProperties;
+  private boolean m_persistentSession;
+  private String m_sessionExpiryInterval;
+  private boolean m_manualAcks;
+  private String m_ackCheckpointStep;
+  private String m_ackSequenceField = "mqtt_ack_sequence";
+  private boolean m_spillToDisk;
+  private String m_spillThreshold;
+  private String m_spillDirectory;
+  private String m_spillSegmentSize = "64";
+  private boolean m_offHeapQueue;
+  private String m_offHeapBufferSize = "64";
   private String m_timeout = "30"; // seconds according to the mqtt javadocs
   private String m_keepAliveInterval = "60"; // seconds according to the mqtt javadocs
   private String m_qos = "0";
@@ -88,6 +122,41 @@ import java.util.List;
    */
   private String m_executeForDuration = "0";
 
+  /**
+   * Maximum number of received messages buffered between the MQTT client and the step
+   */
+  private String m_queueCapacity = "10000";
+
+  /**
+   * Longest time (ms) the step waits for a message before re-checking its run state
+   */
+  private String m_maxIdleWait = "100";
+
+  /**
+   * Framing of batched messages to unpack into one row per payload (see {@link BatchFraming})
+   */
+  private String m_batchFraming = BatchFraming.NONE;
+
+  /**
+   * Whether to subscribe with $share/&lt;group&gt;/&lt;topic&gt; filters so the broker load-balances messages between
+   * step copies
+   */
+  private boolean m_sharedSubscription;
+
+  /**
+   * Share group name for shared subscriptions (the step name if empty)
+   */
+  private String m_shareGroup;
+
+  /**
+   * Reconnect policy: exponential backoff (with jitter) between the initial and max delay (ms), giving up after the max
+   * attempts or max duration (seconds). 0 means no limit
+   */
+  private String m_reconnectInitialDelay = "1000";
+  private String m_reconnectMaxDelay = "60000";
+  private String m_reconnectMaxAttempts = "0";
+  private String m_reconnectMaxDuration = "300";
+
   /**
    * @return Broker URL
    */
@@ -124,6 +193,62 @@ import java.util.List;
     return m_messageType;
   }
 
+  /**
+   * @return Id of the codec that turns payloads into fields (see {@link PayloadCodecs})
+   */
+  public String getCodec() {
+    return m_codec;
+  }
+
+  /**
+   * @param codec Id of the codec that turns payloads into fields
+   */
+  public void setCodec( String codec ) {
+    m_codec = codec;
+  }
+
+  /**
+   * @return Codec specific options, as comma separated key=value pairs
+   */
+  public String getCodecOptions() {
+    return m_codecOptions;
+  }
+
+  /**
+   * @param codecOptions Codec specific options, as comma separated key=value pairs
+   */
+  public void setCodecOptions( String codecOptions ) {
+    m_codecOptions = codecOptions;
+  }
+
+  /**
+   * @return Fields decoded from each payload, as comma separated name:Type pairs (ignored by the value codec)
+   */
+  public String getDecodedFields() {
+    return m_decodedFields;
+  }
+
+  /**
+   * @param decodedFields Fields decoded from each payload, as comma separated name:Type pairs
+   */
+  public void setDecodedFields( String decodedFields ) {
+    m_decodedFields = decodedFields;
+  }
+
+  /**
+   * @return Topic the publisher's schema is read from, to check the decoded fields against (empty for none)
+   */
+  public String getSchemaTopic() {
+    return m_schemaTopic;
+  }
+
+  /**
+   * @param schemaTopic Topic the publisher's schema is read from
+   */
+  public void setSchemaTopic( String schemaTopic ) {
+    m_schemaTopic = schemaTopic;
+  }
+
   /**
    * @return Client ID
    */
@@ -138,6 +263,288 @@ import java.util.List;
     m_clientId = clientId;
   }
 
+  /**
+   * @return How each step copy derives its client ID from the configured one (see {@link ClientIdStrategy})
+   */
+  public String getClientIdStrategy() {
+    return m_clientIdStrategy;
+  }
+
+  /**
+   * @param strategy How each step copy derives its client ID from the configured one
+   */
+  public void setClientIdStrategy( String strategy ) {
+    m_clientIdStrategy = strategy;
+  }
+
+  /**
+   * @return Where the client keeps in-flight messages (see {@link ClientPersistence})
+   */
+  public String getPersistence() {
+    return m_persistence;
+  }
+
+  /**
+   * @param persistence Where the client keeps in-flight messages
+   */
+  public void setPersistence( String persistence ) {
+    m_persistence = persistence;
+  }
+
+  /**
+   * @return Directory for file and journal persistence
+   */
+  public String getPersistenceDirectory() {
+    return m_persistenceDirectory;
+  }
+
+  /**
+   * @param directory Directory for file and journal persistence
+   */
+  public void setPersistenceDirectory( String directory ) {
+    m_persistenceDirectory = directory;
+  }
+
+  /**
+   * @return Whether to share the broker connection with other steps (see {@link MqttConnectionRegistry})
+   */
+  public boolean isSharedConnection() {
+    return m_sharedConnection;
+  }
+
+  /**
+   * @param sharedConnection Whether to share the broker connection with other steps
+   */
+  public void setSharedConnection( boolean sharedConnection ) {
+    m_sharedConnection = sharedConnection;
+  }
+
+  /**
+   * @return Seconds a shared connection stays open once no step uses it
+   */
+  public String getConnectionIdleTimeout() {
+    return m_connectionIdleTimeout;
+  }
+
+  /**
+   * @param connectionIdleTimeout Seconds a shared connection stays open once no step uses it
+   */
+  public void setConnectionIdleTimeout( String connectionIdleTimeout ) {
+    m_connectionIdleTimeout = connectionIdleTimeout;
+  }
+
+  /**
+   * @return MQTT protocol version (see {@link MqttVersion})
+   */
+  public String getMqttVersion() {
+    return m_mqttVersion;
+  }
+
+  /**
+   * @param mqttVersion MQTT protocol version
+   */
+  public void setMqttVersion( String mqttVersion ) {
+    m_mqttVersion = mqttVersion;
+  }
+
+  /**
+   * @return Most unacknowledged QoS 1 and 2 messages the broker may send at once (MQTT 5, empty for default)
+   */
+  public String getReceiveMaximum() {
+    return m_receiveMaximum;
+  }
+
+  /**
+   * @param receiveMaximum Most unacknowledged QoS 1 and 2 messages the broker may send at once
+   */
+  public void setReceiveMaximum( String receiveMaximum ) {
+    m_receiveMaximum = receiveMaximum;
+  }
+
+  /**
+   * @return Most topic aliases the broker may use towards the client (MQTT 5, empty for none)
+   */
+  public String getTopicAliasMaximum() {
+    return m_topicAliasMaximum;
+  }
+
+  /**
+   * @param topicAliasMaximum Most topic aliases the broker may use towards the client
+   */
+  public void setTopicAliasMaximum( String topicAliasMaximum ) {
+    m_topicAliasMaximum = topicAliasMaximum;
+  }
+
+  /**
+   * @return User properties sent when connecting, as comma separated key=value pairs (MQTT 5)
+   */
+  public String getUserProperties() {
+    return m_userProperties;
+  }
+
+  /**
+   * @param userProperties User properties sent when connecting
+   */
+  public void setUserProperties( String userProperties ) {
+    m_userProperties = userProperties;
+  }
+
+  /**
+   * @return Whether the broker keeps the session (subscriptions and undelivered QoS 1 and 2 messages) while the step
+   * is not connected. Needs a client persistence that outlives the JVM (see {@link ClientPersistence#isDurable})
+   */
+  public boolean isPersistentSession() {
+    return m_persistentSession;
+  }
+
+  /**
+   * @param persistentSession Whether the broker keeps the session while the step is not connected
+   */
+  public void setPersistentSession( boolean persistentSession ) {
+    m_persistentSession = persistentSession;
+  }
+
+  /**
+   * @return Seconds the broker keeps a persistent session after the step disconnects (MQTT 5, empty for no limit)
+   */
+  public String getSessionExpiryInterval() {
+    return m_sessionExpiryInterval;
+  }
+
+  /**
+   * @param sessionExpiryInterval Seconds the broker keeps a persistent session after the step disconnects
+   */
+  public void setSessionExpiryInterval( String sessionExpiryInterval ) {
+    m_sessionExpiryInterval = sessionExpiryInterval;
+  }
+
+  /**
+   * @return Whether QoS 1 and 2 messages are only acknowledged once their rows have reached the checkpoint step
+   */
+  public boolean isManualAcks() {
+    return m_manualAcks;
+  }
+
+  /**
+   * @param manualAcks Whether QoS 1 and 2 messages are only acknowledged once their rows have reached the checkpoint
+   *                   step
+   */
+  public void setManualAcks( boolean manualAcks ) {
+    m_manualAcks = manualAcks;
+  }
+
+  /**
+   * @return The step whose output acknowledges messages (required when acknowledging manually)
+   */
+  public String getAckCheckpointStep() {
+    return m_ackCheckpointStep;
+  }
+
+  /**
+   * @param ackCheckpointStep The step whose output acknowledges messages
+   */
+  public void setAckCheckpointStep( String ackCheckpointStep ) {
+    m_ackCheckpointStep = ackCheckpointStep;
+  }
+
+  /**
+   * @return Name of the output field that tracks rows to the checkpoint step when acknowledging manually
+   */
+  public String getAckSequenceField() {
+    return m_ackSequenceField;
+  }
+
+  /**
+   * @param ackSequenceField Name of the output field that tracks rows to the checkpoint step
+   */
+  public void setAckSequenceField( String ackSequenceField ) {
+    m_ackSequenceField = ackSequenceField;
+  }
+
+  /**
+   * @return Whether messages are spilled to disk when the queue fills up, instead of making the MQTT client wait
+   */
+  public boolean isSpillToDisk() {
+    return m_spillToDisk;
+  }
+
+  /**
+   * @param spillToDisk Whether messages are spilled to disk when the queue fills up
+   */
+  public void setSpillToDisk( boolean spillToDisk ) {
+    m_spillToDisk = spillToDisk;
+  }
+
+  /**
+   * @return Number of queued rows above which messages are spilled to disk (empty for the queue capacity)
+   */
+  public String getSpillThreshold() {
+    return m_spillThreshold;
+  }
+
+  /**
+   * @param spillThreshold Number of queued rows above which messages are spilled to disk
+   */
+  public void setSpillThreshold( String spillThreshold ) {
+    m_spillThreshold = spillThreshold;
+  }
+
+  /**
+   * @return Directory for the spill files (empty for the temporary directory)
+   */
+  public String getSpillDirectory() {
+    return m_spillDirectory;
+  }
+
+  /**
+   * @param spillDirectory Directory for the spill files
+   */
+  public void setSpillDirectory( String spillDirectory ) {
+    m_spillDirectory = spillDirectory;
+  }
+
+  /**
+   * @return Size of a spill file in megabytes
+   */
+  public String getSpillSegmentSize() {
+    return m_spillSegmentSize;
+  }
+
+  /**
+   * @param spillSegmentSize Size of a spill file in megabytes
+   */
+  public void setSpillSegmentSize( String spillSegmentSize ) {
+    m_spillSegmentSize = spillSegmentSize;
+  }
+
+  /**
+   * @return Whether received messages wait for the step in an off-heap buffer, as raw bytes, rather than as rows
+   */
+  public boolean isOffHeapQueue() {
+    return m_offHeapQueue;
+  }
+
+  /**
+   * @param offHeapQueue Whether received messages wait for the step in an off-heap buffer
+   */
+  public void setOffHeapQueue( boolean offHeapQueue ) {
+    m_offHeapQueue = offHeapQueue;
+  }
+
+  /**
+   * @return Size of the off-heap buffer in megabytes
+   */
+  public String getOffHeapBufferSize() {
+    return m_offHeapBufferSize;
+  }
+
+  /**
+   * @param offHeapBufferSize Size of the off-heap buffer in megabytes
+   */
+  public void setOffHeapBufferSize( String offHeapBufferSize ) {
+    m_offHeapBufferSize = offHeapBufferSize;
+  }
+
   /**
    * @return Connection m_timeout
    */
@@ -292,6 +699,133 @@ import java.util.List;
     return m_executeForDuration;
   }
 
+  /**
+   * @param capacity the maximum number of received messages to buffer before the MQTT client has to wait for the step
+   */
+  public void setQueueCapacity( String capacity ) {
+    m_queueCapacity = capacity;
+  }
+
+  /**
+   * @return the maximum number of received messages to buffer before the MQTT client has to wait for the step
+   */
+  public String getQueueCapacity() {
+    return m_queueCapacity;
+  }
+
+  /**
+   * @param wait the longest time (in milliseconds) to wait for a message while idle
+   */
+  public void setMaxIdleWait( String wait ) {
+    m_maxIdleWait = wait;
+  }
+
+  /**
+   * @return the longest time (in milliseconds) to wait for a message while idle
+   */
+  public String getMaxIdleWait() {
+    return m_maxIdleWait;
+  }
+
+  /**
+   * @param framing the framing of batched messages, or "none" if each message is a single row
+   */
+  public void setBatchFraming( String framing ) {
+    m_batchFraming = framing;
+  }
+
+  /**
+   * @return the framing of batched messages, or "none" if each message is a single row
+   */
+  public String getBatchFraming() {
+    return m_batchFraming;
+  }
+
+  /**
+   * @param shared true to use shared subscriptions, so that each message goes to just one of the subscribers in the
+   *               share group
+   */
+  public void setSharedSubscription( boolean shared ) {
+    m_sharedSubscription = shared;
+  }
+
+  /**
+   * @return true if shared subscriptions are used
+   */
+  public boolean isSharedSubscription() {
+    return m_sharedSubscription;
+  }
+
+  /**
+   * @param group the share group name (the step name is used if empty)
+   */
+  public void setShareGroup( String group ) {
+    m_shareGroup = group;
+  }
+
+  /**
+   * @return the share group name
+   */
+  public String getShareGroup() {
+    return m_shareGroup;
+  }
+
+  /**
+   * @param reconnectInitialDelay the delay (in milliseconds) before the first reconnect attempt
+   */
+  public void setReconnectInitialDelay( String reconnectInitialDelay ) {
+    m_reconnectInitialDelay = reconnectInitialDelay;
+  }
+
+  /**
+   * @return the delay (in milliseconds) before the first reconnect attempt
+   */
+  public String getReconnectInitialDelay() {
+    return m_reconnectInitialDelay;
+  }
+
+  /**
+   * @param reconnectMaxDelay the longest delay (in milliseconds) between reconnect attempts
+   */
+  public void setReconnectMaxDelay( String reconnectMaxDelay ) {
+    m_reconnectMaxDelay = reconnectMaxDelay;
+  }
+
+  /**
+   * @return the longest delay (in milliseconds) between reconnect attempts
+   */
+  public String getReconnectMaxDelay() {
+    return m_reconnectMaxDelay;
+  }
+
+  /**
+   * @param reconnectMaxAttempts the number of reconnect attempts before giving up (0 for no limit)
+   */
+  public void setReconnectMaxAttempts( String reconnectMaxAttempts ) {
+    m_reconnectMaxAttempts = reconnectMaxAttempts;
+  }
+
+  /**
+   * @return the number of reconnect attempts before giving up (0 for no limit)
+   */
+  public String getReconnectMaxAttempts() {
+    return m_reconnectMaxAttempts;
+  }
+
+  /**
+   * @param reconnectMaxDuration the number of seconds to keep trying to reconnect before giving up (0 for no limit)
+   */
+  public void setReconnectMaxDuration( String reconnectMaxDuration ) {
+    m_reconnectMaxDuration = reconnectMaxDuration;
+  }
+
+  /**
+   * @return the number of seconds to keep trying to reconnect before giving up (0 for no limit)
+   */
+  public String getReconnectMaxDuration() {
+    return m_reconnectMaxDuration;
+  }
+
   /**
    * @param allow true to allow object messages to be deserialized off of the wire
    */
@@ -310,6 +844,49 @@ import java.util.List;
 
   }
 
+  @Override
+  public void check( List<CheckResultInterface> remarks, TransMeta transMeta, StepMeta stepMeta, RowMetaInterface prev,
+      String[] input, String[] output, RowMetaInterface info, VariableSpace space, Repository repository,
+      IMetaStore metaStore ) {
+
+    if ( !ClientPersistence.isKnown( m_persistence ) ) {
+      remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.InvalidPersistence", m_persistence ),
+          stepMeta ) );
+    } else if ( m_persistentSession && !ClientPersistence.isDurable( m_persistence ) ) {
+      remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR, BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.PersistentSessionNeedsDurablePersistence" ),
+          stepMeta ) );
+    }
+
+    if ( m_manualAcks && Const.isEmpty( m_ackCheckpointStep ) ) {
+      remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.NoAckCheckpointStep" ), stepMeta ) );
+    }
+    if ( m_sharedConnection ) {
+      if ( MqttVersion.isV5( m_mqttVersion ) ) {
+        remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+            BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.SharedConnectionNeedsV3" ),
+            stepMeta ) );
+      }
+      if ( m_manualAcks ) {
+        remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+            BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.ManualAcksNeedOwnConnection" ),
+            stepMeta ) );
+      }
+      if ( m_persistentSession ) {
+        remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR, BaseMessages
+            .getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.PersistentSessionNeedsOwnConnection" ),
+            stepMeta ) );
+      }
+      if ( m_sharedSubscription ) {
+        remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR, BaseMessages
+            .getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.SharedSubscriptionNeedsOwnConnection" ),
+            stepMeta ) );
+      }
+    }
+  }
+
   @Override
   public StepInterface getStep( StepMeta stepMeta, StepDataInterface stepDataInterface, int i, TransMeta transMeta,
       Trans trans ) {
@@ -336,10 +913,88 @@ import java.util.List;
     if ( Const.isEmpty( m_messageType ) ) {
       m_messageType = ValueMetaFactory.getValueMetaName( ValueMetaInterface.TYPE_STRING );
     }
+    String codec = XMLHandler.getTagValue( stepnode, "CODEC" );
+    if ( !Const.isEmpty( codec ) ) {
+      m_codec = codec;
+    }
+    m_codecOptions = XMLHandler.getTagValue( stepnode, "CODEC_OPTIONS" );
+    m_decodedFields = XMLHandler.getTagValue( stepnode, "DECODED_FIELDS" );
+    m_schemaTopic = XMLHandler.getTagValue( stepnode, "SCHEMA_TOPIC" );
     m_clientId = XMLHandler.getTagValue( stepnode, "CLIENT_ID" );
+    String clientIdStrategy = XMLHandler.getTagValue( stepnode, "CLIENT_ID_STRATEGY" );
+    if ( !Const.isEmpty( clientIdStrategy ) ) {
+      m_clientIdStrategy = clientIdStrategy;
+    }
+    String persistence = XMLHandler.getTagValue( stepnode, "PERSISTENCE" );
+    if ( !Const.isEmpty( persistence ) ) {
+      m_persistence = persistence;
+    }
+    m_persistenceDirectory = XMLHandler.getTagValue( stepnode, "PERSISTENCE_DIRECTORY" );
+    m_sharedConnection = Boolean.parseBoolean( XMLHandler.getTagValue( stepnode, "SHARED_CONNECTION" ) );
+    String idleTimeout = XMLHandler.getTagValue( stepnode, "CONNECTION_IDLE_TIMEOUT" );
+    if ( !Const.isEmpty( idleTimeout ) ) {
+      m_connectionIdleTimeout = idleTimeout;
+    }
+    String mqttVersion = XMLHandler.getTagValue( stepnode, "MQTT_VERSION" );
+    if ( !Const.isEmpty( mqttVersion ) ) {
+      m_mqttVersion = mqttVersion;
+    }
+    m_receiveMaximum = XMLHandler.getTagValue( stepnode, "RECEIVE_MAXIMUM" );
+    m_topicAliasMaximum = XMLHandler.getTagValue( stepnode, "TOPIC_ALIAS_MAXIMUM" );
+    m_userProperties = XMLHandler.getTagValue( stepnode, "USER_PROPERTIES" );
+    m_persistentSession = Boolean.parseBoolean( XMLHandler.getTagValue( stepnode, "PERSISTENT_SESSION" ) );
+    m_sessionExpiryInterval = XMLHandler.getTagValue( stepnode, "SESSION_EXPIRY_INTERVAL" );
+    m_manualAcks = Boolean.parseBoolean( XMLHandler.getTagValue( stepnode, "MANUAL_ACKS" ) );
+    m_ackCheckpointStep = XMLHandler.getTagValue( stepnode, "ACK_CHECKPOINT_STEP" );
+    String ackSequenceField = XMLHandler.getTagValue( stepnode, "ACK_SEQUENCE_FIELD" );
+    if ( !Const.isEmpty( ackSequenceField ) ) {
+      m_ackSequenceField = ackSequenceField;
+    }
+    m_spillToDisk = Boolean.parseBoolean( XMLHandler.getTagValue( stepnode, "SPILL_TO_DISK" ) );
+    m_spillThreshold = XMLHandler.getTagValue( stepnode, "SPILL_THRESHOLD" );
+    m_spillDirectory = XMLHandler.getTagValue( stepnode, "SPILL_DIRECTORY" );
+    String spillSegmentSize = XMLHandler.getTagValue( stepnode, "SPILL_SEGMENT_SIZE" );
+    if ( !Const.isEmpty( spillSegmentSize ) ) {
+      m_spillSegmentSize = spillSegmentSize;
+    }
+    m_offHeapQueue = Boolean.parseBoolean( XMLHandler.getTagValue( stepnode, "OFF_HEAP_QUEUE" ) );
+    String offHeapBufferSize = XMLHandler.getTagValue( stepnode, "OFF_HEAP_BUFFER_SIZE" );
+    if ( !Const.isEmpty( offHeapBufferSize ) ) {
+      m_offHeapBufferSize = offHeapBufferSize;
+    }
     m_timeout = XMLHandler.getTagValue( stepnode, "TIMEOUT" );
     m_keepAliveInterval = XMLHandler.getTagValue( stepnode, "KEEP_ALIVE" );
     m_executeForDuration = XMLHandler.getTagValue( stepnode, "EXECUTE_FOR_DURATION" );
+    String queueCapacity = XMLHandler.getTagValue( stepnode, "QUEUE_CAPACITY" );
+    if ( !Const.isEmpty( queueCapacity ) ) {
+      m_queueCapacity = queueCapacity;
+    }
+    String maxIdleWait = XMLHandler.getTagValue( stepnode, "MAX_IDLE_WAIT" );
+    if ( !Const.isEmpty( maxIdleWait ) ) {
+      m_maxIdleWait = maxIdleWait;
+    }
+    String batchFraming = XMLHandler.getTagValue( stepnode, "BATCH_FRAMING" );
+    if ( !Const.isEmpty( batchFraming ) ) {
+      m_batchFraming = batchFraming;
+    }
+    m_sharedSubscription = Boolean.parseBoolean( XMLHandler.getTagValue( stepnode, "SHARED_SUBSCRIPTION" ) );
+    m_shareGroup = XMLHandler.getTagValue( stepnode, "SHARE_GROUP" );
+    String reconnectInitialDelay = XMLHandler.getTagValue( stepnode, "RECONNECT_INITIAL_DELAY" );
+    if ( !Const.isEmpty( reconnectInitialDelay ) ) {
+      m_reconnectInitialDelay = reconnectInitialDelay;
+    }
+    String reconnectMaxDelay = XMLHandler.getTagValue( stepnode, "RECONNECT_MAX_DELAY" );
+    if ( !Const.isEmpty( reconnectMaxDelay ) ) {
+      m_reconnectMaxDelay = reconnectMaxDelay;
+    }
+    String reconnectMaxAttempts = XMLHandler.getTagValue( stepnode, "RECONNECT_MAX_ATTEMPTS" );
+    if ( !Const.isEmpty( reconnectMaxAttempts ) ) {
+      m_reconnectMaxAttempts = reconnectMaxAttempts;
+    }
+    String reconnectMaxDuration = XMLHandler.getTagValue( stepnode, "RECONNECT_MAX_DURATION" );
+    if ( !Const.isEmpty( reconnectMaxDuration ) ) {
+      m_reconnectMaxDuration = reconnectMaxDuration;
+    }
     m_qos = XMLHandler.getTagValue( stepnode, "QOS" );
     m_requiresAuth = Boolean.parseBoolean( XMLHandler.getTagValue( stepnode, "REQUIRES_AUTH" ) );
 
@@ -381,9 +1036,77 @@ import java.util.List;
       retval.append( "    " ).append( XMLHandler.addTagValue( "MESSAGE_TYPE", m_messageType ) );
     }
 
+    if ( !Const.isEmpty( m_codec ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "CODEC", m_codec ) );
+    }
+
+    if ( !Const.isEmpty( m_codecOptions ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "CODEC_OPTIONS", m_codecOptions ) );
+    }
+
+    if ( !Const.isEmpty( m_decodedFields ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "DECODED_FIELDS", m_decodedFields ) );
+    }
+
+    if ( !Const.isEmpty( m_schemaTopic ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "SCHEMA_TOPIC", m_schemaTopic ) );
+    }
+
     if ( !Const.isEmpty( m_clientId ) ) {
       retval.append( "    " ).append( XMLHandler.addTagValue( "CLIENT_ID", m_clientId ) );
     }
+    if ( !Const.isEmpty( m_clientIdStrategy ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "CLIENT_ID_STRATEGY", m_clientIdStrategy ) );
+    }
+    if ( !Const.isEmpty( m_persistence ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "PERSISTENCE", m_persistence ) );
+    }
+    if ( !Const.isEmpty( m_persistenceDirectory ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "PERSISTENCE_DIRECTORY", m_persistenceDirectory ) );
+    }
+    retval.append( "    " )
+        .append( XMLHandler.addTagValue( "SHARED_CONNECTION", Boolean.toString( m_sharedConnection ) ) );
+    if ( !Const.isEmpty( m_connectionIdleTimeout ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "CONNECTION_IDLE_TIMEOUT", m_connectionIdleTimeout ) );
+    }
+    if ( !Const.isEmpty( m_mqttVersion ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "MQTT_VERSION", m_mqttVersion ) );
+    }
+    if ( !Const.isEmpty( m_receiveMaximum ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "RECEIVE_MAXIMUM", m_receiveMaximum ) );
+    }
+    if ( !Const.isEmpty( m_topicAliasMaximum ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "TOPIC_ALIAS_MAXIMUM", m_topicAliasMaximum ) );
+    }
+    if ( !Const.isEmpty( m_userProperties ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "USER_PROPERTIES", m_userProperties ) );
+    }
+    retval.append( "    " )
+        .append( XMLHandler.addTagValue( "PERSISTENT_SESSION", Boolean.toString( m_persistentSession ) ) );
+    if ( !Const.isEmpty( m_sessionExpiryInterval ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "SESSION_EXPIRY_INTERVAL", m_sessionExpiryInterval ) );
+    }
+    retval.append( "    " ).append( XMLHandler.addTagValue( "MANUAL_ACKS", Boolean.toString( m_manualAcks ) ) );
+    if ( !Const.isEmpty( m_ackCheckpointStep ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "ACK_CHECKPOINT_STEP", m_ackCheckpointStep ) );
+    }
+    if ( !Const.isEmpty( m_ackSequenceField ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "ACK_SEQUENCE_FIELD", m_ackSequenceField ) );
+    }
+    retval.append( "    " ).append( XMLHandler.addTagValue( "SPILL_TO_DISK", Boolean.toString( m_spillToDisk ) ) );
+    if ( !Const.isEmpty( m_spillThreshold ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "SPILL_THRESHOLD", m_spillThreshold ) );
+    }
+    if ( !Const.isEmpty( m_spillDirectory ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "SPILL_DIRECTORY", m_spillDirectory ) );
+    }
+    if ( !Const.isEmpty( m_spillSegmentSize ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "SPILL_SEGMENT_SIZE", m_spillSegmentSize ) );
+    }
+    retval.append( "    " ).append( XMLHandler.addTagValue( "OFF_HEAP_QUEUE", Boolean.toString( m_offHeapQueue ) ) );
+    if ( !Const.isEmpty( m_offHeapBufferSize ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "OFF_HEAP_BUFFER_SIZE", m_offHeapBufferSize ) );
+    }
     if ( !Const.isEmpty( m_timeout ) ) {
       retval.append( "    " ).append( XMLHandler.addTagValue( "TIMEOUT", m_timeout ) );
     }
@@ -396,6 +1119,32 @@ import java.util.List;
     if ( !Const.isEmpty( m_executeForDuration ) ) {
       retval.append( "    " ).append( XMLHandler.addTagValue( "EXECUTE_FOR_DURATION", m_executeForDuration ) );
     }
+    if ( !Const.isEmpty( m_queueCapacity ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "QUEUE_CAPACITY", m_queueCapacity ) );
+    }
+    if ( !Const.isEmpty( m_maxIdleWait ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "MAX_IDLE_WAIT", m_maxIdleWait ) );
+    }
+    if ( !Const.isEmpty( m_batchFraming ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "BATCH_FRAMING", m_batchFraming ) );
+    }
+    retval.append( "    " )
+        .append( XMLHandler.addTagValue( "SHARED_SUBSCRIPTION", Boolean.toString( m_sharedSubscription ) ) );
+    if ( !Const.isEmpty( m_shareGroup ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "SHARE_GROUP", m_shareGroup ) );
+    }
+    if ( !Const.isEmpty( m_reconnectInitialDelay ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "RECONNECT_INITIAL_DELAY", m_reconnectInitialDelay ) );
+    }
+    if ( !Const.isEmpty( m_reconnectMaxDelay ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "RECONNECT_MAX_DELAY", m_reconnectMaxDelay ) );
+    }
+    if ( !Const.isEmpty( m_reconnectMaxAttempts ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "RECONNECT_MAX_ATTEMPTS", m_reconnectMaxAttempts ) );
+    }
+    if ( !Const.isEmpty( m_reconnectMaxDuration ) ) {
+      retval.append( "    " ).append( XMLHandler.addTagValue( "RECONNECT_MAX_DURATION", m_reconnectMaxDuration ) );
+    }
     retval.append( "    " ).append( XMLHandler.addTagValue( "REQUIRES_AUTH", Boolean.toString( m_requiresAuth ) ) );
     if ( !Const.isEmpty( m_username ) ) {
       retval.append( "    " ).append( XMLHandler.addTagValue( "USERNAME", m_username ) );
@@ -444,10 +1193,88 @@ import java.util.List;
     if ( Const.isEmpty( m_messageType ) ) {
       m_messageType = ValueMetaFactory.getValueMetaName( ValueMetaInterface.TYPE_STRING );
     }
+    String codec = rep.getStepAttributeString( stepId, "CODEC" );
+    if ( !Const.isEmpty( codec ) ) {
+      m_codec = codec;
+    }
+    m_codecOptions = rep.getStepAttributeString( stepId, "CODEC_OPTIONS" );
+    m_decodedFields = rep.getStepAttributeString( stepId, "DECODED_FIELDS" );
+    m_schemaTopic = rep.getStepAttributeString( stepId, "SCHEMA_TOPIC" );
     m_clientId = rep.getStepAttributeString( stepId, "CLIENT_ID" );
+    String clientIdStrategy = rep.getStepAttributeString( stepId, "CLIENT_ID_STRATEGY" );
+    if ( !Const.isEmpty( clientIdStrategy ) ) {
+      m_clientIdStrategy = clientIdStrategy;
+    }
+    String persistence = rep.getStepAttributeString( stepId, "PERSISTENCE" );
+    if ( !Const.isEmpty( persistence ) ) {
+      m_persistence = persistence;
+    }
+    m_persistenceDirectory = rep.getStepAttributeString( stepId, "PERSISTENCE_DIRECTORY" );
+    m_sharedConnection = Boolean.parseBoolean( rep.getStepAttributeString( stepId, "SHARED_CONNECTION" ) );
+    String idleTimeout = rep.getStepAttributeString( stepId, "CONNECTION_IDLE_TIMEOUT" );
+    if ( !Const.isEmpty( idleTimeout ) ) {
+      m_connectionIdleTimeout = idleTimeout;
+    }
+    String mqttVersion = rep.getStepAttributeString( stepId, "MQTT_VERSION" );
+    if ( !Const.isEmpty( mqttVersion ) ) {
+      m_mqttVersion = mqttVersion;
+    }
+    m_receiveMaximum = rep.getStepAttributeString( stepId, "RECEIVE_MAXIMUM" );
+    m_topicAliasMaximum = rep.getStepAttributeString( stepId, "TOPIC_ALIAS_MAXIMUM" );
+    m_userProperties = rep.getStepAttributeString( stepId, "USER_PROPERTIES" );
+    m_persistentSession = Boolean.parseBoolean( rep.getStepAttributeString( stepId, "PERSISTENT_SESSION" ) );
+    m_sessionExpiryInterval = rep.getStepAttributeString( stepId, "SESSION_EXPIRY_INTERVAL" );
+    m_manualAcks = Boolean.parseBoolean( rep.getStepAttributeString( stepId, "MANUAL_ACKS" ) );
+    m_ackCheckpointStep = rep.getStepAttributeString( stepId, "ACK_CHECKPOINT_STEP" );
+    String ackSequenceField = rep.getStepAttributeString( stepId, "ACK_SEQUENCE_FIELD" );
+    if ( !Const.isEmpty( ackSequenceField ) ) {
+      m_ackSequenceField = ackSequenceField;
+    }
+    m_spillToDisk = Boolean.parseBoolean( rep.getStepAttributeString( stepId, "SPILL_TO_DISK" ) );
+    m_spillThreshold = rep.getStepAttributeString( stepId, "SPILL_THRESHOLD" );
+    m_spillDirectory = rep.getStepAttributeString( stepId, "SPILL_DIRECTORY" );
+    String spillSegmentSize = rep.getStepAttributeString( stepId, "SPILL_SEGMENT_SIZE" );
+    if ( !Const.isEmpty( spillSegmentSize ) ) {
+      m_spillSegmentSize = spillSegmentSize;
+    }
+    m_offHeapQueue = Boolean.parseBoolean( rep.getStepAttributeString( stepId, "OFF_HEAP_QUEUE" ) );
+    String offHeapBufferSize = rep.getStepAttributeString( stepId, "OFF_HEAP_BUFFER_SIZE" );
+    if ( !Const.isEmpty( offHeapBufferSize ) ) {
+      m_offHeapBufferSize = offHeapBufferSize;
+    }
     m_timeout = rep.getStepAttributeString( stepId, "TIMEOUT" );
     m_keepAliveInterval = rep.getStepAttributeString( stepId, "KEEP_ALIVE" );
     m_executeForDuration = rep.getStepAttributeString( stepId, "EXECUTE_FOR_DURATION" );
+    String queueCapacity = rep.getStepAttributeString( stepId, "QUEUE_CAPACITY" );
+    if ( !Const.isEmpty( queueCapacity ) ) {
+      m_queueCapacity = queueCapacity;
+    }
+    String maxIdleWait = rep.getStepAttributeString( stepId, "MAX_IDLE_WAIT" );
+    if ( !Const.isEmpty( maxIdleWait ) ) {
+      m_maxIdleWait = maxIdleWait;
+    }
+    String batchFraming = rep.getStepAttributeString( stepId, "BATCH_FRAMING" );
+    if ( !Const.isEmpty( batchFraming ) ) {
+      m_batchFraming = batchFraming;
+    }
+    m_sharedSubscription = Boolean.parseBoolean( rep.getStepAttributeString( stepId, "SHARED_SUBSCRIPTION" ) );
+    m_shareGroup = rep.getStepAttributeString( stepId, "SHARE_GROUP" );
+    String reconnectInitialDelay = rep.getStepAttributeString( stepId, "RECONNECT_INITIAL_DELAY" );
+    if ( !Const.isEmpty( reconnectInitialDelay ) ) {
+      m_reconnectInitialDelay = reconnectInitialDelay;
+    }
+    String reconnectMaxDelay = rep.getStepAttributeString( stepId, "RECONNECT_MAX_DELAY" );
+    if ( !Const.isEmpty( reconnectMaxDelay ) ) {
+      m_reconnectMaxDelay = reconnectMaxDelay;
+    }
+    String reconnectMaxAttempts = rep.getStepAttributeString( stepId, "RECONNECT_MAX_ATTEMPTS" );
+    if ( !Const.isEmpty( reconnectMaxAttempts ) ) {
+      m_reconnectMaxAttempts = reconnectMaxAttempts;
+    }
+    String reconnectMaxDuration = rep.getStepAttributeString( stepId, "RECONNECT_MAX_DURATION" );
+    if ( !Const.isEmpty( reconnectMaxDuration ) ) {
+      m_reconnectMaxDuration = reconnectMaxDuration;
+    }
     m_qos = rep.getStepAttributeString( stepId, "QOS" );
     m_requiresAuth = Boolean.parseBoolean( rep.getStepAttributeString( stepId, "REQUIRES_AUTH" ) );
     m_username = rep.getStepAttributeString( stepId, "USERNAME" );
@@ -475,9 +1302,71 @@ import java.util.List;
     if ( !Const.isEmpty( m_messageType ) ) {
       rep.saveStepAttribute( transformationId, stepId, "MESSAGE_TYPE", m_messageType );
     }
+    if ( !Const.isEmpty( m_codec ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "CODEC", m_codec );
+    }
+    if ( !Const.isEmpty( m_codecOptions ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "CODEC_OPTIONS", m_codecOptions );
+    }
+    if ( !Const.isEmpty( m_decodedFields ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "DECODED_FIELDS", m_decodedFields );
+    }
+    if ( !Const.isEmpty( m_schemaTopic ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "SCHEMA_TOPIC", m_schemaTopic );
+    }
     if ( !Const.isEmpty( m_clientId ) ) {
       rep.saveStepAttribute( transformationId, stepId, "CLIENT_ID", m_clientId );
     }
+    if ( !Const.isEmpty( m_clientIdStrategy ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "CLIENT_ID_STRATEGY", m_clientIdStrategy );
+    }
+    if ( !Const.isEmpty( m_persistence ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "PERSISTENCE", m_persistence );
+    }
+    if ( !Const.isEmpty( m_persistenceDirectory ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "PERSISTENCE_DIRECTORY", m_persistenceDirectory );
+    }
+    rep.saveStepAttribute( transformationId, stepId, "SHARED_CONNECTION", Boolean.toString( m_sharedConnection ) );
+    if ( !Const.isEmpty( m_connectionIdleTimeout ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "CONNECTION_IDLE_TIMEOUT", m_connectionIdleTimeout );
+    }
+    if ( !Const.isEmpty( m_mqttVersion ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "MQTT_VERSION", m_mqttVersion );
+    }
+    if ( !Const.isEmpty( m_receiveMaximum ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "RECEIVE_MAXIMUM", m_receiveMaximum );
+    }
+    if ( !Const.isEmpty( m_topicAliasMaximum ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "TOPIC_ALIAS_MAXIMUM", m_topicAliasMaximum );
+    }
+    if ( !Const.isEmpty( m_userProperties ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "USER_PROPERTIES", m_userProperties );
+    }
+    rep.saveStepAttribute( transformationId, stepId, "PERSISTENT_SESSION", Boolean.toString( m_persistentSession ) );
+    if ( !Const.isEmpty( m_sessionExpiryInterval ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "SESSION_EXPIRY_INTERVAL", m_sessionExpiryInterval );
+    }
+    rep.saveStepAttribute( transformationId, stepId, "MANUAL_ACKS", Boolean.toString( m_manualAcks ) );
+    if ( !Const.isEmpty( m_ackCheckpointStep ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "ACK_CHECKPOINT_STEP", m_ackCheckpointStep );
+    }
+    if ( !Const.isEmpty( m_ackSequenceField ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "ACK_SEQUENCE_FIELD", m_ackSequenceField );
+    }
+    rep.saveStepAttribute( transformationId, stepId, "SPILL_TO_DISK", Boolean.toString( m_spillToDisk ) );
+    if ( !Const.isEmpty( m_spillThreshold ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "SPILL_THRESHOLD", m_spillThreshold );
+    }
+    if ( !Const.isEmpty( m_spillDirectory ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "SPILL_DIRECTORY", m_spillDirectory );
+    }
+    if ( !Const.isEmpty( m_spillSegmentSize ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "SPILL_SEGMENT_SIZE", m_spillSegmentSize );
+    }
+    rep.saveStepAttribute( transformationId, stepId, "OFF_HEAP_QUEUE", Boolean.toString( m_offHeapQueue ) );
+    if ( !Const.isEmpty( m_offHeapBufferSize ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "OFF_HEAP_BUFFER_SIZE", m_offHeapBufferSize );
+    }
     if ( !Const.isEmpty( m_timeout ) ) {
       rep.saveStepAttribute( transformationId, stepId, "TIMEOUT", m_timeout );
     }
@@ -487,6 +1376,31 @@ import java.util.List;
     if ( !Const.isEmpty( m_executeForDuration ) ) {
       rep.saveStepAttribute( transformationId, stepId, "EXECUTE_FOR_DURATION", m_executeForDuration );
     }
+    if ( !Const.isEmpty( m_queueCapacity ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "QUEUE_CAPACITY", m_queueCapacity );
+    }
+    if ( !Const.isEmpty( m_maxIdleWait ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "MAX_IDLE_WAIT", m_maxIdleWait );
+    }
+    if ( !Const.isEmpty( m_batchFraming ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "BATCH_FRAMING", m_batchFraming );
+    }
+    rep.saveStepAttribute( transformationId, stepId, "SHARED_SUBSCRIPTION", Boolean.toString( m_sharedSubscription ) );
+    if ( !Const.isEmpty( m_shareGroup ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "SHARE_GROUP", m_shareGroup );
+    }
+    if ( !Const.isEmpty( m_reconnectInitialDelay ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "RECONNECT_INITIAL_DELAY", m_reconnectInitialDelay );
+    }
+    if ( !Const.isEmpty( m_reconnectMaxDelay ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "RECONNECT_MAX_DELAY", m_reconnectMaxDelay );
+    }
+    if ( !Const.isEmpty( m_reconnectMaxAttempts ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "RECONNECT_MAX_ATTEMPTS", m_reconnectMaxAttempts );
+    }
+    if ( !Const.isEmpty( m_reconnectMaxDuration ) ) {
+      rep.saveStepAttribute( transformationId, stepId, "RECONNECT_MAX_DURATION", m_reconnectMaxDuration );
+    }
     if ( !Const.isEmpty( m_qos ) ) {
       rep.saveStepAttribute( transformationId, stepId, "QOS", m_qos );
     }
@@ -522,9 +1436,16 @@ import java.util.List;
     rowMeta.clear();
     try {
       rowMeta.addValueMeta( ValueMetaFactory.createValueMeta( "Topic", ValueMetaInterface.TYPE_STRING ) );
-      rowMeta.addValueMeta(
-          ValueMetaFactory.createValueMeta( "Message", ValueMetaFactory.getIdForValueMeta( getMessageType() ) ) );
-    } catch ( KettlePluginException e ) {
+      if ( PayloadCodecs.isValue( m_codec ) ) {
+        rowMeta.addValueMeta(
+            ValueMetaFactory.createValueMeta( "Message", ValueMetaFactory.getIdForValueMeta( getMessageType() ) ) );
+      } else {
+        rowMeta.addRowMeta( PayloadCodecs.parseFields( space.environmentSubstitute( m_decodedFields ) ) );
+      }
+      if ( m_manualAcks && !Const.isEmpty( m_ackSequenceField ) ) {
+        rowMeta.addValueMeta( ValueMetaFactory.createValueMeta( m_ackSequenceField, ValueMetaInterface.TYPE_INTEGER ) );
+      }
+    } catch ( KettleException e ) {
       throw new KettleStepException( e );
     }
   }
@@ -57,6 +57,11 @@ import org.pentaho.di.trans.steps.pentahomqttpublisher.MQTTPublisherMeta;
 import org.pentaho.di.ui.core.dialog.ErrorDialog;
 import org.pentaho.di.ui.core.widget.TextVar;
 import org.pentaho.di.ui.trans.step.BaseStepDialog;
+import org.pentaho.mqtt.BatchFraming;
+import org.pentaho.mqtt.ClientIdStrategy;
+import org.pentaho.mqtt.ClientPersistence;
+import org.pentaho.mqtt.MqttVersion;
+import org.pentaho.mqtt.codec.PayloadCodecs;
 
 /**
  * UI for the MQTT Client step
@@ -69,6 +74,10 @@ public class MQTTPublisherDialog extends BaseStepDialog implements StepDialogInt
   private MQTTPublisherMeta producerMeta;
 
   private CCombo m_wInputField;
+  private CCombo m_wCodec;
+  private TextVar m_wCodecFields;
+  private TextVar m_wCodecOptions;
+  private TextVar m_wSchemaTopic;
 
   private CTabFolder m_wTabFolder;
 
@@ -77,8 +86,18 @@ public class MQTTPublisherDialog extends BaseStepDialog implements StepDialogInt
   private Label m_wlTopicName;
   private CCombo m_wTopicName;
   private TextVar m_wClientID;
+  private CCombo m_wClientIdStrategy;
+  private CCombo m_wPersistence;
+  private Label m_wlPersistenceDirectory;
+  private TextVar m_wPersistenceDirectory;
+  private Button m_wSharedConnection;
+  private Label m_wlConnectionIdleTimeout;
+  private TextVar m_wConnectionIdleTimeout;
   private TextVar m_wTimeout;
   private TextVar m_wQOS;
+  private Button m_wAsyncPublish;
+  private Label m_wlMaxInflight;
+  private TextVar m_wMaxInflight;
 
   private Button m_wTopicFromIncomingField;
 
@@ -95,6 +114,31 @@ public class MQTTPublisherDialog extends BaseStepDialog implements StepDialogInt
   private TextVar m_wKeyFile;
   private TextVar m_wKeyPassword;
 
+  private CTabItem m_wBatchingTab;
+  private CCombo m_wBatchFraming;
+  private Label m_wlBatchMaxRows;
+  private TextVar m_wBatchMaxRows;
+  private Label m_wlBatchMaxBytes;
+  private TextVar m_wBatchMaxBytes;
+  private Label m_wlBatchLinger;
+  private TextVar m_wBatchLinger;
+
+  private CTabItem m_wOutputTab;
+  private Button m_wPassThroughRows;
+  private Label m_wlMessageIdField;
+  private TextVar m_wMessageIdField;
+  private Label m_wlAckLatencyField;
+  private TextVar m_wAckLatencyField;
+  private Label m_wlDeliveryStatusField;
+  private TextVar m_wDeliveryStatusField;
+
+  private CTabItem m_wProtocolTab;
+  private CCombo m_wMqttVersion;
+  private Label m_wlMessageExpiryInterval;
+  private TextVar m_wMessageExpiryInterval;
+  private Label m_wlUserProperties;
+  private TextVar m_wUserProperties;
+
   public MQTTPublisherDialog( Shell parent, Object in, TransMeta tr, String sname ) {
     super( parent, (BaseStepMeta) in, tr, sname );
     producerMeta = (MQTTPublisherMeta) in;
@@ -273,6 +317,90 @@ public class MQTTPublisherDialog extends BaseStepDialog implements StepDialogInt
     m_wInputField.setLayoutData( fdFilename );
     lastControl = m_wInputField;
 
+    // Payload codec
+    Label wlCodec = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlCodec.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Codec.Label" ) );
+    wlCodec.setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Codec.ToolTip" ) );
+    props.setLook( wlCodec );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlCodec.setLayoutData( fd );
+    m_wCodec = new CCombo( wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wCodec );
+    m_wCodec.setItems( PayloadCodecs.getIds() );
+    m_wCodec.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wCodec.setLayoutData( fd );
+    lastControl = m_wCodec;
+
+    // Codec fields
+    Label wlCodecFields = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlCodecFields.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.CodecFields.Label" ) );
+    wlCodecFields
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.CodecFields.ToolTip" ) );
+    props.setLook( wlCodecFields );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlCodecFields.setLayoutData( fd );
+    m_wCodecFields = new TextVar( transMeta, wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wCodecFields );
+    m_wCodecFields.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wCodecFields.setLayoutData( fd );
+    lastControl = m_wCodecFields;
+
+    // Codec options
+    Label wlCodecOptions = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlCodecOptions.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.CodecOptions.Label" ) );
+    wlCodecOptions
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.CodecOptions.ToolTip" ) );
+    props.setLook( wlCodecOptions );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlCodecOptions.setLayoutData( fd );
+    m_wCodecOptions = new TextVar( transMeta, wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wCodecOptions );
+    m_wCodecOptions.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wCodecOptions.setLayoutData( fd );
+    lastControl = m_wCodecOptions;
+
+    // Schema topic
+    Label wlSchemaTopic = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlSchemaTopic.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SchemaTopic.Label" ) );
+    wlSchemaTopic.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.PublisherSchemaTopic.ToolTip" ) );
+    props.setLook( wlSchemaTopic );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlSchemaTopic.setLayoutData( fd );
+    m_wSchemaTopic = new TextVar( transMeta, wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wSchemaTopic );
+    m_wSchemaTopic.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wSchemaTopic.setLayoutData( fd );
+    lastControl = m_wSchemaTopic;
+
     // Client ID
     Label wlClientID = new Label( wGeneralTabComp, SWT.RIGHT );
     wlClientID.setText( BaseMessages.getString( org.pentaho.di.trans.steps.pentahomqttpublisher.MQTTPublisherMeta.PKG,
@@ -293,6 +421,127 @@ public class MQTTPublisherDialog extends BaseStepDialog implements StepDialogInt
     m_wClientID.setLayoutData( fdClientID );
     lastControl = m_wClientID;
 
+    // Client ID strategy
+    Label wlClientIdStrategy = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlClientIdStrategy
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ClientIdStrategy.Label" ) );
+    wlClientIdStrategy
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ClientIdStrategy.ToolTip" ) );
+    props.setLook( wlClientIdStrategy );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlClientIdStrategy.setLayoutData( fd );
+    m_wClientIdStrategy = new CCombo( wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER | SWT.READ_ONLY );
+    props.setLook( m_wClientIdStrategy );
+    m_wClientIdStrategy.setItems( ClientIdStrategy.STRATEGIES );
+    m_wClientIdStrategy.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wClientIdStrategy.setLayoutData( fd );
+    lastControl = m_wClientIdStrategy;
+
+    // Client persistence
+    Label wlPersistence = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlPersistence.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Persistence.Label" ) );
+    wlPersistence
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Persistence.ToolTip" ) );
+    props.setLook( wlPersistence );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlPersistence.setLayoutData( fd );
+    m_wPersistence = new CCombo( wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER | SWT.READ_ONLY );
+    props.setLook( m_wPersistence );
+    m_wPersistence.setItems( ClientPersistence.TYPES );
+    m_wPersistence.addModifyListener( lsMod );
+    m_wPersistence.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        enablePersistenceDirectory();
+      }
+    } );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wPersistence.setLayoutData( fd );
+    lastControl = m_wPersistence;
+
+    // Persistence directory
+    m_wlPersistenceDirectory = new Label( wGeneralTabComp, SWT.RIGHT );
+    m_wlPersistenceDirectory
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.PersistenceDirectory.Label" ) );
+    m_wlPersistenceDirectory.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.PersistenceDirectory.ToolTip" ) );
+    props.setLook( m_wlPersistenceDirectory );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlPersistenceDirectory.setLayoutData( fd );
+    m_wPersistenceDirectory = new TextVar( transMeta, wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wPersistenceDirectory );
+    m_wPersistenceDirectory.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wPersistenceDirectory.setLayoutData( fd );
+    lastControl = m_wPersistenceDirectory;
+
+    // Shared connection
+    Label wlSharedConnection = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlSharedConnection
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SharedConnection.Label" ) );
+    wlSharedConnection.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SharedConnection.ToolTip" ) );
+    props.setLook( wlSharedConnection );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlSharedConnection.setLayoutData( fd );
+    m_wSharedConnection = new Button( wGeneralTabComp, SWT.CHECK );
+    props.setLook( m_wSharedConnection );
+    m_wSharedConnection.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        producerMeta.setChanged();
+        enableConnectionIdleTimeout();
+      }
+    } );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wSharedConnection.setLayoutData( fd );
+    lastControl = m_wSharedConnection;
+
+    // Idle timeout of a shared connection
+    m_wlConnectionIdleTimeout = new Label( wGeneralTabComp, SWT.RIGHT );
+    m_wlConnectionIdleTimeout
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ConnectionIdleTimeout.Label" ) );
+    m_wlConnectionIdleTimeout.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ConnectionIdleTimeout.ToolTip" ) );
+    props.setLook( m_wlConnectionIdleTimeout );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlConnectionIdleTimeout.setLayoutData( fd );
+    m_wConnectionIdleTimeout = new TextVar( transMeta, wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wConnectionIdleTimeout );
+    m_wConnectionIdleTimeout.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wConnectionIdleTimeout.setLayoutData( fd );
+    lastControl = m_wConnectionIdleTimeout;
+
     // Connection timeout
     Label wlConnectionTimeout = new Label( wGeneralTabComp, SWT.RIGHT );
     wlConnectionTimeout.setText( BaseMessages
@@ -336,6 +585,56 @@ public class MQTTPublisherDialog extends BaseStepDialog implements StepDialogInt
     m_wQOS.setLayoutData( fdQOS );
     lastControl = m_wQOS;
 
+    // Async publish
+    Label wlAsyncPublish = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlAsyncPublish.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.AsyncPublish.Label" ) );
+    wlAsyncPublish
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.AsyncPublish.ToolTip" ) );
+    props.setLook( wlAsyncPublish );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlAsyncPublish.setLayoutData( fd );
+
+    m_wAsyncPublish = new Button( wGeneralTabComp, SWT.CHECK );
+    props.setLook( m_wAsyncPublish );
+    m_wAsyncPublish.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        producerMeta.setChanged();
+        boolean enabled = m_wAsyncPublish.getSelection();
+        m_wlMaxInflight.setEnabled( enabled );
+        m_wMaxInflight.setEnabled( enabled );
+      }
+    } );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wAsyncPublish.setLayoutData( fd );
+    lastControl = m_wAsyncPublish;
+
+    // Max in-flight
+    m_wlMaxInflight = new Label( wGeneralTabComp, SWT.RIGHT );
+    m_wlMaxInflight.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MaxInflight.Label" ) );
+    m_wlMaxInflight
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MaxInflight.ToolTip" ) );
+    props.setLook( m_wlMaxInflight );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlMaxInflight.setLayoutData( fd );
+    m_wMaxInflight = new TextVar( transMeta, wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wMaxInflight );
+    m_wMaxInflight.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wMaxInflight.setLayoutData( fd );
+    lastControl = m_wMaxInflight;
+
     FormData fdGeneralTabComp = new FormData();
     fdGeneralTabComp.left = new FormAttachment( 0, 0 );
     fdGeneralTabComp.top = new FormAttachment( 0, 0 );
@@ -574,6 +873,333 @@ public class MQTTPublisherDialog extends BaseStepDialog implements StepDialogInt
     wSSLComp.layout();
     m_wSSLTab.setControl( wSSLComp );
 
+    // ====================
+    // BATCHING TAB
+    // ====================
+    m_wBatchingTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wBatchingTab.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.BatchingTab.Label" ) );
+
+    Composite wBatchingComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wBatchingComp );
+
+    FormLayout batchingCompLayout = new FormLayout();
+    batchingCompLayout.marginWidth = Const.FORM_MARGIN;
+    batchingCompLayout.marginHeight = Const.FORM_MARGIN;
+    wBatchingComp.setLayout( batchingCompLayout );
+
+    // Batch framing
+    Label wlBatchFraming = new Label( wBatchingComp, SWT.RIGHT );
+    wlBatchFraming.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.BatchFraming.Label" ) );
+    wlBatchFraming
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.BatchFraming.ToolTip" ) );
+    props.setLook( wlBatchFraming );
+    fd = new FormData();
+    fd.top = new FormAttachment( 0, 2 * margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlBatchFraming.setLayoutData( fd );
+
+    m_wBatchFraming = new CCombo( wBatchingComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER | SWT.READ_ONLY );
+    props.setLook( m_wBatchFraming );
+    m_wBatchFraming.setItems( BatchFraming.FRAMINGS );
+    m_wBatchFraming.addModifyListener( lsMod );
+    m_wBatchFraming.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        enableBatchSettings();
+      }
+    } );
+    fd = new FormData();
+    fd.top = new FormAttachment( 0, 2 * margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wBatchFraming.setLayoutData( fd );
+    lastControl = m_wBatchFraming;
+
+    // Max rows per batch
+    m_wlBatchMaxRows = new Label( wBatchingComp, SWT.RIGHT );
+    m_wlBatchMaxRows.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.BatchMaxRows.Label" ) );
+    m_wlBatchMaxRows
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.BatchMaxRows.ToolTip" ) );
+    props.setLook( m_wlBatchMaxRows );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlBatchMaxRows.setLayoutData( fd );
+    m_wBatchMaxRows = new TextVar( transMeta, wBatchingComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wBatchMaxRows );
+    m_wBatchMaxRows.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wBatchMaxRows.setLayoutData( fd );
+    lastControl = m_wBatchMaxRows;
+
+    // Max bytes per batch
+    m_wlBatchMaxBytes = new Label( wBatchingComp, SWT.RIGHT );
+    m_wlBatchMaxBytes.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.BatchMaxBytes.Label" ) );
+    m_wlBatchMaxBytes
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.BatchMaxBytes.ToolTip" ) );
+    props.setLook( m_wlBatchMaxBytes );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlBatchMaxBytes.setLayoutData( fd );
+    m_wBatchMaxBytes = new TextVar( transMeta, wBatchingComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wBatchMaxBytes );
+    m_wBatchMaxBytes.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wBatchMaxBytes.setLayoutData( fd );
+    lastControl = m_wBatchMaxBytes;
+
+    // Linger time
+    m_wlBatchLinger = new Label( wBatchingComp, SWT.RIGHT );
+    m_wlBatchLinger.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.BatchLinger.Label" ) );
+    m_wlBatchLinger
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.BatchLinger.ToolTip" ) );
+    props.setLook( m_wlBatchLinger );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlBatchLinger.setLayoutData( fd );
+    m_wBatchLinger = new TextVar( transMeta, wBatchingComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wBatchLinger );
+    m_wBatchLinger.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wBatchLinger.setLayoutData( fd );
+    lastControl = m_wBatchLinger;
+
+    FormData fdBatchingComp = new FormData();
+    fdBatchingComp.left = new FormAttachment( 0, 0 );
+    fdBatchingComp.top = new FormAttachment( 0, 0 );
+    fdBatchingComp.right = new FormAttachment( 100, 0 );
+    fdBatchingComp.bottom = new FormAttachment( 100, 0 );
+    wBatchingComp.setLayoutData( fdBatchingComp );
+
+    wBatchingComp.layout();
+    m_wBatchingTab.setControl( wBatchingComp );
+
+    // ====================
+    // OUTPUT TAB
+    // ====================
+    m_wOutputTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wOutputTab.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.OutputTab.Label" ) );
+
+    Composite wOutputComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wOutputComp );
+
+    FormLayout outputCompLayout = new FormLayout();
+    outputCompLayout.marginWidth = Const.FORM_MARGIN;
+    outputCompLayout.marginHeight = Const.FORM_MARGIN;
+    wOutputComp.setLayout( outputCompLayout );
+
+    // Pass rows on
+    Label wlPassThroughRows = new Label( wOutputComp, SWT.RIGHT );
+    wlPassThroughRows
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.PassThroughRows.Label" ) );
+    wlPassThroughRows.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.PassThroughRows.ToolTip" ) );
+    props.setLook( wlPassThroughRows );
+    fd = new FormData();
+    fd.top = new FormAttachment( 0, 2 * margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlPassThroughRows.setLayoutData( fd );
+    m_wPassThroughRows = new Button( wOutputComp, SWT.CHECK );
+    props.setLook( m_wPassThroughRows );
+    m_wPassThroughRows.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        producerMeta.setChanged();
+        enableOutputFields();
+      }
+    } );
+    fd = new FormData();
+    fd.top = new FormAttachment( 0, 2 * margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wPassThroughRows.setLayoutData( fd );
+    lastControl = m_wPassThroughRows;
+
+    // Message id field
+    m_wlMessageIdField = new Label( wOutputComp, SWT.RIGHT );
+    m_wlMessageIdField
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MessageIdField.Label" ) );
+    m_wlMessageIdField.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MessageIdField.ToolTip" ) );
+    props.setLook( m_wlMessageIdField );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlMessageIdField.setLayoutData( fd );
+    m_wMessageIdField = new TextVar( transMeta, wOutputComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wMessageIdField );
+    m_wMessageIdField.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wMessageIdField.setLayoutData( fd );
+    lastControl = m_wMessageIdField;
+
+    // Ack latency field
+    m_wlAckLatencyField = new Label( wOutputComp, SWT.RIGHT );
+    m_wlAckLatencyField
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.AckLatencyField.Label" ) );
+    m_wlAckLatencyField.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.AckLatencyField.ToolTip" ) );
+    props.setLook( m_wlAckLatencyField );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlAckLatencyField.setLayoutData( fd );
+    m_wAckLatencyField = new TextVar( transMeta, wOutputComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wAckLatencyField );
+    m_wAckLatencyField.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wAckLatencyField.setLayoutData( fd );
+    lastControl = m_wAckLatencyField;
+
+    // Delivery status field
+    m_wlDeliveryStatusField = new Label( wOutputComp, SWT.RIGHT );
+    m_wlDeliveryStatusField
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.DeliveryStatusField.Label" ) );
+    m_wlDeliveryStatusField.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.DeliveryStatusField.ToolTip" ) );
+    props.setLook( m_wlDeliveryStatusField );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlDeliveryStatusField.setLayoutData( fd );
+    m_wDeliveryStatusField = new TextVar( transMeta, wOutputComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wDeliveryStatusField );
+    m_wDeliveryStatusField.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wDeliveryStatusField.setLayoutData( fd );
+    lastControl = m_wDeliveryStatusField;
+
+    FormData fdOutputComp = new FormData();
+    fdOutputComp.left = new FormAttachment( 0, 0 );
+    fdOutputComp.top = new FormAttachment( 0, 0 );
+    fdOutputComp.right = new FormAttachment( 100, 0 );
+    fdOutputComp.bottom = new FormAttachment( 100, 0 );
+    wOutputComp.setLayoutData( fdOutputComp );
+
+    wOutputComp.layout();
+    m_wOutputTab.setControl( wOutputComp );
+
+    // ====================
+    // PROTOCOL TAB
+    // ====================
+    m_wProtocolTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wProtocolTab.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ProtocolTab.Label" ) );
+
+    Composite wProtocolComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wProtocolComp );
+
+    FormLayout protocolCompLayout = new FormLayout();
+    protocolCompLayout.marginWidth = Const.FORM_MARGIN;
+    protocolCompLayout.marginHeight = Const.FORM_MARGIN;
+    wProtocolComp.setLayout( protocolCompLayout );
+
+    // MQTT version
+    Label wlMqttVersion = new Label( wProtocolComp, SWT.RIGHT );
+    wlMqttVersion.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MqttVersion.Label" ) );
+    wlMqttVersion
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MqttVersion.ToolTip" ) );
+    props.setLook( wlMqttVersion );
+    fd = new FormData();
+    fd.top = new FormAttachment( 0, 2 * margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlMqttVersion.setLayoutData( fd );
+    m_wMqttVersion = new CCombo( wProtocolComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER | SWT.READ_ONLY );
+    props.setLook( m_wMqttVersion );
+    m_wMqttVersion.setItems( MqttVersion.VERSIONS );
+    m_wMqttVersion.addModifyListener( lsMod );
+    m_wMqttVersion.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        enableV5Settings();
+      }
+    } );
+    fd = new FormData();
+    fd.top = new FormAttachment( 0, 2 * margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wMqttVersion.setLayoutData( fd );
+    lastControl = m_wMqttVersion;
+
+    // Message expiry
+    m_wlMessageExpiryInterval = new Label( wProtocolComp, SWT.RIGHT );
+    m_wlMessageExpiryInterval
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MessageExpiryInterval.Label" ) );
+    m_wlMessageExpiryInterval.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MessageExpiryInterval.ToolTip" ) );
+    props.setLook( m_wlMessageExpiryInterval );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlMessageExpiryInterval.setLayoutData( fd );
+    m_wMessageExpiryInterval = new TextVar( transMeta, wProtocolComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wMessageExpiryInterval );
+    m_wMessageExpiryInterval.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wMessageExpiryInterval.setLayoutData( fd );
+    lastControl = m_wMessageExpiryInterval;
+
+    // User properties
+    m_wlUserProperties = new Label( wProtocolComp, SWT.RIGHT );
+    m_wlUserProperties
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.UserProperties.Label" ) );
+    m_wlUserProperties.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.UserProperties.ToolTip" ) );
+    props.setLook( m_wlUserProperties );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlUserProperties.setLayoutData( fd );
+    m_wUserProperties = new TextVar( transMeta, wProtocolComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wUserProperties );
+    m_wUserProperties.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wUserProperties.setLayoutData( fd );
+    lastControl = m_wUserProperties;
+
+    FormData fdProtocolComp = new FormData();
+    fdProtocolComp.left = new FormAttachment( 0, 0 );
+    fdProtocolComp.top = new FormAttachment( 0, 0 );
+    fdProtocolComp.right = new FormAttachment( 100, 0 );
+    fdProtocolComp.bottom = new FormAttachment( 100, 0 );
+    wProtocolComp.setLayoutData( fdProtocolComp );
+
+    wProtocolComp.layout();
+    m_wProtocolTab.setControl( wProtocolComp );
+
     // ====================
     // BUTTONS
     // ====================
@@ -690,9 +1316,22 @@ public class MQTTPublisherDialog extends BaseStepDialog implements StepDialogInt
     m_wTopicName.setText( Const.NVL( producerMeta.getTopic(), "" ) );
     m_wTopicFromIncomingField.setSelection( producerMeta.getTopicIsFromField() );
     m_wInputField.setText( Const.NVL( producerMeta.getField(), "" ) );
+    m_wCodec.setText( Const.NVL( producerMeta.getCodec(), PayloadCodecs.VALUE ) );
+    m_wCodecFields.setText( Const.NVL( producerMeta.getCodecFields(), "" ) );
+    m_wCodecOptions.setText( Const.NVL( producerMeta.getCodecOptions(), "" ) );
+    m_wSchemaTopic.setText( Const.NVL( producerMeta.getSchemaTopic(), "" ) );
     m_wClientID.setText( Const.NVL( producerMeta.getClientId(), "" ) );
+    m_wClientIdStrategy.setText( Const.NVL( producerMeta.getClientIdStrategy(), ClientIdStrategy.AS_IS ) );
+    m_wPersistence.setText( Const.NVL( producerMeta.getPersistence(), ClientPersistence.MEMORY ) );
+    m_wPersistenceDirectory.setText( Const.NVL( producerMeta.getPersistenceDirectory(), "" ) );
+    m_wSharedConnection.setSelection( producerMeta.isSharedConnection() );
+    m_wConnectionIdleTimeout.setText( Const.NVL( producerMeta.getConnectionIdleTimeout(), "300" ) );
     m_wTimeout.setText( Const.NVL( producerMeta.getTimeout(), "10000" ) );
     m_wQOS.setText( Const.NVL( producerMeta.getQoS(), "0" ) );
+    m_wAsyncPublish.setSelection( producerMeta.isAsyncPublish() );
+    m_wMaxInflight.setText( Const.NVL( producerMeta.getMaxInflight(), "10" ) );
+    m_wlMaxInflight.setEnabled( producerMeta.isAsyncPublish() );
+    m_wMaxInflight.setEnabled( producerMeta.isAsyncPublish() );
 
     m_wRequiresAuth.setSelection( producerMeta.isRequiresAuth() );
     m_wRequiresAuth.notifyListeners( SWT.Selection, new Event() );
@@ -705,11 +1344,69 @@ public class MQTTPublisherDialog extends BaseStepDialog implements StepDialogInt
     m_wKeyFile.setText( Const.NVL( producerMeta.getSSLKeyFile(), "" ) );
     m_wKeyPassword.setText( Const.NVL( producerMeta.getSSLKeyFilePass(), "" ) );
 
+    m_wBatchFraming.setText( Const.NVL( producerMeta.getBatchFraming(), BatchFraming.NONE ) );
+    m_wBatchMaxRows.setText( Const.NVL( producerMeta.getBatchMaxRows(), "100" ) );
+    m_wBatchMaxBytes.setText( Const.NVL( producerMeta.getBatchMaxBytes(), "65536" ) );
+    m_wBatchLinger.setText( Const.NVL( producerMeta.getBatchLinger(), "100" ) );
+    m_wPassThroughRows.setSelection( producerMeta.isPassThroughRows() );
+    m_wMessageIdField.setText( Const.NVL( producerMeta.getMessageIdField(), "" ) );
+    m_wAckLatencyField.setText( Const.NVL( producerMeta.getAckLatencyField(), "" ) );
+    m_wDeliveryStatusField.setText( Const.NVL( producerMeta.getDeliveryStatusField(), "" ) );
+    m_wMqttVersion.setText( Const.NVL( producerMeta.getMqttVersion(), MqttVersion.V3_1_1 ) );
+    m_wMessageExpiryInterval.setText( Const.NVL( producerMeta.getMessageExpiryInterval(), "" ) );
+    m_wUserProperties.setText( Const.NVL( producerMeta.getUserProperties(), "" ) );
+    enableBatchSettings();
+    enablePersistenceDirectory();
+    enableConnectionIdleTimeout();
+    enableOutputFields();
+    enableV5Settings();
+
     updateTopicCombo( getPreviousFields() );
 
     wStepname.selectAll();
   }
 
+  private void enableBatchSettings() {
+    boolean enabled = BatchFraming.isBatching( m_wBatchFraming.getText() );
+    m_wlBatchMaxRows.setEnabled( enabled );
+    m_wBatchMaxRows.setEnabled( enabled );
+    m_wlBatchMaxBytes.setEnabled( enabled );
+    m_wBatchMaxBytes.setEnabled( enabled );
+    m_wlBatchLinger.setEnabled( enabled );
+    m_wBatchLinger.setEnabled( enabled );
+  }
+
+  private void enablePersistenceDirectory() {
+    boolean enabled = ClientPersistence.FILE.equals( m_wPersistence.getText() )
+        || ClientPersistence.JOURNAL.equals( m_wPersistence.getText() );
+    m_wlPersistenceDirectory.setEnabled( enabled );
+    m_wPersistenceDirectory.setEnabled( enabled );
+  }
+
+  private void enableOutputFields() {
+    boolean enabled = m_wPassThroughRows.getSelection();
+    m_wlMessageIdField.setEnabled( enabled );
+    m_wMessageIdField.setEnabled( enabled );
+    m_wlAckLatencyField.setEnabled( enabled );
+    m_wAckLatencyField.setEnabled( enabled );
+    m_wlDeliveryStatusField.setEnabled( enabled );
+    m_wDeliveryStatusField.setEnabled( enabled );
+  }
+
+  private void enableV5Settings() {
+    boolean enabled = MqttVersion.isV5( m_wMqttVersion.getText() );
+    m_wlMessageExpiryInterval.setEnabled( enabled );
+    m_wMessageExpiryInterval.setEnabled( enabled );
+    m_wlUserProperties.setEnabled( enabled );
+    m_wUserProperties.setEnabled( enabled );
+  }
+
+  private void enableConnectionIdleTimeout() {
+    boolean enabled = m_wSharedConnection.getSelection();
+    m_wlConnectionIdleTimeout.setEnabled( enabled );
+    m_wConnectionIdleTimeout.setEnabled( enabled );
+  }
+
   private void cancel() {
     stepname = null;
     producerMeta.setChanged( changed );
@@ -724,9 +1421,20 @@ public class MQTTPublisherDialog extends BaseStepDialog implements StepDialogInt
     producerMeta.setTopic( m_wTopicName.getText() );
     producerMeta.setTopicIsFromField( m_wTopicFromIncomingField.getSelection() );
     producerMeta.setField( m_wInputField.getText() );
+    producerMeta.setCodec( Const.NVL( m_wCodec.getText(), PayloadCodecs.VALUE ) );
+    producerMeta.setCodecFields( m_wCodecFields.getText() );
+    producerMeta.setCodecOptions( m_wCodecOptions.getText() );
+    producerMeta.setSchemaTopic( m_wSchemaTopic.getText() );
     producerMeta.setClientId( m_wClientID.getText() );
+    producerMeta.setClientIdStrategy( m_wClientIdStrategy.getText() );
+    producerMeta.setPersistence( m_wPersistence.getText() );
+    producerMeta.setPersistenceDirectory( m_wPersistenceDirectory.getText() );
+    producerMeta.setSharedConnection( m_wSharedConnection.getSelection() );
+    producerMeta.setConnectionIdleTimeout( m_wConnectionIdleTimeout.getText() );
     producerMeta.setTimeout( m_wTimeout.getText() );
     producerMeta.setQoS( m_wQOS.getText() );
+    producerMeta.setAsyncPublish( m_wAsyncPublish.getSelection() );
+    producerMeta.setMaxInflight( m_wMaxInflight.getText() );
 
     boolean requiresAuth = m_wRequiresAuth.getSelection();
     producerMeta.setRequiresAuth( requiresAuth );
@@ -740,6 +1448,18 @@ public class MQTTPublisherDialog extends BaseStepDialog implements StepDialogInt
     producerMeta.setSSLKeyFile( m_wKeyFile.getText() );
     producerMeta.setSSLKeyFilePass( m_wKeyPassword.getText() );
 
+    producerMeta.setBatchFraming( m_wBatchFraming.getText() );
+    producerMeta.setBatchMaxRows( m_wBatchMaxRows.getText() );
+    producerMeta.setBatchMaxBytes( m_wBatchMaxBytes.getText() );
+    producerMeta.setBatchLinger( m_wBatchLinger.getText() );
+    producerMeta.setPassThroughRows( m_wPassThroughRows.getSelection() );
+    producerMeta.setMessageIdField( m_wMessageIdField.getText() );
+    producerMeta.setAckLatencyField( m_wAckLatencyField.getText() );
+    producerMeta.setDeliveryStatusField( m_wDeliveryStatusField.getText() );
+    producerMeta.setMqttVersion( m_wMqttVersion.getText() );
+    producerMeta.setMessageExpiryInterval( m_wMessageExpiryInterval.getText() );
+    producerMeta.setUserProperties( m_wUserProperties.getText() );
+
     producerMeta.setChanged();
   }
 
@@ -22,6 +22,12 @@
 
 package org.pentaho.di.ui.trans.steps.pentahomqttsubscriber;
 
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.CCombo;
 import org.eclipse.swt.custom.CTabFolder;
@@ -48,6 +54,8 @@ import org.eclipse.swt.widgets.TableItem;
 import org.eclipse.swt.widgets.Text;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.Props;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.row.value.ValueMetaFactory;
 import org.pentaho.di.i18n.BaseMessages;
@@ -56,13 +64,23 @@ import org.pentaho.di.trans.step.BaseStepMeta;
 import org.pentaho.di.trans.step.StepDialogInterface;
 import org.pentaho.di.trans.steps.pentahomqttpublisher.MQTTPublisherMeta;
 import org.pentaho.di.trans.steps.pentahomqttsubscriber.MQTTSubscriberMeta;
+import org.pentaho.di.ui.core.dialog.ErrorDialog;
 import org.pentaho.di.ui.core.widget.ColumnInfo;
 import org.pentaho.di.ui.core.widget.TableView;
 import org.pentaho.di.ui.core.widget.TextVar;
 import org.pentaho.di.ui.trans.step.BaseStepDialog;
+import org.pentaho.mqtt.BatchFraming;
+import org.pentaho.mqtt.ClientIdStrategy;
+import org.pentaho.mqtt.ClientPersistence;
+import org.pentaho.mqtt.MqttVersion;
+import org.pentaho.mqtt.SSLSocketFactoryGenerator;
+import org.pentaho.mqtt.codec.PayloadCodec;
+import org.pentaho.mqtt.codec.PayloadCodecs;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Dialog class for the MQTTSubscriber
@@ -72,6 +90,11 @@ import java.util.List;
  */
 public class MQTTSubscriberDialog extends BaseStepDialog implements StepDialogInterface {
 
+  /**
+   * How long to wait for the retained schema message after subscribing to the schema topic
+   */
+  private static final int SCHEMA_WAIT_SECONDS = 5;
+
   protected MQTTSubscriberMeta m_subscriberMeta;
 
   private CTabFolder m_wTabFolder;
@@ -79,10 +102,20 @@ public class MQTTSubscriberDialog extends BaseStepDialog implements StepDialogIn
   private CTabItem m_wGeneralTab;
   private TextVar m_wBroker;
   private TextVar m_wClientID;
+  private CCombo m_wClientIdStrategy;
+  private CCombo m_wPersistence;
+  private Label m_wlPersistenceDirectory;
+  private TextVar m_wPersistenceDirectory;
+  private Button m_wSharedConnection;
+  private Label m_wlConnectionIdleTimeout;
+  private TextVar m_wConnectionIdleTimeout;
+  private Button m_wPersistentSession;
   private TextVar m_wTimeout;
   private TextVar m_wkeepAlive;
   private TextVar m_wQOS;
   private TextVar m_wExecuteForDuration;
+  private TextVar m_wQueueCapacity;
+  private TextVar m_wMaxIdleWait;
 
   private CTabItem m_wCredentialsTab;
   private Button m_wRequiresAuth;
@@ -100,8 +133,53 @@ public class MQTTSubscriberDialog extends BaseStepDialog implements StepDialogIn
   private CTabItem m_wTopicsTab;
   private TableView m_wTopicsTable;
   private CCombo m_wTopicMessageTypeCombo;
+  private CCombo m_wCodec;
+  private Label m_wlDecodedFields;
+  private TextVar m_wDecodedFields;
+  private TextVar m_wCodecOptions;
+  private Label m_wlSchemaTopic;
+  private TextVar m_wSchemaTopic;
+  private Button m_wGetSchema;
+  private CCombo m_wBatchFraming;
+  private Button m_wSharedSubscription;
+  private Label m_wlShareGroup;
+  private TextVar m_wShareGroup;
+
+  private CTabItem m_wReconnectTab;
+  private TextVar m_wReconnectInitialDelay;
+  private TextVar m_wReconnectMaxDelay;
+  private TextVar m_wReconnectMaxAttempts;
+  private TextVar m_wReconnectMaxDuration;
   private Button m_wAllowObjectMessages;
 
+  private CTabItem m_wProtocolTab;
+  private CCombo m_wMqttVersion;
+  private Label m_wlReceiveMaximum;
+  private TextVar m_wReceiveMaximum;
+  private Label m_wlTopicAliasMaximum;
+  private TextVar m_wTopicAliasMaximum;
+  private Label m_wlUserProperties;
+  private TextVar m_wUserProperties;
+  private Label m_wlSessionExpiryInterval;
+  private TextVar m_wSessionExpiryInterval;
+
+  private CTabItem m_wDeliveryTab;
+  private Button m_wManualAcks;
+  private Label m_wlAckCheckpointStep;
+  private CCombo m_wAckCheckpointStep;
+  private Label m_wlAckSequenceField;
+  private TextVar m_wAckSequenceField;
+  private Button m_wOffHeapQueue;
+  private Label m_wlOffHeapBufferSize;
+  private TextVar m_wOffHeapBufferSize;
+  private Button m_wSpillToDisk;
+  private Label m_wlSpillThreshold;
+  private TextVar m_wSpillThreshold;
+  private Label m_wlSpillDirectory;
+  private TextVar m_wSpillDirectory;
+  private Label m_wlSpillSegmentSize;
+  private TextVar m_wSpillSegmentSize;
+
   public MQTTSubscriberDialog( Shell parent, BaseStepMeta baseStepMeta,
                                TransMeta transMeta, String stepname ) {
     super( parent, baseStepMeta, transMeta, stepname );
@@ -280,6 +358,154 @@ public class MQTTSubscriberDialog extends BaseStepDialog implements StepDialogIn
     m_wClientID.setLayoutData( fdClientID );
     lastControl = m_wClientID;
 
+    // Client ID strategy
+    Label wlClientIdStrategy = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlClientIdStrategy
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ClientIdStrategy.Label" ) );
+    wlClientIdStrategy
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ClientIdStrategy.ToolTip" ) );
+    props.setLook( wlClientIdStrategy );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlClientIdStrategy.setLayoutData( fd );
+    m_wClientIdStrategy = new CCombo( wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER | SWT.READ_ONLY );
+    props.setLook( m_wClientIdStrategy );
+    m_wClientIdStrategy.setItems( ClientIdStrategy.STRATEGIES );
+    m_wClientIdStrategy.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wClientIdStrategy.setLayoutData( fd );
+    lastControl = m_wClientIdStrategy;
+
+    // Client persistence
+    Label wlPersistence = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlPersistence.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Persistence.Label" ) );
+    wlPersistence
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Persistence.ToolTip" ) );
+    props.setLook( wlPersistence );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlPersistence.setLayoutData( fd );
+    m_wPersistence = new CCombo( wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER | SWT.READ_ONLY );
+    props.setLook( m_wPersistence );
+    m_wPersistence.setItems( ClientPersistence.TYPES );
+    m_wPersistence.addModifyListener( lsMod );
+    m_wPersistence.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        enablePersistenceDirectory();
+      }
+    } );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wPersistence.setLayoutData( fd );
+    lastControl = m_wPersistence;
+
+    // Persistence directory
+    m_wlPersistenceDirectory = new Label( wGeneralTabComp, SWT.RIGHT );
+    m_wlPersistenceDirectory
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.PersistenceDirectory.Label" ) );
+    m_wlPersistenceDirectory.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.PersistenceDirectory.ToolTip" ) );
+    props.setLook( m_wlPersistenceDirectory );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlPersistenceDirectory.setLayoutData( fd );
+    m_wPersistenceDirectory = new TextVar( transMeta, wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wPersistenceDirectory );
+    m_wPersistenceDirectory.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wPersistenceDirectory.setLayoutData( fd );
+    lastControl = m_wPersistenceDirectory;
+
+    // Shared connection
+    Label wlSharedConnection = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlSharedConnection
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SharedConnection.Label" ) );
+    wlSharedConnection.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SharedConnection.ToolTip" ) );
+    props.setLook( wlSharedConnection );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlSharedConnection.setLayoutData( fd );
+    m_wSharedConnection = new Button( wGeneralTabComp, SWT.CHECK );
+    props.setLook( m_wSharedConnection );
+    m_wSharedConnection.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        m_subscriberMeta.setChanged();
+        enableConnectionIdleTimeout();
+      }
+    } );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wSharedConnection.setLayoutData( fd );
+    lastControl = m_wSharedConnection;
+
+    // Idle timeout of a shared connection
+    m_wlConnectionIdleTimeout = new Label( wGeneralTabComp, SWT.RIGHT );
+    m_wlConnectionIdleTimeout
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ConnectionIdleTimeout.Label" ) );
+    m_wlConnectionIdleTimeout.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ConnectionIdleTimeout.ToolTip" ) );
+    props.setLook( m_wlConnectionIdleTimeout );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlConnectionIdleTimeout.setLayoutData( fd );
+    m_wConnectionIdleTimeout = new TextVar( transMeta, wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wConnectionIdleTimeout );
+    m_wConnectionIdleTimeout.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wConnectionIdleTimeout.setLayoutData( fd );
+    lastControl = m_wConnectionIdleTimeout;
+
+    // Persistent session
+    Label wlPersistentSession = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlPersistentSession
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.PersistentSession.Label" ) );
+    wlPersistentSession.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.PersistentSession.ToolTip" ) );
+    props.setLook( wlPersistentSession );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlPersistentSession.setLayoutData( fd );
+    m_wPersistentSession = new Button( wGeneralTabComp, SWT.CHECK );
+    props.setLook( m_wPersistentSession );
+    m_wPersistentSession.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        m_subscriberMeta.setChanged();
+        enableV5Settings();
+      }
+    } );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wPersistentSession.setLayoutData( fd );
+    lastControl = m_wPersistentSession;
+
     // QOS
     Label wlQOS = new Label( wGeneralTabComp, SWT.RIGHT );
     wlQOS.setText( BaseMessages.getString( org.pentaho.di.trans.steps.pentahomqttpublisher.MQTTPublisherMeta.PKG,
@@ -323,6 +549,52 @@ public class MQTTSubscriberDialog extends BaseStepDialog implements StepDialogIn
     m_wExecuteForDuration.setLayoutData( fd );
     lastControl = m_wExecuteForDuration;
 
+    // Receive queue capacity
+    Label wQueueCapacityLab = new Label( wGeneralTabComp, SWT.RIGHT );
+    wQueueCapacityLab.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.QueueCapacity.Label" ) );
+    wQueueCapacityLab
+      .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.QueueCapacity.ToolTip" ) );
+    props.setLook( wQueueCapacityLab );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wQueueCapacityLab.setLayoutData( fd );
+
+    m_wQueueCapacity = new TextVar( transMeta, wGeneralTabComp, SWT.SINGLE
+      | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wQueueCapacity );
+    m_wQueueCapacity.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wQueueCapacity.setLayoutData( fd );
+    lastControl = m_wQueueCapacity;
+
+    // Max idle wait
+    Label wMaxIdleWaitLab = new Label( wGeneralTabComp, SWT.RIGHT );
+    wMaxIdleWaitLab.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MaxIdleWait.Label" ) );
+    wMaxIdleWaitLab
+      .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MaxIdleWait.ToolTip" ) );
+    props.setLook( wMaxIdleWaitLab );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wMaxIdleWaitLab.setLayoutData( fd );
+
+    m_wMaxIdleWait = new TextVar( transMeta, wGeneralTabComp, SWT.SINGLE
+      | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wMaxIdleWait );
+    m_wMaxIdleWait.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wMaxIdleWait.setLayoutData( fd );
+    lastControl = m_wMaxIdleWait;
+
     FormData fdGeneralTabComp = new FormData();
     fdGeneralTabComp.left = new FormAttachment( 0, 0 );
     fdGeneralTabComp.top = new FormAttachment( 0, 0 );
@@ -623,6 +895,183 @@ public class MQTTSubscriberDialog extends BaseStepDialog implements StepDialogIn
     m_wAllowObjectMessages.setLayoutData( fd );
     lastControl = m_wAllowObjectMessages;
 
+    Label wlCodec = new Label( wTopicsComp, SWT.RIGHT );
+    wlCodec.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Codec.Label" ) );
+    wlCodec.setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Codec.ToolTip" ) );
+    props.setLook( wlCodec );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin * 2 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlCodec.setLayoutData( fd );
+
+    m_wCodec = new CCombo( wTopicsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wCodec );
+    m_wCodec.setItems( PayloadCodecs.getIds() );
+    m_wCodec.addModifyListener( lsMod );
+    m_wCodec.addModifyListener( new ModifyListener() {
+      @Override public void modifyText( ModifyEvent modifyEvent ) {
+        enableDecodedFields();
+      }
+    } );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin * 2 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wCodec.setLayoutData( fd );
+    lastControl = m_wCodec;
+
+    m_wlSchemaTopic = new Label( wTopicsComp, SWT.RIGHT );
+    m_wlSchemaTopic.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SchemaTopic.Label" ) );
+    m_wlSchemaTopic.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SubscriberSchemaTopic.ToolTip" ) );
+    props.setLook( m_wlSchemaTopic );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlSchemaTopic.setLayoutData( fd );
+
+    m_wGetSchema = new Button( wTopicsComp, SWT.PUSH );
+    m_wGetSchema.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.GetSchema.Label" ) );
+    m_wGetSchema
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.GetSchema.ToolTip" ) );
+    props.setLook( m_wGetSchema );
+    m_wGetSchema.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        getFieldsFromSchema();
+      }
+    } );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wGetSchema.setLayoutData( fd );
+
+    m_wSchemaTopic = new TextVar( transMeta, wTopicsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wSchemaTopic );
+    m_wSchemaTopic.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( m_wGetSchema, -margin );
+    m_wSchemaTopic.setLayoutData( fd );
+    lastControl = m_wGetSchema;
+
+    m_wlDecodedFields = new Label( wTopicsComp, SWT.RIGHT );
+    m_wlDecodedFields
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.DecodedFields.Label" ) );
+    m_wlDecodedFields
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.DecodedFields.ToolTip" ) );
+    props.setLook( m_wlDecodedFields );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlDecodedFields.setLayoutData( fd );
+
+    m_wDecodedFields = new TextVar( transMeta, wTopicsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wDecodedFields );
+    m_wDecodedFields.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wDecodedFields.setLayoutData( fd );
+    lastControl = m_wDecodedFields;
+
+    Label wlCodecOptions = new Label( wTopicsComp, SWT.RIGHT );
+    wlCodecOptions.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.CodecOptions.Label" ) );
+    wlCodecOptions
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.CodecOptions.ToolTip" ) );
+    props.setLook( wlCodecOptions );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    wlCodecOptions.setLayoutData( fd );
+
+    m_wCodecOptions = new TextVar( transMeta, wTopicsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wCodecOptions );
+    m_wCodecOptions.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wCodecOptions.setLayoutData( fd );
+    lastControl = m_wCodecOptions;
+
+    Label wlBatchFraming = new Label( wTopicsComp, SWT.RIGHT );
+    wlBatchFraming.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.UnpackBatches.Label" ) );
+    wlBatchFraming
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.UnpackBatches.ToolTip" ) );
+    props.setLook( wlBatchFraming );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin * 2 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlBatchFraming.setLayoutData( fd );
+
+    m_wBatchFraming = new CCombo( wTopicsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER | SWT.READ_ONLY );
+    props.setLook( m_wBatchFraming );
+    m_wBatchFraming.setItems( BatchFraming.FRAMINGS );
+    m_wBatchFraming.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin * 2 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wBatchFraming.setLayoutData( fd );
+    lastControl = m_wBatchFraming;
+
+    Label wlSharedSubscription = new Label( wTopicsComp, SWT.RIGHT );
+    wlSharedSubscription
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SharedSubscription.Label" ) );
+    wlSharedSubscription.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SharedSubscription.ToolTip" ) );
+    props.setLook( wlSharedSubscription );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin * 2 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlSharedSubscription.setLayoutData( fd );
+
+    m_wSharedSubscription = new Button( wTopicsComp, SWT.CHECK );
+    props.setLook( m_wSharedSubscription );
+    m_wSharedSubscription.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        m_subscriberMeta.setChanged();
+        boolean enabled = m_wSharedSubscription.getSelection();
+        m_wlShareGroup.setEnabled( enabled );
+        m_wShareGroup.setEnabled( enabled );
+      }
+    } );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin * 2 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wSharedSubscription.setLayoutData( fd );
+    lastControl = m_wSharedSubscription;
+
+    m_wlShareGroup = new Label( wTopicsComp, SWT.RIGHT );
+    m_wlShareGroup.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ShareGroup.Label" ) );
+    m_wlShareGroup
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ShareGroup.ToolTip" ) );
+    props.setLook( m_wlShareGroup );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlShareGroup.setLayoutData( fd );
+
+    m_wShareGroup = new TextVar( transMeta, wTopicsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wShareGroup );
+    m_wShareGroup.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wShareGroup.setLayoutData( fd );
+    lastControl = m_wShareGroup;
+
     ColumnInfo[] colinf =
       new ColumnInfo[] {
         new ColumnInfo( "Topic", ColumnInfo.COLUMN_TYPE_TEXT ),
@@ -647,6 +1096,481 @@ public class MQTTSubscriberDialog extends BaseStepDialog implements StepDialogIn
     wTopicsComp.layout();
     m_wTopicsTab.setControl( wTopicsComp );
 
+    // ====================
+    // Reconnect TAB
+    // ====================
+    m_wReconnectTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wReconnectTab.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ReconnectTab.Label" ) );
+    Composite wReconnectComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wReconnectComp );
+    FormLayout reconnectLayout = new FormLayout();
+    reconnectLayout.marginWidth = Const.FORM_MARGIN;
+    reconnectLayout.marginHeight = Const.FORM_MARGIN;
+    wReconnectComp.setLayout( reconnectLayout );
+
+    Label wlReconnectInitialDelay = new Label( wReconnectComp, SWT.RIGHT );
+    wlReconnectInitialDelay.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ReconnectInitialDelay.Label" ) );
+    wlReconnectInitialDelay.setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ReconnectInitialDelay.ToolTip" ) );
+    props.setLook( wlReconnectInitialDelay );
+    fd = new FormData();
+    fd.top = new FormAttachment( 0, margin * 2 );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlReconnectInitialDelay.setLayoutData( fd );
+
+    m_wReconnectInitialDelay = new TextVar( transMeta, wReconnectComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wReconnectInitialDelay );
+    m_wReconnectInitialDelay.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( 0, margin * 2 );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wReconnectInitialDelay.setLayoutData( fd );
+    lastControl = m_wReconnectInitialDelay;
+
+    Label wlReconnectMaxDelay = new Label( wReconnectComp, SWT.RIGHT );
+    wlReconnectMaxDelay.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ReconnectMaxDelay.Label" ) );
+    wlReconnectMaxDelay.setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ReconnectMaxDelay.ToolTip" ) );
+    props.setLook( wlReconnectMaxDelay );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlReconnectMaxDelay.setLayoutData( fd );
+
+    m_wReconnectMaxDelay = new TextVar( transMeta, wReconnectComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wReconnectMaxDelay );
+    m_wReconnectMaxDelay.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wReconnectMaxDelay.setLayoutData( fd );
+    lastControl = m_wReconnectMaxDelay;
+
+    Label wlReconnectMaxAttempts = new Label( wReconnectComp, SWT.RIGHT );
+    wlReconnectMaxAttempts.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ReconnectMaxAttempts.Label" ) );
+    wlReconnectMaxAttempts.setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ReconnectMaxAttempts.ToolTip" ) );
+    props.setLook( wlReconnectMaxAttempts );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlReconnectMaxAttempts.setLayoutData( fd );
+
+    m_wReconnectMaxAttempts = new TextVar( transMeta, wReconnectComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wReconnectMaxAttempts );
+    m_wReconnectMaxAttempts.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wReconnectMaxAttempts.setLayoutData( fd );
+    lastControl = m_wReconnectMaxAttempts;
+
+    Label wlReconnectMaxDuration = new Label( wReconnectComp, SWT.RIGHT );
+    wlReconnectMaxDuration.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ReconnectMaxDuration.Label" ) );
+    wlReconnectMaxDuration.setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ReconnectMaxDuration.ToolTip" ) );
+    props.setLook( wlReconnectMaxDuration );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlReconnectMaxDuration.setLayoutData( fd );
+
+    m_wReconnectMaxDuration = new TextVar( transMeta, wReconnectComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wReconnectMaxDuration );
+    m_wReconnectMaxDuration.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wReconnectMaxDuration.setLayoutData( fd );
+    lastControl = m_wReconnectMaxDuration;
+
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    fd.bottom = new FormAttachment( 100, 0 );
+    wReconnectComp.setLayoutData( fd );
+    wReconnectComp.layout();
+    m_wReconnectTab.setControl( wReconnectComp );
+
+    // ====================
+    // PROTOCOL TAB
+    // ====================
+    m_wProtocolTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wProtocolTab.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ProtocolTab.Label" ) );
+
+    Composite wProtocolComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wProtocolComp );
+
+    FormLayout protocolCompLayout = new FormLayout();
+    protocolCompLayout.marginWidth = Const.FORM_MARGIN;
+    protocolCompLayout.marginHeight = Const.FORM_MARGIN;
+    wProtocolComp.setLayout( protocolCompLayout );
+
+    // MQTT version
+    Label wlMqttVersion = new Label( wProtocolComp, SWT.RIGHT );
+    wlMqttVersion.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MqttVersion.Label" ) );
+    wlMqttVersion
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MqttVersion.ToolTip" ) );
+    props.setLook( wlMqttVersion );
+    fd = new FormData();
+    fd.top = new FormAttachment( 0, 2 * margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlMqttVersion.setLayoutData( fd );
+    m_wMqttVersion = new CCombo( wProtocolComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER | SWT.READ_ONLY );
+    props.setLook( m_wMqttVersion );
+    m_wMqttVersion.setItems( MqttVersion.VERSIONS );
+    m_wMqttVersion.addModifyListener( lsMod );
+    m_wMqttVersion.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        enableV5Settings();
+      }
+    } );
+    fd = new FormData();
+    fd.top = new FormAttachment( 0, 2 * margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wMqttVersion.setLayoutData( fd );
+    lastControl = m_wMqttVersion;
+
+    // Receive maximum
+    m_wlReceiveMaximum = new Label( wProtocolComp, SWT.RIGHT );
+    m_wlReceiveMaximum
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ReceiveMaximum.Label" ) );
+    m_wlReceiveMaximum.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ReceiveMaximum.ToolTip" ) );
+    props.setLook( m_wlReceiveMaximum );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlReceiveMaximum.setLayoutData( fd );
+    m_wReceiveMaximum = new TextVar( transMeta, wProtocolComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wReceiveMaximum );
+    m_wReceiveMaximum.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wReceiveMaximum.setLayoutData( fd );
+    lastControl = m_wReceiveMaximum;
+
+    // Topic alias maximum
+    m_wlTopicAliasMaximum = new Label( wProtocolComp, SWT.RIGHT );
+    m_wlTopicAliasMaximum
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.TopicAliasMaximum.Label" ) );
+    m_wlTopicAliasMaximum.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.TopicAliasMaximum.ToolTip" ) );
+    props.setLook( m_wlTopicAliasMaximum );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlTopicAliasMaximum.setLayoutData( fd );
+    m_wTopicAliasMaximum = new TextVar( transMeta, wProtocolComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wTopicAliasMaximum );
+    m_wTopicAliasMaximum.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wTopicAliasMaximum.setLayoutData( fd );
+    lastControl = m_wTopicAliasMaximum;
+
+    // User properties
+    m_wlUserProperties = new Label( wProtocolComp, SWT.RIGHT );
+    m_wlUserProperties
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.UserProperties.Label" ) );
+    m_wlUserProperties.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.UserProperties.ToolTip" ) );
+    props.setLook( m_wlUserProperties );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlUserProperties.setLayoutData( fd );
+    m_wUserProperties = new TextVar( transMeta, wProtocolComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wUserProperties );
+    m_wUserProperties.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wUserProperties.setLayoutData( fd );
+    lastControl = m_wUserProperties;
+
+    // Session expiry
+    m_wlSessionExpiryInterval = new Label( wProtocolComp, SWT.RIGHT );
+    m_wlSessionExpiryInterval
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SessionExpiryInterval.Label" ) );
+    m_wlSessionExpiryInterval.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SessionExpiryInterval.ToolTip" ) );
+    props.setLook( m_wlSessionExpiryInterval );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlSessionExpiryInterval.setLayoutData( fd );
+    m_wSessionExpiryInterval = new TextVar( transMeta, wProtocolComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wSessionExpiryInterval );
+    m_wSessionExpiryInterval.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wSessionExpiryInterval.setLayoutData( fd );
+    lastControl = m_wSessionExpiryInterval;
+
+    FormData fdProtocolComp = new FormData();
+    fdProtocolComp.left = new FormAttachment( 0, 0 );
+    fdProtocolComp.top = new FormAttachment( 0, 0 );
+    fdProtocolComp.right = new FormAttachment( 100, 0 );
+    fdProtocolComp.bottom = new FormAttachment( 100, 0 );
+    wProtocolComp.setLayoutData( fdProtocolComp );
+
+    wProtocolComp.layout();
+    m_wProtocolTab.setControl( wProtocolComp );
+
+    // ====================
+    // DELIVERY TAB
+    // ====================
+    m_wDeliveryTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wDeliveryTab.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.DeliveryTab.Label" ) );
+
+    Composite wDeliveryComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wDeliveryComp );
+
+    FormLayout deliveryCompLayout = new FormLayout();
+    deliveryCompLayout.marginWidth = Const.FORM_MARGIN;
+    deliveryCompLayout.marginHeight = Const.FORM_MARGIN;
+    wDeliveryComp.setLayout( deliveryCompLayout );
+
+    // Manual acknowledgements
+    Label wlManualAcks = new Label( wDeliveryComp, SWT.RIGHT );
+    wlManualAcks.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ManualAcks.Label" ) );
+    wlManualAcks
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ManualAcks.ToolTip" ) );
+    props.setLook( wlManualAcks );
+    fd = new FormData();
+    fd.top = new FormAttachment( 0, 2 * margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlManualAcks.setLayoutData( fd );
+    m_wManualAcks = new Button( wDeliveryComp, SWT.CHECK );
+    props.setLook( m_wManualAcks );
+    m_wManualAcks.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        m_subscriberMeta.setChanged();
+        enableManualAcks();
+      }
+    } );
+    fd = new FormData();
+    fd.top = new FormAttachment( 0, 2 * margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wManualAcks.setLayoutData( fd );
+    lastControl = m_wManualAcks;
+
+    // Checkpoint step
+    m_wlAckCheckpointStep = new Label( wDeliveryComp, SWT.RIGHT );
+    m_wlAckCheckpointStep
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.AckCheckpointStep.Label" ) );
+    m_wlAckCheckpointStep.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.AckCheckpointStep.ToolTip" ) );
+    props.setLook( m_wlAckCheckpointStep );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlAckCheckpointStep.setLayoutData( fd );
+    m_wAckCheckpointStep = new CCombo( wDeliveryComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wAckCheckpointStep );
+    m_wAckCheckpointStep.setItems( transMeta.getStepNames() );
+    m_wAckCheckpointStep.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wAckCheckpointStep.setLayoutData( fd );
+    lastControl = m_wAckCheckpointStep;
+
+    // Ack sequence field
+    m_wlAckSequenceField = new Label( wDeliveryComp, SWT.RIGHT );
+    m_wlAckSequenceField
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.AckSequenceField.Label" ) );
+    m_wlAckSequenceField.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.AckSequenceField.ToolTip" ) );
+    props.setLook( m_wlAckSequenceField );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlAckSequenceField.setLayoutData( fd );
+    m_wAckSequenceField = new TextVar( transMeta, wDeliveryComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wAckSequenceField );
+    m_wAckSequenceField.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wAckSequenceField.setLayoutData( fd );
+    lastControl = m_wAckSequenceField;
+
+    // Off-heap queue
+    Label wlOffHeapQueue = new Label( wDeliveryComp, SWT.RIGHT );
+    wlOffHeapQueue.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.OffHeapQueue.Label" ) );
+    wlOffHeapQueue
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.OffHeapQueue.ToolTip" ) );
+    props.setLook( wlOffHeapQueue );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, 2 * margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlOffHeapQueue.setLayoutData( fd );
+    m_wOffHeapQueue = new Button( wDeliveryComp, SWT.CHECK );
+    props.setLook( m_wOffHeapQueue );
+    m_wOffHeapQueue.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        m_subscriberMeta.setChanged();
+        enableOffHeapQueue();
+      }
+    } );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, 2 * margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wOffHeapQueue.setLayoutData( fd );
+    lastControl = m_wOffHeapQueue;
+
+    // Off-heap buffer size
+    m_wlOffHeapBufferSize = new Label( wDeliveryComp, SWT.RIGHT );
+    m_wlOffHeapBufferSize
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.OffHeapBufferSize.Label" ) );
+    m_wlOffHeapBufferSize.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.OffHeapBufferSize.ToolTip" ) );
+    props.setLook( m_wlOffHeapBufferSize );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlOffHeapBufferSize.setLayoutData( fd );
+    m_wOffHeapBufferSize = new TextVar( transMeta, wDeliveryComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wOffHeapBufferSize );
+    m_wOffHeapBufferSize.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wOffHeapBufferSize.setLayoutData( fd );
+    lastControl = m_wOffHeapBufferSize;
+
+    // Spill to disk
+    Label wlSpillToDisk = new Label( wDeliveryComp, SWT.RIGHT );
+    wlSpillToDisk.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SpillToDisk.Label" ) );
+    wlSpillToDisk
+        .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SpillToDisk.ToolTip" ) );
+    props.setLook( wlSpillToDisk );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, 2 * margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlSpillToDisk.setLayoutData( fd );
+    m_wSpillToDisk = new Button( wDeliveryComp, SWT.CHECK );
+    props.setLook( m_wSpillToDisk );
+    m_wSpillToDisk.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        m_subscriberMeta.setChanged();
+        enableSpill();
+      }
+    } );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, 2 * margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wSpillToDisk.setLayoutData( fd );
+    lastControl = m_wSpillToDisk;
+
+    // Spill threshold
+    m_wlSpillThreshold = new Label( wDeliveryComp, SWT.RIGHT );
+    m_wlSpillThreshold
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SpillThreshold.Label" ) );
+    m_wlSpillThreshold.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SpillThreshold.ToolTip" ) );
+    props.setLook( m_wlSpillThreshold );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlSpillThreshold.setLayoutData( fd );
+    m_wSpillThreshold = new TextVar( transMeta, wDeliveryComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wSpillThreshold );
+    m_wSpillThreshold.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wSpillThreshold.setLayoutData( fd );
+    lastControl = m_wSpillThreshold;
+
+    // Spill directory
+    m_wlSpillDirectory = new Label( wDeliveryComp, SWT.RIGHT );
+    m_wlSpillDirectory
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SpillDirectory.Label" ) );
+    m_wlSpillDirectory.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SpillDirectory.ToolTip" ) );
+    props.setLook( m_wlSpillDirectory );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlSpillDirectory.setLayoutData( fd );
+    m_wSpillDirectory = new TextVar( transMeta, wDeliveryComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wSpillDirectory );
+    m_wSpillDirectory.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wSpillDirectory.setLayoutData( fd );
+    lastControl = m_wSpillDirectory;
+
+    // Spill file size
+    m_wlSpillSegmentSize = new Label( wDeliveryComp, SWT.RIGHT );
+    m_wlSpillSegmentSize
+        .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SpillSegmentSize.Label" ) );
+    m_wlSpillSegmentSize.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SpillSegmentSize.ToolTip" ) );
+    props.setLook( m_wlSpillSegmentSize );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlSpillSegmentSize.setLayoutData( fd );
+    m_wSpillSegmentSize = new TextVar( transMeta, wDeliveryComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wSpillSegmentSize );
+    m_wSpillSegmentSize.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wSpillSegmentSize.setLayoutData( fd );
+    lastControl = m_wSpillSegmentSize;
+
+    FormData fdDeliveryComp = new FormData();
+    fdDeliveryComp.left = new FormAttachment( 0, 0 );
+    fdDeliveryComp.top = new FormAttachment( 0, 0 );
+    fdDeliveryComp.right = new FormAttachment( 100, 0 );
+    fdDeliveryComp.bottom = new FormAttachment( 100, 0 );
+    wDeliveryComp.setLayoutData( fdDeliveryComp );
+
+    wDeliveryComp.layout();
+    m_wDeliveryTab.setControl( wDeliveryComp );
+
     // ====================
     // BUTTONS
     // ====================
@@ -723,6 +1647,142 @@ public class MQTTSubscriberDialog extends BaseStepDialog implements StepDialogIn
     }
   }
 
+  private void enablePersistenceDirectory() {
+    boolean enabled = ClientPersistence.FILE.equals( m_wPersistence.getText() )
+        || ClientPersistence.JOURNAL.equals( m_wPersistence.getText() );
+    m_wlPersistenceDirectory.setEnabled( enabled );
+    m_wPersistenceDirectory.setEnabled( enabled );
+  }
+
+  private void enableV5Settings() {
+    boolean enabled = MqttVersion.isV5( m_wMqttVersion.getText() );
+    m_wlReceiveMaximum.setEnabled( enabled );
+    m_wReceiveMaximum.setEnabled( enabled );
+    m_wlTopicAliasMaximum.setEnabled( enabled );
+    m_wTopicAliasMaximum.setEnabled( enabled );
+    m_wlUserProperties.setEnabled( enabled );
+    m_wUserProperties.setEnabled( enabled );
+    m_wlSessionExpiryInterval.setEnabled( enabled && m_wPersistentSession.getSelection() );
+    m_wSessionExpiryInterval.setEnabled( enabled && m_wPersistentSession.getSelection() );
+  }
+
+  private void enableManualAcks() {
+    boolean enabled = m_wManualAcks.getSelection();
+    m_wlAckCheckpointStep.setEnabled( enabled );
+    m_wAckCheckpointStep.setEnabled( enabled );
+    m_wlAckSequenceField.setEnabled( enabled );
+    m_wAckSequenceField.setEnabled( enabled );
+  }
+
+  private void enableDecodedFields() {
+    // the value codec always decodes into the single message field
+    boolean enabled = !PayloadCodecs.isValue( m_wCodec.getText() );
+    m_wlDecodedFields.setEnabled( enabled );
+    m_wDecodedFields.setEnabled( enabled );
+    m_wlSchemaTopic.setEnabled( enabled );
+    m_wSchemaTopic.setEnabled( enabled );
+    m_wGetSchema.setEnabled( enabled );
+  }
+
+  /**
+   * Fill in the decoded fields from the schema a publisher left on the schema topic
+   */
+  private void getFieldsFromSchema() {
+    MQTTSubscriberMeta meta = new MQTTSubscriberMeta();
+    setData( meta );
+    String schemaTopic = transMeta.environmentSubstitute( meta.getSchemaTopic() );
+    try {
+      PayloadCodec codec = PayloadCodecs.getCodec( transMeta.environmentSubstitute( meta.getCodec() ) );
+      byte[] schema = Const.isEmpty( schemaTopic ) ? null : readRetainedMessage( meta, schemaTopic );
+      RowMetaInterface fields = schema != null ? codec.readSchema( schema ) : null;
+      if ( fields == null ) {
+        throw new KettleException(
+            BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.GetSchema.NoSchema", schemaTopic ) );
+      }
+      m_wDecodedFields.setText( PayloadCodecs.formatFields( fields ) );
+    } catch ( Exception e ) {
+      new ErrorDialog( shell, BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.GetSchema.Error.Title" ),
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.GetSchema.Error.Message", schemaTopic ), e );
+    }
+  }
+
+  /**
+   * Connect to the broker just long enough to pick up the message retained on a topic
+   *
+   * @param meta  the step settings to connect with
+   * @param topic the topic
+   * @return the retained message's payload, or null if there is none
+   * @throws Exception if the broker can't be reached
+   */
+  private byte[] readRetainedMessage( MQTTSubscriberMeta meta, String topic ) throws Exception {
+    String broker = transMeta.environmentSubstitute( meta.getBroker() );
+    MqttConnectOptions connectOptions = new MqttConnectOptions();
+    if ( meta.isRequiresAuth() ) {
+      connectOptions.setUserName( transMeta.environmentSubstitute( meta.getUsername() ) );
+      connectOptions.setPassword( transMeta.environmentSubstitute( meta.getPassword() ).toCharArray() );
+    }
+    if ( broker.startsWith( "ssl:" ) || broker.startsWith( "wss:" ) ) {
+      connectOptions.setSocketFactory( SSLSocketFactoryGenerator
+          .getSocketFactory( transMeta.environmentSubstitute( meta.getSSLCaFile() ),
+              transMeta.environmentSubstitute( meta.getSSLCertFile() ),
+              transMeta.environmentSubstitute( meta.getSSLKeyFile() ),
+              transMeta.environmentSubstitute( meta.getSSLKeyFilePass() ) ) );
+    }
+    connectOptions.setCleanSession( true );
+
+    final byte[][] received = new byte[1][];
+    final CountDownLatch arrived = new CountDownLatch( 1 );
+    MqttClient client = new MqttClient( broker,
+        ClientIdStrategy.resolve( ClientIdStrategy.RANDOM, "pdi-schema", null, 0 ), new MemoryPersistence() );
+    try {
+      client.setCallback( new MqttCallback() {
+        @Override public void connectionLost( Throwable throwable ) {
+          arrived.countDown();
+        }
+
+        @Override public void messageArrived( String t, MqttMessage message ) {
+          received[0] = message.getPayload();
+          arrived.countDown();
+        }
+
+        @Override public void deliveryComplete( IMqttDeliveryToken token ) {
+        }
+      } );
+      client.connect( connectOptions );
+      client.subscribe( new String[] { topic }, new int[] { 1 } );
+      // retained messages are sent straight after the subscription is acknowledged
+      arrived.await( SCHEMA_WAIT_SECONDS, TimeUnit.SECONDS );
+      if ( client.isConnected() ) {
+        client.disconnect();
+      }
+    } finally {
+      client.close();
+    }
+    return received[0];
+  }
+
+  private void enableOffHeapQueue() {
+    boolean enabled = m_wOffHeapQueue.getSelection();
+    m_wlOffHeapBufferSize.setEnabled( enabled );
+    m_wOffHeapBufferSize.setEnabled( enabled );
+  }
+
+  private void enableSpill() {
+    boolean enabled = m_wSpillToDisk.getSelection();
+    m_wlSpillThreshold.setEnabled( enabled );
+    m_wSpillThreshold.setEnabled( enabled );
+    m_wlSpillDirectory.setEnabled( enabled );
+    m_wSpillDirectory.setEnabled( enabled );
+    m_wlSpillSegmentSize.setEnabled( enabled );
+    m_wSpillSegmentSize.setEnabled( enabled );
+  }
+
+  private void enableConnectionIdleTimeout() {
+    boolean enabled = m_wSharedConnection.getSelection();
+    m_wlConnectionIdleTimeout.setEnabled( enabled );
+    m_wConnectionIdleTimeout.setEnabled( enabled );
+  }
+
   private void cancel() {
     stepname = null;
     m_subscriberMeta.setChanged( changed );
@@ -733,9 +1793,38 @@ public class MQTTSubscriberDialog extends BaseStepDialog implements StepDialogIn
     subscriberMeta.setBroker( m_wBroker.getText() );
 
     subscriberMeta.setClientId( m_wClientID.getText() );
+    subscriberMeta.setClientIdStrategy( m_wClientIdStrategy.getText() );
+    subscriberMeta.setPersistence( m_wPersistence.getText() );
+    subscriberMeta.setPersistenceDirectory( m_wPersistenceDirectory.getText() );
+    subscriberMeta.setSharedConnection( m_wSharedConnection.getSelection() );
+    subscriberMeta.setConnectionIdleTimeout( m_wConnectionIdleTimeout.getText() );
+    subscriberMeta.setMqttVersion( m_wMqttVersion.getText() );
+    subscriberMeta.setReceiveMaximum( m_wReceiveMaximum.getText() );
+    subscriberMeta.setTopicAliasMaximum( m_wTopicAliasMaximum.getText() );
+    subscriberMeta.setUserProperties( m_wUserProperties.getText() );
+    subscriberMeta.setPersistentSession( m_wPersistentSession.getSelection() );
+    subscriberMeta.setSessionExpiryInterval( m_wSessionExpiryInterval.getText() );
+    subscriberMeta.setManualAcks( m_wManualAcks.getSelection() );
+    subscriberMeta.setAckCheckpointStep( m_wAckCheckpointStep.getText() );
+    subscriberMeta.setAckSequenceField( m_wAckSequenceField.getText() );
+    subscriberMeta.setOffHeapQueue( m_wOffHeapQueue.getSelection() );
+    subscriberMeta.setOffHeapBufferSize( m_wOffHeapBufferSize.getText() );
+    subscriberMeta.setSpillToDisk( m_wSpillToDisk.getSelection() );
+    subscriberMeta.setSpillThreshold( m_wSpillThreshold.getText() );
+    subscriberMeta.setSpillDirectory( m_wSpillDirectory.getText() );
+    subscriberMeta.setSpillSegmentSize( m_wSpillSegmentSize.getText() );
     subscriberMeta.setTimeout( m_wTimeout.getText() );
     subscriberMeta.setKeepAliveInterval( m_wkeepAlive.getText() );
     subscriberMeta.setExecuteForDuration( m_wExecuteForDuration.getText() );
+    subscriberMeta.setQueueCapacity( m_wQueueCapacity.getText() );
+    subscriberMeta.setMaxIdleWait( m_wMaxIdleWait.getText() );
+    subscriberMeta.setBatchFraming( m_wBatchFraming.getText() );
+    subscriberMeta.setSharedSubscription( m_wSharedSubscription.getSelection() );
+    subscriberMeta.setShareGroup( m_wShareGroup.getText() );
+    subscriberMeta.setReconnectInitialDelay( m_wReconnectInitialDelay.getText() );
+    subscriberMeta.setReconnectMaxDelay( m_wReconnectMaxDelay.getText() );
+    subscriberMeta.setReconnectMaxAttempts( m_wReconnectMaxAttempts.getText() );
+    subscriberMeta.setReconnectMaxDuration( m_wReconnectMaxDuration.getText() );
     subscriberMeta.setQoS( m_wQOS.getText() );
 
     boolean requiresAuth = m_wRequiresAuth.getSelection();
@@ -754,6 +1843,10 @@ public class MQTTSubscriberDialog extends BaseStepDialog implements StepDialogIn
     subscriberMeta.setMessageType(
       Const.NVL( m_wTopicMessageTypeCombo.getText(),
         ValueMetaFactory.getValueMetaName( ValueMetaInterface.TYPE_STRING ) ) );
+    subscriberMeta.setCodec( Const.NVL( m_wCodec.getText(), PayloadCodecs.VALUE ) );
+    subscriberMeta.setDecodedFields( m_wDecodedFields.getText() );
+    subscriberMeta.setCodecOptions( m_wCodecOptions.getText() );
+    subscriberMeta.setSchemaTopic( m_wSchemaTopic.getText() );
 
     // fields
     int nrNonEmptyFields = m_wTopicsTable.nrNonEmpty();
@@ -773,10 +1866,47 @@ public class MQTTSubscriberDialog extends BaseStepDialog implements StepDialogIn
     }
     m_wBroker.setText( Const.NVL( subscriberMeta.getBroker(), "" ) );
     m_wClientID.setText( Const.NVL( subscriberMeta.getClientId(), "" ) );
+    m_wClientIdStrategy.setText( Const.NVL( subscriberMeta.getClientIdStrategy(), ClientIdStrategy.AS_IS ) );
+    m_wPersistence.setText( Const.NVL( subscriberMeta.getPersistence(), ClientPersistence.MEMORY ) );
+    m_wPersistenceDirectory.setText( Const.NVL( subscriberMeta.getPersistenceDirectory(), "" ) );
+    m_wSharedConnection.setSelection( subscriberMeta.isSharedConnection() );
+    m_wConnectionIdleTimeout.setText( Const.NVL( subscriberMeta.getConnectionIdleTimeout(), "300" ) );
+    enablePersistenceDirectory();
+    enableConnectionIdleTimeout();
+    m_wMqttVersion.setText( Const.NVL( subscriberMeta.getMqttVersion(), MqttVersion.V3_1_1 ) );
+    m_wReceiveMaximum.setText( Const.NVL( subscriberMeta.getReceiveMaximum(), "" ) );
+    m_wTopicAliasMaximum.setText( Const.NVL( subscriberMeta.getTopicAliasMaximum(), "" ) );
+    m_wUserProperties.setText( Const.NVL( subscriberMeta.getUserProperties(), "" ) );
+    m_wPersistentSession.setSelection( subscriberMeta.isPersistentSession() );
+    m_wSessionExpiryInterval.setText( Const.NVL( subscriberMeta.getSessionExpiryInterval(), "" ) );
+    m_wManualAcks.setSelection( subscriberMeta.isManualAcks() );
+    m_wAckCheckpointStep.setText( Const.NVL( subscriberMeta.getAckCheckpointStep(), "" ) );
+    m_wAckSequenceField.setText( Const.NVL( subscriberMeta.getAckSequenceField(), "mqtt_ack_sequence" ) );
+    enableManualAcks();
+    m_wOffHeapQueue.setSelection( subscriberMeta.isOffHeapQueue() );
+    m_wOffHeapBufferSize.setText( Const.NVL( subscriberMeta.getOffHeapBufferSize(), "64" ) );
+    enableOffHeapQueue();
+    m_wSpillToDisk.setSelection( subscriberMeta.isSpillToDisk() );
+    m_wSpillThreshold.setText( Const.NVL( subscriberMeta.getSpillThreshold(), "" ) );
+    m_wSpillDirectory.setText( Const.NVL( subscriberMeta.getSpillDirectory(), "" ) );
+    m_wSpillSegmentSize.setText( Const.NVL( subscriberMeta.getSpillSegmentSize(), "64" ) );
+    enableSpill();
+    enableV5Settings();
     m_wTimeout.setText( Const.NVL( subscriberMeta.getTimeout(), "30" ) );
     m_wkeepAlive.setText( Const.NVL( subscriberMeta.getKeepAliveInterval(), "60" ) );
     m_wQOS.setText( Const.NVL( subscriberMeta.getQoS(), "0" ) );
     m_wExecuteForDuration.setText( Const.NVL( subscriberMeta.getExecuteForDuration(), "0" ) );
+    m_wQueueCapacity.setText( Const.NVL( subscriberMeta.getQueueCapacity(), "10000" ) );
+    m_wMaxIdleWait.setText( Const.NVL( subscriberMeta.getMaxIdleWait(), "100" ) );
+    m_wBatchFraming.setText( Const.NVL( subscriberMeta.getBatchFraming(), BatchFraming.NONE ) );
+    m_wSharedSubscription.setSelection( subscriberMeta.isSharedSubscription() );
+    m_wShareGroup.setText( Const.NVL( subscriberMeta.getShareGroup(), "" ) );
+    m_wReconnectInitialDelay.setText( Const.NVL( subscriberMeta.getReconnectInitialDelay(), "1000" ) );
+    m_wReconnectMaxDelay.setText( Const.NVL( subscriberMeta.getReconnectMaxDelay(), "60000" ) );
+    m_wReconnectMaxAttempts.setText( Const.NVL( subscriberMeta.getReconnectMaxAttempts(), "0" ) );
+    m_wReconnectMaxDuration.setText( Const.NVL( subscriberMeta.getReconnectMaxDuration(), "300" ) );
+    m_wlShareGroup.setEnabled( subscriberMeta.isSharedSubscription() );
+    m_wShareGroup.setEnabled( subscriberMeta.isSharedSubscription() );
 
     m_wRequiresAuth.setSelection( subscriberMeta.isRequiresAuth() );
     m_wRequiresAuth.notifyListeners( SWT.Selection, new Event() );
@@ -792,6 +1922,11 @@ public class MQTTSubscriberDialog extends BaseStepDialog implements StepDialogIn
     m_wKeyPassword.setText( Const.NVL( subscriberMeta.getSSLKeyFilePass(), "" ) );
     m_wTopicMessageTypeCombo.setText( Const
       .NVL( subscriberMeta.getMessageType(), ValueMetaFactory.getValueMetaName( ValueMetaInterface.TYPE_STRING ) ) );
+    m_wCodec.setText( Const.NVL( subscriberMeta.getCodec(), PayloadCodecs.VALUE ) );
+    m_wDecodedFields.setText( Const.NVL( subscriberMeta.getDecodedFields(), "" ) );
+    m_wCodecOptions.setText( Const.NVL( subscriberMeta.getCodecOptions(), "" ) );
+    m_wSchemaTopic.setText( Const.NVL( subscriberMeta.getSchemaTopic(), "" ) );
+    enableDecodedFields();
 
     List<String> topics = subscriberMeta.getTopics();
     if ( topics.size() > 0 ) {
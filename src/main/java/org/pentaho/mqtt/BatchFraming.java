@@ -0,0 +1,281 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Packs several message payloads into a single MQTT message and unpacks them again.
+ * <ul>
+ * <li>{@link #LENGTH_PREFIXED} - each payload is preceded by its length as a 4 byte big-endian int. Works for any
+ * payload.</li>
+ * <li>{@link #JSON_ARRAY} - the payloads are written verbatim as the elements of a JSON array, so each one must be a
+ * JSON value (object, array, number, quoted string, ...) encoded as UTF-8 - see {@link #isJsonValue(byte[])}.</li>
+ * </ul>
+ */
+public class BatchFraming {
+
+  public static final String NONE = "none";
+  public static final String LENGTH_PREFIXED = "length-prefixed";
+  public static final String JSON_ARRAY = "json-array";
+
+  /**
+   * All framing names, in the order they are offered in the step dialogs
+   */
+  public static final String[] FRAMINGS = { NONE, LENGTH_PREFIXED, JSON_ARRAY };
+
+  protected static final Pattern JSON_LITERAL =
+      Pattern.compile( "true|false|null|-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?" );
+
+  /**
+   * @param framing the framing name (null or empty means {@link #NONE})
+   * @return true if the framing actually batches messages
+   */
+  public static boolean isBatching( String framing ) {
+    return framing != null && framing.length() > 0 && !NONE.equals( framing );
+  }
+
+  /**
+   * @param framing the framing name
+   * @return true if the name is one this class knows about
+   */
+  public static boolean isKnown( String framing ) {
+    return !isBatching( framing ) || LENGTH_PREFIXED.equals( framing ) || JSON_ARRAY.equals( framing );
+  }
+
+  /**
+   * @param framing the framing to use
+   * @return the number of bytes the framing adds to a batch regardless of how many payloads it holds
+   */
+  public static int batchOverhead( String framing ) {
+    return JSON_ARRAY.equals( framing ) ? 2 : 0;
+  }
+
+  /**
+   * @param framing the framing to use
+   * @param length  the length of a payload
+   * @param first   true if it is the first payload in the batch
+   * @return the number of bytes the payload will occupy in the framed batch
+   */
+  public static int framedSize( String framing, int length, boolean first ) {
+    if ( JSON_ARRAY.equals( framing ) ) {
+      return first ? length : length + 1;
+    }
+    return length + 4;
+  }
+
+  /**
+   * Pack payloads into a single message
+   *
+   * @param framing  the framing to use
+   * @param payloads the payloads to pack
+   * @param size     the framed size of the batch, as accumulated with {@link #batchOverhead(String)} and
+   *                 {@link #framedSize(String, int, boolean)}
+   * @return the framed batch
+   */
+  public static byte[] encode( String framing, List<byte[]> payloads, int size ) {
+    byte[] batch = new byte[size];
+    int pos = 0;
+    if ( JSON_ARRAY.equals( framing ) ) {
+      batch[pos++] = '[';
+      for ( int i = 0; i < payloads.size(); i++ ) {
+        if ( i > 0 ) {
+          batch[pos++] = ',';
+        }
+        byte[] payload = payloads.get( i );
+        System.arraycopy( payload, 0, batch, pos, payload.length );
+        pos += payload.length;
+      }
+      batch[pos] = ']';
+    } else if ( LENGTH_PREFIXED.equals( framing ) ) {
+      for ( byte[] payload : payloads ) {
+        int length = payload.length;
+        batch[pos++] = (byte) ( length >>> 24 );
+        batch[pos++] = (byte) ( length >>> 16 );
+        batch[pos++] = (byte) ( length >>> 8 );
+        batch[pos++] = (byte) length;
+        System.arraycopy( payload, 0, batch, pos, length );
+        pos += length;
+      }
+    } else {
+      throw new IllegalArgumentException( "Unknown batch framing: " + framing );
+    }
+    return batch;
+  }
+
+  /**
+   * Check that a payload can be an element of a {@link #JSON_ARRAY} batch: a single JSON object, array or string with
+   * its brackets balanced and its strings closed, or a number, true, false or null. Only the structure is checked -
+   * what lies inside objects and arrays is not validated.
+   *
+   * @param payload the payload
+   * @return true if the payload is a single JSON value
+   */
+  public static boolean isJsonValue( byte[] payload ) {
+    int start = skipWhitespace( payload, 0 );
+    int end = payload.length;
+    while ( end > start && isWhitespace( payload[end - 1] ) ) {
+      end--;
+    }
+    if ( start == end ) {
+      return false;
+    }
+    byte first = payload[start];
+    if ( first != '{' && first != '[' && first != '"' ) {
+      return JSON_LITERAL.matcher( new String( payload, start, end - start, StandardCharsets.US_ASCII ) ).matches();
+    }
+
+    // the value must end exactly where its outermost bracket or quote closes
+    int depth = 0;
+    boolean inString = false;
+    for ( int pos = start; pos < end; pos++ ) {
+      byte b = payload[pos];
+      if ( inString ) {
+        if ( b == '\\' ) {
+          pos++;
+        } else if ( b == '"' ) {
+          inString = false;
+          if ( depth == 0 ) {
+            return pos == end - 1;
+          }
+        }
+      } else if ( b == '"' ) {
+        inString = true;
+      } else if ( b == '[' || b == '{' ) {
+        depth++;
+      } else if ( b == ']' || b == '}' ) {
+        if ( --depth == 0 ) {
+          return pos == end - 1;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Unpack a message produced by {@link #encode(String, List, int)}
+   *
+   * @param framing the framing that was used
+   * @param batch   the framed batch
+   * @return the individual payloads
+   * @throws IOException if the batch is not framed as expected
+   */
+  public static List<byte[]> decode( String framing, byte[] batch ) throws IOException {
+    if ( JSON_ARRAY.equals( framing ) ) {
+      return decodeJsonArray( batch );
+    } else if ( LENGTH_PREFIXED.equals( framing ) ) {
+      return decodeLengthPrefixed( batch );
+    }
+    throw new IllegalArgumentException( "Unknown batch framing: " + framing );
+  }
+
+  protected static List<byte[]> decodeLengthPrefixed( byte[] batch ) throws IOException {
+    List<byte[]> payloads = new ArrayList<>();
+    int pos = 0;
+    while ( pos < batch.length ) {
+      if ( batch.length - pos < 4 ) {
+        throw new IOException( "Truncated length prefix at offset " + pos );
+      }
+      int length =
+          ( batch[pos] & 0xFF ) << 24 | ( batch[pos + 1] & 0xFF ) << 16 | ( batch[pos + 2] & 0xFF ) << 8
+              | batch[pos + 3] & 0xFF;
+      pos += 4;
+      if ( length < 0 || length > batch.length - pos ) {
+        throw new IOException( "Invalid payload length " + length + " at offset " + ( pos - 4 ) );
+      }
+      byte[] payload = new byte[length];
+      System.arraycopy( batch, pos, payload, 0, length );
+      payloads.add( payload );
+      pos += length;
+    }
+    return payloads;
+  }
+
+  /**
+   * Split a JSON array into the raw bytes of its top level elements. Only the structure needed to find element
+   * boundaries (nesting, strings and escapes) is looked at - the elements themselves are not validated.
+   */
+  protected static List<byte[]> decodeJsonArray( byte[] batch ) throws IOException {
+    List<byte[]> payloads = new ArrayList<>();
+    int pos = skipWhitespace( batch, 0 );
+    if ( pos >= batch.length || batch[pos] != '[' ) {
+      throw new IOException( "Batch is not a JSON array" );
+    }
+    pos = skipWhitespace( batch, pos + 1 );
+    if ( pos < batch.length && batch[pos] == ']' ) {
+      return payloads;
+    }
+
+    int start = pos;
+    int depth = 0;
+    boolean inString = false;
+    for ( ; pos < batch.length; pos++ ) {
+      byte b = batch[pos];
+      if ( inString ) {
+        if ( b == '\\' ) {
+          pos++;
+        } else if ( b == '"' ) {
+          inString = false;
+        }
+      } else if ( b == '"' ) {
+        inString = true;
+      } else if ( b == '[' || b == '{' ) {
+        depth++;
+      } else if ( ( b == ',' || b == ']' ) && depth == 0 ) {
+        int end = pos;
+        while ( end > start && isWhitespace( batch[end - 1] ) ) {
+          end--;
+        }
+        if ( end == start ) {
+          throw new IOException( "Empty JSON array element at offset " + start );
+        }
+        byte[] payload = new byte[end - start];
+        System.arraycopy( batch, start, payload, 0, payload.length );
+        payloads.add( payload );
+        if ( b == ']' ) {
+          return payloads;
+        }
+        start = skipWhitespace( batch, pos + 1 );
+        pos = start - 1;
+      } else if ( b == ']' || b == '}' ) {
+        depth--;
+      }
+    }
+    throw new IOException( "Unterminated JSON array" );
+  }
+
+  private static int skipWhitespace( byte[] batch, int pos ) {
+    while ( pos < batch.length && isWhitespace( batch[pos] ) ) {
+      pos++;
+    }
+    return pos;
+  }
+
+  private static boolean isWhitespace( byte b ) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+  }
+}
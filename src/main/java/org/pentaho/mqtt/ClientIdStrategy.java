@@ -0,0 +1,102 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import java.util.Random;
+
+/**
+ * Derives the MQTT client id each step copy connects with. Brokers only allow one session per client id, so copies
+ * that share an id keep disconnecting each other.
+ */
+public class ClientIdStrategy {
+
+  /**
+   * Use the configured client id unchanged
+   */
+  public static final String AS_IS = "as-is";
+
+  /**
+   * Append the step copy number
+   */
+  public static final String COPY_NUMBER = "copy-number";
+
+  /**
+   * Append the slave server name (when running on one) and the step copy number - unique across a cluster
+   */
+  public static final String SLAVE_SERVER_AND_COPY = "slave-server-and-copy";
+
+  /**
+   * Append a random suffix - unique, but different every time the transformation runs
+   */
+  public static final String RANDOM = "random";
+
+  /**
+   * All strategy names, in the order they are offered in the step dialogs
+   */
+  public static final String[] STRATEGIES = { AS_IS, COPY_NUMBER, SLAVE_SERVER_AND_COPY, RANDOM };
+
+  private static final Random s_random = new Random();
+
+  /**
+   * @param strategy the strategy name
+   * @return true if the name is one this class knows about (null or empty means {@link #AS_IS})
+   */
+  public static boolean isKnown( String strategy ) {
+    if ( strategy == null || strategy.length() == 0 ) {
+      return true;
+    }
+    for ( String s : STRATEGIES ) {
+      if ( s.equals( strategy ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param strategy    the strategy to apply
+   * @param clientId    the configured client id
+   * @param slaveServer the name of the slave server the step runs on (null or empty when not running on one)
+   * @param copy        the step copy number
+   * @return the client id to connect with
+   */
+  public static String resolve( String strategy, String clientId, String slaveServer, int copy ) {
+    if ( COPY_NUMBER.equals( strategy ) ) {
+      return clientId + "-" + copy;
+    } else if ( SLAVE_SERVER_AND_COPY.equals( strategy ) ) {
+      if ( slaveServer == null || slaveServer.length() == 0 ) {
+        return clientId + "-" + copy;
+      }
+      return clientId + "-" + slaveServer + "-" + copy;
+    } else if ( RANDOM.equals( strategy ) ) {
+      long suffix;
+      synchronized ( s_random ) {
+        suffix = s_random.nextLong() & Long.MAX_VALUE;
+      }
+      return clientId + "-" + Long.toString( suffix, 36 );
+    } else if ( strategy == null || strategy.length() == 0 || AS_IS.equals( strategy ) ) {
+      return clientId;
+    }
+    throw new IllegalArgumentException( "Unknown client id strategy: " + strategy );
+  }
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+
+/**
+ * Creates the store the MQTT client keeps in-flight QoS 1 and 2 messages in. Paho's own default is a directory of
+ * files in the working directory, one file per message.
+ */
+public class ClientPersistence {
+
+  /**
+   * Keep in-flight messages in memory only - lost if the JVM dies, which costs nothing when the session is clean
+   * anyway
+   */
+  public static final String MEMORY = "memory";
+
+  /**
+   * One file per in-flight message (Paho's default file persistence)
+   */
+  public static final String FILE = "file";
+
+  /**
+   * Append to a memory-mapped journal, forced to disk in batches (see {@link MappedJournalPersistence})
+   */
+  public static final String JOURNAL = "journal";
+
+  /**
+   * All persistence types, in the order they are offered in the step dialogs
+   */
+  public static final String[] TYPES = { MEMORY, FILE, JOURNAL };
+
+  /**
+   * @param type the persistence type
+   * @return true if the type is one this class knows about (null or empty means {@link #MEMORY})
+   */
+  public static boolean isKnown( String type ) {
+    if ( type == null || type.length() == 0 ) {
+      return true;
+    }
+    for ( String t : TYPES ) {
+      if ( t.equals( type ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param type the persistence type
+   * @return true if the store outlives the JVM, which a persistent session needs to complete the QoS 1 and 2 handshakes
+   * that were in flight when the step stopped
+   */
+  public static boolean isDurable( String type ) {
+    return FILE.equals( type ) || JOURNAL.equals( type );
+  }
+
+  /**
+   * @param type      the persistence type
+   * @param directory the directory to keep files in ({@link #FILE} and {@link #JOURNAL} only - null or empty for the
+   *                  working directory)
+   * @return a new, unopened persistence store
+   */
+  public static MqttClientPersistence create( String type, String directory ) {
+    if ( FILE.equals( type ) ) {
+      if ( directory == null || directory.length() == 0 ) {
+        return new MqttDefaultFilePersistence();
+      }
+      return new MqttDefaultFilePersistence( directory );
+    } else if ( JOURNAL.equals( type ) ) {
+      return new MappedJournalPersistence( directory );
+    } else if ( type == null || type.length() == 0 || MEMORY.equals( type ) ) {
+      return new MemoryPersistence();
+    }
+    throw new IllegalArgumentException( "Unknown client persistence: " + type );
+  }
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import java.util.Random;
+
+/**
+ * Capped exponential backoff with jitter. The delay before attempt n is drawn at random from the upper half of
+ * min(max, initial * 2^(n-1)), so that many clients that lost their connection at the same moment (e.g. because the
+ * broker restarted) do not all come back at the same moment too.
+ */
+public class ExponentialBackoff {
+
+  protected final long m_initialDelay;
+  protected final long m_maxDelay;
+  protected final Random m_random;
+
+  /**
+   * @param initialDelay the (un-jittered) delay before the first attempt
+   * @param maxDelay     the upper bound for the (un-jittered) delay
+   */
+  public ExponentialBackoff( long initialDelay, long maxDelay ) {
+    this( initialDelay, maxDelay, new Random() );
+  }
+
+  public ExponentialBackoff( long initialDelay, long maxDelay, Random random ) {
+    if ( initialDelay < 0 || maxDelay < 0 ) {
+      throw new IllegalArgumentException( "Delays must not be negative" );
+    }
+    m_initialDelay = initialDelay;
+    m_maxDelay = Math.max( initialDelay, maxDelay );
+    m_random = random;
+  }
+
+  /**
+   * @param attempt the attempt number, starting at 1
+   * @return the delay to wait before the attempt (in the unit the delays were given in)
+   */
+  public long delay( int attempt ) {
+    long base = m_initialDelay;
+    for ( int i = 1; i < attempt && base < m_maxDelay; i++ ) {
+      base <<= 1;
+    }
+    base = Math.min( base, m_maxDelay );
+    if ( base <= 1 ) {
+      return base;
+    }
+    long half = base / 2;
+    synchronized ( m_random ) {
+      return base - half + (long) ( m_random.nextDouble() * ( half + 1 ) );
+    }
+  }
+}
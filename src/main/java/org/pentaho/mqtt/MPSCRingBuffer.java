@@ -0,0 +1,213 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free, multi-producer single-consumer ring buffer. Each slot carries a sequence number that tells
+ * producers whether it is free and the consumer whether it has been published (after D. Vyukov's bounded queue).
+ * <p>
+ * {@link #offer(Object)} may be called from any number of threads; {@link #poll()} must only ever be called from a
+ * single consumer thread.
+ *
+ * @param <E> element type
+ */
+public class MPSCRingBuffer<E> {
+
+  /**
+   * Largest capacity - the largest power of two an int can hold
+   */
+  public static final int MAX_CAPACITY = 1 << 30;
+
+  protected final int m_capacity;
+  protected final int m_mask;
+  protected final AtomicReferenceArray<E> m_buffer;
+  protected final AtomicLongArray m_sequences;
+
+  /**
+   * Next slot to be claimed by a producer
+   */
+  protected final AtomicLong m_tail = new AtomicLong();
+
+  /**
+   * Next slot to be read by the consumer
+   */
+  protected volatile long m_head;
+
+  /**
+   * Largest number of elements seen in the buffer
+   */
+  protected final AtomicLong m_highWaterMark = new AtomicLong();
+
+  /**
+   * @param capacity the requested capacity - rounded up to the next power of two
+   * @throws IllegalArgumentException if the capacity is not positive or larger than {@link #MAX_CAPACITY}
+   */
+  public MPSCRingBuffer( int capacity ) {
+    if ( capacity < 1 || capacity > MAX_CAPACITY ) {
+      throw new IllegalArgumentException( "Capacity must be between 1 and " + MAX_CAPACITY + ": " + capacity );
+    }
+    int size = 1;
+    while ( size < capacity ) {
+      size <<= 1;
+    }
+    m_capacity = size;
+    m_mask = size - 1;
+    m_buffer = new AtomicReferenceArray<>( size );
+    m_sequences = new AtomicLongArray( size );
+    for ( int i = 0; i < size; i++ ) {
+      m_sequences.set( i, i );
+    }
+  }
+
+  /**
+   * Add an element to the buffer. Safe to call from multiple threads.
+   *
+   * @param element the element to add (non null)
+   * @return false if the buffer is full
+   */
+  public boolean offer( E element ) {
+    if ( element == null ) {
+      throw new NullPointerException();
+    }
+    long tail;
+    int index;
+    while ( true ) {
+      tail = m_tail.get();
+      index = (int) ( tail & m_mask );
+      long diff = m_sequences.get( index ) - tail;
+      if ( diff == 0 ) {
+        if ( m_tail.compareAndSet( tail, tail + 1 ) ) {
+          break;
+        }
+      } else if ( diff < 0 ) {
+        // the consumer has not freed this slot yet
+        return false;
+      }
+      // otherwise another producer claimed the slot first - try again
+    }
+
+    m_buffer.lazySet( index, element );
+    m_sequences.lazySet( index, tail + 1 );
+
+    // the consumer frees slots before it publishes its position after a drainTo, so clamp
+    long depth = Math.min( tail + 1 - m_head, m_capacity );
+    long high = m_highWaterMark.get();
+    while ( depth > high && !m_highWaterMark.compareAndSet( high, depth ) ) {
+      high = m_highWaterMark.get();
+    }
+    return true;
+  }
+
+  /**
+   * Remove the oldest element. Must only be called from the consumer thread.
+   *
+   * @return the oldest element or null if the buffer is empty
+   */
+  public E poll() {
+    long head = m_head;
+    int index = (int) ( head & m_mask );
+    if ( m_sequences.get( index ) != head + 1 ) {
+      // empty, or the producer that claimed this slot has not published it yet
+      return null;
+    }
+    E element = m_buffer.get( index );
+    m_buffer.lazySet( index, null );
+    m_sequences.lazySet( index, head + m_capacity );
+    m_head = head + 1;
+    return element;
+  }
+
+  /**
+   * Remove up to max of the oldest elements in one go. Must only be called from the consumer thread. Cheaper than
+   * repeated {@link #poll()} calls when a burst has to be drained, as the consumer position is published once for the
+   * whole run rather than once per element.
+   *
+   * @param target the collection to add the elements to
+   * @param max    the maximum number of elements to remove
+   * @return the number of elements removed
+   */
+  public int drainTo( Collection<? super E> target, int max ) {
+    long head = m_head;
+    int drained = 0;
+    while ( drained < max ) {
+      int index = (int) ( head & m_mask );
+      if ( m_sequences.get( index ) != head + 1 ) {
+        break;
+      }
+      target.add( m_buffer.get( index ) );
+      m_buffer.lazySet( index, null );
+      // hand the slot straight back to the producers
+      m_sequences.lazySet( index, head + m_capacity );
+      head++;
+      drained++;
+    }
+    if ( drained > 0 ) {
+      m_head = head;
+    }
+    return drained;
+  }
+
+  /**
+   * @return true if there is nothing to poll
+   */
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * @return the (approximate, when producers are active) number of elements in the buffer
+   */
+  public int size() {
+    long size = m_tail.get() - m_head;
+    if ( size < 0 ) {
+      return 0;
+    }
+    return (int) Math.min( size, m_capacity );
+  }
+
+  /**
+   * @return the actual capacity of the buffer
+   */
+  public int capacity() {
+    return m_capacity;
+  }
+
+  /**
+   * @return the total number of elements ever added
+   */
+  public long getTotalOffered() {
+    return m_tail.get();
+  }
+
+  /**
+   * @return the largest number of elements that have been in the buffer at once
+   */
+  public long getHighWaterMark() {
+    return m_highWaterMark.get();
+  }
+}
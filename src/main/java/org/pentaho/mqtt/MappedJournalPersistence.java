@@ -0,0 +1,548 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * {@link MqttClientPersistence} that appends every put and remove to a memory-mapped journal instead of writing one
+ * file per in-flight message (as {@link org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence} does).
+ * <p>
+ * The live entries are also kept in memory, so reads never touch the journal. The journal is only read when it is
+ * opened, to restore the entries of a previous run. Writes land in the page cache straight away (so they survive the
+ * JVM dying), but are only forced to disk once per sync interval, which batches the expensive part of an fsync over
+ * many messages. Writes that no later write forces are forced by a timer once the interval has passed, so nothing is
+ * left unforced for longer than the interval.
+ * <p>
+ * Two journal files are used alternately. When the active one is full, the live entries are compacted into the other
+ * one, whose header (carrying a generation number) is written last - a compaction cut short by a crash therefore
+ * leaves the previous journal in charge.
+ * <p>
+ * Journal layout: a 16 byte header (magic, generation, CRC of the generation) followed by records of the form
+ * [body length][CRC of body][body], where the body is [op][key length][key][header length][header][payload
+ * length][payload]. A body length of 0 marks the end of the journal.
+ */
+public class MappedJournalPersistence implements MqttClientPersistence {
+
+  protected static final int MAGIC = 0x4d514a31; // "MQJ1"
+  protected static final int FILE_HEADER_SIZE = 16;
+  protected static final int RECORD_HEADER_SIZE = 8;
+  protected static final byte OP_PUT = 1;
+  protected static final byte OP_REMOVE = 2;
+
+  public static final int DEFAULT_INITIAL_SIZE = 1024 * 1024;
+  public static final long DEFAULT_SYNC_INTERVAL_MS = 100;
+
+  /**
+   * Forces the writes at the end of a burst, which no later write does
+   */
+  protected static final ScheduledExecutorService s_syncTimer =
+      Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+        @Override public Thread newThread( Runnable r ) {
+          Thread t = new Thread( r, "MQTT journal sync" );
+          t.setDaemon( true );
+          return t;
+        }
+      } );
+
+  protected final String m_directory;
+  protected final int m_initialSize;
+  protected final long m_syncIntervalNanos;
+
+  protected final Map<String, Entry> m_entries = new LinkedHashMap<>();
+
+  protected File[] m_files;
+  protected RandomAccessFile m_lockFile;
+  protected FileLock m_lock;
+
+  protected int m_active;
+  protected long m_generation;
+  protected RandomAccessFile m_raf;
+  protected MappedByteBuffer m_buffer;
+  protected int m_position;
+  protected long m_lastSync;
+  protected boolean m_dirty;
+  protected ScheduledFuture<?> m_scheduledSync;
+
+  /**
+   * Bodies are copied here to be checksummed - a bulk copy is much faster than reading the mapping byte by byte
+   */
+  protected byte[] m_crcBuffer = new byte[256];
+
+  /**
+   * Live data of one entry
+   */
+  protected static class Entry implements MqttPersistable {
+    protected final byte[] m_header;
+    protected final byte[] m_payload;
+
+    protected Entry( byte[] header, byte[] payload ) {
+      m_header = header;
+      m_payload = payload;
+    }
+
+    @Override public byte[] getHeaderBytes() {
+      return m_header;
+    }
+
+    @Override public int getHeaderLength() {
+      return m_header.length;
+    }
+
+    @Override public int getHeaderOffset() {
+      return 0;
+    }
+
+    @Override public byte[] getPayloadBytes() {
+      return m_payload;
+    }
+
+    @Override public int getPayloadLength() {
+      return m_payload == null ? 0 : m_payload.length;
+    }
+
+    @Override public int getPayloadOffset() {
+      return 0;
+    }
+
+    protected int recordSize( byte[] key ) {
+      return RECORD_HEADER_SIZE + 1 + 4 + key.length + 4 + m_header.length + 4 + getPayloadLength();
+    }
+  }
+
+  /**
+   * @param directory the directory to keep the journals in (the working directory if null or empty)
+   */
+  public MappedJournalPersistence( String directory ) {
+    this( directory, DEFAULT_INITIAL_SIZE, DEFAULT_SYNC_INTERVAL_MS );
+  }
+
+  /**
+   * @param directory      the directory to keep the journals in (the working directory if null or empty)
+   * @param initialSize    the initial size of a journal file in bytes
+   * @param syncIntervalMs the longest time writes are left unforced (0 to force after every write)
+   */
+  public MappedJournalPersistence( String directory, int initialSize, long syncIntervalMs ) {
+    m_directory = directory == null || directory.length() == 0 ? System.getProperty( "user.dir" ) : directory;
+    m_initialSize = Math.max( initialSize, 4096 );
+    m_syncIntervalNanos = syncIntervalMs * 1000000L;
+  }
+
+  @Override public synchronized void open( String clientId, String serverURI ) throws MqttPersistenceException {
+    File dir = new File( m_directory );
+    if ( !dir.isDirectory() && !dir.mkdirs() ) {
+      throw new MqttPersistenceException( new IOException( "Can't create journal directory " + dir ) );
+    }
+    String name = sanitize( clientId + "-" + serverURI );
+    m_files = new File[] { new File( dir, name + ".0.journal" ), new File( dir, name + ".1.journal" ) };
+
+    try {
+      // like the default file persistence, only one client may use a journal at a time
+      m_lockFile = new RandomAccessFile( new File( dir, name + ".lck" ), "rw" );
+      try {
+        m_lock = m_lockFile.getChannel().tryLock();
+      } catch ( OverlappingFileLockException e ) {
+        m_lock = null;
+      }
+      if ( m_lock == null ) {
+        m_lockFile.close();
+        m_lockFile = null;
+        throw new MqttPersistenceException( MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE );
+      }
+
+      m_entries.clear();
+      long gen0 = readGeneration( m_files[0] );
+      long gen1 = readGeneration( m_files[1] );
+      if ( gen0 <= 0 && gen1 <= 0 ) {
+        m_generation = 0;
+        m_active = 1;
+        compact( 0 );
+      } else {
+        m_active = gen0 >= gen1 ? 0 : 1;
+        m_generation = Math.max( gen0, gen1 );
+        map( m_files[m_active], Math.max( m_initialSize, (int) Math.min( Integer.MAX_VALUE, m_files[m_active].length() ) ) );
+        replay();
+      }
+    } catch ( IOException e ) {
+      closeQuietly();
+      throw new MqttPersistenceException( e );
+    }
+  }
+
+  @Override public synchronized void close() throws MqttPersistenceException {
+    try {
+      sync( true );
+    } finally {
+      closeQuietly();
+    }
+  }
+
+  @Override public synchronized void put( String key, MqttPersistable persistable ) throws MqttPersistenceException {
+    checkOpen();
+    Entry entry =
+        new Entry( copy( persistable.getHeaderBytes(), persistable.getHeaderOffset(), persistable.getHeaderLength() ),
+            copy( persistable.getPayloadBytes(), persistable.getPayloadOffset(), persistable.getPayloadLength() ) );
+    m_entries.put( key, entry );
+    append( OP_PUT, key, entry );
+  }
+
+  @Override public synchronized MqttPersistable get( String key ) throws MqttPersistenceException {
+    checkOpen();
+    return m_entries.get( key );
+  }
+
+  @Override public synchronized void remove( String key ) throws MqttPersistenceException {
+    checkOpen();
+    if ( m_entries.remove( key ) != null ) {
+      append( OP_REMOVE, key, null );
+    }
+  }
+
+  @Override public synchronized Enumeration keys() throws MqttPersistenceException {
+    checkOpen();
+    return Collections.enumeration( new java.util.ArrayList<>( m_entries.keySet() ) );
+  }
+
+  @Override public synchronized void clear() throws MqttPersistenceException {
+    checkOpen();
+    m_entries.clear();
+    try {
+      compact( 0 );
+    } catch ( IOException e ) {
+      throw new MqttPersistenceException( e );
+    }
+  }
+
+  @Override public synchronized boolean containsKey( String key ) throws MqttPersistenceException {
+    checkOpen();
+    return m_entries.containsKey( key );
+  }
+
+  /**
+   * @return the number of live entries
+   */
+  public synchronized int size() {
+    return m_entries.size();
+  }
+
+  protected void append( byte op, String key, Entry entry ) throws MqttPersistenceException {
+    byte[] keyBytes = key.getBytes( StandardCharsets.UTF_8 );
+    int size =
+        entry != null ? entry.recordSize( keyBytes ) : RECORD_HEADER_SIZE + 1 + 4 + keyBytes.length + 4 + 4;
+    try {
+      // leave room for the end marker
+      if ( m_position + size + 4 > m_buffer.capacity() ) {
+        compact( size );
+        if ( op == OP_REMOVE ) {
+          // the compacted journal no longer holds the entry
+          return;
+        }
+        if ( m_position + size + 4 > m_buffer.capacity() ) {
+          throw new IOException( "Journal record too large: " + size );
+        }
+        // the compacted journal already holds the entry that was just put
+        sync( false );
+        return;
+      }
+      writeRecord( m_position, op, keyBytes, entry );
+      m_position += size;
+      m_dirty = true;
+      sync( false );
+    } catch ( IOException e ) {
+      throw new MqttPersistenceException( e );
+    }
+  }
+
+  /**
+   * Write a record followed by an end marker. The record's length is written last, so a record that was only partly
+   * written when the process died reads as the end of the journal.
+   */
+  protected void writeRecord( int pos, byte op, byte[] key, Entry entry ) {
+    int bodyStart = pos + RECORD_HEADER_SIZE;
+    m_buffer.position( bodyStart );
+    m_buffer.put( op );
+    m_buffer.putInt( key.length );
+    m_buffer.put( key );
+    if ( entry != null ) {
+      m_buffer.putInt( entry.m_header.length );
+      m_buffer.put( entry.m_header );
+      m_buffer.putInt( entry.getPayloadLength() );
+      if ( entry.m_payload != null ) {
+        m_buffer.put( entry.m_payload );
+      }
+    } else {
+      m_buffer.putInt( 0 );
+      m_buffer.putInt( 0 );
+    }
+    int bodyLength = m_buffer.position() - bodyStart;
+    m_buffer.putInt( 0 ); // end marker
+
+    m_buffer.putInt( pos + 4, crc( bodyStart, bodyLength ) );
+    m_buffer.putInt( pos, bodyLength );
+  }
+
+  /**
+   * @return the CRC of the journal bytes [start, start + length)
+   */
+  protected int crc( int start, int length ) {
+    if ( m_crcBuffer.length < length ) {
+      m_crcBuffer = new byte[Math.max( length, m_crcBuffer.length * 2 )];
+    }
+    ByteBuffer body = m_buffer.duplicate();
+    body.position( start );
+    body.get( m_crcBuffer, 0, length );
+    CRC32 crc = new CRC32();
+    crc.update( m_crcBuffer, 0, length );
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Rebuild the index from the active journal
+   */
+  protected void replay() {
+    int pos = FILE_HEADER_SIZE;
+    int limit = m_buffer.capacity();
+    while ( pos + RECORD_HEADER_SIZE <= limit ) {
+      int bodyLength = m_buffer.getInt( pos );
+      if ( bodyLength <= 0 || pos + RECORD_HEADER_SIZE + bodyLength > limit ) {
+        break;
+      }
+      int bodyStart = pos + RECORD_HEADER_SIZE;
+      if ( crc( bodyStart, bodyLength ) != m_buffer.getInt( pos + 4 ) ) {
+        // torn write - everything after this is unreliable
+        break;
+      }
+
+      m_buffer.position( bodyStart );
+      byte op = m_buffer.get();
+      byte[] key = new byte[m_buffer.getInt()];
+      m_buffer.get( key );
+      byte[] header = new byte[m_buffer.getInt()];
+      m_buffer.get( header );
+      byte[] payload = new byte[m_buffer.getInt()];
+      m_buffer.get( payload );
+      String k = new String( key, StandardCharsets.UTF_8 );
+      if ( op == OP_PUT ) {
+        m_entries.put( k, new Entry( header, payload ) );
+      } else {
+        m_entries.remove( k );
+      }
+      pos = bodyStart + bodyLength;
+    }
+    m_position = pos;
+  }
+
+  /**
+   * Write the live entries to the inactive journal file and make it the active one
+   *
+   * @param reserve additional space to leave free after the live entries
+   */
+  protected void compact( int reserve ) throws IOException {
+    long live = FILE_HEADER_SIZE + 4L + reserve;
+    for ( Map.Entry<String, Entry> e : m_entries.entrySet() ) {
+      live += e.getValue().recordSize( e.getKey().getBytes( StandardCharsets.UTF_8 ) );
+    }
+    long size = m_initialSize;
+    while ( size < live * 2 ) {
+      size <<= 1;
+    }
+    if ( size > Integer.MAX_VALUE ) {
+      throw new IOException( "Journal too large" );
+    }
+
+    if ( m_buffer != null ) {
+      sync( true );
+    }
+    int target = 1 - m_active;
+    unmap();
+    map( m_files[target], (int) size );
+    m_active = target;
+
+    // invalidate the header first, so a partly written journal is never replayed
+    m_buffer.putInt( 0, 0 );
+    m_buffer.putLong( 4, 0 );
+    m_buffer.putInt( 12, 0 );
+    m_buffer.force();
+
+    int pos = FILE_HEADER_SIZE;
+    m_buffer.putInt( pos, 0 );
+    for ( Map.Entry<String, Entry> e : m_entries.entrySet() ) {
+      byte[] key = e.getKey().getBytes( StandardCharsets.UTF_8 );
+      writeRecord( pos, OP_PUT, key, e.getValue() );
+      pos += e.getValue().recordSize( key );
+    }
+    m_position = pos;
+    m_buffer.force();
+
+    m_generation++;
+    CRC32 crc = new CRC32();
+    crc.update( longBytes( m_generation ) );
+    m_buffer.putLong( 4, m_generation );
+    m_buffer.putInt( 12, (int) crc.getValue() );
+    m_buffer.putInt( 0, MAGIC );
+    m_buffer.force();
+    m_lastSync = System.nanoTime();
+    m_dirty = false;
+  }
+
+  /**
+   * Force outstanding writes to disk if the sync interval has passed, otherwise make sure they are forced once it has
+   *
+   * @param always true to force regardless of the interval
+   */
+  protected void sync( boolean always ) {
+    if ( !m_dirty || m_buffer == null ) {
+      return;
+    }
+    long now = System.nanoTime();
+    if ( always || now - m_lastSync >= m_syncIntervalNanos ) {
+      m_buffer.force();
+      m_lastSync = now;
+      m_dirty = false;
+    } else if ( m_scheduledSync == null ) {
+      m_scheduledSync = s_syncTimer.schedule( new Runnable() {
+        @Override public void run() {
+          scheduledSync();
+        }
+      }, m_syncIntervalNanos - ( now - m_lastSync ), TimeUnit.NANOSECONDS );
+    }
+  }
+
+  protected synchronized void scheduledSync() {
+    m_scheduledSync = null;
+    sync( true );
+  }
+
+  /**
+   * @return the generation stored in the journal's header, or 0 if the file is missing or has no valid header
+   */
+  protected static long readGeneration( File file ) throws IOException {
+    if ( !file.exists() || file.length() < FILE_HEADER_SIZE ) {
+      return 0;
+    }
+    try ( RandomAccessFile raf = new RandomAccessFile( file, "r" ) ) {
+      if ( raf.readInt() != MAGIC ) {
+        return 0;
+      }
+      long generation = raf.readLong();
+      int storedCrc = raf.readInt();
+      CRC32 crc = new CRC32();
+      crc.update( longBytes( generation ) );
+      return (int) crc.getValue() == storedCrc ? generation : 0;
+    }
+  }
+
+  protected void map( File file, int size ) throws IOException {
+    m_raf = new RandomAccessFile( file, "rw" );
+    m_buffer = m_raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+  }
+
+  protected void unmap() throws IOException {
+    // the mapping itself is released when the buffer is garbage collected
+    m_buffer = null;
+    if ( m_raf != null ) {
+      m_raf.close();
+      m_raf = null;
+    }
+  }
+
+  protected void closeQuietly() {
+    if ( m_scheduledSync != null ) {
+      m_scheduledSync.cancel( false );
+      m_scheduledSync = null;
+    }
+    try {
+      unmap();
+    } catch ( IOException e ) {
+      // ignore
+    }
+    try {
+      if ( m_lock != null ) {
+        m_lock.release();
+        m_lock = null;
+      }
+      if ( m_lockFile != null ) {
+        m_lockFile.close();
+        m_lockFile = null;
+      }
+    } catch ( IOException e ) {
+      // ignore
+    }
+    m_entries.clear();
+  }
+
+  protected void checkOpen() throws MqttPersistenceException {
+    if ( m_buffer == null ) {
+      throw new MqttPersistenceException();
+    }
+  }
+
+  protected static byte[] copy( byte[] bytes, int offset, int length ) {
+    if ( bytes == null ) {
+      return null;
+    }
+    byte[] result = new byte[length];
+    System.arraycopy( bytes, offset, result, 0, length );
+    return result;
+  }
+
+  protected static byte[] longBytes( long value ) {
+    byte[] result = new byte[8];
+    for ( int i = 7; i >= 0; i-- ) {
+      result[i] = (byte) value;
+      value >>>= 8;
+    }
+    return result;
+  }
+
+  protected static String sanitize( String name ) {
+    StringBuilder result = new StringBuilder( name.length() );
+    for ( int i = 0; i < name.length(); i++ ) {
+      char c = name.charAt( i );
+      result.append( Character.isLetterOrDigit( c ) || c == '-' || c == '_' || c == '.' ? c : '_' );
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,344 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects message payloads per topic and hands them to a {@link BatchSender} as a single framed message once a batch
+ * holds a maximum number of payloads, reaches a maximum size or has been open for longer than the linger time.
+ * <p>
+ * Batches that reach their linger time are sent from a background timer thread. A batch that is ready is moved to a
+ * queue of unsent batches while holding the batcher's lock, and the queue is sent in order under a separate send lock
+ * - so batches for a topic are always sent in the order their payloads were added, yet adding a payload does not wait
+ * for a batch the timer is sending. A batch stays queued until it has been sent successfully: when sending fails it
+ * is tried again, ahead of any later batch, the next time batches are sent.
+ */
+public class MessageBatcher {
+
+  /**
+   * Receives the framed batches
+   */
+  public interface BatchSender {
+
+    /**
+     * @param topic the topic the batch is for
+     * @param batch the framed batch
+     * @param tags  the tags the payloads were added with, in order (null for payloads added without one) - one per
+     *              payload in the batch
+     * @throws Exception if the batch could not be sent
+     */
+    void send( String topic, byte[] batch, List<Object> tags ) throws Exception;
+  }
+
+  protected static class Batch {
+    protected final String m_topic;
+    protected final List<byte[]> m_payloads = new ArrayList<>();
+    protected final List<Object> m_tags = new ArrayList<>();
+    protected int m_size;
+    protected long m_opened;
+
+    protected Batch( String topic ) {
+      m_topic = topic;
+    }
+  }
+
+  /**
+   * How long {@link #close()} waits for the timer thread to end once it can no longer send
+   */
+  protected static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+  protected final String m_framing;
+  protected final int m_maxCount;
+  protected final int m_maxSize;
+  protected final long m_lingerNanos;
+  protected final BatchSender m_sender;
+
+  protected final Map<String, Batch> m_batches = new LinkedHashMap<>();
+  protected ScheduledExecutorService m_timer;
+
+  /**
+   * Batches taken out of {@link #m_batches} that have not been sent yet, oldest first - only sent while holding
+   * {@link #m_sendLock}
+   */
+  protected final Queue<Batch> m_unsent = new ConcurrentLinkedQueue<>();
+  protected final ReentrantLock m_sendLock = new ReentrantLock();
+
+  /**
+   * Set under {@link #m_sendLock} by {@link #close()} - nothing is sent once it is
+   */
+  protected volatile boolean m_closed;
+
+  /**
+   * First error raised while sending from the timer thread
+   */
+  protected final AtomicReference<Exception> m_lingerError = new AtomicReference<>();
+
+  protected volatile long m_batchesSent;
+  protected volatile long m_payloadsSent;
+
+  /**
+   * @param framing  the framing to use (see {@link BatchFraming})
+   * @param maxCount the maximum number of payloads in a batch (0 for no limit)
+   * @param maxSize  the maximum size of a framed batch in bytes (0 for no limit). A single payload that is larger
+   *                 than this is still sent, in a batch of its own
+   * @param lingerMs the longest time a batch is kept open (0 to only send batches when they are full or flushed)
+   * @param sender   receives the framed batches
+   */
+  public MessageBatcher( String framing, int maxCount, int maxSize, long lingerMs, BatchSender sender ) {
+    if ( !BatchFraming.isBatching( framing ) || !BatchFraming.isKnown( framing ) ) {
+      throw new IllegalArgumentException( "Not a batch framing: " + framing );
+    }
+    m_framing = framing;
+    m_maxCount = maxCount > 0 ? maxCount : Integer.MAX_VALUE;
+    m_maxSize = maxSize > 0 ? maxSize : Integer.MAX_VALUE;
+    m_lingerNanos = TimeUnit.MILLISECONDS.toNanos( lingerMs );
+    m_sender = sender;
+
+    if ( lingerMs > 0 ) {
+      m_timer = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+        @Override public Thread newThread( Runnable r ) {
+          Thread t = new Thread( r, "MQTT batch linger timer" );
+          t.setDaemon( true );
+          return t;
+        }
+      } );
+      long period = Math.max( 1L, lingerMs / 2 );
+      m_timer.scheduleWithFixedDelay( new Runnable() {
+        @Override public void run() {
+          try {
+            sendExpired();
+          } catch ( Exception e ) {
+            m_lingerError.compareAndSet( null, e );
+          }
+        }
+      }, period, period, TimeUnit.MILLISECONDS );
+    }
+  }
+
+  /**
+   * Add a payload, sending the topic's batch first if the payload would not fit and afterwards if it is now full
+   *
+   * @param topic   the topic to publish to
+   * @param payload the payload
+   * @throws Exception if a batch could not be sent
+   */
+  public void add( String topic, byte[] payload ) throws Exception {
+    add( topic, payload, null );
+  }
+
+  /**
+   * Add a payload together with a tag that is handed back to the sender with the batch the payload ends up in
+   *
+   * @param topic   the topic to publish to
+   * @param payload the payload
+   * @param tag     identifies the payload to the sender (may be null)
+   * @throws IllegalArgumentException if the framing is {@link BatchFraming#JSON_ARRAY} and the payload is not a JSON
+   *                                  value - the payload is not added
+   * @throws Exception                if a batch could not be sent - the payload has been added, and the batch is
+   *                                  sent again the next time batches are sent
+   */
+  public void add( String topic, byte[] payload, Object tag ) throws Exception {
+    if ( BatchFraming.JSON_ARRAY.equals( m_framing ) && !BatchFraming.isJsonValue( payload ) ) {
+      throw new IllegalArgumentException( "The " + m_framing + " framing needs every payload to be a JSON value" );
+    }
+    boolean ready = false;
+    synchronized ( this ) {
+      Batch batch = m_batches.get( topic );
+      if ( batch == null ) {
+        batch = new Batch( topic );
+        m_batches.put( topic, batch );
+      }
+
+      if ( !batch.m_payloads.isEmpty()
+          && batch.m_size + BatchFraming.framedSize( m_framing, payload.length, false ) > m_maxSize ) {
+        batch = takeForSending( batch );
+        ready = true;
+      }
+      if ( batch.m_payloads.isEmpty() ) {
+        batch.m_size = BatchFraming.batchOverhead( m_framing );
+        batch.m_opened = System.nanoTime();
+      }
+      batch.m_size += BatchFraming.framedSize( m_framing, payload.length, batch.m_payloads.isEmpty() );
+      batch.m_payloads.add( payload );
+      batch.m_tags.add( tag );
+
+      if ( batch.m_payloads.size() >= m_maxCount || batch.m_size >= m_maxSize ) {
+        takeForSending( batch );
+        ready = true;
+      }
+    }
+    if ( ready ) {
+      sendUnsent();
+    }
+  }
+
+  /**
+   * Send all open batches, and any that could not be sent before
+   *
+   * @throws Exception if a batch could not be sent
+   */
+  public void flush() throws Exception {
+    synchronized ( this ) {
+      for ( Batch batch : new ArrayList<>( m_batches.values() ) ) {
+        if ( !batch.m_payloads.isEmpty() ) {
+          takeForSending( batch );
+        }
+      }
+    }
+    sendUnsent();
+  }
+
+  /**
+   * Send the batches that have been open for longer than the linger time
+   *
+   * @throws Exception if a batch could not be sent
+   */
+  protected void sendExpired() throws Exception {
+    boolean ready = false;
+    synchronized ( this ) {
+      long now = System.nanoTime();
+      for ( Batch batch : new ArrayList<>( m_batches.values() ) ) {
+        if ( batch.m_payloads.isEmpty() ) {
+          // forget idle topics so that topics taken from a field cannot grow the map without bound
+          m_batches.remove( batch.m_topic );
+        } else if ( now - batch.m_opened >= m_lingerNanos ) {
+          takeForSending( batch );
+          ready = true;
+        }
+      }
+    }
+    if ( ready || !m_unsent.isEmpty() ) {
+      sendUnsent();
+    }
+  }
+
+  /**
+   * Queue a batch for sending and put an empty one in its place. Must be called while holding the batcher's lock.
+   *
+   * @param batch the batch to send
+   * @return the empty batch that takes its place
+   */
+  protected Batch takeForSending( Batch batch ) {
+    m_unsent.add( batch );
+    Batch empty = new Batch( batch.m_topic );
+    m_batches.put( batch.m_topic, empty );
+    return empty;
+  }
+
+  /**
+   * Send the queued batches in order. A batch is only removed from the queue once it has been sent.
+   *
+   * @throws Exception if a batch could not be sent - it and the ones after it stay queued
+   */
+  protected void sendUnsent() throws Exception {
+    m_sendLock.lock();
+    try {
+      if ( m_closed ) {
+        return;
+      }
+      Batch batch;
+      while ( ( batch = m_unsent.peek() ) != null ) {
+        m_sender.send( batch.m_topic, BatchFraming.encode( m_framing, batch.m_payloads, batch.m_size ),
+            new ArrayList<>( batch.m_tags ) );
+        m_unsent.remove();
+        m_batchesSent++;
+        m_payloadsSent += batch.m_payloads.size();
+      }
+    } finally {
+      m_sendLock.unlock();
+    }
+  }
+
+  /**
+   * @return the first error raised while sending a batch from the timer thread, or null
+   */
+  public Exception getLingerError() {
+    return m_lingerError.get();
+  }
+
+  /**
+   * @return the number of payloads waiting in open batches or in batches that have not been sent yet
+   */
+  public synchronized int getPending() {
+    int pending = 0;
+    for ( Batch batch : m_batches.values() ) {
+      pending += batch.m_payloads.size();
+    }
+    for ( Batch batch : m_unsent ) {
+      pending += batch.m_payloads.size();
+    }
+    return pending;
+  }
+
+  /**
+   * @return the number of batches sent so far
+   */
+  public long getBatchesSent() {
+    return m_batchesSent;
+  }
+
+  /**
+   * @return the number of payloads sent so far
+   */
+  public long getPayloadsSent() {
+    return m_payloadsSent;
+  }
+
+  /**
+   * Stop the linger timer, waiting for a send it has started to finish, so that the sender's connection can be closed
+   * once this returns. Nothing is sent afterwards, and payloads in open batches are not sent - call {@link #flush()}
+   * first to send them.
+   */
+  public void close() {
+    ScheduledExecutorService timer = m_timer;
+    m_timer = null;
+    if ( timer != null ) {
+      timer.shutdownNow();
+    }
+    m_sendLock.lock();
+    try {
+      m_closed = true;
+    } finally {
+      m_sendLock.unlock();
+    }
+    if ( timer != null ) {
+      try {
+        timer.awaitTermination( CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS );
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,458 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import javax.net.SocketFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JVM-wide registry of MQTT connections that steps can share - between the steps of a transformation, and from one
+ * run of a transformation to the next (in Spoon or on a Carte server). A connection is identified by everything that
+ * goes into establishing it: broker, credentials, TLS material, connection options and persistence. The client id is
+ * that of the step that opened it.
+ * <p>
+ * Connections are reference counted. One that is no longer used by any step stays open for an idle timeout so that a
+ * transformation run again soon after finds it still connected. Shared connections reconnect by themselves and then
+ * restore their subscriptions.
+ * <p>
+ * A connection has a single thread delivering the messages of all its subscriptions, so a step that is slow to take
+ * its messages holds up every other step subscribed through the same connection. Steps that must not wait on each
+ * other need connections of their own.
+ */
+public class MqttConnectionRegistry {
+
+  private static final MqttConnectionRegistry s_instance = new MqttConnectionRegistry();
+
+  /**
+   * How long a step waits for another step to connect a connection they share, if the options have no connection
+   * timeout
+   */
+  protected static final int DEFAULT_CONNECT_WAIT_SECONDS = 30;
+
+  /**
+   * Receives the messages of the subscriptions made through a shared connection - once per message, however many of
+   * the listener's subscriptions it matches. Called on the connection's delivery thread, which waits for it to return.
+   */
+  public interface MessageListener {
+    void messageArrived( String topic, MqttMessage message ) throws Exception;
+  }
+
+  protected final Map<Key, Connection> m_connections = new HashMap<>();
+
+  protected final ScheduledExecutorService m_evictor =
+      Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+        @Override public Thread newThread( Runnable r ) {
+          Thread t = new Thread( r, "MQTT connection evictor" );
+          t.setDaemon( true );
+          return t;
+        }
+      } );
+
+  /**
+   * @return the registry shared by all steps in this JVM
+   */
+  public static MqttConnectionRegistry getInstance() {
+    return s_instance;
+  }
+
+  /**
+   * Get a connection, connecting a new one if there is none to share. Every call must be matched by a call to
+   * {@link Connection#release()}.
+   *
+   * @param broker               the broker URI
+   * @param clientId             the client id to connect with if a new connection is needed
+   * @param persistence          the persistence type (see {@link ClientPersistence})
+   * @param persistenceDirectory the persistence directory
+   * @param options              the connection options - automatic reconnect is switched on
+   * @param idleTimeoutMs        how long the connection stays open once no step uses it
+   * @return the connection
+   * @throws MqttException if connecting failed, or the step connecting it did not finish within the connection timeout
+   */
+  public Connection acquire( String broker, String clientId, String persistence, String persistenceDirectory,
+      MqttConnectOptions options, long idleTimeoutMs ) throws MqttException {
+    Key key = new Key( broker, persistence, persistenceDirectory, options );
+    Connection connection;
+    boolean connect = false;
+    synchronized ( this ) {
+      connection = m_connections.get( key );
+      if ( connection == null || !connection.m_open ) {
+        options.setAutomaticReconnect( true );
+        MqttAsyncClient client =
+            new MqttAsyncClient( broker, clientId, ClientPersistence.create( persistence, persistenceDirectory ) );
+        connection = new Connection( key, client );
+        client.setCallback( connection );
+        m_connections.put( key, connection );
+        connect = true;
+      }
+      connection.m_references++;
+      connection.m_idleTimeoutMs = idleTimeoutMs;
+      if ( connection.m_eviction != null ) {
+        connection.m_eviction.cancel( false );
+        connection.m_eviction = null;
+      }
+    }
+
+    // connect outside the lock, so that steps using different connections connect in parallel - steps that want the
+    // same connection wait for the one connecting it
+    if ( connect ) {
+      try {
+        connection.m_client.connect( options ).waitForCompletion();
+      } catch ( MqttException e ) {
+        connection.m_connectError = e;
+      }
+      connection.m_connected.countDown();
+    } else {
+      int timeout = options.getConnectionTimeout() > 0 ? options.getConnectionTimeout() : DEFAULT_CONNECT_WAIT_SECONDS;
+      try {
+        if ( !connection.m_connected.await( timeout, TimeUnit.SECONDS ) ) {
+          connection.release();
+          throw new MqttException( MqttException.REASON_CODE_CLIENT_TIMEOUT );
+        }
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        connection.release();
+        throw new MqttException( MqttException.REASON_CODE_CLIENT_EXCEPTION, e );
+      }
+    }
+    if ( connection.m_connectError != null ) {
+      synchronized ( this ) {
+        connection.m_references--;
+        if ( connection.m_open ) {
+          connection.close();
+        }
+      }
+      throw connection.m_connectError;
+    }
+    return connection;
+  }
+
+  /**
+   * @return the number of open connections, whether in use or idle
+   */
+  public synchronized int size() {
+    return m_connections.size();
+  }
+
+  /**
+   * Close every connection, in use or not
+   */
+  public synchronized void closeAll() {
+    for ( Connection connection : new ArrayList<>( m_connections.values() ) ) {
+      connection.close();
+    }
+  }
+
+  protected synchronized void release( final Connection connection ) {
+    if ( connection.m_references <= 0 || !connection.m_open ) {
+      return;
+    }
+    if ( --connection.m_references > 0 ) {
+      return;
+    }
+    if ( connection.m_idleTimeoutMs <= 0 ) {
+      connection.close();
+      return;
+    }
+    connection.m_eviction = m_evictor.schedule( new Runnable() {
+      @Override public void run() {
+        synchronized ( MqttConnectionRegistry.this ) {
+          if ( connection.m_references == 0 ) {
+            connection.close();
+          }
+        }
+      }
+    }, connection.m_idleTimeoutMs, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Everything that identifies a connection - steps that differ in any of these get connections of their own
+   */
+  protected static class Key {
+    protected final String m_broker;
+    protected final String m_persistence;
+    protected final String m_persistenceDirectory;
+    protected final String m_userName;
+    protected final char[] m_password;
+    protected final SocketFactory m_socketFactory;
+    protected final int m_keepAlive;
+    protected final int m_connectionTimeout;
+    protected final int m_maxInflight;
+    protected final boolean m_cleanSession;
+
+    protected Key( String broker, String persistence, String persistenceDirectory, MqttConnectOptions options ) {
+      m_broker = broker;
+      m_persistence = persistence;
+      m_persistenceDirectory = persistenceDirectory;
+      m_userName = options.getUserName();
+      m_password = options.getPassword();
+      // TLS material: socket factories are cached per set of files, so equal files mean the same factory
+      m_socketFactory = options.getSocketFactory();
+      m_keepAlive = options.getKeepAliveInterval();
+      m_connectionTimeout = options.getConnectionTimeout();
+      m_maxInflight = options.getMaxInflight();
+      m_cleanSession = options.isCleanSession();
+    }
+
+    @Override public boolean equals( Object o ) {
+      if ( !( o instanceof Key ) ) {
+        return false;
+      }
+      Key other = (Key) o;
+      return equal( m_broker, other.m_broker ) && equal( m_persistence, other.m_persistence ) && equal(
+          m_persistenceDirectory, other.m_persistenceDirectory ) && equal( m_userName, other.m_userName ) && Arrays
+          .equals( m_password, other.m_password ) && m_socketFactory == other.m_socketFactory
+          && m_keepAlive == other.m_keepAlive && m_connectionTimeout == other.m_connectionTimeout
+          && m_maxInflight == other.m_maxInflight && m_cleanSession == other.m_cleanSession;
+    }
+
+    @Override public int hashCode() {
+      return Arrays.hashCode( new Object[] { m_broker, m_persistence, m_persistenceDirectory, m_userName } );
+    }
+
+    private static boolean equal( Object a, Object b ) {
+      return a == null ? b == null : a.equals( b );
+    }
+  }
+
+  /**
+   * A subscription made through a shared connection
+   */
+  protected static class Subscription {
+    protected final String m_filter;
+    protected final int m_qos;
+    protected final MessageListener m_listener;
+
+    /**
+     * The filter without any $share/group/ prefix - what topics of incoming messages are matched against
+     */
+    protected final String m_matchFilter;
+
+    protected Subscription( String filter, int qos, MessageListener listener ) {
+      m_filter = filter;
+      m_qos = qos;
+      m_listener = listener;
+      if ( filter.startsWith( "$share/" ) && filter.indexOf( '/', 7 ) > 0 ) {
+        m_matchFilter = filter.substring( filter.indexOf( '/', 7 ) + 1 );
+      } else {
+        m_matchFilter = filter;
+      }
+    }
+  }
+
+  /**
+   * A shared connection
+   */
+  public class Connection implements MqttCallbackExtended {
+    protected final Key m_key;
+    protected final MqttAsyncClient m_client;
+    protected final List<Subscription> m_subscriptions = new CopyOnWriteArrayList<>();
+    protected int m_references;
+    protected long m_idleTimeoutMs;
+    protected ScheduledFuture<?> m_eviction;
+    protected volatile boolean m_open = true;
+
+    /**
+     * Counted down once the first connect has completed, successfully or not
+     */
+    protected final CountDownLatch m_connected = new CountDownLatch( 1 );
+    protected volatile MqttException m_connectError;
+
+    protected Connection( Key key, MqttAsyncClient client ) {
+      m_key = key;
+      m_client = client;
+    }
+
+    /**
+     * @return the client - for publishing. Subscribe through {@link #subscribe(String[], int[], MessageListener)},
+     * so that messages reach the right step.
+     */
+    public MqttAsyncClient getClient() {
+      return m_client;
+    }
+
+    /**
+     * Subscribe to topics, delivering their messages to a listener
+     *
+     * @throws MqttException if subscribing failed
+     */
+    public void subscribe( String[] filters, int[] qos, MessageListener listener ) throws MqttException {
+      List<Subscription> added = new ArrayList<>();
+      for ( int i = 0; i < filters.length; i++ ) {
+        added.add( new Subscription( filters[i], qos[i], listener ) );
+      }
+      m_subscriptions.addAll( added );
+      try {
+        m_client.subscribe( filters, qos ).waitForCompletion();
+      } catch ( MqttException e ) {
+        m_subscriptions.removeAll( added );
+        throw e;
+      }
+    }
+
+    /**
+     * Stop delivering messages to a listener, unsubscribing from the topics no other listener needs
+     */
+    public void unsubscribe( MessageListener listener ) {
+      List<String> unused = new ArrayList<>();
+      for ( Subscription s : m_subscriptions ) {
+        if ( s.m_listener == listener ) {
+          m_subscriptions.remove( s );
+          unused.add( s.m_filter );
+        }
+      }
+      for ( Subscription s : m_subscriptions ) {
+        unused.remove( s.m_filter );
+      }
+      if ( !unused.isEmpty() && m_client.isConnected() ) {
+        try {
+          m_client.unsubscribe( unused.toArray( new String[unused.size()] ) );
+        } catch ( MqttException e ) {
+          // the subscriptions end with the session anyway
+        }
+      }
+    }
+
+    /**
+     * Give the connection back. It is closed once no step uses it and the idle timeout has passed.
+     */
+    public void release() {
+      MqttConnectionRegistry.this.release( this );
+    }
+
+    protected void close() {
+      m_open = false;
+      m_connections.remove( m_key );
+      if ( m_eviction != null ) {
+        m_eviction.cancel( false );
+        m_eviction = null;
+      }
+      try {
+        if ( m_client.isConnected() ) {
+          m_client.disconnect().waitForCompletion();
+        }
+        m_client.close();
+      } catch ( MqttException e ) {
+        // nothing more to do
+      }
+    }
+
+    @Override public void connectComplete( boolean reconnect, String serverURI ) {
+      if ( !reconnect || m_subscriptions.isEmpty() ) {
+        return;
+      }
+      // clean sessions lose their subscriptions with the connection
+      String[] filters = new String[m_subscriptions.size()];
+      int[] qos = new int[filters.length];
+      int i = 0;
+      for ( Subscription s : m_subscriptions ) {
+        if ( i == filters.length ) {
+          break;
+        }
+        filters[i] = s.m_filter;
+        qos[i++] = s.m_qos;
+      }
+      try {
+        m_client.subscribe( Arrays.copyOf( filters, i ), Arrays.copyOf( qos, i ) );
+      } catch ( MqttException e ) {
+        // the next reconnect tries again
+      }
+    }
+
+    @Override public void connectionLost( Throwable cause ) {
+      // the client reconnects by itself
+    }
+
+    @Override public void messageArrived( String topic, MqttMessage message ) throws Exception {
+      // the broker sends a message matching overlapping subscriptions once, so each listener gets it once too
+      MessageListener first = null;
+      List<MessageListener> others = null;
+      for ( Subscription s : m_subscriptions ) {
+        if ( !matches( s.m_matchFilter, topic ) || s.m_listener == first
+            || ( others != null && others.contains( s.m_listener ) ) ) {
+          continue;
+        }
+        if ( first == null ) {
+          first = s.m_listener;
+        } else {
+          if ( others == null ) {
+            others = new ArrayList<>( 2 );
+          }
+          others.add( s.m_listener );
+        }
+      }
+      if ( first != null ) {
+        first.messageArrived( topic, message );
+      }
+      if ( others != null ) {
+        for ( MessageListener listener : others ) {
+          listener.messageArrived( topic, message );
+        }
+      }
+    }
+
+    @Override public void deliveryComplete( IMqttDeliveryToken token ) {
+    }
+  }
+
+  /**
+   * @return true if the topic matches the filter, which may contain + and # wildcards. As the MQTT specification
+   * requires, a filter starting with a wildcard does not match topics starting with $.
+   */
+  protected static boolean matches( String filter, String topic ) {
+    if ( topic.startsWith( "$" ) && ( filter.startsWith( "+" ) || filter.startsWith( "#" ) ) ) {
+      return false;
+    }
+    String[] f = filter.split( "/", -1 );
+    String[] t = topic.split( "/", -1 );
+    for ( int i = 0; i < f.length; i++ ) {
+      if ( f[i].equals( "#" ) ) {
+        return true;
+      }
+      if ( i >= t.length ) {
+        return false;
+      }
+      if ( !f[i].equals( "+" ) && !f[i].equals( t[i] ) ) {
+        return false;
+      }
+    }
+    return f.length == t.length;
+  }
+}
@@ -0,0 +1,334 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.common.MqttPersistenceException;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * The MQTT protocol version a step speaks. MQTT 5 adds topic aliases (Paho assigns them to outgoing topics by itself,
+ * up to the maximum the broker allows), receive-maximum flow control, message expiry and user properties.
+ * <p>
+ * The steps build their connection options for MQTT 3.1.1; {@link #toV5(MqttConnectOptions)} carries them over to an
+ * MQTT 5 connection, and {@link #persistence(String, String, String)} makes the persistence types of
+ * {@link ClientPersistence} available to the MQTT 5 client.
+ */
+public class MqttVersion {
+
+  /**
+   * MQTT 3.1.1
+   */
+  public static final String V3_1_1 = "3.1.1";
+
+  /**
+   * MQTT 5
+   */
+  public static final String V5 = "5";
+
+  /**
+   * All versions, in the order they are offered in the step dialogs
+   */
+  public static final String[] VERSIONS = { V3_1_1, V5 };
+
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  /**
+   * @param version the version
+   * @return true if the version is one this class knows about (null or empty means {@link #V3_1_1})
+   */
+  public static boolean isKnown( String version ) {
+    if ( version == null || version.length() == 0 ) {
+      return true;
+    }
+    for ( String v : VERSIONS ) {
+      if ( v.equals( version ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param version the version
+   * @return true for MQTT 5
+   */
+  public static boolean isV5( String version ) {
+    return V5.equals( version );
+  }
+
+  /**
+   * Carry MQTT 3.1.1 connection options over to MQTT 5 - a clean session becomes a clean start without session expiry
+   *
+   * @param options the MQTT 3.1.1 options
+   * @return the MQTT 5 options
+   */
+  public static MqttConnectionOptions toV5( MqttConnectOptions options ) {
+    MqttConnectionOptions v5 = new MqttConnectionOptions();
+    if ( options.getUserName() != null ) {
+      v5.setUserName( options.getUserName() );
+    }
+    if ( options.getPassword() != null ) {
+      v5.setPassword( new String( options.getPassword() ).getBytes( UTF8 ) );
+    }
+    if ( options.getSocketFactory() != null ) {
+      v5.setSocketFactory( options.getSocketFactory() );
+    }
+    v5.setCleanStart( options.isCleanSession() );
+    v5.setConnectionTimeout( options.getConnectionTimeout() );
+    v5.setKeepAliveInterval( options.getKeepAliveInterval() );
+    return v5;
+  }
+
+  /**
+   * Parse user properties written as comma separated key=value pairs. Keys and values are trimmed, a value may
+   * contain = and blank entries are skipped
+   *
+   * @param properties the properties (null or empty for none)
+   * @return the properties, in order (a key may appear more than once)
+   * @throws IllegalArgumentException if a pair has no =, or an empty key
+   */
+  public static List<UserProperty> parseUserProperties( String properties ) {
+    List<UserProperty> result = new ArrayList<>();
+    if ( properties == null || properties.trim().length() == 0 ) {
+      return result;
+    }
+    for ( String pair : properties.split( "," ) ) {
+      if ( pair.trim().length() == 0 ) {
+        continue;
+      }
+      int eq = pair.indexOf( '=' );
+      if ( eq <= 0 || pair.substring( 0, eq ).trim().length() == 0 ) {
+        throw new IllegalArgumentException( "Not a key=value pair: " + pair.trim() );
+      }
+      result.add( new UserProperty( pair.substring( 0, eq ).trim(), pair.substring( eq + 1 ).trim() ) );
+    }
+    return result;
+  }
+
+  /**
+   * @param type      the persistence type (see {@link ClientPersistence})
+   * @param directory the directory to keep files in
+   * @param serverURI the broker - part of the store's name for the file based types
+   * @return a new, unopened persistence store for the MQTT 5 client
+   */
+  public static MqttClientPersistence persistence( String type, String directory, String serverURI ) {
+    return new V5Persistence( ClientPersistence.create( type, directory ), serverURI );
+  }
+
+  /**
+   * Presents an MQTT 3.1.1 persistence store to the MQTT 5 client - both store the same opaque header and payload
+   * bytes
+   */
+  protected static class V5Persistence implements MqttClientPersistence {
+    protected final org.eclipse.paho.client.mqttv3.MqttClientPersistence m_store;
+    protected final String m_serverURI;
+
+    protected V5Persistence( org.eclipse.paho.client.mqttv3.MqttClientPersistence store, String serverURI ) {
+      m_store = store;
+      m_serverURI = serverURI;
+    }
+
+    @Override public void open( String clientId ) throws MqttPersistenceException {
+      try {
+        m_store.open( clientId, m_serverURI );
+      } catch ( org.eclipse.paho.client.mqttv3.MqttPersistenceException e ) {
+        throw new MqttPersistenceException( e );
+      }
+    }
+
+    @Override public void close() throws MqttPersistenceException {
+      try {
+        m_store.close();
+      } catch ( org.eclipse.paho.client.mqttv3.MqttPersistenceException e ) {
+        throw new MqttPersistenceException( e );
+      }
+    }
+
+    @Override public void put( String key, org.eclipse.paho.mqttv5.common.MqttPersistable persistable )
+        throws MqttPersistenceException {
+      try {
+        m_store.put( key, new V3Persistable( persistable ) );
+      } catch ( org.eclipse.paho.client.mqttv3.MqttPersistenceException e ) {
+        throw new MqttPersistenceException( e );
+      }
+    }
+
+    @Override public org.eclipse.paho.mqttv5.common.MqttPersistable get( String key )
+        throws MqttPersistenceException {
+      try {
+        MqttPersistable stored = m_store.get( key );
+        return stored == null ? null : new V5Persistable( stored );
+      } catch ( org.eclipse.paho.client.mqttv3.MqttPersistenceException e ) {
+        throw new MqttPersistenceException( e );
+      }
+    }
+
+    @Override public void remove( String key ) throws MqttPersistenceException {
+      try {
+        m_store.remove( key );
+      } catch ( org.eclipse.paho.client.mqttv3.MqttPersistenceException e ) {
+        throw new MqttPersistenceException( e );
+      }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    @Override public Enumeration<String> keys() throws MqttPersistenceException {
+      try {
+        return m_store.keys();
+      } catch ( org.eclipse.paho.client.mqttv3.MqttPersistenceException e ) {
+        throw new MqttPersistenceException( e );
+      }
+    }
+
+    @Override public void clear() throws MqttPersistenceException {
+      try {
+        m_store.clear();
+      } catch ( org.eclipse.paho.client.mqttv3.MqttPersistenceException e ) {
+        throw new MqttPersistenceException( e );
+      }
+    }
+
+    @Override public boolean containsKey( String key ) throws MqttPersistenceException {
+      try {
+        return m_store.containsKey( key );
+      } catch ( org.eclipse.paho.client.mqttv3.MqttPersistenceException e ) {
+        throw new MqttPersistenceException( e );
+      }
+    }
+  }
+
+  /**
+   * An entry from the MQTT 5 client, as an MQTT 3.1.1 store expects it - the arrays and their bounds are read once, up
+   * front, as the store may read them any number of times
+   */
+  protected static class V3Persistable implements MqttPersistable {
+    protected final byte[] m_header;
+    protected final int m_headerOffset;
+    protected final int m_headerLength;
+    protected final byte[] m_payload;
+    protected final int m_payloadOffset;
+    protected final int m_payloadLength;
+
+    protected V3Persistable( org.eclipse.paho.mqttv5.common.MqttPersistable persistable )
+        throws MqttPersistenceException {
+      m_header = persistable.getHeaderBytes();
+      m_headerOffset = persistable.getHeaderOffset();
+      m_headerLength = persistable.getHeaderLength();
+      m_payload = persistable.getPayloadBytes();
+      m_payloadOffset = persistable.getPayloadOffset();
+      m_payloadLength = persistable.getPayloadLength();
+    }
+
+    @Override public byte[] getHeaderBytes() {
+      return m_header;
+    }
+
+    @Override public int getHeaderLength() {
+      return m_headerLength;
+    }
+
+    @Override public int getHeaderOffset() {
+      return m_headerOffset;
+    }
+
+    @Override public byte[] getPayloadBytes() {
+      return m_payload;
+    }
+
+    @Override public int getPayloadLength() {
+      return m_payloadLength;
+    }
+
+    @Override public int getPayloadOffset() {
+      return m_payloadOffset;
+    }
+  }
+
+  /**
+   * An entry read from an MQTT 3.1.1 store, as the MQTT 5 client expects it
+   */
+  protected static class V5Persistable implements org.eclipse.paho.mqttv5.common.MqttPersistable {
+    protected final MqttPersistable m_stored;
+
+    protected V5Persistable( MqttPersistable stored ) {
+      m_stored = stored;
+    }
+
+    @Override public byte[] getHeaderBytes() throws MqttPersistenceException {
+      try {
+        return m_stored.getHeaderBytes();
+      } catch ( org.eclipse.paho.client.mqttv3.MqttPersistenceException e ) {
+        throw new MqttPersistenceException( e );
+      }
+    }
+
+    @Override public int getHeaderLength() throws MqttPersistenceException {
+      try {
+        return m_stored.getHeaderLength();
+      } catch ( org.eclipse.paho.client.mqttv3.MqttPersistenceException e ) {
+        throw new MqttPersistenceException( e );
+      }
+    }
+
+    @Override public int getHeaderOffset() throws MqttPersistenceException {
+      try {
+        return m_stored.getHeaderOffset();
+      } catch ( org.eclipse.paho.client.mqttv3.MqttPersistenceException e ) {
+        throw new MqttPersistenceException( e );
+      }
+    }
+
+    @Override public byte[] getPayloadBytes() throws MqttPersistenceException {
+      try {
+        return m_stored.getPayloadBytes();
+      } catch ( org.eclipse.paho.client.mqttv3.MqttPersistenceException e ) {
+        throw new MqttPersistenceException( e );
+      }
+    }
+
+    @Override public int getPayloadLength() throws MqttPersistenceException {
+      try {
+        return m_stored.getPayloadLength();
+      } catch ( org.eclipse.paho.client.mqttv3.MqttPersistenceException e ) {
+        throw new MqttPersistenceException( e );
+      }
+    }
+
+    @Override public int getPayloadOffset() throws MqttPersistenceException {
+      try {
+        return m_stored.getPayloadOffset();
+      } catch ( org.eclipse.paho.client.mqttv3.MqttPersistenceException e ) {
+        throw new MqttPersistenceException( e );
+      }
+    }
+  }
+}
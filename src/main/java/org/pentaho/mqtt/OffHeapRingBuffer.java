@@ -0,0 +1,292 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bounded queue of received messages that keeps the topic and payload bytes in a single direct (off-heap) slab
+ * rather than as objects on the heap. Messages are copied in as variable length records and copied out again by the
+ * consumer, which leaves nothing for the garbage collector to track while they wait - on-heap payloads that sit in a
+ * queue long enough get promoted and make for long collections.
+ * <p>
+ * {@link #offer(byte[], byte[], int, int)} may be called from any number of threads (they take turns);
+ * {@link #poll(Record)} must only ever be called from a single consumer thread, which never waits for producers.
+ * <p>
+ * Record layout: [record length][topic length][topic][payload]. A record that would run past the end of the slab
+ * starts at the beginning instead, the unused tail being marked with a padding length of -1 (if there is room for
+ * it). A record may take up at most half of the slab, so that it fits wherever the empty buffer's next record would
+ * start.
+ */
+public class OffHeapRingBuffer {
+
+  protected static final int RECORD_HEADER_SIZE = 8;
+  protected static final int PADDING = -1;
+  protected static final int TOPIC_CACHE_SIZE = 64;
+
+  protected final ByteBuffer m_writer;
+  protected final ByteBuffer m_reader;
+  protected final int m_size;
+  protected final int m_mask;
+  protected final int m_capacity;
+
+  protected final Object m_producerLock = new Object();
+
+  /**
+   * Bytes ever written - only advanced once a record is complete, which is what publishes it to the consumer
+   */
+  protected volatile long m_tail;
+
+  /**
+   * Bytes ever read
+   */
+  protected volatile long m_head;
+
+  protected volatile long m_offered;
+  protected volatile long m_polled;
+  protected volatile long m_highWaterMark;
+
+  /**
+   * Topics recently read, so that the same topic string is not built again for every message
+   */
+  protected final byte[][] m_topicBytes = new byte[TOPIC_CACHE_SIZE][];
+  protected final String[] m_topics = new String[TOPIC_CACHE_SIZE];
+
+  /**
+   * A message taken out of the buffer. Reused by the consumer for each message - the payload array grows as needed
+   * and only the first {@link #getLength()} bytes of it belong to the current message.
+   */
+  public static class Record {
+    protected String m_topic;
+    protected byte[] m_payload = new byte[256];
+    protected int m_length;
+
+    public String getTopic() {
+      return m_topic;
+    }
+
+    public byte[] getPayload() {
+      return m_payload;
+    }
+
+    public int getLength() {
+      return m_length;
+    }
+  }
+
+  /**
+   * @param size     the size of the slab in bytes - rounded up to the next power of two
+   * @param capacity the maximum number of messages held at once
+   */
+  public OffHeapRingBuffer( int size, int capacity ) {
+    if ( size < 1 || capacity < 1 ) {
+      throw new IllegalArgumentException( "Size and capacity must be positive: " + size + ", " + capacity );
+    }
+    int slab = 1024;
+    while ( slab < size && slab < 1 << 30 ) {
+      slab <<= 1;
+    }
+    m_size = slab;
+    m_mask = slab - 1;
+    m_capacity = capacity;
+    m_writer = ByteBuffer.allocateDirect( slab );
+    m_reader = m_writer.duplicate();
+  }
+
+  /**
+   * @param topicLength   length of the encoded topic
+   * @param payloadLength length of the payload
+   * @return true if a message of this size can ever be held
+   */
+  public boolean canHold( int topicLength, int payloadLength ) {
+    // a larger record would not fit in front of or behind the position the buffer happens to be at when it empties,
+    // and could then never be added
+    return (long) RECORD_HEADER_SIZE + topicLength + payloadLength <= m_size / 2;
+  }
+
+  /**
+   * Add a message. Safe to call from multiple threads.
+   *
+   * @param topic   the encoded topic
+   * @param payload the array holding the payload
+   * @param offset  offset of the payload in the array
+   * @param length  length of the payload
+   * @return false if there is not enough room at the moment
+   * @throws IllegalArgumentException if the message is larger than the buffer
+   */
+  public boolean offer( byte[] topic, byte[] payload, int offset, int length ) {
+    if ( !canHold( topic.length, length ) ) {
+      throw new IllegalArgumentException( "Message too large for the buffer: " + length );
+    }
+    int recordSize = RECORD_HEADER_SIZE + topic.length + length;
+    synchronized ( m_producerLock ) {
+      long count = m_offered - m_polled;
+      if ( count >= m_capacity ) {
+        return false;
+      }
+      long tail = m_tail;
+      int index = (int) ( tail & m_mask );
+      int toEnd = m_size - index;
+      long needed = recordSize <= toEnd ? recordSize : toEnd + recordSize;
+      if ( needed > m_size - ( tail - m_head ) ) {
+        return false;
+      }
+      if ( recordSize > toEnd ) {
+        if ( toEnd >= 4 ) {
+          m_writer.putInt( index, PADDING );
+        }
+        tail += toEnd;
+        index = 0;
+      }
+      m_writer.putInt( index, recordSize );
+      m_writer.putInt( index + 4, topic.length );
+      m_writer.position( index + RECORD_HEADER_SIZE );
+      m_writer.put( topic );
+      m_writer.put( payload, offset, length );
+
+      m_tail = tail + recordSize;
+      m_offered++;
+      if ( count + 1 > m_highWaterMark ) {
+        m_highWaterMark = count + 1;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Remove the oldest message. Must only be called from the consumer thread.
+   *
+   * @param record receives the message
+   * @return false if the buffer is empty
+   */
+  public boolean poll( Record record ) {
+    long head = m_head;
+    if ( head == m_tail ) {
+      return false;
+    }
+    int index = (int) ( head & m_mask );
+    int toEnd = m_size - index;
+    if ( toEnd < RECORD_HEADER_SIZE || m_reader.getInt( index ) == PADDING ) {
+      // the record starts at the beginning of the slab
+      head += toEnd;
+      index = 0;
+    }
+    int recordSize = m_reader.getInt( index );
+    int topicLength = m_reader.getInt( index + 4 );
+    int length = recordSize - RECORD_HEADER_SIZE - topicLength;
+
+    record.m_topic = topic( index + RECORD_HEADER_SIZE, topicLength );
+    if ( record.m_payload.length < length ) {
+      record.m_payload = new byte[Math.max( length, record.m_payload.length * 2 )];
+    }
+    m_reader.position( index + RECORD_HEADER_SIZE + topicLength );
+    m_reader.get( record.m_payload, 0, length );
+    record.m_length = length;
+
+    // hand the space back to the producers
+    m_polled = m_polled + 1;
+    m_head = head + recordSize;
+    return true;
+  }
+
+  /**
+   * Look up a topic in the cache, adding it if it is not there
+   */
+  protected String topic( int index, int length ) {
+    int hash = length;
+    for ( int i = 0; i < length; i++ ) {
+      hash = 31 * hash + m_reader.get( index + i );
+    }
+    int slot = ( hash ^ ( hash >>> 16 ) ) & ( TOPIC_CACHE_SIZE - 1 );
+    byte[] cached = m_topicBytes[slot];
+    if ( cached != null && cached.length == length && matches( cached, index ) ) {
+      return m_topics[slot];
+    }
+    byte[] bytes = new byte[length];
+    m_reader.position( index );
+    m_reader.get( bytes );
+    String topic = new String( bytes, StandardCharsets.UTF_8 );
+    m_topicBytes[slot] = bytes;
+    m_topics[slot] = topic;
+    return topic;
+  }
+
+  protected boolean matches( byte[] cached, int index ) {
+    for ( int i = 0; i < cached.length; i++ ) {
+      if ( cached[i] != m_reader.get( index + i ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if there is nothing to poll
+   */
+  public boolean isEmpty() {
+    return m_head == m_tail;
+  }
+
+  /**
+   * @return the (approximate, when producers are active) number of messages in the buffer
+   */
+  public int size() {
+    return (int) Math.max( 0, m_offered - m_polled );
+  }
+
+  /**
+   * @return the maximum number of messages held at once
+   */
+  public int capacity() {
+    return m_capacity;
+  }
+
+  /**
+   * @return the size of the slab in bytes
+   */
+  public int slabSize() {
+    return m_size;
+  }
+
+  /**
+   * @return the total number of messages ever added
+   */
+  public long getTotalOffered() {
+    return m_offered;
+  }
+
+  /**
+   * @return the largest number of messages that have been in the buffer at once
+   */
+  public long getHighWaterMark() {
+    return m_highWaterMark;
+  }
+
+  /**
+   * @return the bytes currently in use, including padding
+   */
+  public long bytesUsed() {
+    return m_tail - m_head;
+  }
+}
@@ -34,11 +34,101 @@ import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class SSLSocketFactoryGenerator {
 
+  /**
+   * Socket factories by the files (and versions of them) they were built from. Sharing one SSLContext per set of files
+   * also shares its client session cache, so reconnects and other step copies can resume TLS sessions instead of
+   * doing a full handshake.
+   */
+  protected static final ConcurrentMap<CacheKey, SSLSocketFactory> s_cache = new ConcurrentHashMap<>();
+
+  /**
+   * Identifies a set of PEM files and the key password, including when each file was last modified, so that replaced
+   * certificates are picked up
+   */
+  protected static class CacheKey {
+    private final String[] m_paths;
+    private final String m_password;
+    private final long[] m_stamps;
+
+    private CacheKey( String caCrtFile, String crtFile, String keyFile, String password ) {
+      m_paths = new String[] { caCrtFile, crtFile, keyFile };
+      m_password = password;
+      m_stamps = new long[m_paths.length * 2];
+      for ( int i = 0; i < m_paths.length; i++ ) {
+        File file = new File( String.valueOf( m_paths[i] ) );
+        m_stamps[2 * i] = file.lastModified();
+        m_stamps[2 * i + 1] = file.length();
+      }
+    }
+
+    /**
+     * @return true if this is an older (or newer) version of the other key's files
+     */
+    private boolean otherVersion( CacheKey other ) {
+      return Arrays.equals( m_paths, other.m_paths ) && !Arrays.equals( m_stamps, other.m_stamps );
+    }
+
+    @Override public boolean equals( Object o ) {
+      if ( !( o instanceof CacheKey ) ) {
+        return false;
+      }
+      CacheKey other = (CacheKey) o;
+      return Arrays.equals( m_paths, other.m_paths ) && Arrays.equals( m_stamps, other.m_stamps )
+          && ( m_password == null ? other.m_password == null : m_password.equals( other.m_password ) );
+    }
+
+    @Override public int hashCode() {
+      return ( 31 * Arrays.hashCode( m_paths ) + Arrays.hashCode( m_stamps ) ) * 31 + ( m_password == null ? 0
+          : m_password.hashCode() );
+    }
+  }
+
+  /**
+   * Get a socket factory for the given CA certificate, client certificate and key. Factories are cached for as long as
+   * the files don't change.
+   */
   public static SSLSocketFactory getSocketFactory( String caCrtFile, String crtFile, String keyFile, String password )
       throws Exception {
+    CacheKey key = new CacheKey( caCrtFile, crtFile, keyFile, password );
+    SSLSocketFactory factory = s_cache.get( key );
+    if ( factory != null ) {
+      return factory;
+    }
+
+    factory = createSocketFactory( caCrtFile, crtFile, keyFile, password );
+    SSLSocketFactory existing = s_cache.putIfAbsent( key, factory );
+    if ( existing != null ) {
+      return existing;
+    }
+    // forget factories built from other versions of the same files, whatever their password - factories for the same
+    // files with another password stay, as steps using either keep asking for them
+    for ( Iterator<CacheKey> i = s_cache.keySet().iterator(); i.hasNext(); ) {
+      if ( i.next().otherVersion( key ) ) {
+        i.remove();
+      }
+    }
+    return factory;
+  }
+
+  /**
+   * Forget all cached socket factories
+   */
+  public static void clearCache() {
+    s_cache.clear();
+  }
+
+  /**
+   * Build a new socket factory (and SSLContext) from the PEM files, bypassing the cache
+   */
+  protected static SSLSocketFactory createSocketFactory( String caCrtFile, String crtFile, String keyFile,
+      String password ) throws Exception {
 
     char[] passwordCharArray = password == null ? new char[0] : password.toCharArray();
 
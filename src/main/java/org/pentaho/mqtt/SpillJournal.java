@@ -0,0 +1,295 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+
+/**
+ * First-in first-out overflow store for received messages, kept in memory-mapped segment files rather than on the
+ * heap. Messages are appended to the newest segment and read back from the oldest one; a segment is deleted as soon
+ * as it has been read completely, so the disk space held is roughly what is still waiting to be read.
+ * <p>
+ * The journal only bridges a burst within one run - it is not crash safe and the segments are deleted when it is
+ * closed. Appends and reads may come from different threads.
+ * <p>
+ * Record layout: [topic length][topic][payload length][payload].
+ */
+public class SpillJournal {
+
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  protected static final int RECORD_HEADER_SIZE = 8;
+
+  protected final File m_directory;
+  protected final String m_prefix;
+  protected final int m_segmentSize;
+
+  /**
+   * Oldest segment first - the last one is being appended to
+   */
+  protected final Deque<Segment> m_segments = new ArrayDeque<>();
+
+  protected long m_size;
+  protected long m_totalSpilled;
+  protected long m_highWaterMark;
+  protected long m_segmentsCreated;
+  protected boolean m_closed;
+
+  /**
+   * A message read back from the journal
+   */
+  public static class Message {
+    protected final String m_topic;
+    protected final byte[] m_payload;
+
+    public Message( String topic, byte[] payload ) {
+      m_topic = topic;
+      m_payload = payload;
+    }
+
+    public String getTopic() {
+      return m_topic;
+    }
+
+    public byte[] getPayload() {
+      return m_payload;
+    }
+  }
+
+  /**
+   * One segment file and its read and write positions
+   */
+  protected static class Segment {
+    protected final File m_file;
+    protected RandomAccessFile m_raf;
+    protected MappedByteBuffer m_buffer;
+    protected int m_writePosition;
+    protected int m_readPosition;
+
+    protected Segment( File file, int size ) throws IOException {
+      m_file = file;
+      m_raf = new RandomAccessFile( file, "rw" );
+      m_buffer = m_raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+    }
+
+    protected boolean fits( int recordSize ) {
+      return m_writePosition + recordSize <= m_buffer.capacity();
+    }
+
+    protected boolean isRead() {
+      return m_readPosition >= m_writePosition;
+    }
+
+    protected void delete() {
+      // the mapping itself is released when the buffer is garbage collected
+      m_buffer = null;
+      try {
+        m_raf.close();
+      } catch ( IOException e ) {
+        // ignore
+      }
+      if ( !m_file.delete() ) {
+        m_file.deleteOnExit();
+      }
+    }
+  }
+
+  /**
+   * @param directory   the directory to create the segments in (the temporary directory if null or empty)
+   * @param prefix      file name prefix for the segments
+   * @param segmentSize the size of a segment in bytes (a larger one is created for a message that doesn't fit)
+   */
+  public SpillJournal( String directory, String prefix, int segmentSize ) {
+    m_directory =
+        new File( directory == null || directory.length() == 0 ? System.getProperty( "java.io.tmpdir" ) : directory );
+    m_prefix = sanitize( prefix );
+    m_segmentSize = Math.max( segmentSize, 4096 );
+  }
+
+  /**
+   * Append a message
+   *
+   * @param topic   the topic the message arrived on
+   * @param payload the message payload
+   * @throws IOException if a new segment can't be created
+   */
+  public synchronized void append( String topic, byte[] payload ) throws IOException {
+    if ( m_closed ) {
+      throw new IOException( "Spill journal closed" );
+    }
+    byte[] topicBytes = topic.getBytes( StandardCharsets.UTF_8 );
+    int recordSize = RECORD_HEADER_SIZE + topicBytes.length + payload.length;
+
+    Segment segment = m_segments.peekLast();
+    if ( segment == null || !segment.fits( recordSize ) ) {
+      segment = newSegment( recordSize );
+    }
+    MappedByteBuffer buffer = segment.m_buffer;
+    buffer.position( segment.m_writePosition );
+    buffer.putInt( topicBytes.length );
+    buffer.put( topicBytes );
+    buffer.putInt( payload.length );
+    buffer.put( payload );
+    segment.m_writePosition += recordSize;
+
+    m_size++;
+    m_totalSpilled++;
+    m_highWaterMark = Math.max( m_highWaterMark, m_size );
+  }
+
+  /**
+   * Remove up to max of the oldest messages
+   *
+   * @param target the collection to add the messages to
+   * @param max    the maximum number of messages to remove
+   * @return the number of messages removed
+   */
+  public synchronized int drainTo( Collection<? super Message> target, int max ) {
+    int drained = 0;
+    while ( drained < max && m_size > 0 ) {
+      Segment segment = m_segments.peekFirst();
+      if ( segment.isRead() ) {
+        // appends have moved on to a newer segment
+        m_segments.removeFirst().delete();
+        continue;
+      }
+      MappedByteBuffer buffer = segment.m_buffer;
+      buffer.position( segment.m_readPosition );
+      byte[] topic = new byte[buffer.getInt()];
+      buffer.get( topic );
+      byte[] payload = new byte[buffer.getInt()];
+      buffer.get( payload );
+      segment.m_readPosition = buffer.position();
+      target.add( new Message( new String( topic, StandardCharsets.UTF_8 ), payload ) );
+      m_size--;
+      drained++;
+    }
+
+    if ( m_size == 0 ) {
+      // keep the newest segment for the next burst, starting from the beginning again
+      while ( m_segments.size() > 1 ) {
+        m_segments.removeFirst().delete();
+      }
+      Segment segment = m_segments.peekFirst();
+      if ( segment != null && segment.m_buffer.capacity() > m_segmentSize ) {
+        // made for a message too large for a regular segment - don't hold on to the space
+        m_segments.removeFirst().delete();
+      } else if ( segment != null ) {
+        segment.m_readPosition = 0;
+        segment.m_writePosition = 0;
+      }
+    }
+    return drained;
+  }
+
+  /**
+   * @return true if there is nothing to read
+   */
+  public synchronized boolean isEmpty() {
+    return m_size == 0;
+  }
+
+  /**
+   * @return the number of messages waiting to be read
+   */
+  public synchronized long size() {
+    return m_size;
+  }
+
+  /**
+   * @return the total number of messages ever appended
+   */
+  public synchronized long getTotalSpilled() {
+    return m_totalSpilled;
+  }
+
+  /**
+   * @return the largest number of messages that have been waiting at once
+   */
+  public synchronized long getHighWaterMark() {
+    return m_highWaterMark;
+  }
+
+  /**
+   * @return the number of segment files created
+   */
+  public synchronized long getSegmentsCreated() {
+    return m_segmentsCreated;
+  }
+
+  /**
+   * Discard any unread messages and delete the segment files
+   */
+  public synchronized void close() {
+    m_closed = true;
+    while ( !m_segments.isEmpty() ) {
+      m_segments.removeFirst().delete();
+    }
+    m_size = 0;
+  }
+
+  protected Segment newSegment( int recordSize ) throws IOException {
+    if ( !m_directory.isDirectory() && !m_directory.mkdirs() ) {
+      throw new IOException( "Can't create spill directory " + m_directory );
+    }
+    File file = File.createTempFile( m_prefix + "-", ".spill", m_directory );
+    Segment segment;
+    try {
+      segment = new Segment( file, Math.max( m_segmentSize, recordSize ) );
+    } catch ( IOException e ) {
+      if ( !file.delete() ) {
+        file.deleteOnExit();
+      }
+      throw e;
+    }
+    Segment last = m_segments.peekLast();
+    if ( last != null && last.isRead() ) {
+      // nothing left to read in the segment being replaced
+      m_segments.removeLast().delete();
+    }
+    m_segments.addLast( segment );
+    m_segmentsCreated++;
+    return segment;
+  }
+
+  protected static String sanitize( String name ) {
+    StringBuilder result = new StringBuilder( name.length() );
+    for ( int i = 0; i < name.length(); i++ ) {
+      char c = name.charAt( i );
+      result.append( Character.isLetterOrDigit( c ) || c == '-' || c == '_' || c == '.' ? c : '_' );
+    }
+    // File.createTempFile needs a prefix of at least three characters
+    while ( result.length() < 3 ) {
+      result.append( '_' );
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,424 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt.codec;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.JsonProperties;
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettlePluginException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Avro binary records. The publisher derives a record schema from the fields it encodes - every field nullable, and
+ * the Kettle name and type kept as properties - and publishes it as its schema. Each payload is an Avro single object
+ * encoding: a two byte marker and the 64 bit fingerprint of the writer schema, followed by the record.
+ * <p>
+ * Subscribers learn writer schemas from the schema topic and read every payload through a reader for its writer's
+ * fingerprint, resolved against the schema of the decoded fields, so a publisher can add, drop or widen fields without
+ * the subscriber being restarted. A schema is identified by its fingerprint alone, so the schemas seen are shared by
+ * all steps; a subscriber whose decoded fields match the publisher's can do without the schema topic.
+ */
+public class AvroCodec implements PayloadCodec {
+
+  public static final String ID = "avro";
+
+  /**
+   * Start of the Avro single object encoding, followed by the little endian fingerprint
+   */
+  protected static final byte[] MARKER = { (byte) 0xc3, (byte) 0x01 };
+  protected static final int HEADER_LENGTH = MARKER.length + 8;
+
+  protected static final String RECORD_NAME = "Row";
+  protected static final String RECORD_NAMESPACE = "org.pentaho.mqtt";
+  protected static final String KETTLE_NAME = "kettle.name";
+  protected static final String KETTLE_TYPE = "kettle.type";
+
+  /**
+   * Writer schemas by fingerprint
+   */
+  protected static final ConcurrentMap<Long, Schema> s_schemas = new ConcurrentHashMap<>();
+
+  @Override public String getId() {
+    return ID;
+  }
+
+  @Override public String getDescription() {
+    return "Avro (binary)";
+  }
+
+  @Override public boolean isMultiField() {
+    return true;
+  }
+
+  @Override public boolean resolvesSchemas() {
+    return true;
+  }
+
+  @Override public Encoder createEncoder( RowMetaInterface rowMeta, int[] fields, Map<String, String> options )
+      throws KettleException {
+    ValueMetaInterface[] sources = new ValueMetaInterface[fields.length];
+    for ( int i = 0; i < fields.length; i++ ) {
+      sources[i] = rowMeta.getValueMeta( fields[i] );
+    }
+    Schema schema = schemaFor( sources );
+    return new AvroEncoder( sources, fields, schema, register( schema ) );
+  }
+
+  @Override public Decoder createDecoder( RowMetaInterface fields, Map<String, String> options )
+      throws KettleException {
+    ValueMetaInterface[] metas = new ValueMetaInterface[fields.size()];
+    for ( int i = 0; i < metas.length; i++ ) {
+      // conversions use cached formatters, which must not be shared between threads
+      metas[i] = fields.getValueMeta( i ).clone();
+    }
+    Schema schema = schemaFor( metas );
+    // payloads written with the same layout can be read before any schema arrives
+    register( schema );
+    try {
+      return new AvroDecoder( metas, schema,
+          ValueMetaFactory.createValueMeta( "avro", ValueMetaInterface.TYPE_STRING ) );
+    } catch ( KettlePluginException e ) {
+      throw new KettleException( e );
+    }
+  }
+
+  /**
+   * Read a publisher's schema - which also makes it known to every decoder, so payloads written with it can be read
+   */
+  @Override public RowMetaInterface readSchema( byte[] schema ) throws KettleException {
+    Schema writer;
+    try {
+      writer = new Schema.Parser().parse( new String( schema, StandardCharsets.UTF_8 ) );
+    } catch ( AvroRuntimeException e ) {
+      throw new KettleException( e );
+    }
+    if ( writer.getType() != Schema.Type.RECORD ) {
+      throw new KettleException( "Not an Avro record schema: " + writer );
+    }
+    register( writer );
+
+    RowMetaInterface fields = new RowMeta();
+    for ( Schema.Field field : writer.getFields() ) {
+      String name = field.getProp( KETTLE_NAME );
+      String type = field.getProp( KETTLE_TYPE );
+      try {
+        fields.addValueMeta( ValueMetaFactory.createValueMeta( name != null ? name : field.name(),
+            type != null ? ValueMetaFactory.getIdForValueMeta( type ) : kettleType( field.schema() ) ) );
+      } catch ( KettlePluginException e ) {
+        throw new KettleException( e );
+      }
+    }
+    return fields;
+  }
+
+  protected static long register( Schema schema ) {
+    long fingerprint = SchemaNormalization.parsingFingerprint64( schema );
+    s_schemas.putIfAbsent( fingerprint, schema );
+    return fingerprint;
+  }
+
+  /**
+   * @return the record schema for a set of fields - the same fields always give the same schema
+   * @throws KettleException if two field names come out as the same Avro name
+   */
+  protected static Schema schemaFor( ValueMetaInterface[] metas ) throws KettleException {
+    List<Schema.Field> fields = new ArrayList<>();
+    Map<String, String> names = new HashMap<>();
+    for ( ValueMetaInterface meta : metas ) {
+      String name = avroName( meta.getName() );
+      if ( names.containsKey( name ) ) {
+        throw new KettleException( "Fields " + names.get( name ) + " and " + meta.getName()
+            + " would both be written as Avro field " + name );
+      }
+      names.put( name, meta.getName() );
+
+      // nullable, and null when a publisher leaves the field out
+      Schema type = Schema.createUnion( Arrays.asList( Schema.create( Schema.Type.NULL ), avroType( meta ) ) );
+      Schema.Field field = new Schema.Field( name, type, null, JsonProperties.NULL_VALUE );
+      field.addProp( KETTLE_NAME, meta.getName() );
+      field.addProp( KETTLE_TYPE, ValueMetaFactory.getValueMetaName( meta.getType() ) );
+      fields.add( field );
+    }
+    return Schema.createRecord( RECORD_NAME, null, RECORD_NAMESPACE, false, fields );
+  }
+
+  protected static Schema avroType( ValueMetaInterface meta ) {
+    switch ( meta.getType() ) {
+      case ValueMetaInterface.TYPE_INTEGER:
+        return Schema.create( Schema.Type.LONG );
+      case ValueMetaInterface.TYPE_NUMBER:
+        return Schema.create( Schema.Type.DOUBLE );
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return Schema.create( Schema.Type.BOOLEAN );
+      case ValueMetaInterface.TYPE_BINARY:
+        return Schema.create( Schema.Type.BYTES );
+      case ValueMetaInterface.TYPE_DATE:
+      case ValueMetaInterface.TYPE_TIMESTAMP:
+        return LogicalTypes.timestampMillis().addToSchema( Schema.create( Schema.Type.LONG ) );
+      default:
+        // strings, big numbers (which keep their exact value as text) and anything else Kettle can format
+        return Schema.create( Schema.Type.STRING );
+    }
+  }
+
+  /**
+   * @return the Kettle type for a field of a schema written by something other than this codec
+   */
+  protected static int kettleType( Schema schema ) {
+    for ( Schema type : schema.getType() == Schema.Type.UNION ? schema.getTypes() : Arrays.asList( schema ) ) {
+      switch ( type.getType() ) {
+        case INT:
+        case LONG:
+          return type.getLogicalType() != null && type.getLogicalType().getName().startsWith( "timestamp" )
+              ? ValueMetaInterface.TYPE_TIMESTAMP : ValueMetaInterface.TYPE_INTEGER;
+        case FLOAT:
+        case DOUBLE:
+          return ValueMetaInterface.TYPE_NUMBER;
+        case BOOLEAN:
+          return ValueMetaInterface.TYPE_BOOLEAN;
+        case BYTES:
+        case FIXED:
+          return ValueMetaInterface.TYPE_BINARY;
+        case NULL:
+          continue;
+        default:
+          return ValueMetaInterface.TYPE_STRING;
+      }
+    }
+    return ValueMetaInterface.TYPE_STRING;
+  }
+
+  /**
+   * @return a valid Avro name for a field - letters, digits and underscores only, not starting with a digit
+   */
+  protected static String avroName( String name ) {
+    StringBuilder result = new StringBuilder( name.length() + 1 );
+    for ( int i = 0; i < name.length(); i++ ) {
+      char c = name.charAt( i );
+      boolean valid = c == '_' || ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' ) || ( c >= '0' && c <= '9' );
+      result.append( valid ? c : '_' );
+    }
+    if ( result.length() == 0 || Character.isDigit( result.charAt( 0 ) ) ) {
+      result.insert( 0, '_' );
+    }
+    return result.toString();
+  }
+
+  protected static class AvroEncoder implements Encoder {
+    protected final ValueMetaInterface[] m_sources;
+    protected final int[] m_fields;
+    protected final Schema m_schema;
+    protected final byte[] m_header;
+
+    /**
+     * Reused for every row - only the finished payload is copied out
+     */
+    protected final GenericRecord m_record;
+    protected final GenericDatumWriter<GenericRecord> m_writer;
+    protected final ByteArrayOutputStream m_bytes = new ByteArrayOutputStream();
+    protected final BinaryEncoder m_encoder;
+
+    protected AvroEncoder( ValueMetaInterface[] sources, int[] fields, Schema schema, long fingerprint ) {
+      m_sources = sources;
+      m_fields = fields;
+      m_schema = schema;
+      m_header = Arrays.copyOf( MARKER, HEADER_LENGTH );
+      for ( int i = 0; i < 8; i++ ) {
+        m_header[MARKER.length + i] = (byte) ( fingerprint >>> ( 8 * i ) );
+      }
+      m_record = new GenericData.Record( schema );
+      m_writer = new GenericDatumWriter<>( schema );
+      m_encoder = EncoderFactory.get().binaryEncoder( m_bytes, null );
+    }
+
+    @Override public byte[] encode( Object[] row ) throws KettleException {
+      for ( int i = 0; i < m_fields.length; i++ ) {
+        ValueMetaInterface meta = m_sources[i];
+        Object value = row[m_fields[i]];
+        if ( value != null && !meta.isStorageNormal() ) {
+          value = meta.convertToNormalStorageType( value );
+        }
+        m_record.put( i, toAvro( meta, value ) );
+      }
+      m_bytes.reset();
+      try {
+        m_bytes.write( m_header );
+        m_writer.write( m_record, m_encoder );
+        m_encoder.flush();
+      } catch ( IOException | AvroRuntimeException e ) {
+        throw new KettleException( e );
+      }
+      return m_bytes.toByteArray();
+    }
+
+    @Override public byte[] getSchema() {
+      return m_schema.toString().getBytes( StandardCharsets.UTF_8 );
+    }
+
+    protected Object toAvro( ValueMetaInterface meta, Object value ) throws KettleException {
+      if ( value == null ) {
+        return null;
+      }
+      switch ( meta.getType() ) {
+        case ValueMetaInterface.TYPE_STRING:
+        case ValueMetaInterface.TYPE_INTEGER:
+        case ValueMetaInterface.TYPE_NUMBER:
+        case ValueMetaInterface.TYPE_BOOLEAN:
+          return value;
+        case ValueMetaInterface.TYPE_BINARY:
+          return ByteBuffer.wrap( (byte[]) value );
+        case ValueMetaInterface.TYPE_DATE:
+        case ValueMetaInterface.TYPE_TIMESTAMP:
+          return ( (Date) value ).getTime();
+        case ValueMetaInterface.TYPE_BIGNUMBER:
+          return value.toString();
+        default:
+          return meta.getString( value );
+      }
+    }
+  }
+
+  protected static class AvroDecoder implements Decoder {
+    protected final ValueMetaInterface[] m_fields;
+    protected final Schema m_schema;
+    protected final ValueMetaInterface m_textMeta;
+
+    /**
+     * Readers by writer fingerprint, each resolving its writer's schema against the decoded fields
+     */
+    protected final Map<Long, GenericDatumReader<GenericRecord>> m_readers = new HashMap<>();
+    protected long m_lastFingerprint;
+    protected GenericDatumReader<GenericRecord> m_lastReader;
+
+    // reused for every payload
+    protected GenericRecord m_record;
+    protected BinaryDecoder m_decoder;
+
+    protected AvroDecoder( ValueMetaInterface[] fields, Schema schema, ValueMetaInterface textMeta ) {
+      m_fields = fields;
+      m_schema = schema;
+      m_textMeta = textMeta;
+    }
+
+    @Override public void decode( byte[] payload, int length, Object[] outRow, int first ) throws KettleException {
+      if ( length < HEADER_LENGTH || payload[0] != MARKER[0] || payload[1] != MARKER[1] ) {
+        throw new KettleException( "Not an Avro single object payload" );
+      }
+      long fingerprint = 0;
+      for ( int i = 7; i >= 0; i-- ) {
+        fingerprint = fingerprint << 8 | ( payload[MARKER.length + i] & 0xff );
+      }
+
+      try {
+        m_decoder = DecoderFactory.get().binaryDecoder( payload, HEADER_LENGTH, length - HEADER_LENGTH, m_decoder );
+        m_record = reader( fingerprint ).read( m_record, m_decoder );
+        if ( !m_decoder.isEnd() ) {
+          throw new KettleException( "Bytes left over after the Avro record - the payload does not match its schema" );
+        }
+      } catch ( IOException | AvroRuntimeException e ) {
+        throw new KettleException( e );
+      }
+      for ( int i = 0; i < m_fields.length; i++ ) {
+        outRow[first + i] = fromAvro( m_fields[i], m_record.get( i ) );
+      }
+    }
+
+    protected GenericDatumReader<GenericRecord> reader( long fingerprint ) throws KettleException {
+      if ( m_lastReader != null && fingerprint == m_lastFingerprint ) {
+        return m_lastReader;
+      }
+      GenericDatumReader<GenericRecord> reader = m_readers.get( fingerprint );
+      if ( reader == null ) {
+        Schema writer = s_schemas.get( fingerprint );
+        if ( writer == null ) {
+          throw new KettleException( String.format(
+              "Unknown Avro schema %016x - it has not been seen on the schema topic yet", fingerprint ) );
+        }
+        reader = new GenericDatumReader<>( writer, m_schema );
+        m_readers.put( fingerprint, reader );
+      }
+      m_lastFingerprint = fingerprint;
+      m_lastReader = reader;
+      return reader;
+    }
+
+    protected Object fromAvro( ValueMetaInterface meta, Object value ) throws KettleException {
+      if ( value == null ) {
+        return null;
+      }
+      switch ( meta.getType() ) {
+        case ValueMetaInterface.TYPE_STRING:
+          return value.toString();
+        case ValueMetaInterface.TYPE_INTEGER:
+          return ( (Number) value ).longValue();
+        case ValueMetaInterface.TYPE_NUMBER:
+          return ( (Number) value ).doubleValue();
+        case ValueMetaInterface.TYPE_BOOLEAN:
+          return value;
+        case ValueMetaInterface.TYPE_BINARY:
+          // the reader reuses its buffers, so the bytes are copied out
+          ByteBuffer buffer = ( (ByteBuffer) value ).duplicate();
+          byte[] bytes = new byte[buffer.remaining()];
+          buffer.get( bytes );
+          return bytes;
+        case ValueMetaInterface.TYPE_DATE:
+          return new Date( ( (Number) value ).longValue() );
+        case ValueMetaInterface.TYPE_TIMESTAMP:
+          return new Timestamp( ( (Number) value ).longValue() );
+        case ValueMetaInterface.TYPE_BIGNUMBER:
+          return new BigDecimal( value.toString() );
+        default:
+          return meta.convertData( m_textMeta, value.toString() );
+      }
+    }
+  }
+}
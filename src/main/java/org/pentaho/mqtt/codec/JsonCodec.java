@@ -0,0 +1,836 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt.codec;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettlePluginException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JSON payloads. Encoding writes the fields as the members of a JSON object, straight into a reused UTF-8 buffer:
+ * the quoted member names are worked out once per encoder, integers are written digit by digit and strings are
+ * escaped and UTF-8 encoded on the fly. Dates and the other types without a JSON counterpart are written as strings
+ * formatted with the field's conversion settings; NaN and infinite numbers as null.
+ * <p>
+ * Decoding pulls values out of the payload bytes by path, in a single pass and without building a
+ * tree: the paths are compiled into a trie up front, and anything the trie does not lead to is skipped over without
+ * being parsed. Scanning stops as soon as every path has been found.
+ * <p>
+ * Each decoded field is looked up at the path given by the codec option of the same name - $.name if there is none.
+ * Paths are written as $.member.member[index] or $['member name'], and $ alone is the whole payload. Fields missing
+ * from a payload are null. Numbers, booleans and strings go straight into fields of the matching Kettle type; other
+ * combinations are converted from the value's text with the field's conversion settings. A field of type String on an
+ * object or array gets its JSON text, a Binary field the raw bytes of the value.
+ */
+public class JsonCodec implements PayloadCodec {
+
+  public static final String ID = "json";
+
+  /**
+   * Exact powers of ten - a decimal with at most 15 digits divided by one of these is correctly rounded
+   */
+  protected static final double[] POWERS_OF_TEN =
+      { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15 };
+
+  @Override public String getId() {
+    return ID;
+  }
+
+  @Override public String getDescription() {
+    return "JSON";
+  }
+
+  @Override public boolean isMultiField() {
+    return true;
+  }
+
+  @Override public boolean resolvesSchemas() {
+    return false;
+  }
+
+  @Override public Encoder createEncoder( RowMetaInterface rowMeta, int[] fields, Map<String, String> options )
+      throws KettleException {
+    if ( !options.isEmpty() ) {
+      throw new KettleException( "The json codec takes no options when encoding" );
+    }
+    ValueMetaInterface[] sources = new ValueMetaInterface[fields.length];
+    for ( int i = 0; i < fields.length; i++ ) {
+      sources[i] = rowMeta.getValueMeta( fields[i] );
+    }
+    return new JsonEncoder( sources, fields );
+  }
+
+  @Override public Decoder createDecoder( RowMetaInterface fields, Map<String, String> options )
+      throws KettleException {
+    for ( Map.Entry<String, String> option : options.entrySet() ) {
+      if ( fields.indexOfValue( option.getKey() ) < 0 ) {
+        throw new KettleException(
+            "There is no decoded field " + option.getKey() + " to extract from " + option.getValue() );
+      }
+    }
+    Node root = new Node();
+    ValueMetaInterface[] metas = new ValueMetaInterface[fields.size()];
+    for ( int i = 0; i < metas.length; i++ ) {
+      // conversions use cached formatters, which must not be shared between threads
+      metas[i] = fields.getValueMeta( i ).clone();
+      String path = options.get( metas[i].getName() );
+      List<Object> steps = path != null ? parsePath( path ) : Arrays.<Object>asList( metas[i].getName() );
+      Node node = root;
+      for ( Object step : steps ) {
+        node = node.child( step );
+      }
+      node.addField( i );
+    }
+    try {
+      return new JsonDecoder( root, metas, ValueMetaFactory.createValueMeta( "json", ValueMetaInterface.TYPE_STRING ) );
+    } catch ( KettlePluginException e ) {
+      throw new KettleException( e );
+    }
+  }
+
+  @Override public RowMetaInterface readSchema( byte[] schema ) {
+    return null;
+  }
+
+  /**
+   * Compile a path into its steps - member names (strings) and array indexes (integers)
+   *
+   * @param path the path, as $.member[index]['member'] ($ may be left out)
+   * @return the steps
+   * @throws KettleException if the path is malformed
+   */
+  protected static List<Object> parsePath( String path ) throws KettleException {
+    List<Object> steps = new ArrayList<>();
+    String rest = path.trim();
+    if ( rest.startsWith( "$" ) ) {
+      rest = rest.substring( 1 );
+    } else if ( !rest.startsWith( "[" ) ) {
+      rest = "." + rest;
+    }
+    int pos = 0;
+    int n = rest.length();
+    while ( pos < n ) {
+      char c = rest.charAt( pos );
+      if ( c == '.' ) {
+        int start = ++pos;
+        while ( pos < n && rest.charAt( pos ) != '.' && rest.charAt( pos ) != '[' ) {
+          pos++;
+        }
+        if ( pos == start ) {
+          throw new KettleException( "Empty member name in JSON path " + path );
+        }
+        steps.add( rest.substring( start, pos ) );
+      } else if ( c == '[' && pos + 1 < n && ( rest.charAt( pos + 1 ) == '\'' || rest.charAt( pos + 1 ) == '"' ) ) {
+        int end = rest.indexOf( rest.charAt( pos + 1 ), pos + 2 );
+        if ( end < 0 || end + 1 >= n || rest.charAt( end + 1 ) != ']' ) {
+          throw new KettleException( "Unterminated member name in JSON path " + path );
+        }
+        steps.add( rest.substring( pos + 2, end ) );
+        pos = end + 2;
+      } else if ( c == '[' ) {
+        int end = rest.indexOf( ']', pos );
+        int index;
+        try {
+          index = end < 0 ? -1 : Integer.parseInt( rest.substring( pos + 1, end ).trim() );
+        } catch ( NumberFormatException e ) {
+          index = -1;
+        }
+        if ( index < 0 ) {
+          throw new KettleException( "Not an array index in JSON path " + path );
+        }
+        steps.add( index );
+        pos = end + 1;
+      } else {
+        throw new KettleException( "Unexpected '" + c + "' in JSON path " + path );
+      }
+    }
+    return steps;
+  }
+
+  /**
+   * A step of the compiled paths: where to go from here, and which fields take the value found here
+   */
+  protected static class Node {
+    protected final List<byte[]> m_memberNames = new ArrayList<>();
+    protected final List<Node> m_members = new ArrayList<>();
+    protected final List<Integer> m_elementIndexes = new ArrayList<>();
+    protected final List<Node> m_elements = new ArrayList<>();
+    protected int[] m_fields = new int[0];
+
+    protected Node child( Object step ) {
+      if ( step instanceof Integer ) {
+        int i = m_elementIndexes.indexOf( step );
+        if ( i < 0 ) {
+          m_elementIndexes.add( (Integer) step );
+          m_elements.add( new Node() );
+          i = m_elements.size() - 1;
+        }
+        return m_elements.get( i );
+      }
+      byte[] name = ( (String) step ).getBytes( StandardCharsets.UTF_8 );
+      Node member = member( name, 0, name.length );
+      if ( member == null ) {
+        m_memberNames.add( name );
+        member = new Node();
+        m_members.add( member );
+      }
+      return member;
+    }
+
+    protected void addField( int field ) {
+      m_fields = Arrays.copyOf( m_fields, m_fields.length + 1 );
+      m_fields[m_fields.length - 1] = field;
+    }
+
+    /**
+     * @return the member whose UTF-8 name is held in buf[start, end), or null
+     */
+    protected Node member( byte[] buf, int start, int end ) {
+      for ( int i = 0; i < m_memberNames.size(); i++ ) {
+        byte[] name = m_memberNames.get( i );
+        if ( name.length == end - start ) {
+          int j = 0;
+          while ( j < name.length && name[j] == buf[start + j] ) {
+            j++;
+          }
+          if ( j == name.length ) {
+            return m_members.get( i );
+          }
+        }
+      }
+      return null;
+    }
+
+    protected Node element( int index ) {
+      for ( int i = 0; i < m_elementIndexes.size(); i++ ) {
+        if ( m_elementIndexes.get( i ) == index ) {
+          return m_elements.get( i );
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return the number of nodes in this part of the trie that fields take their value from
+     */
+    protected int countTargets() {
+      int count = m_fields.length > 0 ? 1 : 0;
+      for ( Node member : m_members ) {
+        count += member.countTargets();
+      }
+      for ( Node element : m_elements ) {
+        count += element.countTargets();
+      }
+      return count;
+    }
+  }
+
+  protected static class JsonEncoder implements Encoder {
+    protected static final byte[] HEX = "0123456789abcdef".getBytes( StandardCharsets.US_ASCII );
+
+    protected final ValueMetaInterface[] m_sources;
+    protected final int[] m_fields;
+
+    /**
+     * The quoted name and colon that start each member, preceded by a comma for all but the first
+     */
+    protected final byte[][] m_names;
+
+    /**
+     * Reused for every row - only the finished payload is copied out
+     */
+    protected byte[] m_buf = new byte[256];
+    protected int m_length;
+
+    protected JsonEncoder( ValueMetaInterface[] sources, int[] fields ) {
+      m_sources = sources;
+      m_fields = fields;
+      m_names = new byte[fields.length][];
+      for ( int i = 0; i < fields.length; i++ ) {
+        m_length = 0;
+        if ( i > 0 ) {
+          write( (byte) ',' );
+        }
+        writeString( sources[i].getName() );
+        write( (byte) ':' );
+        m_names[i] = Arrays.copyOf( m_buf, m_length );
+      }
+    }
+
+    @Override public byte[] encode( Object[] row ) throws KettleException {
+      m_length = 0;
+      write( (byte) '{' );
+      for ( int i = 0; i < m_fields.length; i++ ) {
+        ensure( m_names[i].length );
+        System.arraycopy( m_names[i], 0, m_buf, m_length, m_names[i].length );
+        m_length += m_names[i].length;
+
+        ValueMetaInterface meta = m_sources[i];
+        Object value = row[m_fields[i]];
+        if ( value != null && !meta.isStorageNormal() ) {
+          value = meta.convertToNormalStorageType( value );
+        }
+        writeValue( meta, value );
+      }
+      write( (byte) '}' );
+      return Arrays.copyOf( m_buf, m_length );
+    }
+
+    @Override public byte[] getSchema() {
+      return null;
+    }
+
+    protected void writeValue( ValueMetaInterface meta, Object value ) throws KettleException {
+      if ( value == null ) {
+        writeAscii( "null" );
+        return;
+      }
+      switch ( meta.getType() ) {
+        case ValueMetaInterface.TYPE_STRING:
+          writeString( (String) value );
+          break;
+        case ValueMetaInterface.TYPE_INTEGER:
+          writeLong( (Long) value );
+          break;
+        case ValueMetaInterface.TYPE_NUMBER:
+          writeDouble( (Double) value );
+          break;
+        case ValueMetaInterface.TYPE_BIGNUMBER:
+          writeAscii( value.toString() );
+          break;
+        case ValueMetaInterface.TYPE_BOOLEAN:
+          writeAscii( (Boolean) value ? "true" : "false" );
+          break;
+        default:
+          writeString( meta.getString( value ) );
+          break;
+      }
+    }
+
+    protected void writeLong( long value ) {
+      if ( value == Long.MIN_VALUE ) {
+        // the one value that can't be negated
+        writeAscii( Long.toString( value ) );
+        return;
+      }
+      if ( value < 0 ) {
+        write( (byte) '-' );
+        value = -value;
+      }
+      int digits = 1;
+      for ( long rest = value; rest >= 10; rest /= 10 ) {
+        digits++;
+      }
+      ensure( digits );
+      int pos = m_length + digits;
+      m_length = pos;
+      do {
+        m_buf[--pos] = (byte) ( '0' + value % 10 );
+        value /= 10;
+      } while ( value != 0 );
+    }
+
+    protected void writeDouble( double value ) {
+      if ( Double.isNaN( value ) || Double.isInfinite( value ) ) {
+        // JSON has no way to write these
+        writeAscii( "null" );
+      } else if ( value == (long) value && Math.abs( value ) < 1e15 ) {
+        writeLong( (long) value );
+      } else {
+        writeAscii( Double.toString( value ) );
+      }
+    }
+
+    protected void writeString( String value ) {
+      if ( value == null ) {
+        writeAscii( "null" );
+        return;
+      }
+      write( (byte) '"' );
+      int n = value.length();
+      for ( int i = 0; i < n; i++ ) {
+        char c = value.charAt( i );
+        ensure( 6 );
+        if ( c == '"' || c == '\\' ) {
+          m_buf[m_length++] = '\\';
+          m_buf[m_length++] = (byte) c;
+        } else if ( c < 0x20 ) {
+          m_buf[m_length++] = '\\';
+          if ( c == '\n' ) {
+            m_buf[m_length++] = 'n';
+          } else if ( c == '\r' ) {
+            m_buf[m_length++] = 'r';
+          } else if ( c == '\t' ) {
+            m_buf[m_length++] = 't';
+          } else {
+            m_buf[m_length++] = 'u';
+            m_buf[m_length++] = '0';
+            m_buf[m_length++] = '0';
+            m_buf[m_length++] = HEX[c >> 4];
+            m_buf[m_length++] = HEX[c & 0xf];
+          }
+        } else if ( c < 0x80 ) {
+          m_buf[m_length++] = (byte) c;
+        } else if ( c < 0x800 ) {
+          m_buf[m_length++] = (byte) ( 0xc0 | c >> 6 );
+          m_buf[m_length++] = (byte) ( 0x80 | c & 0x3f );
+        } else if ( Character.isHighSurrogate( c ) && i + 1 < n && Character.isLowSurrogate( value.charAt( i + 1 ) ) ) {
+          int codePoint = Character.toCodePoint( c, value.charAt( ++i ) );
+          m_buf[m_length++] = (byte) ( 0xf0 | codePoint >> 18 );
+          m_buf[m_length++] = (byte) ( 0x80 | codePoint >> 12 & 0x3f );
+          m_buf[m_length++] = (byte) ( 0x80 | codePoint >> 6 & 0x3f );
+          m_buf[m_length++] = (byte) ( 0x80 | codePoint & 0x3f );
+        } else if ( Character.isSurrogate( c ) ) {
+          // unpaired - replaced, as String.getBytes would
+          m_buf[m_length++] = '?';
+        } else {
+          m_buf[m_length++] = (byte) ( 0xe0 | c >> 12 );
+          m_buf[m_length++] = (byte) ( 0x80 | c >> 6 & 0x3f );
+          m_buf[m_length++] = (byte) ( 0x80 | c & 0x3f );
+        }
+      }
+      write( (byte) '"' );
+    }
+
+    protected void writeAscii( String text ) {
+      int n = text.length();
+      ensure( n );
+      for ( int i = 0; i < n; i++ ) {
+        m_buf[m_length++] = (byte) text.charAt( i );
+      }
+    }
+
+    protected void write( byte b ) {
+      ensure( 1 );
+      m_buf[m_length++] = b;
+    }
+
+    protected void ensure( int space ) {
+      if ( m_length + space > m_buf.length ) {
+        m_buf = Arrays.copyOf( m_buf, Math.max( m_buf.length * 2, m_length + space ) );
+      }
+    }
+  }
+
+  protected static class JsonDecoder implements Decoder {
+    protected final Node m_root;
+    protected final ValueMetaInterface[] m_fields;
+    protected final ValueMetaInterface m_textMeta;
+    protected final int m_targets;
+
+    // the payload being decoded
+    protected byte[] m_buf;
+    protected int m_pos;
+    protected int m_end;
+    protected int m_remaining;
+    protected Object[] m_outRow;
+    protected int m_first;
+
+    protected JsonDecoder( Node root, ValueMetaInterface[] fields, ValueMetaInterface textMeta ) {
+      m_root = root;
+      m_fields = fields;
+      m_textMeta = textMeta;
+      m_targets = root.countTargets();
+    }
+
+    @Override public void decode( byte[] payload, int length, Object[] outRow, int first ) throws KettleException {
+      m_buf = payload;
+      m_pos = 0;
+      m_end = length;
+      m_remaining = m_targets;
+      m_outRow = outRow;
+      m_first = first;
+      // whatever the payload leaves out is null
+      Arrays.fill( outRow, first, first + m_fields.length, null );
+      try {
+        walk( m_root );
+      } finally {
+        m_buf = null;
+        m_outRow = null;
+      }
+    }
+
+    protected void walk( Node node ) throws KettleException {
+      skipWhitespace();
+      if ( m_pos >= m_end ) {
+        throw new KettleException( "Unexpected end of JSON payload" );
+      }
+      int start = m_pos;
+      byte b = m_buf[m_pos];
+      if ( b == '{' && !node.m_members.isEmpty() ) {
+        walkObject( node );
+      } else if ( b == '[' && !node.m_elements.isEmpty() ) {
+        walkArray( node );
+      } else {
+        skipValue();
+      }
+      if ( node.m_fields.length > 0 ) {
+        // the node's own value can only be complete once the walk has found what lies below it
+        for ( int field : node.m_fields ) {
+          m_outRow[m_first + field] = convert( m_fields[field], start, m_pos );
+        }
+        m_remaining--;
+      }
+    }
+
+    protected void walkObject( Node node ) throws KettleException {
+      m_pos++;
+      skipWhitespace();
+      if ( m_pos < m_end && m_buf[m_pos] == '}' ) {
+        m_pos++;
+        return;
+      }
+      while ( true ) {
+        skipWhitespace();
+        if ( m_pos >= m_end || m_buf[m_pos] != '"' ) {
+          throw malformed( "member name" );
+        }
+        int nameStart = m_pos;
+        boolean escaped = skipString();
+        Node member;
+        if ( escaped ) {
+          byte[] name = readString( nameStart, m_pos ).getBytes( StandardCharsets.UTF_8 );
+          member = node.member( name, 0, name.length );
+        } else {
+          member = node.member( m_buf, nameStart + 1, m_pos - 1 );
+        }
+        skipWhitespace();
+        if ( m_pos >= m_end || m_buf[m_pos] != ':' ) {
+          throw malformed( "':'" );
+        }
+        m_pos++;
+        if ( member != null ) {
+          walk( member );
+          if ( m_remaining == 0 ) {
+            return;
+          }
+        } else {
+          skipWhitespace();
+          skipValue();
+        }
+        if ( endOfContainer( '}' ) ) {
+          return;
+        }
+      }
+    }
+
+    protected void walkArray( Node node ) throws KettleException {
+      m_pos++;
+      skipWhitespace();
+      if ( m_pos < m_end && m_buf[m_pos] == ']' ) {
+        m_pos++;
+        return;
+      }
+      for ( int index = 0; ; index++ ) {
+        Node element = node.element( index );
+        if ( element != null ) {
+          walk( element );
+          if ( m_remaining == 0 ) {
+            return;
+          }
+        } else {
+          skipWhitespace();
+          skipValue();
+        }
+        if ( endOfContainer( ']' ) ) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Move past the ',' or closing bracket that follows a member or element
+     *
+     * @return true if it was the closing bracket
+     */
+    protected boolean endOfContainer( char close ) throws KettleException {
+      skipWhitespace();
+      if ( m_pos >= m_end ) {
+        throw malformed( "'" + close + "'" );
+      }
+      byte b = m_buf[m_pos++];
+      if ( b == close ) {
+        return true;
+      }
+      if ( b != ',' ) {
+        throw malformed( "',' or '" + close + "'" );
+      }
+      return false;
+    }
+
+    protected void skipValue() throws KettleException {
+      if ( m_pos >= m_end ) {
+        throw new KettleException( "Unexpected end of JSON payload" );
+      }
+      byte b = m_buf[m_pos];
+      if ( b == '"' ) {
+        skipString();
+      } else if ( b == '{' || b == '[' ) {
+        int depth = 0;
+        while ( m_pos < m_end ) {
+          b = m_buf[m_pos];
+          if ( b == '"' ) {
+            skipString();
+            continue;
+          }
+          m_pos++;
+          if ( b == '{' || b == '[' ) {
+            depth++;
+          } else if ( ( b == '}' || b == ']' ) && --depth == 0 ) {
+            return;
+          }
+        }
+        throw new KettleException( "Unterminated JSON object or array" );
+      } else {
+        // number, true, false or null
+        while ( m_pos < m_end && !isDelimiter( m_buf[m_pos] ) ) {
+          m_pos++;
+        }
+      }
+    }
+
+    /**
+     * Move past the string starting at the current position
+     *
+     * @return true if the string contains escapes
+     */
+    protected boolean skipString() throws KettleException {
+      boolean escaped = false;
+      m_pos++;
+      while ( m_pos < m_end ) {
+        byte b = m_buf[m_pos++];
+        if ( b == '"' ) {
+          return escaped;
+        }
+        if ( b == '\\' ) {
+          escaped = true;
+          m_pos++;
+        }
+      }
+      throw new KettleException( "Unterminated JSON string" );
+    }
+
+    protected void skipWhitespace() {
+      while ( m_pos < m_end && isWhitespace( m_buf[m_pos] ) ) {
+        m_pos++;
+      }
+    }
+
+    /**
+     * Convert the value held in m_buf[start, end) to a field's type
+     */
+    protected Object convert( ValueMetaInterface meta, int start, int end ) throws KettleException {
+      byte b = m_buf[start];
+      if ( b == 'n' ) {
+        return null;
+      }
+      boolean number = b == '-' || ( b >= '0' && b <= '9' );
+      switch ( meta.getType() ) {
+        case ValueMetaInterface.TYPE_STRING:
+          return b == '"' ? readString( start, end ) : text( start, end );
+        case ValueMetaInterface.TYPE_INTEGER:
+          if ( number ) {
+            return parseLong( start, end );
+          }
+          break;
+        case ValueMetaInterface.TYPE_NUMBER:
+          if ( number ) {
+            return parseDouble( start, end );
+          }
+          break;
+        case ValueMetaInterface.TYPE_BOOLEAN:
+          if ( b == 't' || b == 'f' ) {
+            return b == 't';
+          }
+          break;
+        case ValueMetaInterface.TYPE_BINARY:
+          return Arrays.copyOfRange( m_buf, start, end );
+        default:
+          break;
+      }
+      return meta.convertData( m_textMeta, b == '"' ? readString( start, end ) : text( start, end ) );
+    }
+
+    /**
+     * Integers are read straight from the digits - anything with a fraction or exponent is rounded, as Kettle
+     * does when converting a Number to an Integer
+     *
+     * @throws KettleException if the value has no fraction or exponent but does not fit in a long
+     */
+    protected long parseLong( int start, int end ) throws KettleException {
+      int pos = start;
+      boolean negative = m_buf[pos] == '-';
+      if ( negative ) {
+        pos++;
+      }
+      if ( pos == end ) {
+        return Math.round( parseDouble( start, end ) );
+      }
+      long value = 0;
+      for ( int i = pos; i < end; i++ ) {
+        byte b = m_buf[i];
+        if ( b < '0' || b > '9' ) {
+          return Math.round( parseDouble( start, end ) );
+        }
+        value = value * 10 + ( b - '0' );
+      }
+      if ( end - pos > 18 ) {
+        // long enough to have overflowed - but still exact, so it must not go through a double
+        try {
+          return Long.parseLong( text( start, end ) );
+        } catch ( NumberFormatException e ) {
+          throw new KettleException( "JSON number out of range for an Integer field: " + text( start, end ) );
+        }
+      }
+      return negative ? -value : value;
+    }
+
+    /**
+     * Plain decimals of up to 15 digits are worked out exactly from the digits, the rest is left to
+     * {@link Double#parseDouble(String)}
+     */
+    protected double parseDouble( int start, int end ) throws KettleException {
+      int pos = start;
+      boolean negative = m_buf[pos] == '-';
+      if ( negative ) {
+        pos++;
+      }
+      long mantissa = 0;
+      int digits = 0;
+      int scale = 0;
+      boolean fraction = false;
+      for ( ; pos < end; pos++ ) {
+        byte b = m_buf[pos];
+        if ( b >= '0' && b <= '9' && digits < 15 ) {
+          mantissa = mantissa * 10 + ( b - '0' );
+          digits++;
+          if ( fraction ) {
+            scale++;
+          }
+        } else if ( b == '.' && !fraction ) {
+          fraction = true;
+        } else {
+          try {
+            return Double.parseDouble( text( start, end ) );
+          } catch ( NumberFormatException e ) {
+            throw new KettleException( "Not a JSON number: " + text( start, end ) );
+          }
+        }
+      }
+      if ( digits == 0 ) {
+        throw new KettleException( "Not a JSON number: " + text( start, end ) );
+      }
+      double value = mantissa / POWERS_OF_TEN[scale];
+      return negative ? -value : value;
+    }
+
+    /**
+     * Decode the JSON string held in m_buf[start, end), quotes included
+     */
+    protected String readString( int start, int end ) throws KettleException {
+      int stop = end - 1;
+      int pos = start + 1;
+      while ( pos < stop && m_buf[pos] != '\\' ) {
+        pos++;
+      }
+      if ( pos == stop ) {
+        return new String( m_buf, start + 1, stop - start - 1, StandardCharsets.UTF_8 );
+      }
+
+      StringBuilder result = new StringBuilder( stop - start );
+      int run = start + 1;
+      while ( pos < stop ) {
+        if ( m_buf[pos] != '\\' ) {
+          pos++;
+          continue;
+        }
+        result.append( new String( m_buf, run, pos - run, StandardCharsets.UTF_8 ) );
+        byte escape = pos + 1 < stop ? m_buf[pos + 1] : 0;
+        switch ( escape ) {
+          case '"':
+          case '\\':
+          case '/':
+            result.append( (char) escape );
+            break;
+          case 'b':
+            result.append( '\b' );
+            break;
+          case 'f':
+            result.append( '\f' );
+            break;
+          case 'n':
+            result.append( '\n' );
+            break;
+          case 'r':
+            result.append( '\r' );
+            break;
+          case 't':
+            result.append( '\t' );
+            break;
+          case 'u':
+            if ( pos + 6 > stop ) {
+              throw new KettleException( "Truncated \\u escape in JSON string" );
+            }
+            try {
+              result.append(
+                  (char) Integer.parseInt( new String( m_buf, pos + 2, 4, StandardCharsets.US_ASCII ), 16 ) );
+            } catch ( NumberFormatException e ) {
+              throw new KettleException( "Invalid \\u escape in JSON string" );
+            }
+            pos += 4;
+            break;
+          default:
+            throw new KettleException( "Invalid escape in JSON string" );
+        }
+        pos += 2;
+        run = pos;
+      }
+      result.append( new String( m_buf, run, stop - run, StandardCharsets.UTF_8 ) );
+      return result.toString();
+    }
+
+    protected String text( int start, int end ) {
+      return new String( m_buf, start, end - start, StandardCharsets.UTF_8 );
+    }
+
+    protected KettleException malformed( String expected ) {
+      return new KettleException( "Malformed JSON payload - expected " + expected + " at offset " + m_pos );
+    }
+  }
+
+  protected static boolean isWhitespace( byte b ) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+  }
+
+  protected static boolean isDelimiter( byte b ) {
+    return b == ',' || b == '}' || b == ']' || isWhitespace( b );
+  }
+}
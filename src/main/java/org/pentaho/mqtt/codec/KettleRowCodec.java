@@ -0,0 +1,176 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt.codec;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+
+/**
+ * Whole rows in Kettle's own binary serialization ({@link ValueMetaInterface#writeData}), the format used between
+ * steps on different slave servers. The layout is published once as a schema - the fields' metadata as written by
+ * {@link RowMetaInterface#writeMeta} - so subscribers can rebuild the exact row layout instead of having it typed in.
+ * <p>
+ * Values are always sent in normal storage, so lazily converted input fields are converted before they are written.
+ */
+public class KettleRowCodec implements PayloadCodec {
+
+  public static final String ID = "kettle-row";
+
+  @Override public String getId() {
+    return ID;
+  }
+
+  @Override public String getDescription() {
+    return "Kettle row (binary)";
+  }
+
+  @Override public boolean isMultiField() {
+    return true;
+  }
+
+  @Override public boolean resolvesSchemas() {
+    return false;
+  }
+
+  @Override public Encoder createEncoder( RowMetaInterface rowMeta, int[] fields, Map<String, String> options )
+      throws KettleException {
+    ValueMetaInterface[] sources = new ValueMetaInterface[fields.length];
+    RowMetaInterface schema = new RowMeta();
+    for ( int i = 0; i < fields.length; i++ ) {
+      sources[i] = rowMeta.getValueMeta( fields[i] );
+      schema.addValueMeta( normalStorage( sources[i] ) );
+    }
+    return new RowEncoder( sources, fields, schema );
+  }
+
+  @Override public Decoder createDecoder( RowMetaInterface fields, Map<String, String> options )
+      throws KettleException {
+    ValueMetaInterface[] metas = new ValueMetaInterface[fields.size()];
+    for ( int i = 0; i < metas.length; i++ ) {
+      metas[i] = normalStorage( fields.getValueMeta( i ) );
+    }
+    return new RowDecoder( metas );
+  }
+
+  @Override public RowMetaInterface readSchema( byte[] schema ) throws KettleException {
+    try {
+      return new RowMeta( new DataInputStream( new ByteArrayInputStream( schema ) ) );
+    } catch ( SocketTimeoutException e ) {
+      throw new KettleException( e );
+    }
+  }
+
+  protected static ValueMetaInterface normalStorage( ValueMetaInterface valueMeta ) {
+    ValueMetaInterface copy = valueMeta.clone();
+    copy.setStorageType( ValueMetaInterface.STORAGE_TYPE_NORMAL );
+    return copy;
+  }
+
+  protected static class RowEncoder implements Encoder {
+    protected final ValueMetaInterface[] m_sources;
+    protected final int[] m_fields;
+    protected final RowMetaInterface m_schema;
+
+    /**
+     * Reused for every row - only the finished payload is copied out
+     */
+    protected final ByteArrayOutputStream m_bytes = new ByteArrayOutputStream();
+    protected final DataOutputStream m_out = new DataOutputStream( m_bytes );
+
+    protected RowEncoder( ValueMetaInterface[] sources, int[] fields, RowMetaInterface schema ) {
+      m_sources = sources;
+      m_fields = fields;
+      m_schema = schema;
+    }
+
+    @Override public byte[] encode( Object[] row ) throws KettleException {
+      m_bytes.reset();
+      for ( int i = 0; i < m_fields.length; i++ ) {
+        Object value = row[m_fields[i]];
+        if ( !m_sources[i].isStorageNormal() ) {
+          value = m_sources[i].convertToNormalStorageType( value );
+        }
+        m_schema.getValueMeta( i ).writeData( m_out, value );
+      }
+      return m_bytes.toByteArray();
+    }
+
+    @Override public byte[] getSchema() throws KettleException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      m_schema.writeMeta( new DataOutputStream( bytes ) );
+      return bytes.toByteArray();
+    }
+  }
+
+  protected static class RowDecoder implements Decoder {
+    protected final ValueMetaInterface[] m_fields;
+    protected final PayloadInput m_input = new PayloadInput();
+    protected final DataInputStream m_in = new DataInputStream( m_input );
+
+    protected RowDecoder( ValueMetaInterface[] fields ) {
+      m_fields = fields;
+    }
+
+    @Override public void decode( byte[] payload, int length, Object[] outRow, int first ) throws KettleException {
+      m_input.setPayload( payload, length );
+      try {
+        for ( int i = 0; i < m_fields.length; i++ ) {
+          outRow[first + i] = m_fields[i].readData( m_in );
+        }
+      } catch ( SocketTimeoutException e ) {
+        throw new KettleException( e );
+      }
+      if ( m_input.available() > 0 ) {
+        // the publisher sent more fields than we expect
+        throw new KettleException(
+            m_input.available() + " bytes left over after the last field - the row layout does not match the payload" );
+      }
+    }
+  }
+
+  /**
+   * A byte array input stream that can be pointed at the next payload instead of being created for each one
+   */
+  protected static class PayloadInput extends ByteArrayInputStream {
+
+    protected PayloadInput() {
+      super( new byte[0] );
+    }
+
+    protected void setPayload( byte[] payload, int length ) {
+      buf = payload;
+      pos = 0;
+      count = length;
+      mark = 0;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.mqtt.codec;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.util.Map;
+
+/**
+ * A wire format for MQTT payloads, shared by the publisher (which encodes fields of its input rows) and the
+ * subscriber (which decodes payloads into typed output fields).
+ * <p>
+ * Codecs are found with {@link java.util.ServiceLoader}: a jar lists its implementations in
+ * META-INF/services/org.pentaho.mqtt.codec.PayloadCodec and is dropped into the plugin's lib folder. Implementations
+ * need a public no-argument constructor and must be stateless - anything worked out for a particular row layout
+ * belongs in the {@link Encoder} or {@link Decoder} created for it. See {@link PayloadCodecs}.
+ */
+public interface PayloadCodec {
+
+  /**
+   * @return the id the steps store in their settings - never changed once released
+   */
+  String getId();
+
+  /**
+   * @return a short description for the step dialogs
+   */
+  String getDescription();
+
+  /**
+   * @return true if the codec can encode or decode more than one field (otherwise exactly one is expected)
+   */
+  boolean isMultiField();
+
+  /**
+   * @return true if decoders can read payloads written with a schema other than the decoded fields (say one with
+   * fields added or removed), so a subscriber carries on when the publisher's schema changes instead of stopping
+   */
+  boolean resolvesSchemas();
+
+  /**
+   * Prepare to encode rows of a particular layout
+   *
+   * @param rowMeta the layout of the rows
+   * @param fields  the indexes of the fields to encode, in order
+   * @param options codec specific options (never null)
+   * @return the encoder
+   * @throws KettleException if the fields can't be encoded with these options
+   */
+  Encoder createEncoder( RowMetaInterface rowMeta, int[] fields, Map<String, String> options ) throws KettleException;
+
+  /**
+   * Prepare to decode payloads into a particular set of fields
+   *
+   * @param fields  the fields to decode into, in the order they appear in the output row
+   * @param options codec specific options (never null)
+   * @return the decoder
+   * @throws KettleException if payloads can't be decoded into these fields with these options
+   */
+  Decoder createDecoder( RowMetaInterface fields, Map<String, String> options ) throws KettleException;
+
+  /**
+   * Read a schema message published by an {@link Encoder} of this codec
+   *
+   * @param schema the schema message
+   * @return the fields the payloads decode into, or null if the codec does not publish schemas
+   * @throws KettleException if the schema can't be read
+   */
+  RowMetaInterface readSchema( byte[] schema ) throws KettleException;
+
+  /**
+   * Turns rows into payloads. Only ever used by one thread at a time.
+   */
+  interface Encoder {
+
+    /**
+     * @param row the row
+     * @return the payload, or null if there is nothing to publish for this row
+     * @throws KettleException if the row can't be encoded
+     */
+    byte[] encode( Object[] row ) throws KettleException;
+
+    /**
+     * @return a description of the payload layout for subscribers, published retained to the schema topic - or null
+     * if the codec has none
+     * @throws KettleException if the schema can't be written
+     */
+    byte[] getSchema() throws KettleException;
+  }
+
+  /**
+   * Turns payloads into field values. Only ever used by one thread at a time.
+   */
+  interface Decoder {
+
+    /**
+     * @param payload the array holding the payload
+     * @param length  the length of the payload, which starts at the beginning of the array - the array may be reused
+     *                once this returns, so values must not share it
+     * @param outRow  the output row
+     * @param first   the index in the output row of the first field to decode into
+     * @throws KettleException if the payload can't be decoded
+     */
+    void decode( byte[] payload, int length, Object[] outRow, int first ) throws KettleException;
+  }
+}
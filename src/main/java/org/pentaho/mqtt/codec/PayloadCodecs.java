@@ -0,0 +1,257 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.mqtt.codec;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettlePluginException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * The payload codecs available to the steps. The codecs are looked up once, with the class loader of this plugin, so
+ * codec jars in the plugin's lib folder are found too.
+ */
+public class PayloadCodecs {
+
+  /**
+   * The codec used when none is chosen - a single field in the publisher's raw value encoding
+   */
+  public static final String VALUE = ValueCodec.ID;
+
+  protected static Map<String, PayloadCodec> s_codecs;
+
+  /**
+   * @return the available codecs by id, in the order they were found
+   */
+  public static synchronized Map<String, PayloadCodec> getCodecs() {
+    if ( s_codecs == null ) {
+      Map<String, PayloadCodec> codecs = new LinkedHashMap<>();
+      codecs.put( VALUE, new ValueCodec() );
+      for ( PayloadCodec codec : ServiceLoader.load( PayloadCodec.class, PayloadCodec.class.getClassLoader() ) ) {
+        if ( !codecs.containsKey( codec.getId() ) ) {
+          codecs.put( codec.getId(), codec );
+        }
+      }
+      s_codecs = Collections.unmodifiableMap( codecs );
+    }
+    return s_codecs;
+  }
+
+  /**
+   * @return the ids of the available codecs
+   */
+  public static String[] getIds() {
+    return getCodecs().keySet().toArray( new String[0] );
+  }
+
+  /**
+   * @param id a codec id (null or empty for the value codec)
+   * @return true if there is a codec with this id
+   */
+  public static boolean isKnown( String id ) {
+    return id == null || id.length() == 0 || getCodecs().containsKey( id );
+  }
+
+  /**
+   * @param id a codec id (null or empty for the value codec)
+   * @return true if this is the value codec
+   */
+  public static boolean isValue( String id ) {
+    return id == null || id.length() == 0 || VALUE.equals( id );
+  }
+
+  /**
+   * @param id a codec id (null or empty for the value codec)
+   * @return the codec
+   * @throws KettleException if there is no codec with this id
+   */
+  public static PayloadCodec getCodec( String id ) throws KettleException {
+    PayloadCodec codec = getCodecs().get( id == null || id.length() == 0 ? VALUE : id );
+    if ( codec == null ) {
+      throw new KettleException( "Unknown payload codec: " + id );
+    }
+    return codec;
+  }
+
+  /**
+   * Parse codec options written as comma separated key=value pairs
+   *
+   * @param options the options (null or empty for none)
+   * @return the options, in order
+   * @throws KettleException if a pair has no =, or an empty key
+   */
+  public static Map<String, String> parseOptions( String options ) throws KettleException {
+    Map<String, String> result = new LinkedHashMap<>();
+    for ( String pair : split( options ) ) {
+      int eq = pair.indexOf( '=' );
+      if ( eq <= 0 || pair.substring( 0, eq ).trim().length() == 0 ) {
+        throw new KettleException( "Not a key=value pair: " + pair );
+      }
+      result.put( pair.substring( 0, eq ).trim(), pair.substring( eq + 1 ).trim() );
+    }
+    return result;
+  }
+
+  /**
+   * Parse field definitions written as comma separated name:type pairs. The type defaults to String and may be
+   * followed by the length and precision, as in amount:Number(10,2).
+   *
+   * @param fields the field definitions
+   * @return the fields, in order
+   * @throws KettleException if a type is unknown or a name is empty
+   */
+  public static RowMetaInterface parseFields( String fields ) throws KettleException {
+    RowMetaInterface result = new RowMeta();
+    for ( String field : splitFields( fields ) ) {
+      int length = -1;
+      int precision = -1;
+      String definition = field;
+      int open = field.indexOf( '(' );
+      if ( open > 0 && field.endsWith( ")" ) ) {
+        List<String> sizes = split( field.substring( open + 1, field.length() - 1 ) );
+        try {
+          length = sizes.size() > 0 ? Integer.parseInt( sizes.get( 0 ) ) : -1;
+          precision = sizes.size() > 1 ? Integer.parseInt( sizes.get( 1 ) ) : -1;
+        } catch ( NumberFormatException e ) {
+          throw new KettleException( "Not a name:type(length,precision) field definition: " + field );
+        }
+        definition = field.substring( 0, open );
+      }
+      int colon = definition.lastIndexOf( ':' );
+      String name = ( colon < 0 ? definition : definition.substring( 0, colon ) ).trim();
+      String type = colon < 0 ? "String" : definition.substring( colon + 1 ).trim();
+      int typeId = ValueMetaFactory.getIdForValueMeta( type );
+      if ( name.length() == 0 || typeId == ValueMetaInterface.TYPE_NONE ) {
+        throw new KettleException( "Not a name:type field definition: " + field );
+      }
+      try {
+        ValueMetaInterface valueMeta = ValueMetaFactory.createValueMeta( name, typeId );
+        valueMeta.setLength( length );
+        valueMeta.setPrecision( precision );
+        result.addValueMeta( valueMeta );
+      } catch ( KettlePluginException e ) {
+        throw new KettleException( e );
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Write fields the way {@link #parseFields(String)} reads them
+   *
+   * @param fields the fields
+   * @return the field definitions
+   */
+  public static String formatFields( RowMetaInterface fields ) {
+    StringBuilder result = new StringBuilder();
+    for ( int i = 0; i < fields.size(); i++ ) {
+      ValueMetaInterface valueMeta = fields.getValueMeta( i );
+      if ( i > 0 ) {
+        result.append( ',' );
+      }
+      result.append( valueMeta.getName() ).append( ':' ).append( valueMeta.getTypeDesc() );
+      if ( valueMeta.getLength() >= 0 ) {
+        result.append( '(' ).append( valueMeta.getLength() );
+        if ( valueMeta.getPrecision() >= 0 ) {
+          result.append( ',' ).append( valueMeta.getPrecision() );
+        }
+        result.append( ')' );
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * @param a some fields
+   * @param b some other fields
+   * @return true if both have the same names and types, in the same order
+   */
+  public static boolean sameFields( RowMetaInterface a, RowMetaInterface b ) {
+    if ( a.size() != b.size() ) {
+      return false;
+    }
+    for ( int i = 0; i < a.size(); i++ ) {
+      if ( !a.getValueMeta( i ).getName().equals( b.getValueMeta( i ).getName() )
+          || a.getValueMeta( i ).getType() != b.getValueMeta( i ).getType() ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Split field definitions at the commas that are not inside a (length,precision)
+   */
+  protected static List<String> splitFields( String fields ) {
+    List<String> result = new ArrayList<>();
+    if ( fields == null ) {
+      return result;
+    }
+    int depth = 0;
+    int start = 0;
+    for ( int i = 0; i <= fields.length(); i++ ) {
+      char c = i < fields.length() ? fields.charAt( i ) : ',';
+      if ( c == '(' ) {
+        depth++;
+      } else if ( c == ')' ) {
+        depth--;
+      } else if ( c == ',' && depth <= 0 ) {
+        String field = fields.substring( start, i ).trim();
+        if ( field.length() > 0 ) {
+          result.add( field );
+        }
+        start = i + 1;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Split a comma separated list into its trimmed, non-empty items
+   *
+   * @param list the list (may be null)
+   * @return the items
+   */
+  public static List<String> split( String list ) {
+    List<String> result = new ArrayList<>();
+    if ( list == null ) {
+      return result;
+    }
+    for ( String item : list.split( "," ) ) {
+      if ( item.trim().length() > 0 ) {
+        result.add( item.trim() );
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,291 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt.codec;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * Turns the values of the message field into MQTT payloads. An encoder is chosen once for the field's type, so
+ * publishing a row neither switches on the type nor allocates anything but the payload array itself (serializable
+ * values excepted - Java serialization needs a fresh object stream per message).
+ */
+public abstract class PayloadEncoder {
+
+  /**
+   * @param valueMeta the value meta of the message field
+   * @return the encoder for the field's type
+   */
+  public static PayloadEncoder forValueMeta( ValueMetaInterface valueMeta ) {
+    boolean normal = valueMeta.getStorageType() == ValueMetaInterface.STORAGE_TYPE_NORMAL;
+    switch ( valueMeta.getType() ) {
+      case ValueMetaInterface.TYPE_STRING:
+        return new StringEncoder( valueMeta, normal );
+      case ValueMetaInterface.TYPE_INTEGER:
+        return new IntegerEncoder( valueMeta, normal );
+      case ValueMetaInterface.TYPE_DATE:
+        // send the date as a long (milliseconds) value
+        return new DateEncoder( valueMeta, normal );
+      case ValueMetaInterface.TYPE_NUMBER:
+        return new NumberEncoder( valueMeta, normal );
+      case ValueMetaInterface.TYPE_TIMESTAMP:
+        return new TimestampEncoder( valueMeta, normal );
+      case ValueMetaInterface.TYPE_BINARY:
+        return new BinaryEncoder( valueMeta, normal );
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return new BooleanEncoder( valueMeta, normal );
+      case ValueMetaInterface.TYPE_SERIALIZABLE:
+        return new SerializableEncoder( valueMeta, normal );
+      default:
+        return new UnsupportedEncoder( valueMeta, normal );
+    }
+  }
+
+  protected final ValueMetaInterface m_valueMeta;
+
+  /**
+   * True if values are stored as their native Java type (rather than as binary strings or indexes), so they can be
+   * cast instead of converted
+   */
+  protected final boolean m_normalStorage;
+
+  protected PayloadEncoder( ValueMetaInterface valueMeta, boolean normalStorage ) {
+    m_valueMeta = valueMeta;
+    m_normalStorage = normalStorage;
+  }
+
+  /**
+   * @param value the value of the message field
+   * @return the payload, or null if the value is null or empty and should not be published
+   * @throws KettleValueException if the value can't be encoded
+   */
+  public byte[] encode( Object value ) throws KettleValueException {
+    if ( value == null ) {
+      return null;
+    }
+    return encodeValue( value );
+  }
+
+  protected abstract byte[] encodeValue( Object value ) throws KettleValueException;
+
+  protected static byte[] putLong( byte[] bytes, int offset, long value ) {
+    for ( int i = offset + 7; i >= offset; i-- ) {
+      bytes[i] = (byte) value;
+      value >>>= 8;
+    }
+    return bytes;
+  }
+
+  protected static byte[] putInt( byte[] bytes, int offset, int value ) {
+    for ( int i = offset + 3; i >= offset; i-- ) {
+      bytes[i] = (byte) value;
+      value >>>= 8;
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the number of bytes needed to encode the string as UTF-8
+   */
+  protected static int utf8Length( String s ) {
+    int length = s.length();
+    int bytes = length;
+    for ( int i = 0; i < length; i++ ) {
+      char c = s.charAt( i );
+      if ( c >= 0x800 ) {
+        if ( Character.isHighSurrogate( c ) && i + 1 < length && Character.isLowSurrogate( s.charAt( i + 1 ) ) ) {
+          // the pair becomes 4 bytes
+          bytes += 2;
+          i++;
+        } else if ( Character.isSurrogate( c ) ) {
+          // unpaired surrogates are replaced by '?'
+          continue;
+        } else {
+          bytes += 2;
+        }
+      } else if ( c >= 0x80 ) {
+        bytes++;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Encode a string as UTF-8 straight into an array of exactly the right size. Unpaired surrogates are replaced by
+   * '?', as {@link String#getBytes(java.nio.charset.Charset)} does.
+   */
+  protected static byte[] utf8( String s ) {
+    int length = s.length();
+    byte[] result = new byte[utf8Length( s )];
+    int pos = 0;
+    for ( int i = 0; i < length; i++ ) {
+      char c = s.charAt( i );
+      if ( c < 0x80 ) {
+        result[pos++] = (byte) c;
+      } else if ( c < 0x800 ) {
+        result[pos++] = (byte) ( 0xc0 | ( c >> 6 ) );
+        result[pos++] = (byte) ( 0x80 | ( c & 0x3f ) );
+      } else if ( Character.isHighSurrogate( c ) && i + 1 < length && Character.isLowSurrogate( s.charAt( i + 1 ) ) ) {
+        int cp = Character.toCodePoint( c, s.charAt( ++i ) );
+        result[pos++] = (byte) ( 0xf0 | ( cp >> 18 ) );
+        result[pos++] = (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3f ) );
+        result[pos++] = (byte) ( 0x80 | ( ( cp >> 6 ) & 0x3f ) );
+        result[pos++] = (byte) ( 0x80 | ( cp & 0x3f ) );
+      } else if ( Character.isSurrogate( c ) ) {
+        result[pos++] = (byte) '?';
+      } else {
+        result[pos++] = (byte) ( 0xe0 | ( c >> 12 ) );
+        result[pos++] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+        result[pos++] = (byte) ( 0x80 | ( c & 0x3f ) );
+      }
+    }
+    return result;
+  }
+
+  protected static class StringEncoder extends PayloadEncoder {
+    protected StringEncoder( ValueMetaInterface valueMeta, boolean normalStorage ) {
+      super( valueMeta, normalStorage );
+    }
+
+    @Override protected byte[] encodeValue( Object value ) throws KettleValueException {
+      String s = m_normalStorage ? (String) value : m_valueMeta.getString( value );
+      if ( s == null || s.length() == 0 ) {
+        return null;
+      }
+      return utf8( s );
+    }
+  }
+
+  protected static class IntegerEncoder extends PayloadEncoder {
+    protected IntegerEncoder( ValueMetaInterface valueMeta, boolean normalStorage ) {
+      super( valueMeta, normalStorage );
+    }
+
+    @Override protected byte[] encodeValue( Object value ) throws KettleValueException {
+      Long l = m_normalStorage ? (Long) value : m_valueMeta.getInteger( value );
+      return putLong( new byte[8], 0, l );
+    }
+  }
+
+  protected static class DateEncoder extends PayloadEncoder {
+    protected DateEncoder( ValueMetaInterface valueMeta, boolean normalStorage ) {
+      super( valueMeta, normalStorage );
+    }
+
+    @Override protected byte[] encodeValue( Object value ) throws KettleValueException {
+      long millis = m_normalStorage ? ( (Date) value ).getTime() : m_valueMeta.getInteger( value );
+      return putLong( new byte[8], 0, millis );
+    }
+  }
+
+  protected static class NumberEncoder extends PayloadEncoder {
+    protected NumberEncoder( ValueMetaInterface valueMeta, boolean normalStorage ) {
+      super( valueMeta, normalStorage );
+    }
+
+    @Override protected byte[] encodeValue( Object value ) throws KettleValueException {
+      Double d = m_normalStorage ? (Double) value : m_valueMeta.getNumber( value );
+      return putLong( new byte[8], 0, Double.doubleToRawLongBits( d ) );
+    }
+  }
+
+  protected static class TimestampEncoder extends PayloadEncoder {
+    protected TimestampEncoder( ValueMetaInterface valueMeta, boolean normalStorage ) {
+      super( valueMeta, normalStorage );
+    }
+
+    @Override protected byte[] encodeValue( Object value ) throws KettleValueException {
+      Date date = m_normalStorage ? (Date) value : m_valueMeta.getDate( value );
+      byte[] result = new byte[12];
+      putLong( result, 0, date.getTime() );
+      return putInt( result, 8, date instanceof Timestamp ? ( (Timestamp) date ).getNanos()
+          : (int) ( ( date.getTime() % 1000 + 1000 ) % 1000 ) * 1000000 );
+    }
+  }
+
+  protected static class BinaryEncoder extends PayloadEncoder {
+    protected BinaryEncoder( ValueMetaInterface valueMeta, boolean normalStorage ) {
+      super( valueMeta, normalStorage );
+    }
+
+    @Override protected byte[] encodeValue( Object value ) throws KettleValueException {
+      return m_normalStorage ? (byte[]) value : m_valueMeta.getBinary( value );
+    }
+  }
+
+  protected static class BooleanEncoder extends PayloadEncoder {
+    protected BooleanEncoder( ValueMetaInterface valueMeta, boolean normalStorage ) {
+      super( valueMeta, normalStorage );
+    }
+
+    @Override protected byte[] encodeValue( Object value ) throws KettleValueException {
+      Boolean b = m_normalStorage ? (Boolean) value : m_valueMeta.getBoolean( value );
+      return new byte[] { (byte) ( b ? 1 : 0 ) };
+    }
+  }
+
+  protected static class SerializableEncoder extends PayloadEncoder {
+
+    /**
+     * Scratch buffer, reused (and only ever grown) for every message
+     */
+    protected final ByteArrayOutputStream m_scratch = new ByteArrayOutputStream( 256 );
+
+    protected SerializableEncoder( ValueMetaInterface valueMeta, boolean normalStorage ) {
+      super( valueMeta, normalStorage );
+    }
+
+    @Override protected byte[] encodeValue( Object value ) throws KettleValueException {
+      if ( !( value instanceof Serializable ) ) {
+        throw new KettleValueException( "Message value is not serializable!" );
+      }
+      m_scratch.reset();
+      try {
+        // every message has to be a complete stream of its own, so the object stream can't be reused
+        ObjectOutputStream oos = new ObjectOutputStream( m_scratch );
+        oos.writeObject( value );
+        oos.flush();
+      } catch ( IOException e ) {
+        throw new KettleValueException( e );
+      }
+      return m_scratch.toByteArray();
+    }
+  }
+
+  protected static class UnsupportedEncoder extends PayloadEncoder {
+    protected UnsupportedEncoder( ValueMetaInterface valueMeta, boolean normalStorage ) {
+      super( valueMeta, normalStorage );
+    }
+
+    @Override protected byte[] encodeValue( Object value ) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.mqtt.codec;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * The original payload format: a single field, strings as UTF-8, integers, numbers and dates as 8 byte big-endian
+ * values, timestamps as 8 bytes of milliseconds followed by 4 bytes of nanoseconds, booleans as a single byte, binary
+ * as is and anything else as a serialized Java object. Decoding also accepts 4 byte integers and numbers.
+ */
+public class ValueCodec implements PayloadCodec {
+
+  public static final String ID = "value";
+
+  @Override public String getId() {
+    return ID;
+  }
+
+  @Override public String getDescription() {
+    return "Single field value";
+  }
+
+  @Override public boolean isMultiField() {
+    return false;
+  }
+
+  @Override public boolean resolvesSchemas() {
+    return false;
+  }
+
+  @Override public Encoder createEncoder( RowMetaInterface rowMeta, int[] fields, Map<String, String> options )
+      throws KettleException {
+    if ( fields.length != 1 ) {
+      throw new KettleException( "The value codec encodes exactly one field" );
+    }
+    final int index = fields[0];
+    final PayloadEncoder encoder = PayloadEncoder.forValueMeta( rowMeta.getValueMeta( index ) );
+    return new Encoder() {
+      @Override public byte[] encode( Object[] row ) throws KettleException {
+        return encoder.encode( row[index] );
+      }
+
+      @Override public byte[] getSchema() {
+        return null;
+      }
+    };
+  }
+
+  @Override public Decoder createDecoder( RowMetaInterface fields, Map<String, String> options )
+      throws KettleException {
+    if ( fields.size() != 1 ) {
+      throw new KettleException( "The value codec decodes into exactly one field" );
+    }
+    return new ValueDecoder( fields.getValueMeta( 0 ).getType() );
+  }
+
+  @Override public RowMetaInterface readSchema( byte[] schema ) {
+    return null;
+  }
+
+  protected static class ValueDecoder implements Decoder {
+    protected final int m_type;
+
+    protected ValueDecoder( int type ) {
+      m_type = type;
+    }
+
+    @Override public void decode( byte[] raw, int length, Object[] outRow, int first ) throws KettleException {
+      ByteBuffer buff = null;
+      switch ( m_type ) {
+        case ValueMetaInterface.TYPE_INTEGER:
+          buff = ByteBuffer.wrap( raw, 0, length );
+          outRow[first] = length == 4 ? (long) buff.getInt() : buff.getLong();
+          break;
+        case ValueMetaInterface.TYPE_STRING:
+        case ValueMetaInterface.TYPE_NONE:
+          outRow[first] = new String( raw, 0, length, StandardCharsets.UTF_8 );
+          break;
+        case ValueMetaInterface.TYPE_NUMBER:
+          buff = ByteBuffer.wrap( raw, 0, length );
+          outRow[first] = length == 4 ? (double) buff.getFloat() : buff.getDouble();
+          break;
+        case ValueMetaInterface.TYPE_DATE:
+          buff = ByteBuffer.wrap( raw, 0, length );
+          outRow[first] = new Date( buff.getLong() );
+          break;
+        case ValueMetaInterface.TYPE_BINARY:
+          outRow[first] = Arrays.copyOf( raw, length );
+          break;
+        case ValueMetaInterface.TYPE_BOOLEAN:
+          outRow[first] = raw[0] > 0;
+          break;
+        case ValueMetaInterface.TYPE_TIMESTAMP:
+          buff = ByteBuffer.wrap( raw, 0, length );
+          long time = buff.getLong();
+          int nanos = buff.getInt();
+          Timestamp t = new Timestamp( time );
+          t.setNanos( nanos );
+          outRow[first] = t;
+          break;
+        case ValueMetaInterface.TYPE_SERIALIZABLE:
+          try {
+            ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( raw, 0, length ) );
+            outRow[first] = ois.readObject();
+          } catch ( IOException | ClassNotFoundException e ) {
+            throw new KettleException( e );
+          }
+          break;
+        default:
+          throw new KettleException( "Unhandled type" );
+      }
+    }
+  }
+}
@@ -73,8 +73,12 @@ public class MQTTPublisherMetaTest {
     LoadSaveTester
         tester =
         new LoadSaveTester( MQTTPublisherMeta.class,
-            Arrays.<String>asList( "broker", "topic", "topicIsFromField", "field", "client_id", "timeout", "qo_s",
-                "requires_auth", "password", "username" ), getterMap, setterMap,
+            Arrays.<String>asList( "broker", "topic", "topicIsFromField", "field", "client_id", "client_id_strategy",
+                "persistence", "persistence_directory", "shared_connection", "connection_idle_timeout", "mqtt_version",
+                "message_expiry_interval", "user_properties", "timeout", "qo_s", "async_publish", "max_inflight",
+                "batch_framing", "codec", "codec_fields", "codec_options", "schema_topic", "batch_max_rows",
+                "batch_max_bytes", "batch_linger", "pass_through_rows", "message_id_field", "ack_latency_field",
+                "delivery_status_field", "requires_auth", "password", "username" ), getterMap, setterMap,
             fieldLoadSaveValidatorAttributeMap, fieldLoadSaveValidatorTypeMap );
 
     tester.testSerialization();
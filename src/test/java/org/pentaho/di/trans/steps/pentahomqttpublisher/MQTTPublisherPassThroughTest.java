@@ -0,0 +1,183 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.pentahomqttpublisher;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepMeta;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MQTTPublisherPassThroughTest {
+
+  protected static final String STEP_NAME = "MQTT Publisher";
+
+  protected MQTTPublisherMeta m_meta;
+  protected MQTTPublisherData m_data;
+  protected MQTTPublisher m_step;
+  protected List<Object[]> m_output = new ArrayList<>();
+
+  @BeforeClass public static void beforeClass() throws KettleException {
+    KettleClientEnvironment.init();
+  }
+
+  @Before public void setUp() throws KettleException {
+    m_meta = new MQTTPublisherMeta();
+    m_meta.setDefault();
+    m_meta.setPassThroughRows( true );
+    m_meta.setMessageIdField( "message_id" );
+    m_meta.setAckLatencyField( "ack_latency" );
+    m_meta.setDeliveryStatusField( "delivery_status" );
+
+    TransMeta transMeta = new TransMeta();
+    StepMeta stepMeta = new StepMeta( STEP_NAME, m_meta );
+    transMeta.addStep( stepMeta );
+    m_data = new MQTTPublisherData();
+    m_step = new MQTTPublisher( stepMeta, m_data, 0, transMeta, new Trans( transMeta ) ) {
+      @Override public void putRow( RowMetaInterface rowMeta, Object[] row ) throws KettleStepException {
+        m_output.add( Arrays.copyOf( row, rowMeta.size() ) );
+      }
+    };
+  }
+
+  @Test public void testDeliveredRowsCarryTheDeliveryFields() throws KettleException {
+    configure();
+    delivery( "a", 7, MQTTPublisher.STATUS_DELIVERED, null );
+    delivery( "b", 8, MQTTPublisher.STATUS_SENT, null );
+    delivery( "c", 0, MQTTPublisher.STATUS_FAILED, new Exception( "connection lost" ) );
+
+    m_step.emitDeliveries( m_data );
+
+    assertEquals( 3, m_output.size() );
+    assertRow( m_output.get( 0 ), "a", 7L, MQTTPublisher.STATUS_DELIVERED );
+    assertRow( m_output.get( 1 ), "b", 8L, MQTTPublisher.STATUS_SENT );
+    // without error handling a failed row is passed on - with no message id
+    assertRow( m_output.get( 2 ), "c", null, MQTTPublisher.STATUS_FAILED );
+    assertTrue( m_data.m_deliveries.isEmpty() );
+  }
+
+  @Test public void testLatencyIsMeasuredFromPublishing() throws Exception {
+    configure();
+    MQTTPublisher.Delivery delivery = new MQTTPublisher.Delivery( Collections.singletonList( new Object[] { "a" } ) );
+    Thread.sleep( 20 );
+    delivery.complete( 1, MQTTPublisher.STATUS_DELIVERED, null );
+    m_data.m_deliveries.add( delivery );
+
+    m_step.emitDeliveries( m_data );
+
+    long latency = (Long) m_output.get( 0 )[2];
+    assertTrue( Long.toString( latency ), latency >= 20000 );
+  }
+
+  @Test public void testRowsOfABatchShareTheirDelivery() throws KettleException {
+    configure();
+    MQTTPublisher.Delivery delivery =
+        new MQTTPublisher.Delivery( Arrays.asList( new Object[] { "a" }, new Object[] { "b" } ) );
+    delivery.complete( 3, MQTTPublisher.STATUS_DELIVERED, null );
+    m_data.m_deliveries.add( delivery );
+
+    m_step.emitDeliveries( m_data );
+
+    assertEquals( 2, m_output.size() );
+    assertRow( m_output.get( 0 ), "a", 3L, MQTTPublisher.STATUS_DELIVERED );
+    assertRow( m_output.get( 1 ), "b", 3L, MQTTPublisher.STATUS_DELIVERED );
+  }
+
+  @Test public void testSkippedRowsFollowDeliveredRows() throws KettleException {
+    configure();
+    delivery( "a", 1, MQTTPublisher.STATUS_DELIVERED, null );
+
+    m_step.passSkipped( m_data, new Object[] { "b" } );
+
+    assertEquals( 2, m_output.size() );
+    assertRow( m_output.get( 0 ), "a", 1L, MQTTPublisher.STATUS_DELIVERED );
+    assertRow( m_output.get( 1 ), "b", null, MQTTPublisher.STATUS_SKIPPED );
+    assertNull( m_output.get( 1 )[2] );
+  }
+
+  @Test public void testOnlyNamedFieldsAreAdded() throws KettleException {
+    m_meta.setAckLatencyField( "" );
+    configure();
+    delivery( "a", 5, MQTTPublisher.STATUS_DELIVERED, null );
+
+    m_step.emitDeliveries( m_data );
+
+    assertEquals( 3, m_data.m_outputRowMeta.size() );
+    assertEquals( -1, m_data.m_ackLatencyIndex );
+    assertEquals( Arrays.asList( "a", 5L, MQTTPublisher.STATUS_DELIVERED ), Arrays.asList( m_output.get( 0 ) ) );
+  }
+
+  @Test public void testNothingIsPassedOnByDefault() throws KettleException {
+    m_meta.setPassThroughRows( false );
+    configure();
+
+    m_step.passSkipped( m_data, new Object[] { "a" } );
+    m_step.emitDeliveries( m_data );
+
+    assertNull( m_data.m_deliveries );
+    assertTrue( m_output.isEmpty() );
+  }
+
+  /**
+   * Lay out the output rows for input rows of a single string field, as the first processRow() does
+   */
+  protected void configure() throws KettleException {
+    RowMetaInterface inputRowMeta = new RowMeta();
+    inputRowMeta.addValueMeta( ValueMetaFactory.createValueMeta( "message", ValueMetaInterface.TYPE_STRING ) );
+    m_data.m_outputRowMeta = inputRowMeta.clone();
+    m_meta.getFields( m_data.m_outputRowMeta, STEP_NAME, null, null, null, null, null );
+    m_step.configurePassThrough( m_meta, m_data, inputRowMeta.size() );
+  }
+
+  protected void delivery( String message, int messageId, String status, Throwable error ) {
+    MQTTPublisher.Delivery delivery =
+        new MQTTPublisher.Delivery( Collections.singletonList( new Object[] { message } ) );
+    delivery.complete( messageId, status, error );
+    m_data.m_deliveries.add( delivery );
+  }
+
+  protected static void assertRow( Object[] row, String message, Long messageId, String status ) {
+    assertEquals( 4, row.length );
+    assertEquals( message, row[0] );
+    assertEquals( messageId, row[1] );
+    assertEquals( status, row[3] );
+  }
+}
@@ -0,0 +1,305 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pentahomqttsubscriber;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.annotations.Step;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.logging.LogLevel;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransHopMeta;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.RowAdapter;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.steps.injector.InjectorMeta;
+import org.pentaho.di.trans.steps.pentahomqttpublisher.MQTTPublisherMeta;
+import org.pentaho.mqtt.BatchFraming;
+import org.pentaho.mqtt.EmbeddedBroker;
+import org.pentaho.mqtt.MqttConnectionRegistry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the MQTT Publisher and Subscriber steps against an embedded broker with the features that change how messages
+ * flow between them: shared subscriptions, reconnecting after the broker drops the connection, batching and shared
+ * connections. Every case checks that each message arrives exactly once.
+ */
+public class MQTTClientFeaturesIT {
+
+  protected static final int MESSAGES = 1000;
+  protected static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis( 60 );
+
+  protected static final String INJECTOR = "Injector";
+  protected static final String PUBLISHER = "MQTT Publisher";
+  protected static final String SUBSCRIBER = "MQTT Subscriber";
+
+  protected EmbeddedBroker m_broker;
+  protected Trans m_subscriber;
+
+  /**
+   * Messages received by every copy of the subscriber step, in the order each copy received them
+   */
+  protected List<List<Integer>> m_received;
+
+  @BeforeClass public static void beforeClass() throws KettleException {
+    KettleEnvironment.init( false );
+    PluginRegistry registry = PluginRegistry.getInstance();
+    registry.registerPluginClass( MQTTPublisherMeta.class.getName(), StepPluginType.class, Step.class );
+    registry.registerPluginClass( MQTTSubscriberMeta.class.getName(), StepPluginType.class, Step.class );
+  }
+
+  @Before public void setUp() throws Exception {
+    m_broker = new EmbeddedBroker();
+  }
+
+  @After public void tearDown() {
+    if ( m_subscriber != null ) {
+      m_subscriber.stopAll();
+      m_subscriber.waitUntilFinished();
+    }
+    MqttConnectionRegistry.getInstance().closeAll();
+    m_broker.close();
+  }
+
+  @Test public void testSharedSubscriptionSplitsMessagesBetweenCopies() throws Exception {
+    String topic = "pentaho/it/shared";
+    MQTTSubscriberMeta meta = subscriberMeta( topic, "it-shared" );
+    meta.setSharedSubscription( true );
+    startSubscriber( meta, 2 );
+    assertTrue( "Subscribers did not subscribe", m_broker.awaitSubscribers( topic, 2, 10000 ) );
+
+    publish( publisherMeta( topic, "it-publisher" ), 1, 0, MESSAGES );
+
+    awaitReceived( MESSAGES );
+    assertExactlyOnce( 0, MESSAGES );
+    assertEquals( "Each message is delivered to one copy only", MESSAGES, m_broker.getDelivered() );
+    for ( int copy = 0; copy < 2; copy++ ) {
+      assertTrue( "Copy " + copy + " received nothing", received( copy ).size() > 0 );
+    }
+  }
+
+  @Test public void testSubscriberReconnectsWhenTheBrokerDropsIt() throws Exception {
+    String topic = "pentaho/it/reconnect";
+    MQTTSubscriberMeta meta = subscriberMeta( topic, "it-subscriber" );
+    meta.setReconnectInitialDelay( "100" );
+    meta.setReconnectMaxDelay( "1000" );
+    startSubscriber( meta, 1 );
+    assertTrue( "Subscriber did not subscribe", m_broker.awaitSubscribers( topic, 1, 10000 ) );
+
+    publish( publisherMeta( topic, "it-publisher" ), 1, 0, MESSAGES / 2 );
+    awaitReceived( MESSAGES / 2 );
+
+    // dropping the connection also drops its subscriptions, so this waits for the subscriber to come back
+    m_broker.disconnectAll();
+    assertTrue( "Subscriber did not resubscribe", m_broker.awaitSubscribers( topic, 1, 10000 ) );
+    assertTrue( m_broker.getClientIds().contains( "it-subscriber" ) );
+
+    publish( publisherMeta( topic, "it-publisher" ), 1, MESSAGES / 2, MESSAGES );
+    awaitReceived( MESSAGES );
+    assertEquals( inOrder( 0, MESSAGES ), received( 0 ) );
+  }
+
+  @Test public void testBatchesAreUnpackedIntoRows() throws Exception {
+    String topic = "pentaho/it/batched";
+    MQTTSubscriberMeta meta = subscriberMeta( topic, "it-subscriber" );
+    meta.setBatchFraming( BatchFraming.LENGTH_PREFIXED );
+    startSubscriber( meta, 1 );
+    assertTrue( "Subscriber did not subscribe", m_broker.awaitSubscribers( topic, 1, 10000 ) );
+
+    MQTTPublisherMeta publisherMeta = publisherMeta( topic, "it-publisher" );
+    publisherMeta.setBatchFraming( BatchFraming.LENGTH_PREFIXED );
+    publisherMeta.setBatchMaxRows( "100" );
+    // long enough that only full batches and the final flush are sent
+    publisherMeta.setBatchLinger( "60000" );
+    publish( publisherMeta, 1, 0, MESSAGES );
+
+    awaitReceived( MESSAGES );
+    assertEquals( inOrder( 0, MESSAGES ), received( 0 ) );
+    assertEquals( "Batches published", MESSAGES / 100, m_broker.getReceived() );
+  }
+
+  @Test public void testPublisherCopiesShareOneConnection() throws Exception {
+    String topic = "pentaho/it/shared-connection";
+    startSubscriber( subscriberMeta( topic, "it-subscriber" ), 1 );
+    assertTrue( "Subscriber did not subscribe", m_broker.awaitSubscribers( topic, 1, 10000 ) );
+
+    MQTTPublisherMeta publisherMeta = publisherMeta( topic, "it-publisher" );
+    publisherMeta.setSharedConnection( true );
+    // keep the connection open after the publisher has finished, so it can be counted
+    publisherMeta.setConnectionIdleTimeout( "60" );
+    publish( publisherMeta, 2, 0, MESSAGES );
+
+    awaitReceived( MESSAGES );
+    assertExactlyOnce( 0, MESSAGES );
+    Set<String> clientIds = m_broker.getClientIds();
+    assertEquals( clientIds.toString(), 2, clientIds.size() );
+    assertTrue( clientIds.contains( "it-subscriber" ) );
+    assertEquals( 1, MqttConnectionRegistry.getInstance().size() );
+  }
+
+  protected MQTTSubscriberMeta subscriberMeta( String topic, String clientId ) {
+    MQTTSubscriberMeta meta = new MQTTSubscriberMeta();
+    meta.setDefault();
+    meta.setBroker( m_broker.getURI() );
+    meta.setTopics( Collections.singletonList( topic ) );
+    meta.setClientId( clientId );
+    meta.setQoS( "1" );
+    meta.setMessageType( ValueMetaFactory.getValueMetaName( ValueMetaInterface.TYPE_STRING ) );
+    return meta;
+  }
+
+  protected MQTTPublisherMeta publisherMeta( String topic, String clientId ) {
+    MQTTPublisherMeta meta = new MQTTPublisherMeta();
+    meta.setDefault();
+    meta.setBroker( m_broker.getURI() );
+    meta.setTopic( topic );
+    meta.setField( "message" );
+    meta.setClientId( clientId );
+    meta.setQoS( "1" );
+    return meta;
+  }
+
+  /**
+   * Start the subscriber transformation, recording what each copy of the step receives
+   */
+  protected void startSubscriber( MQTTSubscriberMeta meta, int copies ) throws KettleException {
+    TransMeta transMeta = new TransMeta();
+    transMeta.setName( "subscriber" );
+    StepMeta stepMeta = new StepMeta( SUBSCRIBER, meta );
+    stepMeta.setCopies( copies );
+    transMeta.addStep( stepMeta );
+    m_subscriber = prepare( transMeta );
+
+    m_received = new ArrayList<>();
+    for ( int copy = 0; copy < copies; copy++ ) {
+      final List<Integer> received = Collections.synchronizedList( new ArrayList<Integer>() );
+      m_received.add( received );
+      m_subscriber.getStepInterface( SUBSCRIBER, copy ).addRowListener( new RowAdapter() {
+        @Override public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) throws KettleStepException {
+          received.add( Integer.parseInt( (String) row[1] ) );
+        }
+      } );
+    }
+    m_subscriber.startThreads();
+  }
+
+  /**
+   * Publish the numbers from (inclusive) to (exclusive) and wait for the publisher to finish
+   */
+  protected void publish( MQTTPublisherMeta meta, int copies, int from, int to ) throws KettleException {
+    TransMeta transMeta = new TransMeta();
+    transMeta.setName( "publisher" );
+    StepMeta injector = new StepMeta( INJECTOR, new InjectorMeta() );
+    StepMeta publisher = new StepMeta( PUBLISHER, meta );
+    publisher.setCopies( copies );
+    transMeta.addStep( injector );
+    transMeta.addStep( publisher );
+    transMeta.addTransHop( new TransHopMeta( injector, publisher ) );
+    Trans trans = prepare( transMeta );
+    RowProducer producer = trans.addRowProducer( INJECTOR, 0 );
+    trans.startThreads();
+
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( ValueMetaFactory.createValueMeta( "message", ValueMetaInterface.TYPE_STRING ) );
+    for ( int i = from; i < to; i++ ) {
+      producer.putRow( rowMeta, new Object[] { Integer.toString( i ) } );
+    }
+    producer.finished();
+    trans.waitUntilFinished();
+    assertEquals( "Publisher errors", 0, trans.getErrors() );
+  }
+
+  protected Trans prepare( TransMeta transMeta ) throws KettleException {
+    Trans trans = new Trans( transMeta );
+    // the publisher logs every message at basic level
+    trans.setLogLevel( LogLevel.MINIMAL );
+    trans.prepareExecution( null );
+    return trans;
+  }
+
+  /**
+   * Wait until the subscriber copies have received the given number of messages between them
+   */
+  protected void awaitReceived( int count ) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    int total = 0;
+    while ( System.currentTimeMillis() < deadline ) {
+      total = 0;
+      for ( List<Integer> received : m_received ) {
+        total += received.size();
+      }
+      if ( total >= count ) {
+        return;
+      }
+      Thread.sleep( 10 );
+    }
+    throw new AssertionError( "Received " + total + " of " + count + " messages" );
+  }
+
+  /**
+   * Check that the subscriber copies received every number from (inclusive) to (exclusive) exactly once between them
+   */
+  protected void assertExactlyOnce( int from, int to ) {
+    Set<Integer> seen = new HashSet<>();
+    for ( int copy = 0; copy < m_received.size(); copy++ ) {
+      for ( Integer n : received( copy ) ) {
+        assertTrue( "Duplicate message " + n, seen.add( n ) );
+      }
+    }
+    assertEquals( new HashSet<>( inOrder( from, to ) ), seen );
+  }
+
+  protected List<Integer> received( int copy ) {
+    synchronized ( m_received.get( copy ) ) {
+      return new ArrayList<>( m_received.get( copy ) );
+    }
+  }
+
+  protected static List<Integer> inOrder( int from, int to ) {
+    List<Integer> result = new ArrayList<>( to - from );
+    for ( int i = from; i < to; i++ ) {
+      result.add( i );
+    }
+    return result;
+  }
+}
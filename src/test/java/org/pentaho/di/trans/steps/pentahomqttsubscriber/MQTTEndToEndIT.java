@@ -0,0 +1,217 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pentahomqttsubscriber;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.annotations.Step;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogLevel;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransHopMeta;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.RowAdapter;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.steps.injector.InjectorMeta;
+import org.pentaho.di.trans.steps.pentahomqttpublisher.MQTTPublisherMeta;
+import org.pentaho.mqtt.EmbeddedBroker;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishes rows through an MQTT Publisher step to an embedded broker and receives them with an MQTT Subscriber step,
+ * at every QoS level, synchronously and asynchronously. Checks that no message is lost or reordered and reports
+ * messages/s and the 99th percentile latency as a baseline.
+ * <p>
+ * The throughput and latency limits are deliberately loose, so the test only fails on gross regressions. They can be
+ * tightened with the system properties mqtt.it.minThroughput (messages/s) and mqtt.it.maxP99Millis.
+ */
+@RunWith( Parameterized.class ) public class MQTTEndToEndIT {
+
+  protected static final int MESSAGES = 5000;
+  protected static final long RECEIVE_TIMEOUT_SECONDS = 60;
+  protected static final long MIN_THROUGHPUT = Long.getLong( "mqtt.it.minThroughput", 100 );
+  protected static final long MAX_P99_MILLIS = Long.getLong( "mqtt.it.maxP99Millis", 2000 );
+
+  protected static final LogChannel LOG = new LogChannel( MQTTEndToEndIT.class.getSimpleName() );
+
+  protected static final String INJECTOR = "Injector";
+  protected static final String PUBLISHER = "MQTT Publisher";
+  protected static final String SUBSCRIBER = "MQTT Subscriber";
+
+  @Parameters public static Collection<Object[]> parameters() {
+    return Arrays.asList( new Object[][] {
+      { 0, false }, { 1, false }, { 2, false }, { 0, true }, { 1, true }, { 2, true } } );
+  }
+
+  protected final int m_qos;
+  protected final boolean m_async;
+  protected EmbeddedBroker m_broker;
+
+  public MQTTEndToEndIT( int qos, boolean async ) {
+    m_qos = qos;
+    m_async = async;
+  }
+
+  @BeforeClass public static void beforeClass() throws KettleException {
+    KettleEnvironment.init( false );
+    PluginRegistry registry = PluginRegistry.getInstance();
+    registry.registerPluginClass( MQTTPublisherMeta.class.getName(), StepPluginType.class, Step.class );
+    registry.registerPluginClass( MQTTSubscriberMeta.class.getName(), StepPluginType.class, Step.class );
+  }
+
+  @Before public void setUp() throws Exception {
+    m_broker = new EmbeddedBroker();
+  }
+
+  @After public void tearDown() {
+    m_broker.close();
+  }
+
+  @Test public void testPublishToSubscribe() throws Exception {
+    String topic = "pentaho/it/qos" + m_qos + ( m_async ? "/async" : "/sync" );
+
+    Trans subscriber = subscriberTrans( topic );
+    final int[] sequence = new int[MESSAGES];
+    final long[] latency = new long[MESSAGES];
+    final int[] received = new int[1];
+    final CountDownLatch done = new CountDownLatch( MESSAGES );
+    subscriber.getStepInterface( SUBSCRIBER, 0 ).addRowListener( new RowAdapter() {
+      @Override public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) throws KettleStepException {
+        // only ever called from the subscriber's step thread
+        long now = System.nanoTime();
+        String[] message = ( (String) row[1] ).split( "," );
+        int n = received[0]++;
+        if ( n < MESSAGES ) {
+          sequence[n] = Integer.parseInt( message[0] );
+          latency[n] = now - Long.parseLong( message[1] );
+        }
+        done.countDown();
+      }
+    } );
+    subscriber.startThreads();
+    assertTrue( "Subscriber did not subscribe", m_broker.awaitSubscribers( topic, 1, 10000 ) );
+
+    Trans publisher = publisherTrans( topic );
+    RowProducer producer = publisher.addRowProducer( INJECTOR, 0 );
+    publisher.startThreads();
+
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( ValueMetaFactory.createValueMeta( "message", ValueMetaInterface.TYPE_STRING ) );
+    long start = System.nanoTime();
+    for ( int i = 0; i < MESSAGES; i++ ) {
+      producer.putRow( rowMeta, new Object[] { i + "," + System.nanoTime() } );
+    }
+    producer.finished();
+    publisher.waitUntilFinished();
+
+    boolean complete = done.await( RECEIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS );
+    long elapsed = System.nanoTime() - start;
+    subscriber.stopAll();
+    subscriber.waitUntilFinished();
+
+    assertEquals( "Publisher errors", 0, publisher.getErrors() );
+    assertTrue( "Lost " + ( MESSAGES - done.getCount() ) + " of " + MESSAGES + " messages", complete );
+    assertEquals( "Duplicate messages", MESSAGES, received[0] );
+    for ( int i = 0; i < MESSAGES; i++ ) {
+      assertEquals( "Message out of order", i, sequence[i] );
+    }
+
+    long throughput = MESSAGES * TimeUnit.SECONDS.toNanos( 1 ) / elapsed;
+    long[] sorted = latency.clone();
+    Arrays.sort( sorted );
+    long p50 = TimeUnit.NANOSECONDS.toMicros( sorted[MESSAGES / 2] );
+    long p99 = TimeUnit.NANOSECONDS.toMicros( sorted[MESSAGES * 99 / 100] );
+    LOG.logBasic( String.format( "MQTT end to end, QoS %d, %s: %d messages/s, latency p50 %d us, p99 %d us", m_qos,
+        m_async ? "async" : "sync", throughput, p50, p99 ) );
+
+    assertTrue( "Throughput " + throughput + " messages/s is below " + MIN_THROUGHPUT, throughput >= MIN_THROUGHPUT );
+    assertTrue( "p99 latency " + p99 + " us is above " + MAX_P99_MILLIS + " ms",
+        p99 <= TimeUnit.MILLISECONDS.toMicros( MAX_P99_MILLIS ) );
+  }
+
+  protected Trans subscriberTrans( String topic ) throws KettleException {
+    MQTTSubscriberMeta meta = new MQTTSubscriberMeta();
+    meta.setDefault();
+    meta.setBroker( m_broker.getURI() );
+    meta.setTopics( Collections.singletonList( topic ) );
+    meta.setClientId( "it-subscriber" );
+    meta.setQoS( Integer.toString( m_qos ) );
+    meta.setMessageType( ValueMetaFactory.getValueMetaName( ValueMetaInterface.TYPE_STRING ) );
+
+    TransMeta transMeta = new TransMeta();
+    transMeta.setName( "subscriber" );
+    transMeta.addStep( new StepMeta( SUBSCRIBER, meta ) );
+    return prepare( transMeta );
+  }
+
+  protected Trans publisherTrans( String topic ) throws KettleException {
+    MQTTPublisherMeta meta = new MQTTPublisherMeta();
+    meta.setDefault();
+    meta.setBroker( m_broker.getURI() );
+    meta.setTopic( topic );
+    meta.setField( "message" );
+    meta.setClientId( "it-publisher" );
+    meta.setQoS( Integer.toString( m_qos ) );
+    meta.setAsyncPublish( m_async );
+
+    TransMeta transMeta = new TransMeta();
+    transMeta.setName( "publisher" );
+    StepMeta injector = new StepMeta( INJECTOR, new InjectorMeta() );
+    StepMeta publisher = new StepMeta( PUBLISHER, meta );
+    transMeta.addStep( injector );
+    transMeta.addStep( publisher );
+    transMeta.addTransHop( new TransHopMeta( injector, publisher ) );
+    return prepare( transMeta );
+  }
+
+  protected Trans prepare( TransMeta transMeta ) throws KettleException {
+    Trans trans = new Trans( transMeta );
+    // the publisher logs every message at basic level
+    trans.setLogLevel( LogLevel.MINIMAL );
+    trans.prepareExecution( null );
+    return trans;
+  }
+}
@@ -78,8 +78,15 @@ public class MQTTSubscriberMetaTest {
     LoadSaveTester
         tester =
         new LoadSaveTester( MQTTSubscriberMeta.class,
-            Arrays.<String>asList( "broker", "topics", "message_type", "client_id", "timeout", "qo_s",
-                "execute_for_duration", "requires_auth", "password", "username" ), getterMap, setterMap,
+            Arrays.<String>asList( "broker", "topics", "message_type", "codec", "codec_options", "decoded_fields",
+                "schema_topic", "client_id", "client_id_strategy", "persistence", "persistence_directory",
+                "shared_connection", "connection_idle_timeout", "mqtt_version", "receive_maximum",
+                "topic_alias_maximum", "user_properties", "persistent_session", "session_expiry_interval",
+                "manual_acks", "ack_checkpoint_step", "ack_sequence_field", "spill_to_disk", "spill_threshold",
+                "spill_directory", "spill_segment_size", "off_heap_queue", "off_heap_buffer_size", "timeout", "qo_s",
+                "execute_for_duration", "queue_capacity", "max_idle_wait", "batch_framing", "shared_subscription",
+                "share_group", "reconnect_initial_delay", "reconnect_max_delay", "reconnect_max_attempts",
+                "reconnect_max_duration", "requires_auth", "password", "username" ), getterMap, setterMap,
             fieldLoadSaveValidatorAttributeMap, fieldLoadSaveValidatorTypeMap );
 
     tester.testSerialization();
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchFramingTest {
+
+  @Test public void testIsBatchingAndKnown() {
+    assertFalse( BatchFraming.isBatching( null ) );
+    assertFalse( BatchFraming.isBatching( "" ) );
+    assertFalse( BatchFraming.isBatching( BatchFraming.NONE ) );
+    assertTrue( BatchFraming.isBatching( BatchFraming.JSON_ARRAY ) );
+    assertTrue( BatchFraming.isKnown( BatchFraming.NONE ) );
+    assertTrue( BatchFraming.isKnown( BatchFraming.LENGTH_PREFIXED ) );
+    assertFalse( BatchFraming.isKnown( "xml" ) );
+  }
+
+  @Test public void testLengthPrefixedRoundTrip() throws IOException {
+    List<byte[]> payloads = Arrays.asList( bytes( "one" ), new byte[0], new byte[] { 0, -1, 127, -128 } );
+    byte[] batch = encode( BatchFraming.LENGTH_PREFIXED, payloads );
+    assertEquals( 3 * 4 + 3 + 0 + 4, batch.length );
+    assertSamePayloads( payloads, BatchFraming.decode( BatchFraming.LENGTH_PREFIXED, batch ) );
+  }
+
+  @Test public void testLengthPrefixedRejectsTruncatedBatches() {
+    byte[] batch = encode( BatchFraming.LENGTH_PREFIXED, Arrays.asList( bytes( "payload" ) ) );
+    assertDecodeFails( BatchFraming.LENGTH_PREFIXED, Arrays.copyOf( batch, 2 ) );
+    assertDecodeFails( BatchFraming.LENGTH_PREFIXED, Arrays.copyOf( batch, batch.length - 1 ) );
+  }
+
+  @Test public void testJsonArrayRoundTrip() throws IOException {
+    List<byte[]> payloads = Arrays.asList( bytes( "{\"a\":[1,2,{\"b\":\"]\"}]}" ), bytes( "\"x,\\\"y\\\\\"" ),
+        bytes( "-1.5e3" ), bytes( "[[],{}]" ), bytes( "null" ), bytes( "\"caf\u00e9 \ud83d\ude00\"" ) );
+    byte[] batch = encode( BatchFraming.JSON_ARRAY, payloads );
+    assertEquals( '[', batch[0] );
+    assertEquals( ']', batch[batch.length - 1] );
+    assertSamePayloads( payloads, BatchFraming.decode( BatchFraming.JSON_ARRAY, batch ) );
+  }
+
+  @Test public void testJsonArrayDecodeIgnoresWhitespace() throws IOException {
+    List<byte[]> payloads =
+        BatchFraming.decode( BatchFraming.JSON_ARRAY, bytes( " [ 1 ,\n{ \"a\" : 2 }\t, \"b\" ] " ) );
+    assertSamePayloads( Arrays.asList( bytes( "1" ), bytes( "{ \"a\" : 2 }" ), bytes( "\"b\"" ) ), payloads );
+    assertEquals( 0, BatchFraming.decode( BatchFraming.JSON_ARRAY, bytes( "[ ]" ) ).size() );
+  }
+
+  @Test public void testJsonArrayDecodeRejectsMalformedBatches() {
+    assertDecodeFails( BatchFraming.JSON_ARRAY, bytes( "{\"a\":1}" ) );
+    assertDecodeFails( BatchFraming.JSON_ARRAY, bytes( "[1,2" ) );
+    assertDecodeFails( BatchFraming.JSON_ARRAY, bytes( "[1,,2]" ) );
+    assertDecodeFails( BatchFraming.JSON_ARRAY, bytes( "[\"unterminated]" ) );
+  }
+
+  @Test public void testIsJsonValue() {
+    for ( String valid : new String[] { "{}", " [1, 2] ", "\"text\"", "\"a\\\"b\"", "0", "-12.5E+3", "true", "null",
+      "{\"a\":\"}\"}" } ) {
+      assertTrue( valid, BatchFraming.isJsonValue( bytes( valid ) ) );
+    }
+    for ( String invalid : new String[] { "", "  ", "hello", "1,2", "{\"a\":1}}", "{\"a\":1", "[1] [2]", "\"open",
+      "\"a\" \"b\"", "01", "TRUE" } ) {
+      assertFalse( invalid, BatchFraming.isJsonValue( bytes( invalid ) ) );
+    }
+  }
+
+  @Test public void testFramedSizesAddUp() {
+    for ( String framing : new String[] { BatchFraming.LENGTH_PREFIXED, BatchFraming.JSON_ARRAY } ) {
+      List<byte[]> payloads = new ArrayList<>();
+      for ( int i = 0; i < 5; i++ ) {
+        payloads.add( bytes( Integer.toString( i * 1000 ) ) );
+        assertEquals( framing, encode( framing, payloads ).length, size( framing, payloads ) );
+      }
+    }
+  }
+
+  protected static byte[] encode( String framing, List<byte[]> payloads ) {
+    return BatchFraming.encode( framing, payloads, size( framing, payloads ) );
+  }
+
+  protected static int size( String framing, List<byte[]> payloads ) {
+    int size = BatchFraming.batchOverhead( framing );
+    for ( int i = 0; i < payloads.size(); i++ ) {
+      size += BatchFraming.framedSize( framing, payloads.get( i ).length, i == 0 );
+    }
+    return size;
+  }
+
+  protected static void assertSamePayloads( List<byte[]> expected, List<byte[]> actual ) {
+    assertEquals( expected.size(), actual.size() );
+    for ( int i = 0; i < expected.size(); i++ ) {
+      assertArrayEquals( expected.get( i ), actual.get( i ) );
+    }
+  }
+
+  protected static void assertDecodeFails( String framing, byte[] batch ) {
+    try {
+      BatchFraming.decode( framing, batch );
+      fail( "Expected " + new String( batch, StandardCharsets.UTF_8 ) + " to be rejected" );
+    } catch ( IOException e ) {
+      // expected
+    }
+  }
+
+  protected static byte[] bytes( String text ) {
+    return text.getBytes( StandardCharsets.UTF_8 );
+  }
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.mqtt;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClientIdStrategyTest {
+
+  @Test
+  public void testKnownStrategies() {
+    for ( String strategy : ClientIdStrategy.STRATEGIES ) {
+      assertTrue( ClientIdStrategy.isKnown( strategy ) );
+    }
+    assertTrue( ClientIdStrategy.isKnown( null ) );
+    assertTrue( ClientIdStrategy.isKnown( "" ) );
+    assertFalse( ClientIdStrategy.isKnown( "copy" ) );
+  }
+
+  @Test
+  public void testAsIs() {
+    assertEquals( "client", ClientIdStrategy.resolve( ClientIdStrategy.AS_IS, "client", "slave1", 2 ) );
+    assertEquals( "client", ClientIdStrategy.resolve( null, "client", "slave1", 2 ) );
+    assertEquals( "client", ClientIdStrategy.resolve( "", "client", "slave1", 2 ) );
+  }
+
+  @Test
+  public void testCopyNumber() {
+    assertEquals( "client-0", ClientIdStrategy.resolve( ClientIdStrategy.COPY_NUMBER, "client", "slave1", 0 ) );
+    assertEquals( "client-3", ClientIdStrategy.resolve( ClientIdStrategy.COPY_NUMBER, "client", "slave1", 3 ) );
+  }
+
+  @Test
+  public void testSlaveServerAndCopy() {
+    assertEquals( "client-slave1-2",
+        ClientIdStrategy.resolve( ClientIdStrategy.SLAVE_SERVER_AND_COPY, "client", "slave1", 2 ) );
+    // not running on a slave server - only the copy number is added
+    assertEquals( "client-2", ClientIdStrategy.resolve( ClientIdStrategy.SLAVE_SERVER_AND_COPY, "client", null, 2 ) );
+    assertEquals( "client-2", ClientIdStrategy.resolve( ClientIdStrategy.SLAVE_SERVER_AND_COPY, "client", "", 2 ) );
+  }
+
+  @Test
+  public void testCopiesGetDistinctIds() {
+    for ( String strategy : new String[] { ClientIdStrategy.COPY_NUMBER, ClientIdStrategy.SLAVE_SERVER_AND_COPY } ) {
+      Set<String> ids = new HashSet<>();
+      for ( int copy = 0; copy < 10; copy++ ) {
+        ids.add( ClientIdStrategy.resolve( strategy, "client", "slave1", copy ) );
+      }
+      assertEquals( strategy, 10, ids.size() );
+    }
+    assertFalse( ClientIdStrategy.resolve( ClientIdStrategy.SLAVE_SERVER_AND_COPY, "client", "slave1", 0 )
+        .equals( ClientIdStrategy.resolve( ClientIdStrategy.SLAVE_SERVER_AND_COPY, "client", "slave2", 0 ) ) );
+  }
+
+  @Test
+  public void testRandom() {
+    String first = ClientIdStrategy.resolve( ClientIdStrategy.RANDOM, "client", "slave1", 0 );
+    String second = ClientIdStrategy.resolve( ClientIdStrategy.RANDOM, "client", "slave1", 0 );
+
+    assertTrue( first, first.matches( "client-[0-9a-z]+" ) );
+    assertTrue( second, second.matches( "client-[0-9a-z]+" ) );
+    assertFalse( first.equals( second ) );
+  }
+
+  @Test
+  public void testUnknownStrategy() {
+    try {
+      ClientIdStrategy.resolve( "copy", "client", null, 0 );
+      fail();
+    } catch ( IllegalArgumentException e ) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClientPersistenceTest {
+
+  @Test
+  public void testIsKnown() {
+    for ( String type : ClientPersistence.TYPES ) {
+      assertTrue( type, ClientPersistence.isKnown( type ) );
+    }
+    assertTrue( ClientPersistence.isKnown( null ) );
+    assertTrue( ClientPersistence.isKnown( "" ) );
+    assertFalse( ClientPersistence.isKnown( "Memory" ) );
+    assertFalse( ClientPersistence.isKnown( "database" ) );
+  }
+
+  @Test
+  public void testIsDurable() {
+    assertTrue( ClientPersistence.isDurable( ClientPersistence.FILE ) );
+    assertTrue( ClientPersistence.isDurable( ClientPersistence.JOURNAL ) );
+    assertFalse( ClientPersistence.isDurable( ClientPersistence.MEMORY ) );
+    assertFalse( ClientPersistence.isDurable( null ) );
+    assertFalse( ClientPersistence.isDurable( "" ) );
+  }
+
+  @Test
+  public void testCreate() {
+    assertTrue( ClientPersistence.create( null, null ) instanceof MemoryPersistence );
+    assertTrue( ClientPersistence.create( "", "/tmp" ) instanceof MemoryPersistence );
+    assertTrue( ClientPersistence.create( ClientPersistence.MEMORY, null ) instanceof MemoryPersistence );
+    assertTrue( ClientPersistence.create( ClientPersistence.FILE, null ) instanceof MqttDefaultFilePersistence );
+    assertTrue( ClientPersistence.create( ClientPersistence.FILE, "/tmp" ) instanceof MqttDefaultFilePersistence );
+    assertTrue( ClientPersistence.create( ClientPersistence.JOURNAL, "" ) instanceof MappedJournalPersistence );
+  }
+
+  @Test
+  public void testJournalDefaultsToTheWorkingDirectory() {
+    MappedJournalPersistence journal = (MappedJournalPersistence) ClientPersistence.create( ClientPersistence.JOURNAL,
+        null );
+    assertEquals( System.getProperty( "user.dir" ), journal.m_directory );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testCreateUnknown() {
+    ClientPersistence.create( "database", null );
+  }
+}
@@ -0,0 +1,469 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal MQTT 3.1/3.1.1 broker for tests, bound to the loopback interface on a free port. It supports what the steps
+ * use: QoS 0, 1 and 2 in both directions, + and # wildcards, shared subscriptions ($share/group/filter) and client id
+ * takeover. Sessions are always clean and retained messages and wills are ignored.
+ */
+public class EmbeddedBroker implements AutoCloseable {
+
+  protected static final int CONNECT = 1;
+  protected static final int CONNACK = 2;
+  protected static final int PUBLISH = 3;
+  protected static final int PUBACK = 4;
+  protected static final int PUBREC = 5;
+  protected static final int PUBREL = 6;
+  protected static final int PUBCOMP = 7;
+  protected static final int SUBSCRIBE = 8;
+  protected static final int SUBACK = 9;
+  protected static final int UNSUBSCRIBE = 10;
+  protected static final int UNSUBACK = 11;
+  protected static final int PINGREQ = 12;
+  protected static final int PINGRESP = 13;
+  protected static final int DISCONNECT = 14;
+
+  protected static final String SHARE_PREFIX = "$share/";
+
+  protected final ServerSocket m_serverSocket;
+  protected final Thread m_acceptThread;
+  protected final ConcurrentMap<String, Connection> m_connections = new ConcurrentHashMap<>();
+  protected final List<Subscription> m_subscriptions = new CopyOnWriteArrayList<>();
+  protected final ConcurrentMap<String, AtomicInteger> m_shareCursors = new ConcurrentHashMap<>();
+
+  protected final AtomicLong m_received = new AtomicLong();
+  protected final AtomicLong m_delivered = new AtomicLong();
+  protected volatile boolean m_closed;
+
+  protected static class Subscription {
+    protected final Connection m_connection;
+    protected final String m_filter;
+    protected final String m_shareGroup;
+    protected final int m_qos;
+
+    protected Subscription( Connection connection, String filter, String shareGroup, int qos ) {
+      m_connection = connection;
+      m_filter = filter;
+      m_shareGroup = shareGroup;
+      m_qos = qos;
+    }
+  }
+
+  /**
+   * Start a broker on a free port
+   */
+  public EmbeddedBroker() throws IOException {
+    m_serverSocket = new ServerSocket( 0, 50, InetAddress.getLoopbackAddress() );
+    m_acceptThread = new Thread( new Runnable() {
+      @Override public void run() {
+        accept();
+      }
+    }, "EmbeddedBroker-accept" );
+    m_acceptThread.setDaemon( true );
+    m_acceptThread.start();
+  }
+
+  /**
+   * @return the URI clients connect to
+   */
+  public String getURI() {
+    return "tcp://127.0.0.1:" + m_serverSocket.getLocalPort();
+  }
+
+  /**
+   * @return the number of messages received from publishers
+   */
+  public long getReceived() {
+    return m_received.get();
+  }
+
+  /**
+   * @return the number of messages delivered to subscribers
+   */
+  public long getDelivered() {
+    return m_delivered.get();
+  }
+
+  /**
+   * @return the ids of the connected clients
+   */
+  public Set<String> getClientIds() {
+    return new HashSet<>( m_connections.keySet() );
+  }
+
+  /**
+   * Wait until at least the given number of subscriptions match a topic
+   *
+   * @return false if that did not happen in time
+   */
+  public boolean awaitSubscribers( String topic, int count, long timeoutMs ) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while ( System.currentTimeMillis() < deadline ) {
+      int matching = 0;
+      for ( Subscription s : m_subscriptions ) {
+        if ( matches( s.m_filter, topic ) ) {
+          matching++;
+        }
+      }
+      if ( matching >= count ) {
+        return true;
+      }
+      Thread.sleep( 10 );
+    }
+    return false;
+  }
+
+  /**
+   * Drop every client connection, as a broker restart would
+   */
+  public void disconnectAll() {
+    for ( Connection c : m_connections.values() ) {
+      c.close();
+    }
+  }
+
+  @Override public void close() {
+    m_closed = true;
+    try {
+      m_serverSocket.close();
+    } catch ( IOException e ) {
+      // ignore
+    }
+    disconnectAll();
+  }
+
+  protected void accept() {
+    while ( !m_closed ) {
+      try {
+        Socket socket = m_serverSocket.accept();
+        socket.setTcpNoDelay( true );
+        final Connection connection = new Connection( socket );
+        Thread t = new Thread( new Runnable() {
+          @Override public void run() {
+            connection.run();
+          }
+        }, "EmbeddedBroker-" + socket.getPort() );
+        t.setDaemon( true );
+        t.start();
+      } catch ( IOException e ) {
+        // closed
+      }
+    }
+  }
+
+  protected void route( String topic, int qos, byte[] payload ) throws IOException {
+    m_received.incrementAndGet();
+    Map<String, List<Subscription>> groups = null;
+    for ( Subscription s : m_subscriptions ) {
+      if ( !matches( s.m_filter, topic ) ) {
+        continue;
+      }
+      if ( s.m_shareGroup == null ) {
+        s.m_connection.deliver( topic, Math.min( qos, s.m_qos ), payload );
+      } else {
+        if ( groups == null ) {
+          groups = new LinkedHashMap<>();
+        }
+        String key = s.m_shareGroup + "/" + s.m_filter;
+        List<Subscription> members = groups.get( key );
+        if ( members == null ) {
+          members = new ArrayList<>();
+          groups.put( key, members );
+        }
+        members.add( s );
+      }
+    }
+    if ( groups != null ) {
+      // each share group gets one copy, handed to its members in turn
+      for ( Map.Entry<String, List<Subscription>> e : groups.entrySet() ) {
+        m_shareCursors.putIfAbsent( e.getKey(), new AtomicInteger() );
+        AtomicInteger cursor = m_shareCursors.get( e.getKey() );
+        List<Subscription> members = e.getValue();
+        Subscription s = members.get( ( cursor.getAndIncrement() & Integer.MAX_VALUE ) % members.size() );
+        s.m_connection.deliver( topic, Math.min( qos, s.m_qos ), payload );
+      }
+    }
+  }
+
+  /**
+   * @return true if the topic matches the filter, which may contain + and # wildcards
+   */
+  public static boolean matches( String filter, String topic ) {
+    String[] f = filter.split( "/", -1 );
+    String[] t = topic.split( "/", -1 );
+    for ( int i = 0; i < f.length; i++ ) {
+      if ( f[i].equals( "#" ) ) {
+        return true;
+      }
+      if ( i >= t.length ) {
+        return false;
+      }
+      if ( !f[i].equals( "+" ) && !f[i].equals( t[i] ) ) {
+        return false;
+      }
+    }
+    return f.length == t.length;
+  }
+
+  /**
+   * One client connection
+   */
+  protected class Connection {
+    protected final Socket m_socket;
+    protected final OutputStream m_out;
+    protected final Set<Integer> m_pendingQoS2 = new HashSet<>();
+    protected int m_nextPacketId;
+    protected String m_clientId;
+    protected volatile boolean m_open = true;
+
+    protected Connection( Socket socket ) throws IOException {
+      m_socket = socket;
+      m_out = new BufferedOutputStream( socket.getOutputStream(), 16 * 1024 );
+    }
+
+    protected void run() {
+      try {
+        DataInputStream in = new DataInputStream( new BufferedInputStream( m_socket.getInputStream(), 16 * 1024 ) );
+        while ( m_open ) {
+          int header = in.read();
+          if ( header < 0 ) {
+            break;
+          }
+          byte[] body = new byte[readRemainingLength( in )];
+          in.readFully( body );
+          handle( header >> 4, header & 0x0f, new DataInputStream( new ByteArrayInputStream( body ) ), body.length );
+        }
+      } catch ( IOException e ) {
+        // connection dropped
+      } finally {
+        close();
+      }
+    }
+
+    protected void handle( int type, int flags, DataInputStream body, int length ) throws IOException {
+      switch ( type ) {
+        case CONNECT:
+          readString( body ); // protocol name
+          body.readUnsignedByte(); // protocol level
+          body.readUnsignedByte(); // connect flags
+          body.readUnsignedShort(); // keep alive
+          m_clientId = readString( body );
+          Connection previous = m_connections.put( m_clientId, this );
+          if ( previous != null && previous != this ) {
+            // client id takeover
+            previous.close();
+          }
+          send( CONNACK << 4, new byte[] { 0, 0 } );
+          break;
+        case PUBLISH:
+          int qos = ( flags >> 1 ) & 3;
+          int topicLength = body.readUnsignedShort();
+          byte[] topic = new byte[topicLength];
+          body.readFully( topic );
+          int packetId = qos > 0 ? body.readUnsignedShort() : 0;
+          byte[] payload = new byte[length - 2 - topicLength - ( qos > 0 ? 2 : 0 )];
+          body.readFully( payload );
+          if ( qos == 2 ) {
+            boolean first;
+            synchronized ( m_pendingQoS2 ) {
+              first = m_pendingQoS2.add( packetId );
+            }
+            if ( first ) {
+              route( new String( topic, StandardCharsets.UTF_8 ), qos, payload );
+            }
+            send( PUBREC << 4, packetIdBytes( packetId ) );
+          } else {
+            route( new String( topic, StandardCharsets.UTF_8 ), qos, payload );
+            if ( qos == 1 ) {
+              send( PUBACK << 4, packetIdBytes( packetId ) );
+            }
+          }
+          break;
+        case PUBREL:
+          packetId = body.readUnsignedShort();
+          synchronized ( m_pendingQoS2 ) {
+            m_pendingQoS2.remove( packetId );
+          }
+          send( PUBCOMP << 4, packetIdBytes( packetId ) );
+          break;
+        case PUBREC:
+          // second step of an outgoing QoS 2 delivery
+          send( ( PUBREL << 4 ) | 2, packetIdBytes( body.readUnsignedShort() ) );
+          break;
+        case PUBACK:
+        case PUBCOMP:
+          break;
+        case SUBSCRIBE:
+          packetId = body.readUnsignedShort();
+          ByteArrayOutputStream granted = new ByteArrayOutputStream();
+          granted.write( packetIdBytes( packetId ) );
+          int read = 2;
+          while ( read < length ) {
+            String filter = readString( body );
+            int requested = body.readUnsignedByte();
+            read += 2 + filter.getBytes( StandardCharsets.UTF_8 ).length + 1;
+            String group = null;
+            if ( filter.startsWith( SHARE_PREFIX ) ) {
+              int slash = filter.indexOf( '/', SHARE_PREFIX.length() );
+              group = filter.substring( SHARE_PREFIX.length(), slash );
+              filter = filter.substring( slash + 1 );
+            }
+            m_subscriptions.add( new Subscription( this, filter, group, Math.min( requested, 2 ) ) );
+            granted.write( Math.min( requested, 2 ) );
+          }
+          send( SUBACK << 4, granted.toByteArray() );
+          break;
+        case UNSUBSCRIBE:
+          packetId = body.readUnsignedShort();
+          read = 2;
+          while ( read < length ) {
+            String filter = readString( body );
+            read += 2 + filter.getBytes( StandardCharsets.UTF_8 ).length;
+            for ( Subscription s : m_subscriptions ) {
+              if ( s.m_connection == this && ( s.m_filter.equals( filter ) || filter
+                  .equals( SHARE_PREFIX + s.m_shareGroup + "/" + s.m_filter ) ) ) {
+                m_subscriptions.remove( s );
+              }
+            }
+          }
+          send( UNSUBACK << 4, packetIdBytes( packetId ) );
+          break;
+        case PINGREQ:
+          send( PINGRESP << 4, new byte[0] );
+          break;
+        case DISCONNECT:
+          close();
+          break;
+        default:
+          throw new IOException( "Unexpected packet type " + type );
+      }
+    }
+
+    protected void deliver( String topic, int qos, byte[] payload ) throws IOException {
+      byte[] topicBytes = topic.getBytes( StandardCharsets.UTF_8 );
+      ByteArrayOutputStream body = new ByteArrayOutputStream( topicBytes.length + payload.length + 4 );
+      body.write( topicBytes.length >> 8 );
+      body.write( topicBytes.length );
+      body.write( topicBytes );
+      if ( qos > 0 ) {
+        synchronized ( this ) {
+          m_nextPacketId = m_nextPacketId % 65535 + 1;
+          body.write( packetIdBytes( m_nextPacketId ) );
+        }
+      }
+      body.write( payload );
+      try {
+        send( ( PUBLISH << 4 ) | ( qos << 1 ), body.toByteArray() );
+        m_delivered.incrementAndGet();
+      } catch ( IOException e ) {
+        // the subscriber went away - that must not fail the publisher
+        close();
+      }
+    }
+
+    protected void send( int header, byte[] body ) throws IOException {
+      synchronized ( m_out ) {
+        m_out.write( header );
+        int length = body.length;
+        do {
+          int digit = length % 128;
+          length /= 128;
+          m_out.write( length > 0 ? digit | 0x80 : digit );
+        } while ( length > 0 );
+        m_out.write( body );
+        m_out.flush();
+      }
+    }
+
+    protected void close() {
+      if ( !m_open ) {
+        return;
+      }
+      m_open = false;
+      if ( m_clientId != null ) {
+        m_connections.remove( m_clientId, this );
+      }
+      for ( Subscription s : m_subscriptions ) {
+        if ( s.m_connection == this ) {
+          m_subscriptions.remove( s );
+        }
+      }
+      try {
+        m_socket.close();
+      } catch ( IOException e ) {
+        // ignore
+      }
+    }
+  }
+
+  protected static int readRemainingLength( InputStream in ) throws IOException {
+    int length = 0;
+    int multiplier = 1;
+    int digit;
+    do {
+      digit = in.read();
+      if ( digit < 0 ) {
+        throw new EOFException();
+      }
+      length += ( digit & 0x7f ) * multiplier;
+      multiplier *= 128;
+    } while ( ( digit & 0x80 ) != 0 );
+    return length;
+  }
+
+  protected static String readString( DataInputStream in ) throws IOException {
+    byte[] bytes = new byte[in.readUnsignedShort()];
+    in.readFully( bytes );
+    return new String( bytes, StandardCharsets.UTF_8 );
+  }
+
+  protected static byte[] packetIdBytes( int packetId ) {
+    return new byte[] { (byte) ( packetId >> 8 ), (byte) packetId };
+  }
+}
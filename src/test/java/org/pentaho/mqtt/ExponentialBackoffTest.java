@@ -0,0 +1,120 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.mqtt;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExponentialBackoffTest {
+
+  /**
+   * Always draws the same value, to pin the jitter to one end of its range
+   */
+  protected static class FixedRandom extends Random {
+    protected final double m_value;
+
+    protected FixedRandom( double value ) {
+      m_value = value;
+    }
+
+    @Override public double nextDouble() {
+      return m_value;
+    }
+  }
+
+  @Test
+  public void testDoublesUpToTheCap() {
+    // no jitter taken off - the delays are the un-jittered ones
+    ExponentialBackoff backoff = new ExponentialBackoff( 100, 1000, new FixedRandom( 0.9999999 ) );
+
+    assertEquals( 100, backoff.delay( 1 ) );
+    assertEquals( 200, backoff.delay( 2 ) );
+    assertEquals( 400, backoff.delay( 3 ) );
+    assertEquals( 800, backoff.delay( 4 ) );
+    assertEquals( 1000, backoff.delay( 5 ) );
+    assertEquals( 1000, backoff.delay( 6 ) );
+    assertEquals( 1000, backoff.delay( 1000 ) );
+  }
+
+  @Test
+  public void testJitterTakesOffAtMostHalf() {
+    ExponentialBackoff backoff = new ExponentialBackoff( 100, 1000, new FixedRandom( 0 ) );
+
+    assertEquals( 50, backoff.delay( 1 ) );
+    assertEquals( 100, backoff.delay( 2 ) );
+    assertEquals( 500, backoff.delay( 10 ) );
+
+    // odd delays round the lower bound up
+    assertEquals( 4, new ExponentialBackoff( 7, 7, new FixedRandom( 0 ) ).delay( 1 ) );
+  }
+
+  @Test
+  public void testJitterStaysWithinBounds() {
+    ExponentialBackoff backoff = new ExponentialBackoff( 100, 30000, new Random( 42 ) );
+    for ( int attempt = 1; attempt < 20; attempt++ ) {
+      long base = Math.min( 30000, 100L << ( attempt - 1 ) );
+      for ( int i = 0; i < 100; i++ ) {
+        long delay = backoff.delay( attempt );
+        assertTrue( attempt + ": " + delay, delay >= ( base + 1 ) / 2 && delay <= base );
+      }
+    }
+  }
+
+  @Test
+  public void testZeroInitialDelayNeverGrows() {
+    ExponentialBackoff backoff = new ExponentialBackoff( 0, 1000 );
+    for ( int attempt = 1; attempt < 100; attempt++ ) {
+      assertEquals( 0, backoff.delay( attempt ) );
+    }
+  }
+
+  @Test
+  public void testMaxBelowInitialIsRaised() {
+    ExponentialBackoff backoff = new ExponentialBackoff( 500, 100, new FixedRandom( 0.9999999 ) );
+
+    assertEquals( 500, backoff.delay( 1 ) );
+    assertEquals( 500, backoff.delay( 5 ) );
+  }
+
+  @Test
+  public void testRejectsNegativeDelays() {
+    try {
+      new ExponentialBackoff( -1, 100 );
+      fail();
+    } catch ( IllegalArgumentException e ) {
+      // expected
+    }
+    try {
+      new ExponentialBackoff( 1, -100 );
+      fail();
+    } catch ( IllegalArgumentException e ) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MPSCRingBufferTest {
+
+  @Test public void testCapacityIsRoundedUpToAPowerOfTwo() {
+    assertEquals( 1, new MPSCRingBuffer<String>( 1 ).capacity() );
+    assertEquals( 8, new MPSCRingBuffer<String>( 5 ).capacity() );
+    assertEquals( 16, new MPSCRingBuffer<String>( 16 ).capacity() );
+  }
+
+  @Test( expected = IllegalArgumentException.class ) public void testZeroCapacityIsRejected() {
+    new MPSCRingBuffer<String>( 0 );
+  }
+
+  @Test( expected = IllegalArgumentException.class ) public void testCapacityAboveTheMaximumIsRejected() {
+    new MPSCRingBuffer<String>( MPSCRingBuffer.MAX_CAPACITY + 1 );
+  }
+
+  @Test public void testOfferAndPollInOrder() {
+    MPSCRingBuffer<Integer> buffer = new MPSCRingBuffer<>( 4 );
+    assertTrue( buffer.isEmpty() );
+    assertNull( buffer.poll() );
+    for ( int i = 0; i < 3; i++ ) {
+      assertTrue( buffer.offer( i ) );
+    }
+    assertEquals( 3, buffer.size() );
+    for ( int i = 0; i < 3; i++ ) {
+      assertEquals( Integer.valueOf( i ), buffer.poll() );
+    }
+    assertNull( buffer.poll() );
+    assertTrue( buffer.isEmpty() );
+  }
+
+  @Test public void testOfferFailsWhenFull() {
+    MPSCRingBuffer<Integer> buffer = new MPSCRingBuffer<>( 4 );
+    for ( int i = 0; i < 4; i++ ) {
+      assertTrue( buffer.offer( i ) );
+    }
+    assertFalse( buffer.offer( 4 ) );
+    assertEquals( 4, buffer.size() );
+    assertEquals( 4, buffer.getHighWaterMark() );
+
+    assertEquals( Integer.valueOf( 0 ), buffer.poll() );
+    assertTrue( buffer.offer( 4 ) );
+    assertFalse( buffer.offer( 5 ) );
+  }
+
+  @Test( expected = NullPointerException.class ) public void testNullIsRejected() {
+    new MPSCRingBuffer<String>( 4 ).offer( null );
+  }
+
+  @Test public void testWrapsAroundManyTimes() {
+    MPSCRingBuffer<Integer> buffer = new MPSCRingBuffer<>( 4 );
+    int next = 0;
+    int expected = 0;
+    for ( int round = 0; round < 100; round++ ) {
+      // leave a different number of elements behind each round so the head and tail move round at different points
+      int count = 1 + round % 4;
+      for ( int i = 0; i < count; i++ ) {
+        if ( buffer.offer( next ) ) {
+          next++;
+        }
+      }
+      for ( int i = 0; i < count - 1; i++ ) {
+        Integer element = buffer.poll();
+        if ( element != null ) {
+          assertEquals( Integer.valueOf( expected++ ), element );
+        }
+      }
+    }
+    Integer element;
+    while ( ( element = buffer.poll() ) != null ) {
+      assertEquals( Integer.valueOf( expected++ ), element );
+    }
+    assertEquals( next, expected );
+    assertEquals( next, buffer.getTotalOffered() );
+  }
+
+  @Test public void testDrainTo() {
+    MPSCRingBuffer<Integer> buffer = new MPSCRingBuffer<>( 8 );
+    List<Integer> drained = new ArrayList<>();
+    assertEquals( 0, buffer.drainTo( drained, 10 ) );
+
+    for ( int i = 0; i < 6; i++ ) {
+      buffer.offer( i );
+    }
+    assertEquals( 4, buffer.drainTo( drained, 4 ) );
+    assertEquals( 2, buffer.size() );
+    assertEquals( 2, buffer.drainTo( drained, 10 ) );
+    assertTrue( buffer.isEmpty() );
+    for ( int i = 0; i < 6; i++ ) {
+      assertEquals( Integer.valueOf( i ), drained.get( i ) );
+    }
+
+    // the drained slots are free again, across the wrap
+    for ( int i = 0; i < 8; i++ ) {
+      assertTrue( buffer.offer( i ) );
+    }
+    assertFalse( buffer.offer( 8 ) );
+    drained.clear();
+    assertEquals( 8, buffer.drainTo( drained, 10 ) );
+    assertEquals( Integer.valueOf( 7 ), drained.get( 7 ) );
+  }
+
+  @Test( timeout = 30000 ) public void testMultipleProducers() throws Exception {
+    final int producers = 4;
+    final int perProducer = 100000;
+    final MPSCRingBuffer<long[]> buffer = new MPSCRingBuffer<>( 64 );
+    final CountDownLatch start = new CountDownLatch( 1 );
+    List<Thread> threads = new ArrayList<>();
+    for ( int p = 0; p < producers; p++ ) {
+      final int producer = p;
+      Thread thread = new Thread() {
+        @Override public void run() {
+          try {
+            start.await();
+          } catch ( InterruptedException e ) {
+            return;
+          }
+          for ( int i = 0; i < perProducer; i++ ) {
+            long[] element = { producer, i };
+            while ( !buffer.offer( element ) ) {
+              Thread.yield();
+            }
+          }
+        }
+      };
+      thread.start();
+      threads.add( thread );
+    }
+    start.countDown();
+
+    // each producer's elements must come out complete and in the order it offered them
+    int[] next = new int[producers];
+    List<long[]> drained = new ArrayList<>();
+    int received = 0;
+    while ( received < producers * perProducer ) {
+      drained.clear();
+      // alternate between the two ways of taking elements out
+      if ( received % 2 == 0 ) {
+        buffer.drainTo( drained, 16 );
+      } else {
+        long[] element = buffer.poll();
+        if ( element != null ) {
+          drained.add( element );
+        }
+      }
+      if ( drained.isEmpty() ) {
+        Thread.yield();
+      }
+      for ( long[] element : drained ) {
+        int producer = (int) element[0];
+        assertEquals( next[producer]++, element[1] );
+        received++;
+      }
+    }
+    for ( Thread thread : threads ) {
+      thread.join();
+    }
+    assertNull( buffer.poll() );
+    assertEquals( producers * perProducer, buffer.getTotalOffered() );
+    assertTrue( buffer.getHighWaterMark() <= buffer.capacity() );
+  }
+}
@@ -0,0 +1,401 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedJournalPersistenceTest {
+
+  private static final String CLIENT_ID = "client";
+  private static final String SERVER_URI = "tcp://localhost:1883";
+
+  private File m_dir;
+  private List<MappedJournalPersistence> m_opened = new ArrayList<>();
+
+  @Before
+  public void setUp() throws IOException {
+    m_dir = Files.createTempDirectory( "journal" ).toFile();
+  }
+
+  @After
+  public void tearDown() {
+    for ( MappedJournalPersistence persistence : m_opened ) {
+      persistence.closeQuietly();
+    }
+    File[] files = m_dir.listFiles();
+    if ( files != null ) {
+      for ( File file : files ) {
+        file.delete();
+      }
+    }
+    m_dir.delete();
+  }
+
+  @Test
+  public void testPutGetRemove() throws Exception {
+    MappedJournalPersistence persistence = open( MappedJournalPersistence.DEFAULT_INITIAL_SIZE );
+
+    persistence.put( "s-1", new Persistable( "header-1", "payload-1" ) );
+    persistence.put( "s-2", new Persistable( "header-2", null ) );
+
+    assertTrue( persistence.containsKey( "s-1" ) );
+    assertEquals( 2, persistence.size() );
+    assertEntry( persistence, "s-1", "header-1", "payload-1" );
+    assertEntry( persistence, "s-2", "header-2", null );
+    assertEquals( keys( "s-1", "s-2" ), Collections.list( persistence.keys() ) );
+
+    persistence.remove( "s-1" );
+    persistence.remove( "missing" );
+
+    assertFalse( persistence.containsKey( "s-1" ) );
+    assertNull( persistence.get( "s-1" ) );
+    assertEquals( keys( "s-2" ), Collections.list( persistence.keys() ) );
+  }
+
+  @Test
+  public void testCopiesOnlyTheGivenRange() throws Exception {
+    MappedJournalPersistence persistence = open( MappedJournalPersistence.DEFAULT_INITIAL_SIZE );
+
+    byte[] header = bytes( "xxheaderxx" );
+    byte[] payload = bytes( "--payload--" );
+    persistence.put( "s-1", new Persistable( header, 2, 6, payload, 2, 7 ) );
+    header[2] = 'X';
+    payload[2] = 'X';
+
+    assertEntry( persistence, "s-1", "header", "payload" );
+  }
+
+  @Test
+  public void testReplayAfterReopen() throws Exception {
+    MappedJournalPersistence persistence = open( MappedJournalPersistence.DEFAULT_INITIAL_SIZE );
+    persistence.put( "s-1", new Persistable( "header-1", "payload-1" ) );
+    persistence.put( "s-2", new Persistable( "header-2", "payload-2" ) );
+    persistence.put( "s-3", new Persistable( "header-3", null ) );
+    persistence.put( "s-1", new Persistable( "header-1b", "payload-1b" ) );
+    persistence.remove( "s-2" );
+    persistence.close();
+
+    persistence = open( MappedJournalPersistence.DEFAULT_INITIAL_SIZE );
+    assertEquals( keys( "s-1", "s-3" ), Collections.list( persistence.keys() ) );
+    assertEntry( persistence, "s-1", "header-1b", "payload-1b" );
+    assertEntry( persistence, "s-3", "header-3", null );
+
+    // appends after a replay go after the replayed records
+    persistence.put( "s-4", new Persistable( "header-4", "payload-4" ) );
+    persistence.close();
+
+    persistence = open( MappedJournalPersistence.DEFAULT_INITIAL_SIZE );
+    assertEquals( keys( "s-1", "s-3", "s-4" ), Collections.list( persistence.keys() ) );
+    assertEntry( persistence, "s-4", "header-4", "payload-4" );
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    MappedJournalPersistence persistence = open( MappedJournalPersistence.DEFAULT_INITIAL_SIZE );
+    persistence.put( "s-1", new Persistable( "header-1", "payload-1" ) );
+    persistence.clear();
+    assertEquals( 0, persistence.size() );
+    persistence.close();
+
+    persistence = open( MappedJournalPersistence.DEFAULT_INITIAL_SIZE );
+    assertEquals( 0, persistence.size() );
+  }
+
+  @Test
+  public void testCompactionAcrossTheSizeLimit() throws Exception {
+    // the smallest journal holds about 20 of these, so the loop compacts many times over
+    MappedJournalPersistence persistence = open( 0 );
+    String payload = repeat( 'p', 180 );
+    for ( int i = 0; i < 500; i++ ) {
+      persistence.put( "s-" + i, new Persistable( "header-" + i, payload + i ) );
+      if ( i >= 10 ) {
+        persistence.remove( "s-" + ( i - 10 ) );
+      }
+    }
+    assertEquals( 10, persistence.size() );
+    persistence.close();
+
+    // both journals exist and the newer generation wins
+    assertTrue( journal( 0 ).exists() );
+    assertTrue( journal( 1 ).exists() );
+
+    persistence = open( 0 );
+    assertEquals( 10, persistence.size() );
+    for ( int i = 490; i < 500; i++ ) {
+      assertEntry( persistence, "s-" + i, "header-" + i, payload + i );
+    }
+  }
+
+  @Test
+  public void testRecordLargerThanTheJournalGrowsIt() throws Exception {
+    MappedJournalPersistence persistence = open( 0 );
+    persistence.put( "small", new Persistable( "header", "payload" ) );
+    String big = repeat( 'b', 20000 );
+    persistence.put( "big", new Persistable( "header", big ) );
+    assertEntry( persistence, "big", "header", big );
+    persistence.close();
+
+    persistence = open( 0 );
+    assertEquals( keys( "small", "big" ), Collections.list( persistence.keys() ) );
+    assertEntry( persistence, "big", "header", big );
+  }
+
+  @Test
+  public void testCorruptedTailRecordIsDropped() throws Exception {
+    MappedJournalPersistence persistence = open( MappedJournalPersistence.DEFAULT_INITIAL_SIZE );
+    persistence.put( "s-1", new Persistable( "header-1", "payload-1" ) );
+    persistence.put( "s-2", new Persistable( "header-2", "torn-payload" ) );
+    File active = journal( persistence.m_active );
+    persistence.close();
+
+    flipByte( active, bytes( "torn-payload" ) );
+
+    persistence = open( MappedJournalPersistence.DEFAULT_INITIAL_SIZE );
+    assertEquals( keys( "s-1" ), Collections.list( persistence.keys() ) );
+    assertEntry( persistence, "s-1", "header-1", "payload-1" );
+
+    // the next record overwrites the torn one
+    persistence.put( "s-3", new Persistable( "header-3", "payload-3" ) );
+    persistence.close();
+
+    persistence = open( MappedJournalPersistence.DEFAULT_INITIAL_SIZE );
+    assertEquals( keys( "s-1", "s-3" ), Collections.list( persistence.keys() ) );
+  }
+
+  @Test
+  public void testCorruptedHeaderFallsBackToTheOtherJournal() throws Exception {
+    MappedJournalPersistence persistence = open( 0 );
+    String payload = repeat( 'p', 1000 );
+    for ( int i = 0; i < 3; i++ ) {
+      persistence.put( "s-" + i, new Persistable( "header-" + i, payload ) );
+    }
+    // fills the first journal, so the live entries are compacted into the second
+    persistence.put( "s-3", new Persistable( "header-3", payload ) );
+    persistence.remove( "s-3" );
+    int active = persistence.m_active;
+    persistence.close();
+
+    // a compaction cut short leaves the new journal without a valid header
+    try ( RandomAccessFile raf = new RandomAccessFile( journal( active ), "rw" ) ) {
+      raf.writeInt( 0 );
+    }
+
+    persistence = open( 0 );
+    assertEquals( 1 - active, persistence.m_active );
+    assertEquals( keys( "s-0", "s-1", "s-2" ), Collections.list( persistence.keys() ) );
+  }
+
+  @Test
+  public void testJournalInUse() throws Exception {
+    MappedJournalPersistence first = open( MappedJournalPersistence.DEFAULT_INITIAL_SIZE );
+    first.put( "s-1", new Persistable( "header-1", "payload-1" ) );
+
+    MappedJournalPersistence second = new MappedJournalPersistence( m_dir.getPath() );
+    m_opened.add( second );
+    try {
+      second.open( CLIENT_ID, SERVER_URI );
+      fail( "The journal is in use" );
+    } catch ( MqttPersistenceException e ) {
+      assertEquals( MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE, e.getReasonCode() );
+    }
+
+    // another client id has journals of its own
+    MappedJournalPersistence other = new MappedJournalPersistence( m_dir.getPath() );
+    m_opened.add( other );
+    other.open( "other", SERVER_URI );
+    assertEquals( 0, other.size() );
+
+    first.close();
+    second.open( CLIENT_ID, SERVER_URI );
+    assertEntry( second, "s-1", "header-1", "payload-1" );
+  }
+
+  @Test
+  public void testWritesAreForcedAfterABurst() throws Exception {
+    MappedJournalPersistence persistence =
+        new MappedJournalPersistence( m_dir.getPath(), MappedJournalPersistence.DEFAULT_INITIAL_SIZE, 500 );
+    m_opened.add( persistence );
+    persistence.open( CLIENT_ID, SERVER_URI );
+
+    // the journal has just been synced on opening, so the burst is left to the timer
+    for ( int i = 0; i < 10; i++ ) {
+      persistence.put( "s-" + i, new Persistable( "header", "payload" ) );
+    }
+    assertTrue( dirty( persistence ) );
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while ( dirty( persistence ) && System.currentTimeMillis() < deadline ) {
+      Thread.sleep( 10 );
+    }
+    assertFalse( dirty( persistence ) );
+    assertEntry( persistence, "s-9", "header", "payload" );
+  }
+
+  @Test( expected = MqttPersistenceException.class )
+  public void testClosedPersistenceRejectsPuts() throws Exception {
+    MappedJournalPersistence persistence = open( MappedJournalPersistence.DEFAULT_INITIAL_SIZE );
+    persistence.close();
+    persistence.put( "s-1", new Persistable( "header-1", "payload-1" ) );
+  }
+
+  private MappedJournalPersistence open( int initialSize ) throws MqttPersistenceException {
+    MappedJournalPersistence persistence = new MappedJournalPersistence( m_dir.getPath(), initialSize, 0 );
+    m_opened.add( persistence );
+    persistence.open( CLIENT_ID, SERVER_URI );
+    return persistence;
+  }
+
+  private static boolean dirty( MappedJournalPersistence persistence ) {
+    synchronized ( persistence ) {
+      return persistence.m_dirty;
+    }
+  }
+
+  private File journal( int index ) {
+    return new File( m_dir, MappedJournalPersistence.sanitize( CLIENT_ID + "-" + SERVER_URI ) + "." + index
+        + ".journal" );
+  }
+
+  private static void flipByte( File file, byte[] marker ) throws IOException {
+    byte[] content = Files.readAllBytes( file.toPath() );
+    for ( int i = 0; i + marker.length <= content.length; i++ ) {
+      boolean match = true;
+      for ( int j = 0; j < marker.length && match; j++ ) {
+        match = content[i + j] == marker[j];
+      }
+      if ( match ) {
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) ) {
+          raf.seek( i );
+          raf.write( content[i] ^ 0xff );
+        }
+        return;
+      }
+    }
+    fail( "Marker not found in " + file );
+  }
+
+  private static void assertEntry( MappedJournalPersistence persistence, String key, String header, String payload )
+    throws MqttPersistenceException {
+    MqttPersistable entry = persistence.get( key );
+    assertArrayEquals( bytes( header ), slice( entry.getHeaderBytes(), entry.getHeaderOffset(),
+        entry.getHeaderLength() ) );
+    if ( payload == null ) {
+      assertEquals( 0, entry.getPayloadLength() );
+    } else {
+      assertArrayEquals( bytes( payload ), slice( entry.getPayloadBytes(), entry.getPayloadOffset(),
+          entry.getPayloadLength() ) );
+    }
+  }
+
+  private static List<String> keys( String... keys ) {
+    List<String> result = new ArrayList<>();
+    Collections.addAll( result, keys );
+    return result;
+  }
+
+  private static byte[] slice( byte[] bytes, int offset, int length ) {
+    byte[] result = new byte[length];
+    System.arraycopy( bytes, offset, result, 0, length );
+    return result;
+  }
+
+  private static byte[] bytes( String value ) {
+    return value == null ? null : value.getBytes( StandardCharsets.UTF_8 );
+  }
+
+  private static String repeat( char c, int count ) {
+    StringBuilder result = new StringBuilder( count );
+    for ( int i = 0; i < count; i++ ) {
+      result.append( c );
+    }
+    return result.toString();
+  }
+
+  private static class Persistable implements MqttPersistable {
+    private final byte[] m_header;
+    private final int m_headerOffset;
+    private final int m_headerLength;
+    private final byte[] m_payload;
+    private final int m_payloadOffset;
+    private final int m_payloadLength;
+
+    Persistable( String header, String payload ) {
+      this( bytes( header ), 0, bytes( header ).length, bytes( payload ), 0,
+          payload == null ? 0 : bytes( payload ).length );
+    }
+
+    Persistable( byte[] header, int headerOffset, int headerLength, byte[] payload, int payloadOffset,
+        int payloadLength ) {
+      m_header = header;
+      m_headerOffset = headerOffset;
+      m_headerLength = headerLength;
+      m_payload = payload;
+      m_payloadOffset = payloadOffset;
+      m_payloadLength = payloadLength;
+    }
+
+    @Override public byte[] getHeaderBytes() {
+      return m_header;
+    }
+
+    @Override public int getHeaderLength() {
+      return m_headerLength;
+    }
+
+    @Override public int getHeaderOffset() {
+      return m_headerOffset;
+    }
+
+    @Override public byte[] getPayloadBytes() {
+      return m_payload;
+    }
+
+    @Override public int getPayloadLength() {
+      return m_payloadLength;
+    }
+
+    @Override public int getPayloadOffset() {
+      return m_payloadOffset;
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageBatcherTest {
+
+  /**
+   * Records what it is sent, failing while told to
+   */
+  protected static class RecordingSender implements MessageBatcher.BatchSender {
+    protected final List<String> m_sent = Collections.synchronizedList( new ArrayList<String>() );
+    protected volatile boolean m_failing;
+
+    @Override public void send( String topic, byte[] batch, List<Object> tags ) throws Exception {
+      if ( m_failing ) {
+        throw new Exception( "broker unavailable" );
+      }
+      m_sent.add( topic + " " + new String( batch, StandardCharsets.UTF_8 ) + " " + tags );
+    }
+  }
+
+  @Test public void testSendsWhenTheCountIsReached() throws Exception {
+    RecordingSender sender = new RecordingSender();
+    MessageBatcher batcher = new MessageBatcher( BatchFraming.JSON_ARRAY, 2, 0, 0, sender );
+    batcher.add( "t", bytes( "1" ), "a" );
+    assertEquals( 0, sender.m_sent.size() );
+    assertEquals( 1, batcher.getPending() );
+    batcher.add( "t", bytes( "2" ), "b" );
+    assertEquals( Collections.singletonList( "t [1,2] [a, b]" ), sender.m_sent );
+    assertEquals( 0, batcher.getPending() );
+    assertEquals( 1, batcher.getBatchesSent() );
+    assertEquals( 2, batcher.getPayloadsSent() );
+  }
+
+  @Test public void testSendsBeforeThePayloadWouldNotFit() throws Exception {
+    RecordingSender sender = new RecordingSender();
+    // [1,2] is 5 bytes - a third payload would take it to 7
+    MessageBatcher batcher = new MessageBatcher( BatchFraming.JSON_ARRAY, 0, 6, 0, sender );
+    batcher.add( "t", bytes( "1" ) );
+    batcher.add( "t", bytes( "2" ) );
+    batcher.add( "t", bytes( "3" ) );
+    assertEquals( Collections.singletonList( "t [1,2] [null, null]" ), sender.m_sent );
+    batcher.flush();
+    assertEquals( "t [3] [null]", sender.m_sent.get( 1 ) );
+  }
+
+  @Test public void testKeepsBatchesThatFailedToSend() throws Exception {
+    RecordingSender sender = new RecordingSender();
+    MessageBatcher batcher = new MessageBatcher( BatchFraming.LENGTH_PREFIXED, 0, 0, 0, sender );
+    batcher.add( "t", bytes( "a" ) );
+    batcher.add( "u", bytes( "b" ) );
+
+    sender.m_failing = true;
+    try {
+      batcher.flush();
+      fail( "Expected the flush to fail" );
+    } catch ( Exception e ) {
+      // expected
+    }
+    assertEquals( 2, batcher.getPending() );
+    batcher.add( "t", bytes( "c" ) );
+    assertEquals( 3, batcher.getPending() );
+
+    // the failed batches go first, in their original order
+    sender.m_failing = false;
+    batcher.flush();
+    assertEquals( 3, sender.m_sent.size() );
+    assertTrue( sender.m_sent.get( 0 ).startsWith( "t " ) && sender.m_sent.get( 0 ).endsWith( "a [null]" ) );
+    assertTrue( sender.m_sent.get( 1 ).startsWith( "u " ) && sender.m_sent.get( 1 ).endsWith( "b [null]" ) );
+    assertTrue( sender.m_sent.get( 2 ).startsWith( "t " ) && sender.m_sent.get( 2 ).endsWith( "c [null]" ) );
+    assertEquals( 0, batcher.getPending() );
+    assertEquals( 3, batcher.getPayloadsSent() );
+  }
+
+  @Test public void testRejectsPayloadsThatAreNotJson() throws Exception {
+    RecordingSender sender = new RecordingSender();
+    MessageBatcher batcher = new MessageBatcher( BatchFraming.JSON_ARRAY, 0, 0, 0, sender );
+    try {
+      batcher.add( "t", bytes( "not json" ) );
+      fail( "Expected the payload to be rejected" );
+    } catch ( IllegalArgumentException e ) {
+      // expected
+    }
+    assertEquals( 0, batcher.getPending() );
+  }
+
+  @Test( timeout = 10000 ) public void testSendsLingeringBatches() throws Exception {
+    final CountDownLatch sent = new CountDownLatch( 1 );
+    RecordingSender sender = new RecordingSender() {
+      @Override public void send( String topic, byte[] batch, List<Object> tags ) throws Exception {
+        super.send( topic, batch, tags );
+        sent.countDown();
+      }
+    };
+    MessageBatcher batcher = new MessageBatcher( BatchFraming.JSON_ARRAY, 0, 0, 20, sender );
+    try {
+      batcher.add( "t", bytes( "{}" ) );
+      assertTrue( sent.await( 5, TimeUnit.SECONDS ) );
+      assertEquals( "t [{}] [null]", sender.m_sent.get( 0 ) );
+      assertNull( batcher.getLingerError() );
+    } finally {
+      batcher.close();
+    }
+  }
+
+  @Test( timeout = 10000 ) public void testAddDoesNotWaitForTheTimersSend() throws Exception {
+    final CountDownLatch sending = new CountDownLatch( 1 );
+    final CountDownLatch release = new CountDownLatch( 1 );
+    MessageBatcher.BatchSender slow = new MessageBatcher.BatchSender() {
+      @Override public void send( String topic, byte[] batch, List<Object> tags ) throws Exception {
+        sending.countDown();
+        release.await();
+      }
+    };
+    MessageBatcher batcher = new MessageBatcher( BatchFraming.JSON_ARRAY, 0, 0, 20, slow );
+    try {
+      batcher.add( "t", bytes( "1" ) );
+      assertTrue( sending.await( 5, TimeUnit.SECONDS ) );
+      // the timer is stuck sending - adding to a batch that is not full must still return straight away
+      long start = System.nanoTime();
+      batcher.add( "t", bytes( "2" ) );
+      assertTrue( System.nanoTime() - start < TimeUnit.SECONDS.toNanos( 1 ) );
+      assertEquals( 2, batcher.getPending() );
+    } finally {
+      release.countDown();
+      batcher.close();
+    }
+  }
+
+  @Test( timeout = 10000 ) public void testCloseWaitsForTheTimersSend() throws Exception {
+    final CountDownLatch sending = new CountDownLatch( 1 );
+    final CountDownLatch release = new CountDownLatch( 1 );
+    final List<String> sent = Collections.synchronizedList( new ArrayList<String>() );
+    MessageBatcher.BatchSender slow = new MessageBatcher.BatchSender() {
+      @Override public void send( String topic, byte[] batch, List<Object> tags ) throws Exception {
+        sending.countDown();
+        // finishes the send even when interrupted, as a client waiting for its token may
+        while ( true ) {
+          try {
+            release.await();
+            break;
+          } catch ( InterruptedException e ) {
+            // keep going
+          }
+        }
+        sent.add( new String( batch, StandardCharsets.UTF_8 ) );
+      }
+    };
+    final MessageBatcher batcher = new MessageBatcher( BatchFraming.JSON_ARRAY, 0, 0, 20, slow );
+    batcher.add( "t", bytes( "1" ) );
+    assertTrue( sending.await( 5, TimeUnit.SECONDS ) );
+
+    final CountDownLatch closed = new CountDownLatch( 1 );
+    Thread closer = new Thread() {
+      @Override public void run() {
+        batcher.close();
+        closed.countDown();
+      }
+    };
+    closer.start();
+    assertFalse( closed.await( 200, TimeUnit.MILLISECONDS ) );
+    release.countDown();
+    assertTrue( closed.await( 5, TimeUnit.SECONDS ) );
+    assertEquals( Collections.singletonList( "[1]" ), sent );
+
+    // nothing goes out once closed
+    batcher.add( "t", bytes( "2" ) );
+    batcher.flush();
+    assertEquals( 1, sent.size() );
+    assertEquals( 1, batcher.getPending() );
+  }
+
+  protected static byte[] bytes( String text ) {
+    return text.getBytes( StandardCharsets.UTF_8 );
+  }
+}
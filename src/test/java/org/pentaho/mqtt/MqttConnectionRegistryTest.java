@@ -0,0 +1,162 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MqttConnectionRegistryTest {
+
+  private MqttConnectionRegistry.Connection m_connection;
+
+  @Before
+  public void setUp() throws MqttException {
+    MqttConnectionRegistry.Key key =
+        new MqttConnectionRegistry.Key( "tcp://localhost:1883", null, null, new MqttConnectOptions() );
+    // never connected - messages are handed to the connection as its client would
+    m_connection = MqttConnectionRegistry.getInstance().new Connection( key,
+        new MqttAsyncClient( "tcp://localhost:1883", "test" ) );
+  }
+
+  @Test
+  public void testMatchesExactTopics() {
+    assertTrue( MqttConnectionRegistry.matches( "a/b", "a/b" ) );
+    assertFalse( MqttConnectionRegistry.matches( "a/b", "a/c" ) );
+    assertFalse( MqttConnectionRegistry.matches( "a/b", "a" ) );
+    assertFalse( MqttConnectionRegistry.matches( "a", "a/b" ) );
+    assertFalse( MqttConnectionRegistry.matches( "a/b", "A/b" ) );
+  }
+
+  @Test
+  public void testMatchesMultiLevelWildcard() {
+    assertTrue( MqttConnectionRegistry.matches( "#", "a" ) );
+    assertTrue( MqttConnectionRegistry.matches( "#", "a/b/c" ) );
+    assertTrue( MqttConnectionRegistry.matches( "a/#", "a/b/c" ) );
+    // the parent level matches too
+    assertTrue( MqttConnectionRegistry.matches( "a/#", "a" ) );
+    assertFalse( MqttConnectionRegistry.matches( "a/#", "b/a" ) );
+    assertFalse( MqttConnectionRegistry.matches( "a/b/#", "a" ) );
+  }
+
+  @Test
+  public void testMatchesSingleLevelWildcard() {
+    assertTrue( MqttConnectionRegistry.matches( "+", "a" ) );
+    assertFalse( MqttConnectionRegistry.matches( "+", "a/b" ) );
+    assertTrue( MqttConnectionRegistry.matches( "a/+", "a/b" ) );
+    assertFalse( MqttConnectionRegistry.matches( "a/+", "a/b/c" ) );
+    assertFalse( MqttConnectionRegistry.matches( "a/+", "a" ) );
+    assertTrue( MqttConnectionRegistry.matches( "+/b/+", "a/b/c" ) );
+    assertTrue( MqttConnectionRegistry.matches( "a/+/#", "a/b/c/d" ) );
+  }
+
+  @Test
+  public void testMatchesEmptyLevels() {
+    assertTrue( MqttConnectionRegistry.matches( "a//b", "a//b" ) );
+    assertTrue( MqttConnectionRegistry.matches( "a/+/b", "a//b" ) );
+    assertTrue( MqttConnectionRegistry.matches( "+/+", "/a" ) );
+    assertFalse( MqttConnectionRegistry.matches( "+", "/a" ) );
+    assertTrue( MqttConnectionRegistry.matches( "a/+", "a/" ) );
+    assertFalse( MqttConnectionRegistry.matches( "a/b", "a/b/" ) );
+  }
+
+  @Test
+  public void testMatchesDollarTopics() {
+    assertFalse( MqttConnectionRegistry.matches( "#", "$SYS/broker/load" ) );
+    assertFalse( MqttConnectionRegistry.matches( "+/broker/load", "$SYS/broker/load" ) );
+    assertTrue( MqttConnectionRegistry.matches( "$SYS/#", "$SYS/broker/load" ) );
+    assertTrue( MqttConnectionRegistry.matches( "$SYS/+/load", "$SYS/broker/load" ) );
+    // only a leading $ is special
+    assertTrue( MqttConnectionRegistry.matches( "a/+", "a/$b" ) );
+  }
+
+  @Test
+  public void testSharedSubscriptionFilter() {
+    assertEquals( "a/+", new MqttConnectionRegistry.Subscription( "$share/group/a/+", 1, null ).m_matchFilter );
+    assertEquals( "a/+", new MqttConnectionRegistry.Subscription( "a/+", 1, null ).m_matchFilter );
+  }
+
+  @Test
+  public void testRoutesToMatchingListeners() throws Exception {
+    RecordingListener a = new RecordingListener();
+    RecordingListener b = new RecordingListener();
+    subscribe( "a/#", a );
+    subscribe( "b/+", b );
+
+    deliver( "a/1" );
+    deliver( "b/1" );
+    deliver( "b/1/2" );
+    deliver( "c" );
+
+    assertEquals( Arrays.asList( "a/1" ), a.m_topics );
+    assertEquals( Arrays.asList( "b/1" ), b.m_topics );
+  }
+
+  @Test
+  public void testDeliversOncePerListener() throws Exception {
+    RecordingListener a = new RecordingListener();
+    RecordingListener b = new RecordingListener();
+    RecordingListener c = new RecordingListener();
+    // overlapping filters of one listener, as a step subscribed to several topics can have
+    subscribe( "a/#", a );
+    subscribe( "a/b", a );
+    subscribe( "a/+", a );
+    subscribe( "a/b", b );
+    subscribe( "$share/g/a/+", c );
+    subscribe( "a/#", c );
+
+    deliver( "a/b" );
+    deliver( "a/c" );
+
+    assertEquals( Arrays.asList( "a/b", "a/c" ), a.m_topics );
+    assertEquals( Arrays.asList( "a/b" ), b.m_topics );
+    assertEquals( Arrays.asList( "a/b", "a/c" ), c.m_topics );
+  }
+
+  private void subscribe( String filter, MqttConnectionRegistry.MessageListener listener ) {
+    m_connection.m_subscriptions.add( new MqttConnectionRegistry.Subscription( filter, 1, listener ) );
+  }
+
+  private void deliver( String topic ) throws Exception {
+    m_connection.messageArrived( topic, new MqttMessage( new byte[] { 1 } ) );
+  }
+
+  private static class RecordingListener implements MqttConnectionRegistry.MessageListener {
+    private final List<String> m_topics = new ArrayList<>();
+
+    @Override public void messageArrived( String topic, MqttMessage message ) {
+      m_topics.add( topic );
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.common.MqttPersistable;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MqttVersionTest {
+
+  @Test
+  public void testParseNoUserProperties() {
+    assertTrue( MqttVersion.parseUserProperties( null ).isEmpty() );
+    assertTrue( MqttVersion.parseUserProperties( "" ).isEmpty() );
+    assertTrue( MqttVersion.parseUserProperties( "  " ).isEmpty() );
+  }
+
+  @Test
+  public void testParseKeepsDuplicateKeysInOrder() {
+    List<UserProperty> properties = MqttVersion.parseUserProperties( "a=1,b=2,a=3" );
+
+    assertEquals( 3, properties.size() );
+    assertProperty( "a", "1", properties.get( 0 ) );
+    assertProperty( "b", "2", properties.get( 1 ) );
+    assertProperty( "a", "3", properties.get( 2 ) );
+  }
+
+  @Test
+  public void testParseValueContainingEquals() {
+    List<UserProperty> properties = MqttVersion.parseUserProperties( "filter=x=1,empty=" );
+
+    assertEquals( 2, properties.size() );
+    assertProperty( "filter", "x=1", properties.get( 0 ) );
+    assertProperty( "empty", "", properties.get( 1 ) );
+  }
+
+  @Test
+  public void testParseSkipsEmptyEntries() {
+    List<UserProperty> properties = MqttVersion.parseUserProperties( ",a=1,, ,b=2," );
+
+    assertEquals( 2, properties.size() );
+    assertProperty( "a", "1", properties.get( 0 ) );
+    assertProperty( "b", "2", properties.get( 1 ) );
+  }
+
+  @Test
+  public void testParseTrimsWhitespace() {
+    List<UserProperty> properties = MqttVersion.parseUserProperties( " a = 1 ,\tb=two words " );
+
+    assertEquals( 2, properties.size() );
+    assertProperty( "a", "1", properties.get( 0 ) );
+    assertProperty( "b", "two words", properties.get( 1 ) );
+  }
+
+  @Test
+  public void testParseRejectsBadPairs() {
+    for ( String bad : new String[] { "a", "a=1,b", "=1", " =1" } ) {
+      try {
+        MqttVersion.parseUserProperties( bad );
+        fail( "accepted " + bad );
+      } catch ( IllegalArgumentException e ) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testToV5CarriesOptionsOver() {
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setUserName( "user" );
+    options.setPassword( "p\u00e4ss".toCharArray() );
+    options.setCleanSession( false );
+    options.setConnectionTimeout( 12 );
+    options.setKeepAliveInterval( 34 );
+
+    MqttConnectionOptions v5 = MqttVersion.toV5( options );
+
+    assertEquals( "user", v5.getUserName() );
+    assertArrayEquals( "p\u00e4ss".getBytes( StandardCharsets.UTF_8 ), v5.getPassword() );
+    assertFalse( v5.isCleanStart() );
+    assertEquals( 12, v5.getConnectionTimeout() );
+    assertEquals( 34, v5.getKeepAliveInterval() );
+  }
+
+  @Test
+  public void testToV5WithoutCredentials() {
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setCleanSession( true );
+
+    MqttConnectionOptions v5 = MqttVersion.toV5( options );
+
+    assertNull( v5.getUserName() );
+    assertNull( v5.getPassword() );
+    assertTrue( v5.isCleanStart() );
+    // the session expiry is left to the subscriber
+    assertNull( v5.getSessionExpiryInterval() );
+  }
+
+  @Test
+  public void testV3PersistableKeepsBounds() throws Exception {
+    final byte[] header = "..header".getBytes( StandardCharsets.UTF_8 );
+    final byte[] payload = "payload..".getBytes( StandardCharsets.UTF_8 );
+    MqttVersion.V3Persistable persistable = new MqttVersion.V3Persistable( new MqttPersistable() {
+      @Override public byte[] getHeaderBytes() {
+        return header;
+      }
+
+      @Override public int getHeaderLength() {
+        return 6;
+      }
+
+      @Override public int getHeaderOffset() {
+        return 2;
+      }
+
+      @Override public byte[] getPayloadBytes() {
+        return payload;
+      }
+
+      @Override public int getPayloadLength() {
+        return 7;
+      }
+
+      @Override public int getPayloadOffset() {
+        return 0;
+      }
+    } );
+
+    assertSame( header, persistable.getHeaderBytes() );
+    assertEquals( 2, persistable.getHeaderOffset() );
+    assertEquals( 6, persistable.getHeaderLength() );
+    assertSame( payload, persistable.getPayloadBytes() );
+    assertEquals( 0, persistable.getPayloadOffset() );
+    assertEquals( 7, persistable.getPayloadLength() );
+  }
+
+  private static void assertProperty( String key, String value, UserProperty property ) {
+    assertEquals( key, property.getKey() );
+    assertEquals( value, property.getValue() );
+  }
+}
@@ -0,0 +1,301 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OffHeapRingBufferTest {
+
+  private static final int SLAB = 1024;
+  private static final byte[] TOPIC = bytes( "sensors/1" );
+
+  @Test
+  public void testSizeIsRoundedUp() {
+    assertEquals( 1024, new OffHeapRingBuffer( 1, 1 ).slabSize() );
+    assertEquals( 2048, new OffHeapRingBuffer( 1025, 1 ).slabSize() );
+    assertEquals( 4096, new OffHeapRingBuffer( 4096, 1 ).slabSize() );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testZeroCapacity() {
+    new OffHeapRingBuffer( SLAB, 0 );
+  }
+
+  @Test
+  public void testOfferAndPoll() {
+    OffHeapRingBuffer buffer = new OffHeapRingBuffer( SLAB, 10 );
+    OffHeapRingBuffer.Record record = new OffHeapRingBuffer.Record();
+    assertFalse( buffer.poll( record ) );
+
+    byte[] payload = bytes( "--hello--" );
+    assertTrue( buffer.offer( TOPIC, payload, 2, 5 ) );
+    assertTrue( buffer.offer( bytes( "other" ), new byte[0], 0, 0 ) );
+    assertEquals( 2, buffer.size() );
+
+    assertTrue( buffer.poll( record ) );
+    assertEquals( "sensors/1", record.getTopic() );
+    assertPayload( bytes( "hello" ), record );
+    assertTrue( buffer.poll( record ) );
+    assertEquals( "other", record.getTopic() );
+    assertEquals( 0, record.getLength() );
+    assertFalse( buffer.poll( record ) );
+    assertTrue( buffer.isEmpty() );
+  }
+
+  @Test
+  public void testCapacityLimitsMessages() {
+    OffHeapRingBuffer buffer = new OffHeapRingBuffer( SLAB, 3 );
+    for ( int i = 0; i < 3; i++ ) {
+      assertTrue( buffer.offer( TOPIC, payload( i, 1 ), 0, 1 ) );
+    }
+    assertFalse( buffer.offer( TOPIC, payload( 3, 1 ), 0, 1 ) );
+    assertEquals( 3, buffer.getHighWaterMark() );
+
+    buffer.poll( new OffHeapRingBuffer.Record() );
+    assertTrue( buffer.offer( TOPIC, payload( 3, 1 ), 0, 1 ) );
+  }
+
+  @Test
+  public void testSlabLimitsBytes() {
+    OffHeapRingBuffer buffer = new OffHeapRingBuffer( SLAB, 100 );
+    // 8 + 9 + 239 = 256 bytes a record
+    for ( int i = 0; i < 4; i++ ) {
+      assertTrue( buffer.offer( TOPIC, payload( i, 239 ), 0, 239 ) );
+    }
+    assertEquals( SLAB, buffer.bytesUsed() );
+    assertFalse( buffer.offer( TOPIC, payload( 4, 1 ), 0, 1 ) );
+
+    OffHeapRingBuffer.Record record = new OffHeapRingBuffer.Record();
+    assertTrue( buffer.poll( record ) );
+    assertPayload( payload( 0, 239 ), record );
+    assertTrue( buffer.offer( TOPIC, payload( 4, 239 ), 0, 239 ) );
+    for ( int i = 1; i < 5; i++ ) {
+      assertTrue( buffer.poll( record ) );
+      assertPayload( payload( i, 239 ), record );
+    }
+  }
+
+  @Test
+  public void testWrapAtEveryDistanceFromTheEnd() {
+    for ( int toEnd = 0; toEnd <= OffHeapRingBuffer.RECORD_HEADER_SIZE; toEnd++ ) {
+      OffHeapRingBuffer buffer = new OffHeapRingBuffer( SLAB, 100 );
+      OffHeapRingBuffer.Record record = new OffHeapRingBuffer.Record();
+      advance( buffer, SLAB - toEnd );
+      assertEquals( "toEnd " + toEnd, 0, buffer.bytesUsed() );
+
+      // the first record can't fit in what is left, the second follows it from the start of the slab
+      assertTrue( buffer.offer( TOPIC, payload( 1, 100 ), 0, 100 ) );
+      assertTrue( buffer.offer( TOPIC, payload( 2, 50 ), 0, 50 ) );
+      assertEquals( "toEnd " + toEnd, toEnd + 117 + 67, buffer.bytesUsed() );
+
+      assertTrue( "toEnd " + toEnd, buffer.poll( record ) );
+      assertEquals( "sensors/1", record.getTopic() );
+      assertPayload( payload( 1, 100 ), record );
+      assertTrue( "toEnd " + toEnd, buffer.poll( record ) );
+      assertPayload( payload( 2, 50 ), record );
+      assertFalse( buffer.poll( record ) );
+      assertEquals( "toEnd " + toEnd, 0, buffer.bytesUsed() );
+    }
+  }
+
+  @Test
+  public void testWrapWhileTheConsumerIsBehind() {
+    OffHeapRingBuffer buffer = new OffHeapRingBuffer( SLAB, 100 );
+    OffHeapRingBuffer.Record record = new OffHeapRingBuffer.Record();
+    advance( buffer, 700 );
+    // 700 + 3 * 100 leaves 24 bytes at the end for the padding marker
+    for ( int i = 0; i < 3; i++ ) {
+      assertTrue( buffer.offer( TOPIC, payload( i, 83 ), 0, 83 ) );
+    }
+    assertTrue( buffer.offer( TOPIC, payload( 3, 83 ), 0, 83 ) );
+    assertEquals( 3 * 100 + 24 + 100, buffer.bytesUsed() );
+    for ( int i = 0; i < 4; i++ ) {
+      assertTrue( buffer.poll( record ) );
+      assertPayload( payload( i, 83 ), record );
+    }
+    assertTrue( buffer.isEmpty() );
+  }
+
+  @Test
+  public void testOversizeMessage() {
+    OffHeapRingBuffer buffer = new OffHeapRingBuffer( SLAB, 100 );
+    int largest = SLAB / 2 - OffHeapRingBuffer.RECORD_HEADER_SIZE - TOPIC.length;
+    assertTrue( buffer.canHold( TOPIC.length, largest ) );
+    assertFalse( buffer.canHold( TOPIC.length, largest + 1 ) );
+    try {
+      buffer.offer( TOPIC, new byte[largest + 1], 0, largest + 1 );
+      fail( "Record larger than half the slab" );
+    } catch ( IllegalArgumentException e ) {
+      // expected
+    }
+
+    // the largest record fits wherever the empty buffer stands
+    OffHeapRingBuffer.Record record = new OffHeapRingBuffer.Record();
+    for ( int position = 0; position < SLAB; position += 100 ) {
+      advance( buffer, 100 );
+      assertTrue( "position " + position, buffer.offer( TOPIC, payload( position, largest ), 0, largest ) );
+      assertTrue( buffer.poll( record ) );
+      assertPayload( payload( position, largest ), record );
+    }
+  }
+
+  @Test
+  public void testRecordPayloadGrows() {
+    OffHeapRingBuffer buffer = new OffHeapRingBuffer( SLAB, 10 );
+    OffHeapRingBuffer.Record record = new OffHeapRingBuffer.Record();
+    buffer.offer( TOPIC, payload( 1, 400 ), 0, 400 );
+    buffer.offer( TOPIC, payload( 2, 10 ), 0, 10 );
+    assertTrue( buffer.poll( record ) );
+    assertPayload( payload( 1, 400 ), record );
+    assertTrue( buffer.poll( record ) );
+    assertPayload( payload( 2, 10 ), record );
+  }
+
+  @Test
+  public void testTopicsAreCached() {
+    OffHeapRingBuffer buffer = new OffHeapRingBuffer( SLAB, 10 );
+    OffHeapRingBuffer.Record record = new OffHeapRingBuffer.Record();
+    buffer.offer( TOPIC, payload( 1, 1 ), 0, 1 );
+    buffer.offer( bytes( "sensors/2" ), payload( 2, 1 ), 0, 1 );
+    buffer.offer( TOPIC, payload( 3, 1 ), 0, 1 );
+    buffer.poll( record );
+    String first = record.getTopic();
+    buffer.poll( record );
+    assertEquals( "sensors/2", record.getTopic() );
+    buffer.poll( record );
+    assertSame( first, record.getTopic() );
+  }
+
+  @Test
+  public void testDrainToEmptyAndReuse() {
+    OffHeapRingBuffer buffer = new OffHeapRingBuffer( SLAB, 20 );
+    OffHeapRingBuffer.Record record = new OffHeapRingBuffer.Record();
+    Deque<byte[]> expected = new ArrayDeque<>();
+    Random random = new Random( 42 );
+    int n = 0;
+    for ( int round = 0; round < 200; round++ ) {
+      // fill until the buffer refuses, then drain it completely
+      byte[] payload;
+      do {
+        payload = payload( n++, random.nextInt( 300 ) );
+      } while ( buffer.offer( TOPIC, payload, 0, payload.length ) && expected.add( payload ) );
+      assertFalse( expected.isEmpty() );
+      while ( buffer.poll( record ) ) {
+        assertPayload( expected.removeFirst(), record );
+      }
+      assertTrue( expected.isEmpty() );
+      assertTrue( buffer.isEmpty() );
+      assertEquals( 0, buffer.size() );
+      assertEquals( 0, buffer.bytesUsed() );
+    }
+  }
+
+  @Test
+  public void testConcurrentProducers() throws Exception {
+    final OffHeapRingBuffer buffer = new OffHeapRingBuffer( SLAB, 16 );
+    final int perProducer = 5000;
+    Thread[] producers = new Thread[3];
+    for ( int p = 0; p < producers.length; p++ ) {
+      final byte[] topic = bytes( "producer/" + p );
+      producers[p] = new Thread( new Runnable() {
+        @Override public void run() {
+          for ( int i = 0; i < perProducer; i++ ) {
+            byte[] payload = bytes( Integer.toString( i ) );
+            while ( !buffer.offer( topic, payload, 0, payload.length ) ) {
+              Thread.yield();
+            }
+          }
+        }
+      } );
+      producers[p].start();
+    }
+
+    int[] next = new int[producers.length];
+    OffHeapRingBuffer.Record record = new OffHeapRingBuffer.Record();
+    int received = 0;
+    long deadline = System.currentTimeMillis() + 30000;
+    while ( received < producers.length * perProducer && System.currentTimeMillis() < deadline ) {
+      if ( !buffer.poll( record ) ) {
+        Thread.yield();
+        continue;
+      }
+      int producer = Integer.parseInt( record.getTopic().substring( "producer/".length() ) );
+      String value = new String( record.getPayload(), 0, record.getLength(), StandardCharsets.UTF_8 );
+      // each producer's messages come out in the order it added them
+      assertEquals( next[producer]++, Integer.parseInt( value ) );
+      received++;
+    }
+    for ( Thread producer : producers ) {
+      producer.join();
+    }
+    assertEquals( producers.length * perProducer, received );
+    assertEquals( producers.length * perProducer, buffer.getTotalOffered() );
+  }
+
+  /**
+   * Move the empty buffer's position on by the given number of bytes
+   */
+  private static void advance( OffHeapRingBuffer buffer, int bytes ) {
+    OffHeapRingBuffer.Record record = new OffHeapRingBuffer.Record();
+    int remaining = bytes;
+    while ( remaining > 0 ) {
+      // records are at least a header long, so never leave less than that for the last one
+      int size =
+          remaining <= SLAB / 2 ? remaining : Math.min( SLAB / 2, remaining - OffHeapRingBuffer.RECORD_HEADER_SIZE );
+      int length = size - OffHeapRingBuffer.RECORD_HEADER_SIZE;
+      assertTrue( buffer.offer( new byte[0], new byte[length], 0, length ) );
+      assertTrue( buffer.poll( record ) );
+      remaining -= size;
+    }
+    assertTrue( buffer.isEmpty() );
+  }
+
+  private static void assertPayload( byte[] expected, OffHeapRingBuffer.Record record ) {
+    assertArrayEquals( expected, Arrays.copyOf( record.getPayload(), record.getLength() ) );
+  }
+
+  private static byte[] payload( int n, int length ) {
+    byte[] payload = new byte[length];
+    for ( int i = 0; i < length; i++ ) {
+      payload[i] = (byte) ( n + i );
+    }
+    return payload;
+  }
+
+  private static byte[] bytes( String value ) {
+    return value.getBytes( StandardCharsets.UTF_8 );
+  }
+}
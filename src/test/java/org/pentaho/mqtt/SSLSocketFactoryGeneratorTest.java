@@ -0,0 +1,110 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class SSLSocketFactoryGeneratorTest {
+
+  private File m_dir;
+  private String m_caFile;
+  private String m_certFile;
+  private String m_keyFile;
+
+  @Before
+  public void setUp() throws IOException {
+    SSLSocketFactoryGenerator.clearCache();
+    m_dir = Files.createTempDirectory( "tls" ).toFile();
+    m_caFile = copy( "ca.crt" );
+    m_certFile = copy( "client.crt" );
+    m_keyFile = copy( "client.key" );
+  }
+
+  @After
+  public void tearDown() {
+    SSLSocketFactoryGenerator.clearCache();
+    File[] files = m_dir.listFiles();
+    if ( files != null ) {
+      for ( File file : files ) {
+        file.delete();
+      }
+    }
+    m_dir.delete();
+  }
+
+  @Test
+  public void testCacheHit() throws Exception {
+    SSLSocketFactory factory = SSLSocketFactoryGenerator.getSocketFactory( m_caFile, m_certFile, m_keyFile, null );
+    assertSame( factory, SSLSocketFactoryGenerator.getSocketFactory( m_caFile, m_certFile, m_keyFile, null ) );
+    assertEquals( 1, SSLSocketFactoryGenerator.s_cache.size() );
+  }
+
+  @Test
+  public void testChangedFileIsReloaded() throws Exception {
+    SSLSocketFactory before = SSLSocketFactoryGenerator.getSocketFactory( m_caFile, m_certFile, m_keyFile, null );
+    SSLSocketFactoryGenerator.getSocketFactory( m_caFile, m_certFile, m_keyFile, "secret" );
+
+    File cert = new File( m_certFile );
+    cert.setLastModified( cert.lastModified() + 10000 );
+
+    SSLSocketFactory after = SSLSocketFactoryGenerator.getSocketFactory( m_caFile, m_certFile, m_keyFile, null );
+    assertNotSame( before, after );
+    assertSame( after, SSLSocketFactoryGenerator.getSocketFactory( m_caFile, m_certFile, m_keyFile, null ) );
+    // the factories built from the old file are gone, whatever their password
+    assertEquals( 1, SSLSocketFactoryGenerator.s_cache.size() );
+  }
+
+  @Test
+  public void testPasswordsDoNotEvictEachOther() throws Exception {
+    SSLSocketFactory none = SSLSocketFactoryGenerator.getSocketFactory( m_caFile, m_certFile, m_keyFile, null );
+    SSLSocketFactory secret = SSLSocketFactoryGenerator.getSocketFactory( m_caFile, m_certFile, m_keyFile, "secret" );
+    assertNotSame( none, secret );
+
+    // steps using the same files with different passwords keep finding their factories
+    for ( int i = 0; i < 3; i++ ) {
+      assertSame( none, SSLSocketFactoryGenerator.getSocketFactory( m_caFile, m_certFile, m_keyFile, null ) );
+      assertSame( secret, SSLSocketFactoryGenerator.getSocketFactory( m_caFile, m_certFile, m_keyFile, "secret" ) );
+    }
+    assertEquals( 2, SSLSocketFactoryGenerator.s_cache.size() );
+  }
+
+  private String copy( String name ) throws IOException {
+    File file = new File( m_dir, name );
+    try ( InputStream in = getClass().getResourceAsStream( name ) ) {
+      Files.copy( in, file.toPath() );
+    }
+    return file.getPath();
+  }
+}
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpillJournalTest {
+
+  private static final int SEGMENT_SIZE = 4096;
+
+  private File m_dir;
+  private SpillJournal m_journal;
+
+  @Before
+  public void setUp() throws IOException {
+    m_dir = Files.createTempDirectory( "spill" ).toFile();
+    m_journal = new SpillJournal( m_dir.getPath(), "test", SEGMENT_SIZE );
+  }
+
+  @After
+  public void tearDown() {
+    m_journal.close();
+    File[] files = m_dir.listFiles();
+    if ( files != null ) {
+      for ( File file : files ) {
+        file.delete();
+      }
+    }
+    m_dir.delete();
+  }
+
+  @Test
+  public void testAppendAndDrainInOrder() throws Exception {
+    for ( int i = 0; i < 10; i++ ) {
+      m_journal.append( "topic/" + i, payload( i, 10 ) );
+    }
+    assertEquals( 10, m_journal.size() );
+
+    List<SpillJournal.Message> messages = new ArrayList<>();
+    assertEquals( 4, m_journal.drainTo( messages, 4 ) );
+    assertEquals( 6, m_journal.drainTo( messages, 100 ) );
+    assertEquals( 0, m_journal.drainTo( messages, 100 ) );
+    assertTrue( m_journal.isEmpty() );
+    for ( int i = 0; i < 10; i++ ) {
+      assertEquals( "topic/" + i, messages.get( i ).getTopic() );
+      assertMessage( messages.get( i ), i, 10 );
+    }
+    assertEquals( 10, m_journal.getTotalSpilled() );
+    assertEquals( 10, m_journal.getHighWaterMark() );
+  }
+
+  @Test
+  public void testSegmentRollover() throws Exception {
+    // about three records to a segment
+    for ( int i = 0; i < 10; i++ ) {
+      m_journal.append( "topic", payload( i, 1200 ) );
+    }
+    assertEquals( 4, m_journal.getSegmentsCreated() );
+    assertEquals( 4, segmentFiles() );
+
+    // a segment is deleted once it has been read completely
+    List<SpillJournal.Message> messages = new ArrayList<>();
+    m_journal.drainTo( messages, 4 );
+    assertEquals( 3, segmentFiles() );
+
+    // appends and reads interleave across segments
+    for ( int i = 10; i < 15; i++ ) {
+      m_journal.append( "topic", payload( i, 1200 ) );
+    }
+    m_journal.drainTo( messages, 100 );
+    assertEquals( 15, messages.size() );
+    for ( int i = 0; i < 15; i++ ) {
+      assertMessage( messages.get( i ), i, 1200 );
+    }
+    assertEquals( 1, segmentFiles() );
+  }
+
+  @Test
+  public void testDrainedJournalReusesItsSegment() throws Exception {
+    List<SpillJournal.Message> messages = new ArrayList<>();
+    for ( int round = 0; round < 5; round++ ) {
+      for ( int i = 0; i < 3; i++ ) {
+        m_journal.append( "topic", payload( round * 3 + i, 1200 ) );
+      }
+      messages.clear();
+      assertEquals( 3, m_journal.drainTo( messages, 100 ) );
+      for ( int i = 0; i < 3; i++ ) {
+        assertMessage( messages.get( i ), round * 3 + i, 1200 );
+      }
+    }
+    // each burst starts from the beginning of the one segment
+    assertEquals( 1, m_journal.getSegmentsCreated() );
+    assertEquals( 1, segmentFiles() );
+    assertEquals( 3, m_journal.getHighWaterMark() );
+  }
+
+  @Test
+  public void testResetAfterRollover() throws Exception {
+    for ( int i = 0; i < 10; i++ ) {
+      m_journal.append( "topic", payload( i, 1200 ) );
+    }
+    List<SpillJournal.Message> messages = new ArrayList<>();
+    m_journal.drainTo( messages, 100 );
+    assertEquals( 1, segmentFiles() );
+
+    // the segment kept starts over, so a full segment's worth fits again
+    messages.clear();
+    for ( int i = 0; i < 3; i++ ) {
+      m_journal.append( "topic", payload( i, 1200 ) );
+    }
+    assertEquals( 4, m_journal.getSegmentsCreated() );
+    m_journal.drainTo( messages, 100 );
+    for ( int i = 0; i < 3; i++ ) {
+      assertMessage( messages.get( i ), i, 1200 );
+    }
+  }
+
+  @Test
+  public void testOversizeMessage() throws Exception {
+    m_journal.append( "topic", payload( 0, 100 ) );
+    m_journal.append( "topic", payload( 1, 3 * SEGMENT_SIZE ) );
+    m_journal.append( "topic", payload( 2, 100 ) );
+    assertEquals( 3, m_journal.getSegmentsCreated() );
+
+    List<SpillJournal.Message> messages = new ArrayList<>();
+    assertEquals( 3, m_journal.drainTo( messages, 100 ) );
+    assertMessage( messages.get( 0 ), 0, 100 );
+    assertMessage( messages.get( 1 ), 1, 3 * SEGMENT_SIZE );
+    assertMessage( messages.get( 2 ), 2, 100 );
+
+    // the oversized segment is not kept around for the next burst
+    m_journal.append( "topic", payload( 3, 3 * SEGMENT_SIZE ) );
+    messages.clear();
+    m_journal.drainTo( messages, 100 );
+    assertMessage( messages.get( 0 ), 3, 3 * SEGMENT_SIZE );
+    assertEquals( 0, segmentFiles() );
+  }
+
+  @Test
+  public void testCloseDeletesSegments() throws Exception {
+    for ( int i = 0; i < 10; i++ ) {
+      m_journal.append( "topic", payload( i, 1200 ) );
+    }
+    m_journal.close();
+    assertEquals( 0, segmentFiles() );
+    assertTrue( m_journal.isEmpty() );
+  }
+
+  @Test( expected = IOException.class )
+  public void testAppendAfterClose() throws Exception {
+    m_journal.close();
+    m_journal.append( "topic", payload( 0, 10 ) );
+  }
+
+  private int segmentFiles() {
+    return m_dir.list( new FilenameFilter() {
+      @Override public boolean accept( File dir, String name ) {
+        return name.endsWith( ".spill" );
+      }
+    } ).length;
+  }
+
+  private static byte[] payload( int n, int length ) {
+    byte[] payload = new byte[length];
+    Arrays.fill( payload, (byte) n );
+    return payload;
+  }
+
+  private static void assertMessage( SpillJournal.Message message, int n, int length ) {
+    assertArrayEquals( payload( n, length ), message.getPayload() );
+  }
+}
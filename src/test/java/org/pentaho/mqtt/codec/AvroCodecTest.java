@@ -0,0 +1,198 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt.codec;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AvroCodecTest {
+
+  protected final AvroCodec codec = new AvroCodec();
+
+  @BeforeClass public static void beforeClass() throws KettleException {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+  }
+
+  @Test public void testRoundTrip() throws KettleException {
+    String fields = "s,i:Integer,n:Number,b:Boolean,bin:Binary,d:Date,t:Timestamp,big:BigNumber,empty:Integer";
+    Object[] row = { "caf\u00e9 \ud83d\ude00", Long.MIN_VALUE, -0.1, true, new byte[] { 0, (byte) 0xff },
+      new Date( 1234567890123L ), new Timestamp( 1234567890123L ), new BigDecimal( "12345678901234567890.0100" ),
+      null };
+
+    PayloadCodec.Decoder decoder = decoder( fields );
+    Object[] decoded = decode( decoder, fields.split( "," ).length, encoder( fields ).encode( row ) );
+    assertEquals( row[0], decoded[1] );
+    assertEquals( row[1], decoded[2] );
+    assertEquals( row[2], decoded[3] );
+    assertEquals( row[3], decoded[4] );
+    assertArrayEquals( (byte[]) row[4], (byte[]) decoded[5] );
+    assertEquals( row[5], decoded[6] );
+    assertEquals( row[6], decoded[7] );
+    assertEquals( row[7], decoded[8] );
+    assertNull( decoded[9] );
+  }
+
+  @Test public void testSchema() throws KettleException {
+    String fields = "order id:Integer,1st,amount:Number,when:Timestamp";
+    RowMetaInterface schema = codec.readSchema( encoder( fields ).getSchema() );
+    // the Kettle names and types survive names that are not valid in Avro
+    assertTrue( PayloadCodecs.sameFields( PayloadCodecs.parseFields( fields ), schema ) );
+
+    try {
+      encoder( "a b,a_b" );
+      fail( "Two fields with the same Avro name accepted" );
+    } catch ( KettleException e ) {
+      // expected
+    }
+  }
+
+  @Test public void testForeignSchema() throws KettleException {
+    String schema = "{\"type\":\"record\",\"name\":\"R\",\"fields\":["
+        + "{\"name\":\"x\",\"type\":\"long\"},"
+        + "{\"name\":\"ts\",\"type\":{\"type\":\"long\",\"logicalType\":\"timestamp-millis\"}},"
+        + "{\"name\":\"u\",\"type\":[\"null\",\"double\"]},"
+        + "{\"name\":\"f\",\"type\":\"float\"},"
+        + "{\"name\":\"flag\",\"type\":\"boolean\"},"
+        + "{\"name\":\"data\",\"type\":\"bytes\"},"
+        + "{\"name\":\"s\",\"type\":\"string\"}]}";
+    assertEquals( "x:Integer,ts:Timestamp,u:Number,f:Number,flag:Boolean,data:Binary,s:String",
+        PayloadCodecs.formatFields( codec.readSchema( schema.getBytes( StandardCharsets.UTF_8 ) ) ) );
+
+    for ( String bad : new String[] { "\"string\"", "{\"type\":\"record\"", "not json" } ) {
+      try {
+        codec.readSchema( bad.getBytes( StandardCharsets.UTF_8 ) );
+        fail( "Schema accepted: " + bad );
+      } catch ( KettleException e ) {
+        // expected
+      }
+    }
+  }
+
+  @Test public void testWriterAddsAndDropsFields() throws KettleException {
+    PayloadCodec.Encoder encoder = encoder( "a:Integer,added,c:Number" );
+    // the subscriber learns the writer's schema from the schema topic
+    codec.readSchema( encoder.getSchema() );
+
+    // a field the reader does not know is skipped, one the writer does not send is null
+    Object[] decoded = decode( decoder( "c:Number,dropped,a:Integer" ), 3,
+        encoder.encode( new Object[] { 1L, "skipped", 2.5 } ) );
+    assertEquals( 2.5, decoded[1] );
+    assertNull( decoded[2] );
+    assertEquals( 1L, decoded[3] );
+  }
+
+  @Test public void testWriterWidensField() throws KettleException {
+    PayloadCodec.Encoder encoder = encoder( "v:Integer,w:Integer" );
+    codec.readSchema( encoder.getSchema() );
+
+    // an Avro long is promoted to the double of a Number field
+    Object[] decoded = decode( decoder( "v:Number,w:Integer" ), 2, encoder.encode( new Object[] { 5L, 6L } ) );
+    assertEquals( 5.0, decoded[1] );
+    assertEquals( 6L, decoded[2] );
+  }
+
+  @Test public void testSchemasPerPayload() throws KettleException {
+    PayloadCodec.Encoder before = encoder( "a:Integer" );
+    PayloadCodec.Encoder after = encoder( "a:Integer,b" );
+    codec.readSchema( before.getSchema() );
+    codec.readSchema( after.getSchema() );
+
+    // one decoder reads payloads from both writers, each with its own writer's schema
+    PayloadCodec.Decoder decoder = decoder( "a:Integer,b" );
+    Object[] decoded = decode( decoder, 2, after.encode( new Object[] { 1L, "x" } ) );
+    assertEquals( Arrays.asList( 1L, "x" ), Arrays.asList( decoded[1], decoded[2] ) );
+    decoded = decode( decoder, 2, before.encode( new Object[] { 2L } ) );
+    assertEquals( Arrays.asList( 2L, null ), Arrays.asList( decoded[1], decoded[2] ) );
+    decoded = decode( decoder, 2, after.encode( new Object[] { 3L, "y" } ) );
+    assertEquals( Arrays.asList( 3L, "y" ), Arrays.asList( decoded[1], decoded[2] ) );
+  }
+
+  @Test public void testUnknownSchema() throws KettleException {
+    byte[] payload = encoder( "a:Integer" ).encode( new Object[] { 1L } );
+    // a fingerprint no schema has been seen for
+    for ( int i = AvroCodec.MARKER.length; i < AvroCodec.HEADER_LENGTH; i++ ) {
+      payload[i] ^= (byte) 0xff;
+    }
+    try {
+      decode( decoder( "a:Integer" ), 1, payload );
+      fail( "Payload with an unknown schema decoded" );
+    } catch ( KettleException e ) {
+      assertTrue( e.getMessage().contains( "Unknown Avro schema" ) );
+    }
+  }
+
+  @Test public void testMalformed() throws KettleException {
+    PayloadCodec.Decoder decoder = decoder( "a:Integer" );
+    byte[] payload = encoder( "a:Integer" ).encode( new Object[] { 1L } );
+    byte[] wrongMarker = payload.clone();
+    wrongMarker[0] = '{';
+    byte[] extra = Arrays.copyOf( payload, payload.length + 1 );
+    for ( byte[] bad : new byte[][] { new byte[0], Arrays.copyOf( payload, AvroCodec.HEADER_LENGTH - 1 ), wrongMarker,
+      Arrays.copyOf( payload, AvroCodec.HEADER_LENGTH ), extra } ) {
+      try {
+        decode( decoder, 1, bad );
+        fail( "Malformed payload decoded: " + Arrays.toString( bad ) );
+      } catch ( KettleException e ) {
+        // expected
+      }
+    }
+  }
+
+  protected PayloadCodec.Encoder encoder( String fields ) throws KettleException {
+    RowMetaInterface rowMeta = PayloadCodecs.parseFields( fields );
+    int[] indexes = new int[rowMeta.size()];
+    for ( int i = 0; i < indexes.length; i++ ) {
+      indexes[i] = i;
+    }
+    return codec.createEncoder( rowMeta, indexes, Collections.<String, String>emptyMap() );
+  }
+
+  protected PayloadCodec.Decoder decoder( String fields ) throws KettleException {
+    return codec.createDecoder( PayloadCodecs.parseFields( fields ), Collections.<String, String>emptyMap() );
+  }
+
+  protected Object[] decode( PayloadCodec.Decoder decoder, int fields, byte[] payload ) throws KettleException {
+    Object[] row = new Object[fields + 1];
+    decoder.decode( payload, payload.length, row, 1 );
+    assertNull( row[0] );
+    return row;
+  }
+}
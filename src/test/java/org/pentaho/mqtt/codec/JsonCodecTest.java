@@ -0,0 +1,250 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt.codec;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class JsonCodecTest {
+
+  protected final JsonCodec codec = new JsonCodec();
+
+  @BeforeClass public static void beforeClass() throws KettleException {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+  }
+
+  @Test public void testStrings() throws KettleException {
+    Object[] row = decode( "escaped,raw,pair", "",
+        "{ \"escaped\" : \"q\\\"b\\\\s\\/n\\nt\\tu\\u00e9\", \"raw\":\"caf\u00e9 \ud83d\ude00\","
+            + "\"pair\":\"\\ud83d\\ude00\" }" );
+    assertEquals( "q\"b\\s/n\nt\tu\u00e9", row[1] );
+    assertEquals( "caf\u00e9 \ud83d\ude00", row[2] );
+    assertEquals( "\ud83d\ude00", row[3] );
+  }
+
+  @Test public void testNumbers() throws KettleException {
+    Object[] row = decode(
+        "big:Integer,min:Integer,exponent:Integer,half:Integer,long:Number,tenth:Number,small:Number,huge:Number", "",
+        "{\"big\":1234567890123456789,\"min\":-9223372036854775808,\"exponent\":1.5e3,\"half\":2.5,"
+            + "\"long\":1234567890.123456789,\"tenth\":0.1,\"small\":-1.25E-7,\"huge\":-12345678901234567890}" );
+    assertEquals( 1234567890123456789L, row[1] );
+    assertEquals( Long.MIN_VALUE, row[2] );
+    assertEquals( 1500L, row[3] );
+    assertEquals( 3L, row[4] );
+    assertEquals( 1234567890.123456789, row[5] );
+    assertEquals( 0.1, row[6] );
+    assertEquals( -1.25E-7, row[7] );
+    assertEquals( -12345678901234567890.0, row[8] );
+  }
+
+  @Test public void testIntegerOutOfRange() throws KettleException {
+    assertEquals( Long.MAX_VALUE, decode( "i:Integer", "", "{\"i\":9223372036854775807}" )[1] );
+    try {
+      decode( "i:Integer", "", "{\"i\":9223372036854775808}" );
+      fail( "Integer overflow accepted" );
+    } catch ( KettleException e ) {
+      // expected
+    }
+  }
+
+  @Test public void testPaths() throws KettleException {
+    String payload = "{\"a b\":[10,20],\"o\":{\"p\":[{\"q\":1},{\"q\":\"found\"}]},\"x.y\":true,\"z\":[[1,2],[3]]}";
+    Object[] row = decode( "first:Integer,deep,quoted:Boolean,nested:Integer,object,all",
+        "first=$['a b'][0], deep=$.o.p[1].q, quoted=$[\"x.y\"], nested=z[1][0], object=$.o, all=$", payload );
+    assertEquals( 10L, row[1] );
+    assertEquals( "found", row[2] );
+    assertEquals( true, row[3] );
+    assertEquals( 3L, row[4] );
+    // a String field on an object or array gets its JSON text
+    assertEquals( "{\"p\":[{\"q\":1},{\"q\":\"found\"}]}", row[5] );
+    assertEquals( payload, row[6] );
+  }
+
+  @Test public void testMemberNames() throws KettleException {
+    // member names match whether or not the payload escapes them
+    Object[] row = decode( "name,accent:Integer", "accent=$['caf\u00e9']",
+        "{\"n\\u0061me\":\"x\",\"caf\\u00e9\":1}" );
+    assertEquals( "x", row[1] );
+    assertEquals( 1L, row[2] );
+
+    row = decode( "name,accent:Integer", "accent=$['caf\u00e9']", "{\"name\":\"y\",\"caf\u00e9\":2}" );
+    assertEquals( "y", row[1] );
+    assertEquals( 2L, row[2] );
+  }
+
+  @Test public void testMissingFields() throws KettleException {
+    RowMetaInterface fields = PayloadCodecs.parseFields( "a,b:Integer,c:Boolean,d" );
+    PayloadCodec.Decoder decoder = codec.createDecoder( fields, PayloadCodecs.parseOptions( "d=$.o[2]" ) );
+    Object[] row = { "kept", "a", 1L, true, "d" };
+    decode( decoder, "{\"a\":\"x\",\"c\":null,\"o\":[1,2]}", row );
+    assertArrayEquals( new Object[] { "kept", "x", null, null, null }, row );
+
+    // nothing is left over from the previous payload
+    decode( decoder, "{\"b\":2,\"o\":[1,2,\"z\"]}", row );
+    assertArrayEquals( new Object[] { "kept", null, 2L, null, "z" }, row );
+
+    decode( decoder, "[]", row );
+    assertArrayEquals( new Object[] { "kept", null, null, null, null }, row );
+  }
+
+  @Test public void testConversions() throws KettleException {
+    Object[] row = decode( "text,number:Integer,flag:Boolean,bytes:Binary,array", "",
+        "{\"text\":12.50,\"number\":\"42\",\"flag\":\"true\",\"bytes\":\"x\",\"array\":[ 1, \"]\" ]}" );
+    assertEquals( "12.50", row[1] );
+    assertEquals( 42L, row[2] );
+    assertEquals( true, row[3] );
+    // a Binary field gets the raw bytes of the value
+    assertArrayEquals( "\"x\"".getBytes( StandardCharsets.UTF_8 ), (byte[]) row[4] );
+    assertEquals( "[ 1, \"]\" ]", row[5] );
+  }
+
+  @Test public void testMalformed() throws KettleException {
+    String[] payloads = { "", "  ", "{\"b\":1", "{\"a\":\"x", "{\"b\" 1}", "{1:2}", "{\"b\":[1,2", "{\"b\":1 \"a\":2}",
+      "{\"a\":\"\\u00e\"}", "{\"a\":\"\\q\"}" };
+    for ( String payload : payloads ) {
+      try {
+        decode( "a", "", payload );
+        fail( "Malformed payload accepted: " + payload );
+      } catch ( KettleException e ) {
+        // expected
+      }
+    }
+  }
+
+  @Test public void testOptions() throws KettleException {
+    RowMetaInterface fields = PayloadCodecs.parseFields( "a" );
+    for ( String options : new String[] { "b=$.b", "a=$.a..b", "a=$[x]", "a=$['a" } ) {
+      try {
+        codec.createDecoder( fields, PayloadCodecs.parseOptions( options ) );
+        fail( "Options accepted: " + options );
+      } catch ( KettleException e ) {
+        // expected
+      }
+    }
+  }
+
+  @Test public void testEncodeStrings() throws KettleException {
+    assertEquals( "{\"caf\u00e9\":\"q\\\"b\\\\s/\\n\\r\\t\\u0001\\u001f \u00e9\u20ac\ud83d\ude00 ?x\"}",
+        encode( "caf\u00e9", "q\"b\\s/\n\r\t\u0001\u001f \u00e9\u20ac\ud83d\ude00 \ud800x" ) );
+  }
+
+  @Test public void testEncodeNumbers() throws KettleException {
+    assertEquals( "{\"a\":0,\"b\":-42,\"c\":-9223372036854775808,\"d\":9223372036854775807}",
+        encode( "a:Integer,b:Integer,c:Integer,d:Integer", 0L, -42L, Long.MIN_VALUE, Long.MAX_VALUE ) );
+    assertEquals( "{\"a\":1.5,\"b\":-3,\"c\":0.1,\"d\":1.0E20,\"e\":-1.25E-7}",
+        encode( "a:Number,b:Number,c:Number,d:Number,e:Number", 1.5, -3.0, 0.1, 1e20, -1.25e-7 ) );
+    // JSON has no NaN or infinity
+    assertEquals( "{\"a\":null,\"b\":null,\"c\":null}",
+        encode( "a:Number,b:Number,c:Number", Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY ) );
+    assertEquals( "{\"a\":12345678901234567890.0100}",
+        encode( "a:BigNumber", new BigDecimal( "12345678901234567890.0100" ) ) );
+  }
+
+  @Test public void testEncodeOtherValues() throws KettleException {
+    assertEquals( "{\"t\":true,\"f\":false,\"s\":null,\"i\":null}",
+        encode( "t:Boolean,f:Boolean,s,i:Integer", true, false, null, null ) );
+
+    // types without a JSON counterpart are written as formatted strings
+    RowMetaInterface fields = PayloadCodecs.parseFields( "d:Date" );
+    Date date = new Date( 1234567890123L );
+    assertEquals( "{\"d\":\"" + fields.getValueMeta( 0 ).getString( date ) + "\"}", encode( "d:Date", date ) );
+  }
+
+  @Test public void testEncodeFieldSelection() throws KettleException {
+    RowMetaInterface rowMeta = PayloadCodecs.parseFields( "a,b:Integer,c" );
+    PayloadCodec.Encoder encoder =
+        codec.createEncoder( rowMeta, new int[] { 2, 0 }, Collections.<String, String>emptyMap() );
+    assertEquals( "{\"c\":\"z\",\"a\":\"x\"}",
+        new String( encoder.encode( new Object[] { "x", 1L, "z" } ), StandardCharsets.UTF_8 ) );
+  }
+
+  @Test public void testEncodeRoundTrip() throws KettleException {
+    String fields = "s,i:Integer,n:Number,b:Boolean,empty,missing:Integer";
+    StringBuilder longText = new StringBuilder();
+    for ( int i = 0; i < 1000; i++ ) {
+      longText.append( "\u00e9\"\ud83d\ude00\n" );
+    }
+    Object[][] rows = {
+      { longText.toString(), 1234567890123456789L, 1234567890.123456789, true, "", null },
+      { "short", Long.MIN_VALUE, -0.1, false, null, 7L } };
+
+    // one encoder for all rows, so the reused buffer must not leak from one payload into the next
+    PayloadCodec.Encoder encoder = codec.createEncoder( PayloadCodecs.parseFields( fields ),
+        new int[] { 0, 1, 2, 3, 4, 5 }, Collections.<String, String>emptyMap() );
+    for ( Object[] row : rows ) {
+      Object[] decoded = decode( fields, "", new String( encoder.encode( row ), StandardCharsets.UTF_8 ) );
+      assertArrayEquals( row, Arrays.copyOfRange( decoded, 1, decoded.length ) );
+    }
+  }
+
+  @Test public void testEncodeOptions() throws KettleException {
+    try {
+      codec.createEncoder( PayloadCodecs.parseFields( "a" ), new int[] { 0 }, PayloadCodecs.parseOptions( "a=$.b" ) );
+      fail( "Encoder options accepted" );
+    } catch ( KettleException e ) {
+      // expected
+    }
+  }
+
+  protected String encode( String fields, Object... row ) throws KettleException {
+    int[] indexes = new int[row.length];
+    for ( int i = 0; i < indexes.length; i++ ) {
+      indexes[i] = i;
+    }
+    byte[] payload = codec.createEncoder( PayloadCodecs.parseFields( fields ), indexes,
+        Collections.<String, String>emptyMap() ).encode( row );
+    return new String( payload, StandardCharsets.UTF_8 );
+  }
+
+  protected Object[] decode( String fields, String options, String payload ) throws KettleException {
+    RowMetaInterface rowMeta = PayloadCodecs.parseFields( fields );
+    Object[] row = new Object[rowMeta.size() + 1];
+    decode( codec.createDecoder( rowMeta, PayloadCodecs.parseOptions( options ) ), payload, row );
+    assertNull( row[0] );
+    return row;
+  }
+
+  protected void decode( PayloadCodec.Decoder decoder, String payload, Object[] row ) throws KettleException {
+    byte[] bytes = payload.getBytes( StandardCharsets.UTF_8 );
+    // only the given length of the buffer is the payload
+    byte[] buffer = Arrays.copyOf( bytes, bytes.length + 8 );
+    Arrays.fill( buffer, bytes.length, buffer.length, (byte) '}' );
+    decoder.decode( buffer, bytes.length, row, 1 );
+  }
+}
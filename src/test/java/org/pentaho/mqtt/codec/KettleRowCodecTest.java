@@ -0,0 +1,156 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt.codec;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KettleRowCodecTest {
+
+  protected static final String FIELDS =
+      "s:String,i:Integer,n:Number,d:Date,b:Boolean,big:BigNumber,bin:Binary,t:Timestamp";
+
+  protected final KettleRowCodec codec = new KettleRowCodec();
+
+  @BeforeClass public static void beforeClass() throws KettleException {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+  }
+
+  @Test public void testRoundTrip() throws KettleException {
+    RowMetaInterface rowMeta = PayloadCodecs.parseFields( "ignored," + FIELDS );
+    int[] fields = { 1, 2, 3, 4, 5, 6, 7, 8 };
+    Object[] row = { "x", "caf\u00e9", Long.MIN_VALUE, 0.1, new Date( 1234567890123L ), true,
+      new BigDecimal( "12345678901234567890.0100" ), new byte[] { 0, (byte) 0xff }, new Timestamp( 1234567890123L ) };
+
+    PayloadCodec.Encoder encoder = codec.createEncoder( rowMeta, fields, null );
+    Object[] decoded = decode( PayloadCodecs.parseFields( FIELDS ), encoder.encode( row ) );
+    for ( int i = 0; i < fields.length; i++ ) {
+      if ( row[fields[i]] instanceof byte[] ) {
+        assertArrayEquals( (byte[]) row[fields[i]], (byte[]) decoded[1 + i] );
+      } else {
+        assertEquals( row[fields[i]], decoded[1 + i] );
+      }
+    }
+
+    // nulls are written as such, not skipped
+    Object[] nulls = new Object[9];
+    nulls[5] = false;
+    decoded = decode( PayloadCodecs.parseFields( FIELDS ), encoder.encode( nulls ) );
+    for ( int i = 0; i < fields.length; i++ ) {
+      assertEquals( nulls[fields[i]], decoded[1 + i] );
+    }
+  }
+
+  @Test public void testFieldSubset() throws KettleException {
+    RowMetaInterface rowMeta = PayloadCodecs.parseFields( "a:String,b:Integer,c:String" );
+    byte[] payload = codec.createEncoder( rowMeta, new int[] { 2, 0 }, null ).encode( new Object[] { "a", 1L, "c" } );
+    Object[] decoded = decode( PayloadCodecs.parseFields( "c,a" ), payload );
+    assertEquals( "c", decoded[1] );
+    assertEquals( "a", decoded[2] );
+  }
+
+  @Test public void testSchema() throws KettleException {
+    RowMetaInterface rowMeta = PayloadCodecs.parseFields( "ignored,amount:Number(10,2),code:String(5),when:Date" );
+    rowMeta.getValueMeta( 2 ).setStorageType( ValueMetaInterface.STORAGE_TYPE_BINARY_STRING );
+    PayloadCodec.Encoder encoder = codec.createEncoder( rowMeta, new int[] { 1, 2, 3 }, null );
+
+    RowMetaInterface schema = codec.readSchema( encoder.getSchema() );
+    assertEquals( "amount:Number(10,2),code:String(5),when:Date", PayloadCodecs.formatFields( schema ) );
+    for ( int i = 0; i < schema.size(); i++ ) {
+      // values are always sent in normal storage
+      assertEquals( ValueMetaInterface.STORAGE_TYPE_NORMAL, schema.getValueMeta( i ).getStorageType() );
+    }
+    // the input fields are left as they are
+    assertEquals( ValueMetaInterface.STORAGE_TYPE_BINARY_STRING, rowMeta.getValueMeta( 2 ).getStorageType() );
+  }
+
+  @Test public void testBinaryStringStorage() throws KettleException {
+    RowMetaInterface rowMeta = PayloadCodecs.parseFields( "lazy" );
+    ValueMetaInterface lazy = rowMeta.getValueMeta( 0 );
+    lazy.setStorageMetadata( ValueMetaFactory.createValueMeta( "lazy", ValueMetaInterface.TYPE_STRING ) );
+    lazy.setStorageType( ValueMetaInterface.STORAGE_TYPE_BINARY_STRING );
+
+    byte[] payload = codec.createEncoder( rowMeta, new int[] { 0 }, null )
+        .encode( new Object[] { "text".getBytes( StandardCharsets.UTF_8 ) } );
+    assertEquals( "text", decode( PayloadCodecs.parseFields( "lazy" ), payload )[1] );
+  }
+
+  @Test public void testLayoutMismatch() throws KettleException {
+    RowMetaInterface rowMeta = PayloadCodecs.parseFields( "a:Integer,b:Integer" );
+    byte[] payload = codec.createEncoder( rowMeta, new int[] { 0, 1 }, null ).encode( new Object[] { 1L, 2L } );
+    try {
+      decode( PayloadCodecs.parseFields( "a:Integer" ), payload );
+      fail( "Extra field ignored" );
+    } catch ( KettleException e ) {
+      assertTrue( e.getMessage().contains( "left over" ) );
+    }
+    try {
+      decode( PayloadCodecs.parseFields( "a:Integer,b:Integer,c:Integer" ), payload );
+      fail( "Missing field ignored" );
+    } catch ( KettleException e ) {
+      // expected
+    }
+  }
+
+  @Test public void testDecoderReuse() throws KettleException {
+    RowMetaInterface rowMeta = PayloadCodecs.parseFields( "a:String" );
+    PayloadCodec.Encoder encoder = codec.createEncoder( rowMeta, new int[] { 0 }, null );
+    byte[] first = encoder.encode( new Object[] { "a longer value" } );
+    byte[] second = encoder.encode( new Object[] { "short" } );
+
+    // a decoder reads each payload from the start, and only up to its length
+    PayloadCodec.Decoder decoder = codec.createDecoder( rowMeta, null );
+    Object[] row = new Object[1];
+    decoder.decode( first, first.length, row, 0 );
+    assertEquals( "a longer value", row[0] );
+    byte[] padded = Arrays.copyOf( second, second.length + 8 );
+    decoder.decode( padded, second.length, row, 0 );
+    assertEquals( "short", row[0] );
+  }
+
+  protected Object[] decode( RowMetaInterface fields, byte[] payload ) throws KettleException {
+    Object[] row = new Object[fields.size() + 1];
+    codec.createDecoder( fields, null ).decode( payload, payload.length, row, 1 );
+    assertNull( row[0] );
+    return row;
+  }
+}
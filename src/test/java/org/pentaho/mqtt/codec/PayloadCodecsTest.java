@@ -0,0 +1,144 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt.codec;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PayloadCodecsTest {
+
+  @BeforeClass public static void beforeClass() throws KettleException {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+  }
+
+  @Test public void testCodecs() throws KettleException {
+    assertEquals( PayloadCodecs.VALUE, PayloadCodecs.getIds()[0] );
+    assertTrue( Arrays.asList( PayloadCodecs.getIds() ).containsAll( Arrays.asList(
+        JsonCodec.ID, AvroCodec.ID, KettleRowCodec.ID ) ) );
+    assertSame( PayloadCodecs.getCodecs().get( PayloadCodecs.VALUE ), PayloadCodecs.getCodec( null ) );
+    assertSame( PayloadCodecs.getCodecs().get( PayloadCodecs.VALUE ), PayloadCodecs.getCodec( "" ) );
+    assertEquals( JsonCodec.ID, PayloadCodecs.getCodec( JsonCodec.ID ).getId() );
+
+    assertTrue( PayloadCodecs.isKnown( null ) );
+    assertTrue( PayloadCodecs.isKnown( "" ) );
+    assertTrue( PayloadCodecs.isKnown( AvroCodec.ID ) );
+    assertFalse( PayloadCodecs.isKnown( "protobuf" ) );
+
+    assertTrue( PayloadCodecs.isValue( null ) );
+    assertTrue( PayloadCodecs.isValue( ValueCodec.ID ) );
+    assertFalse( PayloadCodecs.isValue( JsonCodec.ID ) );
+
+    try {
+      PayloadCodecs.getCodec( "protobuf" );
+      fail( "Unknown codec accepted" );
+    } catch ( KettleException e ) {
+      assertTrue( e.getMessage().contains( "protobuf" ) );
+    }
+  }
+
+  @Test public void testParseOptions() throws KettleException {
+    assertTrue( PayloadCodecs.parseOptions( null ).isEmpty() );
+    assertTrue( PayloadCodecs.parseOptions( " , " ).isEmpty() );
+
+    Map<String, String> options = PayloadCodecs.parseOptions( " b = 2 ,a=1,, empty= , c=x=y" );
+    assertEquals( Arrays.asList( "b", "a", "empty", "c" ), Arrays.asList( options.keySet().toArray() ) );
+    assertEquals( "2", options.get( "b" ) );
+    assertEquals( "1", options.get( "a" ) );
+    assertEquals( "", options.get( "empty" ) );
+    assertEquals( "x=y", options.get( "c" ) );
+
+    for ( String bad : new String[] { "a=1,b", "=1", " =1" } ) {
+      try {
+        PayloadCodecs.parseOptions( bad );
+        fail( "Options accepted: " + bad );
+      } catch ( KettleException e ) {
+        // expected
+      }
+    }
+  }
+
+  @Test public void testParseFields() throws KettleException {
+    RowMetaInterface fields = PayloadCodecs.parseFields( "name, id : Integer, amount:Number(10,2),code:String(5)" );
+    assertEquals( 4, fields.size() );
+
+    assertEquals( "name", fields.getValueMeta( 0 ).getName() );
+    assertEquals( ValueMetaInterface.TYPE_STRING, fields.getValueMeta( 0 ).getType() );
+    assertEquals( -1, fields.getValueMeta( 0 ).getLength() );
+
+    assertEquals( "id", fields.getValueMeta( 1 ).getName() );
+    assertEquals( ValueMetaInterface.TYPE_INTEGER, fields.getValueMeta( 1 ).getType() );
+
+    assertEquals( "amount", fields.getValueMeta( 2 ).getName() );
+    assertEquals( ValueMetaInterface.TYPE_NUMBER, fields.getValueMeta( 2 ).getType() );
+    assertEquals( 10, fields.getValueMeta( 2 ).getLength() );
+    assertEquals( 2, fields.getValueMeta( 2 ).getPrecision() );
+
+    assertEquals( 5, fields.getValueMeta( 3 ).getLength() );
+    assertEquals( -1, fields.getValueMeta( 3 ).getPrecision() );
+
+    // the last colon separates the type, so names may contain colons
+    assertEquals( "a:b", PayloadCodecs.parseFields( "a:b:Date" ).getValueMeta( 0 ).getName() );
+    assertTrue( PayloadCodecs.parseFields( null ).isEmpty() );
+
+    for ( String bad : new String[] { "a:Nothing", ":Integer", "a:Number(x)", "a, :String" } ) {
+      try {
+        PayloadCodecs.parseFields( bad );
+        fail( "Fields accepted: " + bad );
+      } catch ( KettleException e ) {
+        // expected
+      }
+    }
+  }
+
+  @Test public void testFormatFields() throws KettleException {
+    String definitions = "name:String,id:Integer,amount:Number(10,2),code:String(5),when:Timestamp";
+    assertEquals( definitions, PayloadCodecs.formatFields( PayloadCodecs.parseFields( definitions ) ) );
+
+    RowMetaInterface fields = PayloadCodecs.parseFields( definitions );
+    assertTrue( PayloadCodecs.sameFields( fields, PayloadCodecs.parseFields( definitions.replace( "(10,2)", "" ) ) ) );
+    assertFalse( PayloadCodecs.sameFields( fields, PayloadCodecs.parseFields( definitions.replace( "id:", "no:" ) ) ) );
+    assertFalse( PayloadCodecs.sameFields( fields,
+        PayloadCodecs.parseFields( definitions.replace( "Integer", "String" ) ) ) );
+    assertFalse( PayloadCodecs.sameFields( fields, PayloadCodecs.parseFields( "name" ) ) );
+  }
+
+  @Test public void testSplit() {
+    assertEquals( Arrays.asList( "a", "b c", "d" ), PayloadCodecs.split( " a,b c ,, d," ) );
+    assertTrue( PayloadCodecs.split( null ).isEmpty() );
+  }
+}
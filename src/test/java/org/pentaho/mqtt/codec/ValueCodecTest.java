@@ -0,0 +1,118 @@
+/*******************************************************************************
+ *
+ * Pentaho IoT
+ *
+ * Copyright (C) 2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mqtt.codec;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ValueCodecTest {
+
+  protected final ValueCodec codec = new ValueCodec();
+
+  @BeforeClass public static void beforeClass() throws KettleException {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+  }
+
+  @Test public void testRoundTrips() throws KettleException {
+    assertEquals( "caf\u00e9 \ud83d\ude00", roundTrip( "String", "caf\u00e9 \ud83d\ude00" ) );
+    assertEquals( Long.MIN_VALUE, roundTrip( "Integer", Long.MIN_VALUE ) );
+    assertEquals( 1234567890123456789L, roundTrip( "Integer", 1234567890123456789L ) );
+    assertEquals( -0.1, roundTrip( "Number", -0.1 ) );
+    assertEquals( new Date( 1234567890123L ), roundTrip( "Date", new Date( 1234567890123L ) ) );
+    assertEquals( true, roundTrip( "Boolean", true ) );
+    assertEquals( false, roundTrip( "Boolean", false ) );
+
+    Timestamp timestamp = new Timestamp( 1234567890123L );
+    timestamp.setNanos( 123456789 );
+    assertEquals( timestamp, roundTrip( "Timestamp", timestamp ) );
+
+    byte[] binary = { 0, 1, (byte) 0xff };
+    assertArrayEquals( binary, (byte[]) roundTrip( "Binary", binary ) );
+  }
+
+  @Test public void testNull() throws KettleException {
+    // a null value is not published at all
+    assertNull( codec.createEncoder( PayloadCodecs.parseFields( "v:Integer" ), new int[] { 0 }, null )
+        .encode( new Object[] { null } ) );
+  }
+
+  @Test public void testDecodeLength() throws KettleException {
+    // only the given length of the buffer is the payload
+    assertEquals( "abc", decode( "String", "abcdef".getBytes( StandardCharsets.UTF_8 ), 3 ) );
+    assertArrayEquals( new byte[] { 1, 2 }, (byte[]) decode( "Binary", new byte[] { 1, 2, 3 }, 2 ) );
+  }
+
+  @Test public void testFourByteValues() throws KettleException {
+    assertEquals( -42L, decode( "Integer", ByteBuffer.allocate( 4 ).putInt( -42 ).array(), 4 ) );
+    assertEquals( 1.5, decode( "Number", ByteBuffer.allocate( 4 ).putFloat( 1.5f ).array(), 4 ) );
+  }
+
+  @Test public void testSingleField() throws KettleException {
+    RowMetaInterface fields = PayloadCodecs.parseFields( "a:String,b:Integer" );
+    assertFalse( codec.isMultiField() );
+    try {
+      codec.createEncoder( fields, new int[] { 0, 1 }, Collections.<String, String>emptyMap() );
+      fail( "Encoded two fields" );
+    } catch ( KettleException e ) {
+      // expected
+    }
+    try {
+      codec.createDecoder( fields, Collections.<String, String>emptyMap() );
+      fail( "Decoded into two fields" );
+    } catch ( KettleException e ) {
+      // expected
+    }
+  }
+
+  protected Object roundTrip( String type, Object value ) throws KettleException {
+    RowMetaInterface fields = PayloadCodecs.parseFields( "v:" + type );
+    byte[] payload = codec.createEncoder( fields, new int[] { 0 }, null ).encode( new Object[] { value } );
+    // decode from a buffer with room to spare, as the subscriber does
+    return decode( type, Arrays.copyOf( payload, payload.length + 16 ), payload.length );
+  }
+
+  protected Object decode( String type, byte[] payload, int length ) throws KettleException {
+    Object[] row = new Object[2];
+    codec.createDecoder( PayloadCodecs.parseFields( "v:" + type ), null ).decode( payload, length, row, 1 );
+    assertNull( row[0] );
+    return row[1];
+  }
+}